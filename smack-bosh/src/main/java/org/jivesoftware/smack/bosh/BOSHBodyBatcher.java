@@ -0,0 +1,195 @@
+/**
+ *
+ * Copyright 2019 Florian Schmaus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.smack.bosh;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.jivesoftware.smack.packet.Element;
+import org.jivesoftware.smack.packet.XmlEnvironment;
+import org.jivesoftware.smack.util.XmlStringBuilder;
+
+import org.igniterealtime.jbosh.BOSHException;
+
+/**
+ * Coalesces outgoing elements into as few BOSH bodies, and hence HTTP requests, as possible.
+ * <p>
+ * Elements are added via {@link #add(Element)}. The first element added while no flush is in progress requests a
+ * flush, which the caller performs, possibly after a short batching window, via {@link #flush()}. The flush sends all
+ * pending elements within a single body and repeats this until there are no more pending elements. Since sending a
+ * body blocks while the connection manager's 'requests' limit is reached, all elements added in the meantime are
+ * coalesced into the next body.
+ * </p>
+ * <p>
+ * Flushes are mutually exclusive, so that bodies are sent one after another and in the order of their elements, even
+ * if {@link #flush()} is invoked while another flush is in progress, e.g. on shutdown.
+ * </p>
+ */
+final class BOSHBodyBatcher {
+
+    interface BodySender {
+        /**
+         * Send a single body with the given payload.
+         *
+         * @param payloadXml the XML of the elements.
+         * @param elements the elements which are part of the payload.
+         * @throws BOSHException if the body could not be sent.
+         */
+        void sendBody(String payloadXml, List<Element> elements) throws BOSHException;
+    }
+
+    private static final XmlEnvironment BOSH_XML_ENVIRONMENT = new XmlEnvironment(XMPPBOSHConnection.BOSH_URI);
+
+    private final BodySender bodySender;
+
+    private final StringBuilder pendingPayload = new StringBuilder();
+    private final List<Element> pendingElements = new ArrayList<>();
+
+    private final Object flushLock = new Object();
+
+    private boolean flushInProgress;
+
+    private long sentBodies;
+    private long sentElements;
+    private int maxElementsPerBody;
+
+    BOSHBodyBatcher(BodySender bodySender) {
+        this.bodySender = bodySender;
+    }
+
+    /**
+     * Add an element to the pending elements.
+     *
+     * @param element the element.
+     * @return <code>true</code> if the caller has to invoke {@link #flush()}, <code>false</code> if the element will be
+     *         sent by a flush which is already in progress.
+     */
+    boolean add(Element element) {
+        // Serialize the element outside of the lock. Nested XmlStringBuilders are flattened into a single
+        // StringBuilder, instead of materializing them via XmlStringBuilder.toString(), which walks the nested
+        // builders character by character.
+        CharSequence elementXml = element.toXML(XMPPBOSHConnection.BOSH_URI);
+        if (elementXml instanceof XmlStringBuilder) {
+            elementXml = ((XmlStringBuilder) elementXml).toXML(BOSH_XML_ENVIRONMENT);
+        }
+        synchronized (this) {
+            pendingPayload.append(elementXml);
+            pendingElements.add(element);
+            if (flushInProgress) {
+                return false;
+            }
+            flushInProgress = true;
+            return true;
+        }
+    }
+
+    /**
+     * Send all pending elements. If sending a body fails, then the elements of the body are discarded and the
+     * exception is thrown.
+     *
+     * @throws BOSHException if a body could not be sent.
+     */
+    void flush() throws BOSHException {
+        synchronized (flushLock) {
+            while (true) {
+                final String payloadXml;
+                final List<Element> elements;
+                synchronized (this) {
+                    if (pendingElements.isEmpty()) {
+                        flushInProgress = false;
+                        return;
+                    }
+                    payloadXml = pendingPayload.toString();
+                    pendingPayload.setLength(0);
+                    elements = new ArrayList<>(pendingElements);
+                    pendingElements.clear();
+                }
+
+                try {
+                    bodySender.sendBody(payloadXml, elements);
+                } catch (BOSHException e) {
+                    synchronized (this) {
+                        flushInProgress = false;
+                    }
+                    throw e;
+                }
+
+                synchronized (this) {
+                    sentBodies++;
+                    sentElements += elements.size();
+                    if (elements.size() > maxElementsPerBody) {
+                        maxElementsPerBody = elements.size();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Signal that the flush requested by {@link #add(Element)} could not be performed, e.g. because it could not be
+     * scheduled. The pending elements are sent by the next flush.
+     */
+    synchronized void flushNotPerformed() {
+        flushInProgress = false;
+    }
+
+    /**
+     * Discard all pending elements.
+     */
+    synchronized void clear() {
+        pendingPayload.setLength(0);
+        pendingElements.clear();
+    }
+
+    Stats getStats() {
+        return new Stats(this);
+    }
+
+    static final class Stats {
+        final long sentBodies;
+        final long sentElements;
+        final double elementsPerBody;
+        final int maxElementsPerBody;
+
+        private Stats(BOSHBodyBatcher batcher) {
+            synchronized (batcher) {
+                sentBodies = batcher.sentBodies;
+                sentElements = batcher.sentElements;
+                maxElementsPerBody = batcher.maxElementsPerBody;
+            }
+            elementsPerBody = sentBodies == 0 ? 0 : (double) sentElements / sentBodies;
+        }
+
+        private transient String toStringCache;
+
+        @Override
+        public String toString() {
+            if (toStringCache != null) {
+                return toStringCache;
+            }
+
+            toStringCache =
+                      "sent-bodies: " + sentBodies + '\n'
+                    + "sent-elements: " + sentElements + '\n'
+                    + "elements-per-body: " + elementsPerBody + '\n'
+                    + "max-elements-per-body: " + maxElementsPerBody
+                    ;
+
+            return toStringCache;
+        }
+    }
+}
@@ -34,6 +34,7 @@ public final class BOSHConfiguration extends ConnectionConfiguration {
 
     private final boolean https;
     private final String file;
+    private final int batchingWindowMillis;
 
     private BOSHConfiguration(Builder builder) {
         super(builder);
@@ -49,6 +50,7 @@ public final class BOSHConfiguration extends ConnectionConfiguration {
         } else {
             file = builder.file;
         }
+        batchingWindowMillis = builder.batchingWindowMillis;
     }
 
     public boolean isProxyEnabled() {
@@ -72,6 +74,16 @@ public final class BOSHConfiguration extends ConnectionConfiguration {
         return https;
     }
 
+    /**
+     * Get the time in milliseconds outgoing stanzas are collected before they are sent within a single BOSH body.
+     *
+     * @return the batching window in milliseconds.
+     * @see Builder#setBatchingWindowMillis(int)
+     */
+    public int getBatchingWindowMillis() {
+        return batchingWindowMillis;
+    }
+
     public URI getURI() throws URISyntaxException {
         return new URI((https ? "https://" : "http://") + this.host + ":" + this.port + file);
     }
@@ -83,6 +95,7 @@ public final class BOSHConfiguration extends ConnectionConfiguration {
     public static final class Builder extends ConnectionConfiguration.Builder<Builder, BOSHConfiguration> {
         private boolean https;
         private String file;
+        private int batchingWindowMillis;
 
         private Builder() {
         }
@@ -101,6 +114,25 @@ public final class BOSHConfiguration extends ConnectionConfiguration {
             return this;
         }
 
+        /**
+         * Set the time in milliseconds outgoing stanzas are collected before they are sent within a single BOSH body.
+         * <p>
+         * Independently of this setting, stanzas which are sent while the connection manager's 'requests' limit is
+         * reached are always coalesced into the next body. The default is <code>0</code>, which means that stanzas are
+         * not deferred.
+         * </p>
+         *
+         * @param batchingWindowMillis the batching window in milliseconds.
+         * @return a reference to this object.
+         */
+        public Builder setBatchingWindowMillis(int batchingWindowMillis) {
+            if (batchingWindowMillis < 0) {
+                throw new IllegalArgumentException("batchingWindowMillis must not be negative");
+            }
+            this.batchingWindowMillis = batchingWindowMillis;
+            return this;
+        }
+
         @Override
         public BOSHConfiguration build() {
             return new BOSHConfiguration(this);
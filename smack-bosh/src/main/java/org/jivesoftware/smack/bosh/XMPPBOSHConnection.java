@@ -22,6 +22,9 @@ import java.io.PipedReader;
 import java.io.PipedWriter;
 import java.io.StringReader;
 import java.io.Writer;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -59,7 +62,6 @@ import org.igniterealtime.jbosh.ComposableBody;
 import org.jxmpp.jid.DomainBareJid;
 import org.jxmpp.jid.parts.Resourcepart;
 import org.xmlpull.v1.XmlPullParser;
-import org.xmlpull.v1.XmlPullParserFactory;
 
 /**
  * Creates a connection to an XMPP server via HTTP binding.
@@ -107,6 +109,18 @@ public class XMPPBOSHConnection extends AbstractXMPPConnection {
 
     private boolean notified;
 
+    private final BOSHBodyBatcher bodyBatcher = new BOSHBodyBatcher(new BOSHBodyBatcher.BodySender() {
+        @Override
+        public void sendBody(String payloadXml, List<Element> elements) throws BOSHException {
+            send(ComposableBody.builder().setPayloadXML(payloadXml).build());
+            for (Element element : elements) {
+                if (element instanceof Stanza) {
+                    firePacketSendingListeners((Stanza) element);
+                }
+            }
+        }
+    });
+
     /**
      * Create a HTTP Binding connection to an XMPP server.
      *
@@ -236,14 +250,39 @@ public class XMPPBOSHConnection extends AbstractXMPPConnection {
     }
 
     private void sendElement(Element element) {
+        if (!bodyBatcher.add(element)) {
+            // A flush is already in progress, which will also send this element.
+            return;
+        }
+
+        final int batchingWindowMillis = config.getBatchingWindowMillis();
+        if (batchingWindowMillis > 0) {
+            schedule(new Runnable() {
+                @Override
+                public void run() {
+                    // Do not block the scheduling thread while sending.
+                    boolean submitted = asyncGoOrLogRejection(new Runnable() {
+                        @Override
+                        public void run() {
+                            flushPendingElements();
+                        }
+                    });
+                    if (!submitted) {
+                        bodyBatcher.flushNotPerformed();
+                    }
+                }
+            }, batchingWindowMillis, TimeUnit.MILLISECONDS);
+        } else {
+            flushPendingElements();
+        }
+    }
+
+    private void flushPendingElements() {
         try {
-            send(ComposableBody.builder().setPayloadXML(element.toXML(BOSH_URI).toString()).build());
-            if (element instanceof Stanza) {
-                firePacketSendingListeners((Stanza) element);
-            }
+            bodyBatcher.flush();
         }
-        catch (BOSHException e) {
-            LOGGER.log(Level.SEVERE, "BOSHException in sendStanzaInternal", e);
+        catch (BOSHException | IllegalStateException e) {
+            LOGGER.log(Level.SEVERE, "Exception while sending pending elements", e);
         }
     }
 
@@ -258,6 +297,9 @@ public class XMPPBOSHConnection extends AbstractXMPPConnection {
     protected void shutdown() {
 
         if (client != null) {
+            // Send the elements which are still pending, e.g. the unavailable presence. This waits for a flush which
+            // is already in progress, so that the bodies are not sent concurrently.
+            flushPendingElements();
             try {
                 client.disconnect();
             } catch (Exception e) {
@@ -282,6 +324,8 @@ public class XMPPBOSHConnection extends AbstractXMPPConnection {
         reader = null;
         writer = null;
         readerConsumer = null;
+
+        bodyBatcher.clear();
     }
 
     /**
@@ -452,6 +496,12 @@ public class XMPPBOSHConnection extends AbstractXMPPConnection {
      */
     private class BOSHPacketReader implements BOSHClientResponseListener {
 
+        /**
+         * A parser which is currently not in use. Creating a parser is costly, hence it is re-used for the following
+         * responses.
+         */
+        private final AtomicReference<XmlPullParser> idleParser = new AtomicReference<>();
+
         /**
          * Parse the received packets and notify the corresponding connection.
          *
@@ -468,8 +518,10 @@ public class XMPPBOSHConnection extends AbstractXMPPConnection {
                     if (streamId == null) {
                         streamId = body.getAttribute(BodyQName.create(XMPPBOSHConnection.BOSH_URI, "authid"));
                     }
-                    final XmlPullParser parser = XmlPullParserFactory.newInstance().newPullParser();
-                    parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, true);
+                    XmlPullParser parser = idleParser.getAndSet(null);
+                    if (parser == null) {
+                        parser = PacketParserUtils.newXmppParser();
+                    }
                     parser.setInput(new StringReader(body.toXML()));
                     int eventType = parser.getEventType();
                     do {
@@ -520,6 +572,7 @@ public class XMPPBOSHConnection extends AbstractXMPPConnection {
                         }
                     }
                     while (eventType != XmlPullParser.END_DOCUMENT);
+                    idleParser.set(parser);
                 }
                 catch (Exception e) {
                     if (isConnected()) {
@@ -0,0 +1,236 @@
+/**
+ *
+ * Copyright 2019 Florian Schmaus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.smack.bosh;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import org.jivesoftware.smack.packet.Element;
+
+import org.igniterealtime.jbosh.BOSHException;
+import org.junit.Test;
+
+public class BOSHBodyBatcherTest {
+
+    private static final Logger LOGGER = Logger.getLogger(BOSHBodyBatcherTest.class.getName());
+
+    private static final int STANZA_COUNT = 500;
+
+    @Test
+    public void elementsAreSentInOrderTest() throws BOSHException, InterruptedException {
+        // A connection manager which allows two concurrent requests, each taking 10ms.
+        StubConnectionManager connectionManager = new StubConnectionManager(2, 10);
+        BOSHBodyBatcher batcher = new BOSHBodyBatcher(connectionManager);
+        try {
+            for (int i = 0; i < STANZA_COUNT; i++) {
+                if (batcher.add(createElement(i))) {
+                    batcher.flush();
+                }
+            }
+        } finally {
+            connectionManager.shutdown();
+        }
+
+        assertEquals(STANZA_COUNT, connectionManager.receivedElements.size());
+        for (int i = 0; i < STANZA_COUNT; i++) {
+            assertEquals(createXml(i), connectionManager.receivedElements.get(i));
+        }
+
+        BOSHBodyBatcher.Stats stats = batcher.getStats();
+        LOGGER.info("Sending " + STANZA_COUNT + " stanzas required " + connectionManager.requests + " requests");
+        assertEquals(connectionManager.requests, stats.sentBodies);
+        assertEquals(STANZA_COUNT, stats.sentElements);
+    }
+
+    @Test
+    public void concurrentSendersAreCoalescedTest() throws InterruptedException {
+        final StubConnectionManager connectionManager = new StubConnectionManager(2, 10);
+        final BOSHBodyBatcher batcher = new BOSHBodyBatcher(connectionManager);
+        final int senderCount = 4;
+        final CountDownLatch sendersDone = new CountDownLatch(senderCount);
+        try {
+            for (int i = 0; i < senderCount; i++) {
+                final int sender = i;
+                new Thread() {
+                    @Override
+                    public void run() {
+                        try {
+                            for (int j = 0; j < STANZA_COUNT / senderCount; j++) {
+                                if (batcher.add(createElement(sender * STANZA_COUNT + j))) {
+                                    batcher.flush();
+                                }
+                            }
+                        } catch (BOSHException e) {
+                            throw new AssertionError(e);
+                        } finally {
+                            sendersDone.countDown();
+                        }
+                    }
+                }.start();
+            }
+            assertTrue(sendersDone.await(30, TimeUnit.SECONDS));
+        } finally {
+            connectionManager.shutdown();
+        }
+
+        assertEquals(STANZA_COUNT, connectionManager.receivedElements.size());
+        LOGGER.info("Sending " + STANZA_COUNT + " stanzas from " + senderCount + " threads required "
+                        + connectionManager.requests + " requests");
+        // Without batching every stanza would require its own request.
+        assertTrue(connectionManager.requests < STANZA_COUNT / 2);
+    }
+
+    @Test
+    public void flushesAreMutuallyExclusiveTest() throws Exception {
+        final StubConnectionManager connectionManager = new StubConnectionManager(2, 10);
+        final AtomicInteger concurrentBodies = new AtomicInteger();
+        final AtomicInteger maxConcurrentBodies = new AtomicInteger();
+        final CountDownLatch firstBodySending = new CountDownLatch(1);
+        final BOSHBodyBatcher batcher = new BOSHBodyBatcher(new BOSHBodyBatcher.BodySender() {
+            @Override
+            public void sendBody(String payloadXml, List<Element> elements) throws BOSHException {
+                int concurrent = concurrentBodies.incrementAndGet();
+                synchronized (maxConcurrentBodies) {
+                    maxConcurrentBodies.set(Math.max(maxConcurrentBodies.get(), concurrent));
+                }
+                firstBodySending.countDown();
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException e) {
+                    throw new BOSHException(e.getMessage());
+                }
+                connectionManager.sendBody(payloadXml, elements);
+                concurrentBodies.decrementAndGet();
+            }
+        });
+
+        try {
+            assertTrue(batcher.add(createElement(0)));
+            Thread flusher = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        batcher.flush();
+                    } catch (BOSHException e) {
+                        throw new AssertionError(e);
+                    }
+                }
+            };
+            flusher.start();
+            assertTrue(firstBodySending.await(5, TimeUnit.SECONDS));
+
+            // Like on shutdown: add an element while a flush is in progress and flush explicitly.
+            assertFalse(batcher.add(createElement(1)));
+            batcher.flush();
+            flusher.join();
+        } finally {
+            connectionManager.shutdown();
+        }
+
+        assertEquals(1, maxConcurrentBodies.get());
+        assertEquals(2, connectionManager.receivedElements.size());
+        assertEquals(createXml(0), connectionManager.receivedElements.get(0));
+        assertEquals(createXml(1), connectionManager.receivedElements.get(1));
+    }
+
+    @Test
+    public void flushNotPerformedAllowsNextFlushTest() throws BOSHException {
+        StubConnectionManager connectionManager = new StubConnectionManager(2, 0);
+        BOSHBodyBatcher batcher = new BOSHBodyBatcher(connectionManager);
+        try {
+            assertEquals(0, batcher.getStats().elementsPerBody, 0);
+
+            assertTrue(batcher.add(createElement(0)));
+            // The requested flush could not be scheduled.
+            batcher.flushNotPerformed();
+
+            assertTrue(batcher.add(createElement(1)));
+            batcher.flush();
+        } finally {
+            connectionManager.shutdown();
+        }
+
+        assertEquals(2, connectionManager.receivedElements.size());
+        assertEquals(1, connectionManager.requests);
+    }
+
+    private static Element createElement(final int id) {
+        return xmlEnvironment -> createXml(id);
+    }
+
+    private static String createXml(int id) {
+        return "<message id='" + id + "'><body>Hi</body></message>";
+    }
+
+    /**
+     * A stub of a BOSH connection manager, which, like jbosh, blocks sending a body while the 'requests' limit is
+     * reached.
+     */
+    private static final class StubConnectionManager implements BOSHBodyBatcher.BodySender {
+        private final Semaphore requestSlots;
+        private final long roundTripMillis;
+        private final ScheduledExecutorService responder = Executors.newSingleThreadScheduledExecutor();
+
+        private final List<String> receivedElements = new ArrayList<>();
+        private int requests;
+
+        private StubConnectionManager(int maxRequests, long roundTripMillis) {
+            this.requestSlots = new Semaphore(maxRequests);
+            this.roundTripMillis = roundTripMillis;
+        }
+
+        @Override
+        public void sendBody(String payloadXml, List<Element> elements) throws BOSHException {
+            try {
+                requestSlots.acquire();
+            } catch (InterruptedException e) {
+                throw new BOSHException(e.getMessage());
+            }
+            synchronized (this) {
+                requests++;
+                for (Element element : elements) {
+                    receivedElements.add(element.toXML().toString());
+                }
+            }
+            assertEquals(concat(elements), payloadXml);
+            responder.schedule(() -> requestSlots.release(), roundTripMillis, TimeUnit.MILLISECONDS);
+        }
+
+        private void shutdown() {
+            responder.shutdown();
+        }
+
+        private static String concat(List<Element> elements) {
+            StringBuilder sb = new StringBuilder();
+            for (Element element : elements) {
+                sb.append(element.toXML());
+            }
+            return sb.toString();
+        }
+    }
+}
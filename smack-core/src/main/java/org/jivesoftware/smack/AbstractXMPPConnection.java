@@ -35,19 +35,18 @@ import java.security.UnrecoverableKeyException;
 import java.security.cert.CertificateException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.Iterator;
-import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CopyOnWriteArraySet;
 import java.util.concurrent.Executor;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Lock;
@@ -86,6 +85,7 @@ import org.jivesoftware.smack.debugger.SmackDebugger;
 import org.jivesoftware.smack.debugger.SmackDebuggerFactory;
 import org.jivesoftware.smack.filter.IQReplyFilter;
 import org.jivesoftware.smack.filter.StanzaFilter;
+import org.jivesoftware.smack.filter.StanzaIdBoundFilter;
 import org.jivesoftware.smack.filter.StanzaIdFilter;
 import org.jivesoftware.smack.iqrequest.IQRequestHandler;
 import org.jivesoftware.smack.packet.Bind;
@@ -111,7 +111,9 @@ import org.jivesoftware.smack.provider.ExtensionElementProvider;
 import org.jivesoftware.smack.provider.NonzaProvider;
 import org.jivesoftware.smack.provider.ProviderManager;
 import org.jivesoftware.smack.sasl.core.SASLAnonymous;
+import org.jivesoftware.smack.util.Async;
 import org.jivesoftware.smack.util.DNSUtil;
+import org.jivesoftware.smack.util.InternedQName;
 import org.jivesoftware.smack.util.Objects;
 import org.jivesoftware.smack.util.PacketParserUtils;
 import org.jivesoftware.smack.util.ParserUtils;
@@ -203,31 +205,42 @@ public abstract class AbstractXMPPConnection implements XMPPConnection {
      */
     private final Collection<StanzaCollector> collectors = new ConcurrentLinkedQueue<>();
 
-    private final Map<StanzaListener, ListenerWrapper> recvListeners = new LinkedHashMap<>();
+    /**
+     * StanzaCollectors whose filter is a {@link StanzaIdBoundFilter}, indexed by the stanza ID they are waiting for.
+     * This allows to look up the collector of a reply in O(1) instead of evaluating the filter of every pending
+     * collector, which matters if there are many outstanding IQ requests. If there is already a collector for a
+     * given stanza ID, then further collectors for the same ID are put into {@link #collectors}.
+     */
+    private final ConcurrentMap<String, StanzaCollector> idBoundCollectors = new ConcurrentHashMap<>();
+
+    /*
+     * The listener registries below are copy-on-write: stanza processing iterates over an immutable snapshot without
+     * taking a lock, while (the comparatively rare) listener registration and removal publishes a new snapshot.
+     */
+
+    private final StanzaListenerRegistry<ListenerWrapper> recvListeners = new StanzaListenerRegistry<>();
 
     /**
      * List of PacketListeners that will be notified synchronously when a new stanza was received.
      */
-    private final Map<StanzaListener, ListenerWrapper> syncRecvListeners = new LinkedHashMap<>();
+    private final StanzaListenerRegistry<ListenerWrapper> syncRecvListeners = new StanzaListenerRegistry<>();
 
     /**
      * List of PacketListeners that will be notified asynchronously when a new stanza was received.
      */
-    private final Map<StanzaListener, ListenerWrapper> asyncRecvListeners = new LinkedHashMap<>();
+    private final StanzaListenerRegistry<ListenerWrapper> asyncRecvListeners = new StanzaListenerRegistry<>();
 
     /**
      * List of PacketListeners that will be notified when a new stanza was sent.
      */
-    private final Map<StanzaListener, ListenerWrapper> sendListeners =
-            new HashMap<>();
+    private final StanzaListenerRegistry<ListenerWrapper> sendListeners = new StanzaListenerRegistry<>();
 
     /**
      * List of PacketListeners that will be notified when a new stanza is about to be
      * sent to the server. These interceptors may modify the stanza before it is being
      * actually sent to the server.
      */
-    private final Map<StanzaListener, InterceptorWrapper> interceptors =
-            new HashMap<>();
+    private final StanzaListenerRegistry<InterceptorWrapper> interceptors = new StanzaListenerRegistry<>();
 
     private XmlEnvironment incomingStreamXmlEnvironment;
 
@@ -325,19 +338,9 @@ public abstract class AbstractXMPPConnection implements XMPPConnection {
     private ParsingExceptionCallback parsingExceptionCallback = SmackConfiguration.getDefaultParsingExceptionCallback();
 
     /**
-     * A cached thread pool executor service with custom thread factory to set meaningful names on the threads and set
-     * them 'daemon'.
+     * Shared by all connections. Every connection has its own queue, hence a blocking listener of one connection only
+     * delays the other connections once all {@link AsyncButOrdered#DEFAULT_MAX_THREADS} threads are blocked.
      */
-    private static final ExecutorService CACHED_EXECUTOR_SERVICE = Executors.newCachedThreadPool(new ThreadFactory() {
-        @Override
-        public Thread newThread(Runnable runnable) {
-            Thread thread = new Thread(runnable);
-            thread.setName("Smack Cached Executor");
-            thread.setDaemon(true);
-            return thread;
-        }
-    });
-
     protected static final AsyncButOrdered<AbstractXMPPConnection> ASYNC_BUT_ORDERED = new AsyncButOrdered<>();
 
     protected final AsyncButOrdered<StanzaListener> inOrderListeners = new AsyncButOrdered<>();
@@ -365,8 +368,8 @@ public abstract class AbstractXMPPConnection implements XMPPConnection {
 
     protected Exception currentConnectionException;
 
-    private final Map<String, IQRequestHandler> setIqRequestHandler = new HashMap<>();
-    private final Map<String, IQRequestHandler> getIqRequestHandler = new HashMap<>();
+    private final Map<InternedQName, IQRequestHandler> setIqRequestHandler = new HashMap<>();
+    private final Map<InternedQName, IQRequestHandler> getIqRequestHandler = new HashMap<>();
 
     /**
      * Create a new XMPPConnection to an XMPP server.
@@ -847,6 +850,9 @@ public abstract class AbstractXMPPConnection implements XMPPConnection {
         for (StanzaCollector collector : collectors) {
             collector.notifyConnectionError(exception);
         }
+        for (StanzaCollector collector : idBoundCollectors.values()) {
+            collector.notifyConnectionError(exception);
+        }
         SmackWrappedException smackWrappedException = new SmackWrappedException(exception);
         tlsHandled.reportGenericFailure(smackWrappedException);
         saslFeatureReceived.reportGenericFailure(smackWrappedException);
@@ -945,6 +951,14 @@ public abstract class AbstractXMPPConnection implements XMPPConnection {
     @Override
     public StanzaCollector createStanzaCollector(StanzaCollector.Configuration configuration) {
         StanzaCollector collector = new StanzaCollector(this, configuration);
+        StanzaFilter stanzaFilter = collector.getStanzaFilter();
+        if (stanzaFilter instanceof StanzaIdBoundFilter) {
+            String stanzaId = ((StanzaIdBoundFilter) stanzaFilter).getStanzaId();
+            StanzaCollector previousCollector = idBoundCollectors.putIfAbsent(stanzaId, collector);
+            if (previousCollector == null) {
+                return collector;
+            }
+        }
         // Add the collector to the list of active collectors.
         collectors.add(collector);
         return collector;
@@ -952,6 +966,14 @@ public abstract class AbstractXMPPConnection implements XMPPConnection {
 
     @Override
     public void removeStanzaCollector(StanzaCollector collector) {
+        StanzaFilter stanzaFilter = collector.getStanzaFilter();
+        if (stanzaFilter instanceof StanzaIdBoundFilter) {
+            String stanzaId = ((StanzaIdBoundFilter) stanzaFilter).getStanzaId();
+            boolean removed = idBoundCollectors.remove(stanzaId, collector);
+            if (removed) {
+                return;
+            }
+        }
         collectors.remove(collector);
     }
 
@@ -961,16 +983,12 @@ public abstract class AbstractXMPPConnection implements XMPPConnection {
             throw new NullPointerException("Given stanza listener must not be null");
         }
         ListenerWrapper wrapper = new ListenerWrapper(stanzaListener, stanzaFilter);
-        synchronized (recvListeners) {
-            recvListeners.put(stanzaListener, wrapper);
-        }
+        recvListeners.put(stanzaListener, stanzaFilter, wrapper);
     }
 
     @Override
     public final boolean removeStanzaListener(StanzaListener stanzaListener) {
-        synchronized (recvListeners) {
-            return recvListeners.remove(stanzaListener) != null;
-        }
+        return recvListeners.remove(stanzaListener) != null;
     }
 
     @Override
@@ -979,16 +997,12 @@ public abstract class AbstractXMPPConnection implements XMPPConnection {
             throw new NullPointerException("Packet listener is null.");
         }
         ListenerWrapper wrapper = new ListenerWrapper(packetListener, packetFilter);
-        synchronized (syncRecvListeners) {
-            syncRecvListeners.put(packetListener, wrapper);
-        }
+        syncRecvListeners.put(packetListener, packetFilter, wrapper);
     }
 
     @Override
     public boolean removeSyncStanzaListener(StanzaListener packetListener) {
-        synchronized (syncRecvListeners) {
-            return syncRecvListeners.remove(packetListener) != null;
-        }
+        return syncRecvListeners.remove(packetListener) != null;
     }
 
     @Override
@@ -997,16 +1011,12 @@ public abstract class AbstractXMPPConnection implements XMPPConnection {
             throw new NullPointerException("Packet listener is null.");
         }
         ListenerWrapper wrapper = new ListenerWrapper(packetListener, packetFilter);
-        synchronized (asyncRecvListeners) {
-            asyncRecvListeners.put(packetListener, wrapper);
-        }
+        asyncRecvListeners.put(packetListener, packetFilter, wrapper);
     }
 
     @Override
     public boolean removeAsyncStanzaListener(StanzaListener packetListener) {
-        synchronized (asyncRecvListeners) {
-            return asyncRecvListeners.remove(packetListener) != null;
-        }
+        return asyncRecvListeners.remove(packetListener) != null;
     }
 
     @Override
@@ -1015,16 +1025,12 @@ public abstract class AbstractXMPPConnection implements XMPPConnection {
             throw new NullPointerException("Packet listener is null.");
         }
         ListenerWrapper wrapper = new ListenerWrapper(packetListener, packetFilter);
-        synchronized (sendListeners) {
-            sendListeners.put(packetListener, wrapper);
-        }
+        sendListeners.put(packetListener, packetFilter, wrapper);
     }
 
     @Override
     public void removeStanzaSendingListener(StanzaListener packetListener) {
-        synchronized (sendListeners) {
-            sendListeners.remove(packetListener);
-        }
+        sendListeners.remove(packetListener);
     }
 
     /**
@@ -1047,24 +1053,18 @@ public abstract class AbstractXMPPConnection implements XMPPConnection {
         }
         Stanza packet = (Stanza) sendTopLevelStreamElement;
 
-        final List<StanzaListener> listenersToNotify = new LinkedList<>();
-        synchronized (sendListeners) {
-            for (ListenerWrapper listenerWrapper : sendListeners.values()) {
-                if (listenerWrapper.filterMatches(packet)) {
-                    listenersToNotify.add(listenerWrapper.getListener());
-                }
-            }
-        }
+        final List<StanzaListenerRegistry.Entry<ListenerWrapper>> listenersToNotify = extractMatchingEntries(packet,
+                        sendListeners);
         if (listenersToNotify.isEmpty()) {
             return;
         }
         // Notify in a new thread, because we can
-        asyncGo(new Runnable() {
+        asyncGoOrFailConnection(new Runnable() {
             @Override
             public void run() {
-                for (StanzaListener listener : listenersToNotify) {
+                for (StanzaListenerRegistry.Entry<ListenerWrapper> entry : listenersToNotify) {
                     try {
-                        listener.processStanza(packet);
+                        entry.listener.processStanza(packet);
                     }
                     catch (Exception e) {
                         LOGGER.log(Level.WARNING, "Sending listener threw exception", e);
@@ -1082,16 +1082,12 @@ public abstract class AbstractXMPPConnection implements XMPPConnection {
             throw new NullPointerException("Packet interceptor is null.");
         }
         InterceptorWrapper interceptorWrapper = new InterceptorWrapper(packetInterceptor, packetFilter);
-        synchronized (interceptors) {
-            interceptors.put(packetInterceptor, interceptorWrapper);
-        }
+        interceptors.put(packetInterceptor, packetFilter, interceptorWrapper);
     }
 
     @Override
     public void removeStanzaInterceptor(StanzaListener packetInterceptor) {
-        synchronized (interceptors) {
-            interceptors.remove(packetInterceptor);
-        }
+        interceptors.remove(packetInterceptor);
     }
 
     /**
@@ -1103,15 +1099,15 @@ public abstract class AbstractXMPPConnection implements XMPPConnection {
      * @param packet the stanza that is going to be sent to the server
      */
     private void firePacketInterceptors(Stanza packet) {
-        List<StanzaListener> interceptorsToInvoke = new LinkedList<>();
-        synchronized (interceptors) {
-            for (InterceptorWrapper interceptorWrapper : interceptors.values()) {
-                if (interceptorWrapper.filterMatches(packet)) {
-                    interceptorsToInvoke.add(interceptorWrapper.getInterceptor());
-                }
+        // Iterate over a snapshot of the interceptors, so that interceptors are able to (un)register interceptors.
+        StanzaListenerRegistry.Snapshot<InterceptorWrapper> snapshot = interceptors.getSnapshot();
+        for (int candidate : snapshot.getCandidates(packet)) {
+            StanzaListenerRegistry.Entry<InterceptorWrapper> entry = snapshot.entries[candidate];
+            InterceptorWrapper interceptorWrapper = entry.wrapper;
+            if (!interceptorWrapper.filterMatches(packet)) {
+                continue;
             }
-        }
-        for (StanzaListener interceptor : interceptorsToInvoke) {
+            StanzaListener interceptor = interceptorWrapper.getInterceptor();
             try {
                 interceptor.processStanza(packet);
             } catch (Exception e) {
@@ -1257,18 +1253,19 @@ public abstract class AbstractXMPPConnection implements XMPPConnection {
             final IQ iq = (IQ) packet;
             if (iq.isRequestIQ()) {
                 final IQ iqRequest = iq;
-                final String key = XmppStringUtils.generateKey(iq.getChildElementName(), iq.getChildElementNamespace());
+                // If there is no interned qualified name for the child element, then no handler was ever registered for it.
+                final InternedQName key = InternedQName.lookup(iq.getChildElementName(), iq.getChildElementNamespace());
                 IQRequestHandler iqRequestHandler;
                 final IQ.Type type = iq.getType();
                 switch (type) {
                 case set:
                     synchronized (setIqRequestHandler) {
-                        iqRequestHandler = setIqRequestHandler.get(key);
+                        iqRequestHandler = key == null ? null : setIqRequestHandler.get(key);
                     }
                     break;
                 case get:
                     synchronized (getIqRequestHandler) {
-                        iqRequestHandler = getIqRequestHandler.get(key);
+                        iqRequestHandler = key == null ? null : getIqRequestHandler.get(key);
                     }
                     break;
                 default:
@@ -1295,7 +1292,7 @@ public abstract class AbstractXMPPConnection implements XMPPConnection {
                                     replyCondition));
                     // Use async sendStanza() here, since if sendStanza() would block, then some connections, e.g.
                     // XmppNioTcpConnection, would deadlock, as this operation is performed in the same thread that is
-                    asyncGo(() -> {
+                    asyncGoOrFailConnection(() -> {
                         try {
                             sendStanza(errorIQ);
                         }
@@ -1310,35 +1307,39 @@ public abstract class AbstractXMPPConnection implements XMPPConnection {
                         executorService = ASYNC_BUT_ORDERED.asExecutorFor(this);
                         break;
                     case async:
-                        executorService = CACHED_EXECUTOR_SERVICE;
+                        executorService = SmackConfiguration.getAsyncExecutor();
                         break;
                     }
                     final IQRequestHandler finalIqRequestHandler = iqRequestHandler;
-                    executorService.execute(new Runnable() {
-                        @Override
-                        public void run() {
-                            IQ response = finalIqRequestHandler.handleIQRequest(iq);
-                            if (response == null) {
-                                // It is not ideal if the IQ request handler does not return an IQ response, because RFC
-                                // 6120 § 8.1.2 does specify that a response is mandatory. But some APIs, mostly the
-                                // file transfer one, does not always return a result, so we need to handle this case.
-                                // Also sometimes a request handler may decide that it's better to not send a response,
-                                // e.g. to avoid presence leaks.
-                                return;
-                            }
-
-                            assert (response.getType() == IQ.Type.result || response.getType() == IQ.Type.error);
-
-                            response.setTo(iqRequest.getFrom());
-                            response.setStanzaId(iqRequest.getStanzaId());
-                            try {
-                                sendStanza(response);
-                            }
-                            catch (InterruptedException | NotConnectedException e) {
-                                LOGGER.log(Level.WARNING, "Exception while sending response to IQ request", e);
+                    try {
+                        executorService.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                IQ response = finalIqRequestHandler.handleIQRequest(iq);
+                                if (response == null) {
+                                    // It is not ideal if the IQ request handler does not return an IQ response,
+                                    // because RFC 6120 § 8.1.2 does specify that a response is mandatory. But some
+                                    // APIs, mostly the file transfer one, does not always return a result, so we need
+                                    // to handle this case. Also sometimes a request handler may decide that it's better
+                                    // to not send a response, e.g. to avoid presence leaks.
+                                    return;
+                                }
+
+                                assert (response.getType() == IQ.Type.result || response.getType() == IQ.Type.error);
+
+                                response.setTo(iqRequest.getFrom());
+                                response.setStanzaId(iqRequest.getStanzaId());
+                                try {
+                                    sendStanza(response);
+                                }
+                                catch (InterruptedException | NotConnectedException e) {
+                                    LOGGER.log(Level.WARNING, "Exception while sending response to IQ request", e);
+                                }
                             }
-                        }
-                    });
+                        });
+                    } catch (RejectedExecutionException e) {
+                        failConnectionDueToRejection("IQ request handler for " + iqRequest, e);
+                    }
                 }
                 // The following returns makes it impossible for packet listeners and collectors to
                 // filter for IQ request stanzas, i.e. IQs of type 'set' or 'get'. This is the
@@ -1350,10 +1351,14 @@ public abstract class AbstractXMPPConnection implements XMPPConnection {
         // First handle the async recv listeners. Note that this code is very similar to what follows a few lines below,
         // the only difference is that asyncRecvListeners is used here and that the packet listeners are started in
         // their own thread.
-        final Collection<StanzaListener> listenersToNotify = new LinkedList<>();
-        extractMatchingListeners(packet, asyncRecvListeners, listenersToNotify);
-        for (final StanzaListener listener : listenersToNotify) {
-            asyncGo(new Runnable() {
+        StanzaListenerRegistry.Snapshot<ListenerWrapper> asyncRecvSnapshot = asyncRecvListeners.getSnapshot();
+        for (int candidate : asyncRecvSnapshot.getCandidates(packet)) {
+            StanzaListenerRegistry.Entry<ListenerWrapper> entry = asyncRecvSnapshot.entries[candidate];
+            if (!entry.wrapper.filterMatches(packet)) {
+                continue;
+            }
+            final StanzaListener listener = entry.listener;
+            asyncGoOrFailConnection(new Runnable() {
                 @Override
                 public void run() {
                     try {
@@ -1365,14 +1370,27 @@ public abstract class AbstractXMPPConnection implements XMPPConnection {
             });
         }
 
-        // Loop through all collectors and notify the appropriate ones.
+        // First look up the collector waiting for a stanza with this ID, if any.
+        final String stanzaId = packet.getStanzaId();
+        if (stanzaId != null) {
+            StanzaCollector idBoundCollector = idBoundCollectors.get(stanzaId);
+            if (idBoundCollector != null) {
+                idBoundCollector.processStanza(packet);
+            }
+        }
+
+        // Loop through all remaining collectors and notify the appropriate ones.
         for (StanzaCollector collector : collectors) {
             collector.processStanza(packet);
         }
 
-        listenersToNotify.clear();
-        extractMatchingListeners(packet, recvListeners, listenersToNotify);
-        for (StanzaListener stanzaListener : listenersToNotify) {
+        StanzaListenerRegistry.Snapshot<ListenerWrapper> recvSnapshot = recvListeners.getSnapshot();
+        for (int candidate : recvSnapshot.getCandidates(packet)) {
+            StanzaListenerRegistry.Entry<ListenerWrapper> entry = recvSnapshot.entries[candidate];
+            if (!entry.wrapper.filterMatches(packet)) {
+                continue;
+            }
+            final StanzaListener stanzaListener = entry.listener;
             inOrderListeners.performAsyncButOrdered(stanzaListener, () -> {
                 try {
                     stanzaListener.processStanza(packet);
@@ -1387,29 +1405,25 @@ public abstract class AbstractXMPPConnection implements XMPPConnection {
         }
 
         // Notify the receive listeners interested in the packet
-        listenersToNotify.clear();
-        extractMatchingListeners(packet, syncRecvListeners, listenersToNotify);
+        final List<StanzaListenerRegistry.Entry<ListenerWrapper>> syncListenersToNotify = extractMatchingEntries(packet,
+                        syncRecvListeners);
+        if (syncListenersToNotify.isEmpty()) {
+            return;
+        }
         // Decouple incoming stanza processing from listener invocation. Unlike async listeners, this uses a single
         // threaded executor service and therefore keeps the order.
         ASYNC_BUT_ORDERED.performAsyncButOrdered(this, new Runnable() {
             @Override
             public void run() {
-                // As listeners are able to remove themselves and because the timepoint where it is decided to invoke a
-                // listener is a different timepoint where the listener is actually invoked (here), we have to check
-                // again if the listener is still active.
-                Iterator<StanzaListener> it = listenersToNotify.iterator();
-                synchronized (syncRecvListeners) {
-                    while (it.hasNext()) {
-                        StanzaListener stanzaListener = it.next();
-                        if (!syncRecvListeners.containsKey(stanzaListener)) {
-                            // The listener was removed from syncRecvListener, also remove him from listenersToNotify.
-                            it.remove();
-                        }
+                // As listeners are able to remove themselves and because the timepoint where it is decided to
+                // invoke a listener is a different timepoint where the listener is actually invoked (here), we
+                // have to check again if the listener is still active.
+                for (StanzaListenerRegistry.Entry<ListenerWrapper> entry : syncListenersToNotify) {
+                    if (!syncRecvListeners.isStillRegistered(entry)) {
+                        continue;
                     }
-                }
-                for (StanzaListener listener : listenersToNotify) {
                     try {
-                        listener.processStanza(packet);
+                        entry.listener.processStanza(packet);
                     } catch (NotConnectedException e) {
                         LOGGER.log(Level.WARNING, "Got not connected exception, aborting", e);
                         break;
@@ -1421,15 +1435,24 @@ public abstract class AbstractXMPPConnection implements XMPPConnection {
         });
     }
 
-    private static void extractMatchingListeners(Stanza stanza, Map<StanzaListener, ListenerWrapper> listeners,
-                    Collection<StanzaListener> listenersToNotify) {
-        synchronized (listeners) {
-            for (ListenerWrapper listenerWrapper : listeners.values()) {
-                if (listenerWrapper.filterMatches(stanza)) {
-                    listenersToNotify.add(listenerWrapper.getListener());
-                }
+    private static List<StanzaListenerRegistry.Entry<ListenerWrapper>> extractMatchingEntries(Stanza stanza,
+                    StanzaListenerRegistry<ListenerWrapper> listeners) {
+        List<StanzaListenerRegistry.Entry<ListenerWrapper>> matchingEntries = null;
+        StanzaListenerRegistry.Snapshot<ListenerWrapper> snapshot = listeners.getSnapshot();
+        for (int candidate : snapshot.getCandidates(stanza)) {
+            StanzaListenerRegistry.Entry<ListenerWrapper> entry = snapshot.entries[candidate];
+            if (!entry.wrapper.filterMatches(stanza)) {
+                continue;
+            }
+            if (matchingEntries == null) {
+                matchingEntries = new ArrayList<>();
             }
+            matchingEntries.add(entry);
         }
+        if (matchingEntries == null) {
+            return Collections.emptyList();
+        }
+        return matchingEntries;
     }
 
     /**
@@ -1766,7 +1789,7 @@ public abstract class AbstractXMPPConnection implements XMPPConnection {
 
     @Override
     public IQRequestHandler registerIQRequestHandler(final IQRequestHandler iqRequestHandler) {
-        final String key = XmppStringUtils.generateKey(iqRequestHandler.getElement(), iqRequestHandler.getNamespace());
+        final InternedQName key = InternedQName.of(iqRequestHandler.getElement(), iqRequestHandler.getNamespace());
         switch (iqRequestHandler.getType()) {
         case set:
             synchronized (setIqRequestHandler) {
@@ -1789,7 +1812,10 @@ public abstract class AbstractXMPPConnection implements XMPPConnection {
 
     @Override
     public IQRequestHandler unregisterIQRequestHandler(String element, String namespace, IQ.Type type) {
-        final String key = XmppStringUtils.generateKey(element, namespace);
+        final InternedQName key = InternedQName.lookup(element, namespace);
+        if (key == null) {
+            return null;
+        }
         switch (type) {
         case set:
             synchronized (setIqRequestHandler) {
@@ -1838,7 +1864,56 @@ public abstract class AbstractXMPPConnection implements XMPPConnection {
     }
 
     protected static void asyncGo(Runnable runnable) {
-        CACHED_EXECUTOR_SERVICE.execute(runnable);
+        SmackConfiguration.getAsyncExecutor().execute(runnable);
+    }
+
+    /**
+     * Run the given runnable via {@link #asyncGo(Runnable)}, but log a warning instead of throwing if the executor
+     * rejects it. This is used by threads which must not be terminated by a rejected task and where the task is not
+     * part of processing the stream, like the callbacks of {@link SmackFuture}.
+     *
+     * @param runnable the runnable to run.
+     * @return <code>true</code> if the executor accepted the runnable.
+     */
+    protected static boolean asyncGoOrLogRejection(Runnable runnable) {
+        try {
+            asyncGo(runnable);
+            return true;
+        } catch (RejectedExecutionException e) {
+            LOGGER.log(Level.WARNING, "Executor rejected asynchronous task " + runnable, e);
+            return false;
+        }
+    }
+
+    /**
+     * Run the given runnable via {@link #asyncGo(Runnable)}. If the executor rejects it, e.g. because a bounded
+     * executor was not able to queue it in time, then this connection is failed via
+     * {@link #notifyConnectionError(Exception)} instead of dropping the runnable. Dropping it would mean that stanzas
+     * are silently lost, e.g. not delivered to a stanza listener or not answered by an IQ request handler.
+     *
+     * @param runnable the runnable to run.
+     * @return <code>true</code> if the executor accepted the runnable.
+     */
+    protected final boolean asyncGoOrFailConnection(Runnable runnable) {
+        try {
+            asyncGo(runnable);
+            return true;
+        } catch (RejectedExecutionException e) {
+            failConnectionDueToRejection(runnable, e);
+            return false;
+        }
+    }
+
+    private void failConnectionDueToRejection(Object task, final RejectedExecutionException e) {
+        LOGGER.log(Level.SEVERE, "Executor rejected " + task + ", failing " + this, e);
+        // Do not shut down the connection from within the thread processing the incoming stanzas, as shutting down
+        // may wait for that thread.
+        Async.go(new Runnable() {
+            @Override
+            public void run() {
+                notifyConnectionError(e);
+            }
+        }, "Smack Rejected Task Connection Failure (" + getConnectionCounter() + ')');
     }
 
     protected static ScheduledAction schedule(Runnable runnable, long delay, TimeUnit unit) {
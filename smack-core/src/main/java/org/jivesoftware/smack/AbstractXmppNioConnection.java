@@ -24,6 +24,7 @@ import org.jivesoftware.smack.SmackReactor.ChannelSelectedCallback;
 import org.jivesoftware.smack.fsm.AbstractXmppStateMachineConnection;
 import org.jivesoftware.smack.fsm.StateDescriptor;
 import org.jivesoftware.smack.fsm.StateDescriptorGraph.GraphVertex;
+import org.jivesoftware.smack.util.ByteBufferPool;
 
 public abstract class AbstractXmppNioConnection extends AbstractXmppStateMachineConnection {
 
@@ -47,6 +48,16 @@ public abstract class AbstractXmppNioConnection extends AbstractXmppStateMachine
         SMACK_REACTOR.setInterestOps(selectionKey, interestOps);
     }
 
+    /**
+     * Get the pool of I/O buffers which is shared by all connections using the same reactor. Connections should only
+     * lease buffers while they are performing I/O, so that idle connections do not hold any buffers.
+     *
+     * @return the shared buffer pool.
+     */
+    protected ByteBufferPool getByteBufferPool() {
+        return SMACK_REACTOR.getByteBufferPool();
+    }
+
     @Override
     protected void finalize() {
         disconnect();
@@ -16,11 +16,16 @@
  */
 package org.jivesoftware.smack;
 
-import java.util.Map;
 import java.util.Queue;
-import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  * Helper class to perform an operation asynchronous but keeping the order in respect to a given key.
@@ -45,15 +50,77 @@ import java.util.concurrent.Executor;
  * runnables of subsequent invocations are always executed after the runnables of previous invocations using the same
  * key.
  * </p>
+ * <p>
+ * Every key with pending runnables has its own queue. A bounded number of worker threads take turns on the keys with
+ * pending runnables, running one runnable of a key before moving on to the next key. Hence the number of threads used
+ * by an instance of this class is bounded, no matter how many different keys are used, and a runnable which blocks
+ * for a long time only delays the runnables of its own key, as long as not all worker threads are blocked. The queue of
+ * a key is removed once it is empty.
+ * </p>
+ * <p>
+ * If the executor used by Smack rejects a worker, then the runnables are not dropped. They are run by the other workers
+ * of this instance, or, if there are none, a new worker is scheduled after {@link #RESCHEDULE_DELAY_MILLIS}.
+ * </p>
  *
  * @param <K> the type of the key
  * @since 4.3
  */
 public class AsyncButOrdered<K> {
 
-    private final Map<K, Queue<Runnable>> pendingRunnables = new WeakHashMap<>();
+    private static final Logger LOGGER = Logger.getLogger(AsyncButOrdered.class.getName());
+
+    /**
+     * The default maximum number of worker threads.
+     */
+    public static final int DEFAULT_MAX_THREADS = Math.max(8, 4 * Runtime.getRuntime().availableProcessors());
+
+    /**
+     * The delay after which a worker is scheduled again, if the executor rejected it while no other worker was active.
+     */
+    public static final long RESCHEDULE_DELAY_MILLIS = 1000;
+
+    private final ConcurrentMap<K, KeyQueue> keyQueues = new ConcurrentHashMap<>();
+
+    /**
+     * The key queues with pending runnables which are not processed by a worker right now, in the order they became
+     * ready. A key queue is contained at most once.
+     */
+    private final Queue<KeyQueue> readyKeyQueues = new ConcurrentLinkedQueue<>();
+
+    private final AtomicInteger activeWorkers = new AtomicInteger();
+
+    private final AtomicInteger maxKeyQueueDepthEver = new AtomicInteger();
+
+    private final int maxThreads;
+
+    private final Worker worker = new Worker();
+
+    private final Runnable rescheduleWorker = new Runnable() {
+        @Override
+        public void run() {
+            startWorkerIfRequired();
+        }
+    };
+
+    /**
+     * Create a new instance using at most {@link #DEFAULT_MAX_THREADS} threads.
+     */
+    public AsyncButOrdered() {
+        this(DEFAULT_MAX_THREADS);
+    }
 
-    private final Map<K, Boolean> threadActiveMap = new WeakHashMap<>();
+    /**
+     * Create a new instance using at most the given number of threads.
+     *
+     * @param maxThreads the maximum number of threads.
+     * @since 4.4
+     */
+    public AsyncButOrdered(int maxThreads) {
+        if (maxThreads <= 0) {
+            throw new IllegalArgumentException("maxThreads must be positive");
+        }
+        this.maxThreads = maxThreads;
+    }
 
     /**
      * Invoke the given {@link Runnable} asynchronous but ordered in respect to the given key.
@@ -63,34 +130,34 @@ public class AsyncButOrdered<K> {
      * @return true if a new thread was created
      */
     public boolean performAsyncButOrdered(K key, Runnable runnable) {
-        Queue<Runnable> keyQueue;
-        synchronized (pendingRunnables) {
-            keyQueue = pendingRunnables.get(key);
-            if (keyQueue == null) {
-                keyQueue = new ConcurrentLinkedQueue<>();
-                pendingRunnables.put(key, keyQueue);
-            }
-        }
+        while (true) {
+            KeyQueue keyQueue = keyQueueFor(key);
+            // Add the runnable before it is accounted for, so that a worker always finds the runnables accounted for.
+            keyQueue.queue.add(runnable);
 
-        keyQueue.add(runnable);
+            int pending;
+            do {
+                pending = keyQueue.pending.get();
+                if (pending < 0) {
+                    break;
+                }
+            } while (!keyQueue.pending.compareAndSet(pending, pending + 1));
 
-        boolean newHandler;
-        synchronized (threadActiveMap) {
-            Boolean threadActive = threadActiveMap.get(key);
-            if (threadActive == null) {
-                threadActive = false;
-                threadActiveMap.put(key, threadActive);
+            if (pending < 0) {
+                // The key queue was retired and removed in the meantime, no worker is going to process it anymore.
+                keyQueue.queue.remove(runnable);
+                continue;
             }
 
-            newHandler = !threadActive;
-            if (newHandler) {
-                Handler handler = new Handler(keyQueue, key);
-                threadActiveMap.put(key, true);
-                AbstractXMPPConnection.asyncGo(handler);
+            updateMaxKeyQueueDepthEver(pending + 1);
+            if (pending > 0) {
+                // A worker is processing this key, or it is ready to be processed.
+                return false;
             }
-        }
 
-        return newHandler;
+            readyKeyQueues.add(keyQueue);
+            return startWorkerIfRequired();
+        }
     }
 
     public Executor asExecutorFor(final K key) {
@@ -102,41 +169,180 @@ public class AsyncButOrdered<K> {
         };
     }
 
-    private class Handler implements Runnable {
-        private final Queue<Runnable> keyQueue;
+    private KeyQueue keyQueueFor(K key) {
+        KeyQueue keyQueue = keyQueues.get(key);
+        if (keyQueue != null) {
+            return keyQueue;
+        }
+        keyQueue = new KeyQueue(key);
+        KeyQueue previousKeyQueue = keyQueues.putIfAbsent(key, keyQueue);
+        if (previousKeyQueue != null) {
+            return previousKeyQueue;
+        }
+        return keyQueue;
+    }
+
+    private boolean startWorkerIfRequired() {
+        int workers;
+        do {
+            workers = activeWorkers.get();
+            if (workers >= maxThreads) {
+                return false;
+            }
+        } while (!activeWorkers.compareAndSet(workers, workers + 1));
+
+        try {
+            AbstractXMPPConnection.asyncGo(worker);
+        } catch (RejectedExecutionException e) {
+            if (activeWorkers.decrementAndGet() > 0) {
+                LOGGER.log(Level.FINE, "Executor rejected worker, the active workers take over", e);
+            } else {
+                LOGGER.log(Level.WARNING, "Executor rejected worker, scheduling it again in "
+                                + RESCHEDULE_DELAY_MILLIS + " ms", e);
+                AbstractXMPPConnection.schedule(rescheduleWorker, RESCHEDULE_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+            }
+            return false;
+        }
+        return true;
+    }
+
+    private void updateMaxKeyQueueDepthEver(int queueDepth) {
+        int currentMax;
+        do {
+            currentMax = maxKeyQueueDepthEver.get();
+            if (queueDepth <= currentMax) {
+                return;
+            }
+        } while (!maxKeyQueueDepthEver.compareAndSet(currentMax, queueDepth));
+    }
+
+    private final class KeyQueue {
         private final K key;
 
-        Handler(Queue<Runnable> keyQueue, K key) {
-            this.keyQueue = keyQueue;
+        private final Queue<Runnable> queue = new ConcurrentLinkedQueue<>();
+
+        /**
+         * The number of runnables of this key which did not complete yet, as the size() method of
+         * ConcurrentLinkedQueue is O(n). Is negative once this key queue is retired.
+         */
+        private final AtomicInteger pending = new AtomicInteger();
+
+        private KeyQueue(K key) {
             this.key = key;
         }
 
+        private void runOne() {
+            Runnable runnable = queue.poll();
+            try {
+                runnable.run();
+            } finally {
+                if (pending.decrementAndGet() > 0) {
+                    readyKeyQueues.add(this);
+                } else if (pending.compareAndSet(0, -1)) {
+                    keyQueues.remove(key, this);
+                }
+            }
+        }
+    }
+
+    private final class Worker implements Runnable {
         @Override
         public void run() {
-            mainloop:
-            while (true) {
-                Runnable runnable = null;
-                while ((runnable = keyQueue.poll()) != null) {
-                    try {
-                        runnable.run();
-                    } catch (Throwable t) {
-                        // The run() method threw, this handler thread is going to terminate because of that. Ensure we note
-                        // that in the map.
-                        synchronized (threadActiveMap) {
-                            threadActiveMap.put(key, false);
-                        }
-                        throw t;
+            try {
+                while (true) {
+                    KeyQueue keyQueue;
+                    while ((keyQueue = readyKeyQueues.poll()) != null) {
+                        keyQueue.runOne();
                     }
-                }
 
-                synchronized (threadActiveMap) {
-                    // If the queue is empty, stop this handler, otherwise continue looping.
-                    if (keyQueue.isEmpty()) {
-                        threadActiveMap.put(key, false);
-                        break mainloop;
+                    activeWorkers.decrementAndGet();
+                    // A key queue may have become ready after the ready queue was found empty, but before this worker
+                    // was marked as inactive. In this case, continue processing, unless enough workers are active.
+                    if (readyKeyQueues.isEmpty() || !reactivate()) {
+                        return;
                     }
                 }
+            } catch (Throwable t) {
+                // The runnable threw, this thread is going to terminate because of that. Ensure that the remaining
+                // runnables are processed by a new worker.
+                activeWorkers.decrementAndGet();
+                if (!readyKeyQueues.isEmpty()) {
+                    startWorkerIfRequired();
+                }
+                throw t;
+            }
+        }
+
+        private boolean reactivate() {
+            int workers;
+            do {
+                workers = activeWorkers.get();
+                if (workers >= maxThreads) {
+                    return false;
+                }
+            } while (!activeWorkers.compareAndSet(workers, workers + 1));
+            return true;
+        }
+    }
+
+    /**
+     * Get statistics about this instance.
+     *
+     * @return the current statistics.
+     * @since 4.4
+     */
+    public Stats getStats() {
+        return new Stats(this);
+    }
+
+    public static final class Stats {
+        public final int maxThreads;
+        public final int activeThreads;
+        public final int keysWithPendingRunnables;
+        public final int pendingRunnables;
+        public final int maxKeyQueueDepth;
+        public final int maxKeyQueueDepthEver;
+
+        private Stats(AsyncButOrdered<?> asyncButOrdered) {
+            int keysWithPendingRunnables = 0;
+            int pendingRunnables = 0;
+            int maxKeyQueueDepth = 0;
+            for (AsyncButOrdered<?>.KeyQueue keyQueue : asyncButOrdered.keyQueues.values()) {
+                int queueDepth = keyQueue.pending.get();
+                if (queueDepth <= 0) {
+                    continue;
+                }
+                keysWithPendingRunnables++;
+                pendingRunnables += queueDepth;
+                maxKeyQueueDepth = Math.max(maxKeyQueueDepth, queueDepth);
+            }
+
+            this.maxThreads = asyncButOrdered.maxThreads;
+            this.activeThreads = asyncButOrdered.activeWorkers.get();
+            this.keysWithPendingRunnables = keysWithPendingRunnables;
+            this.pendingRunnables = pendingRunnables;
+            this.maxKeyQueueDepth = maxKeyQueueDepth;
+            this.maxKeyQueueDepthEver = asyncButOrdered.maxKeyQueueDepthEver.get();
+        }
+
+        private transient String toStringCache;
+
+        @Override
+        public String toString() {
+            if (toStringCache != null) {
+                return toStringCache;
             }
+
+            toStringCache =
+                      "max-threads: " + maxThreads + '\n'
+                    + "active-threads: " + activeThreads + '\n'
+                    + "keys-with-pending-runnables: " + keysWithPendingRunnables + '\n'
+                    + "pending-runnables: " + pendingRunnables + '\n'
+                    + "max-key-queue-depth: " + maxKeyQueueDepth + '\n'
+                    + "max-key-queue-depth-ever: " + maxKeyQueueDepthEver
+                    ;
+
+            return toStringCache;
         }
     }
 }
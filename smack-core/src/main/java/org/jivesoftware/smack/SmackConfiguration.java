@@ -365,4 +365,62 @@ public final class SmackConfiguration {
     public static void setUnknownIqRequestReplyMode(UnknownIqRequestReplyMode unknownIqRequestReplyMode) {
         SmackConfiguration.unknownIqRequestReplyMode = Objects.requireNonNull(unknownIqRequestReplyMode, "Must set mode");
     }
+
+    private static volatile SmackExecutor asyncExecutor = SmackExecutor.newCachedExecutor();
+
+    /**
+     * Set the executor used to run asynchronous tasks, like asynchronous stanza listeners and IQ request handlers, of
+     * all connections. The previously set executor is not shut down.
+     *
+     * @param executor the executor to use.
+     * @since 4.4
+     * @see SmackExecutor
+     */
+    public static void setAsyncExecutor(SmackExecutor executor) {
+        asyncExecutor = Objects.requireNonNull(executor, "Executor must not be null");
+    }
+
+    /**
+     * Get the executor used to run asynchronous tasks.
+     *
+     * @return the executor used to run asynchronous tasks.
+     * @since 4.4
+     */
+    public static SmackExecutor getAsyncExecutor() {
+        return asyncExecutor;
+    }
+
+    /**
+     * Set the selector mode of the reactor used by the NIO based connections. The mode only affects connections
+     * which are connected afterwards.
+     *
+     * @param selectorMode the selector mode.
+     * @since 4.4
+     * @see SmackReactor.SelectorMode
+     */
+    public static void setReactorSelectorMode(SmackReactor.SelectorMode selectorMode) {
+        Objects.requireNonNull(selectorMode, "Selector mode must not be null");
+        SmackReactor.getInstance().setSelectorMode(selectorMode);
+    }
+
+    /**
+     * Get the selector mode of the reactor used by the NIO based connections.
+     *
+     * @return the selector mode.
+     * @since 4.4
+     */
+    public static SmackReactor.SelectorMode getReactorSelectorMode() {
+        return SmackReactor.getInstance().getSelectorMode();
+    }
+
+    /**
+     * Set the number of selectors used in the {@link SmackReactor.SelectorMode#pinned pinned} selector mode. The number
+     * can only be increased.
+     *
+     * @param pinnedSelectorCount the number of pinned selectors.
+     * @since 4.4
+     */
+    public static void setReactorPinnedSelectorCount(int pinnedSelectorCount) {
+        SmackReactor.getInstance().setPinnedSelectorCount(pinnedSelectorCount);
+    }
 }
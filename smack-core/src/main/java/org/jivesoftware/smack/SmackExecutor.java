@@ -0,0 +1,326 @@
+/**
+ *
+ * Copyright 2019 Florian Schmaus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.smack;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.jivesoftware.smack.util.Objects;
+
+/**
+ * The executor used by Smack to run asynchronous tasks, like asynchronous stanza listeners, asynchronous IQ request
+ * handlers and callbacks. It wraps an arbitrary {@link Executor} and records how many tasks are active, queued and
+ * were rejected.
+ * <p>
+ * The executor used by Smack can be set via {@link SmackConfiguration#setAsyncExecutor(SmackExecutor)}. Besides
+ * {@link #wrap(String, Executor)}, which allows to use any executor, Smack provides the following built-in executors:
+ * </p>
+ * <ul>
+ * <li>{@link #newCachedExecutor()}: An unbounded cached thread pool, this is the default.</li>
+ * <li>{@link #newBoundedExecutor(int, int)}: A thread pool with a bounded number of threads and a bounded queue,
+ * which applies back-pressure to the submitters if the queue is full.</li>
+ * <li>{@link #newVirtualThreadExecutor()}: Starts a new virtual thread per task, if the runtime supports virtual
+ * threads, and falls back to the cached executor otherwise.</li>
+ * </ul>
+ *
+ * @since 4.4
+ */
+public final class SmackExecutor implements Executor {
+
+    private static final Logger LOGGER = Logger.getLogger(SmackExecutor.class.getName());
+
+    private static final Method NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR;
+
+    /**
+     * Set while the current thread runs a task of a Smack executor.
+     */
+    private static final ThreadLocal<Boolean> RUNNING_TASK = new ThreadLocal<>();
+
+    static {
+        Method newVirtualThreadPerTaskExecutor;
+        try {
+            newVirtualThreadPerTaskExecutor = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        } catch (NoSuchMethodException | SecurityException e) {
+            newVirtualThreadPerTaskExecutor = null;
+        }
+        NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR = newVirtualThreadPerTaskExecutor;
+    }
+
+    private final String name;
+
+    private final Executor executor;
+
+    private final AtomicInteger active = new AtomicInteger();
+
+    private final AtomicInteger queued = new AtomicInteger();
+
+    private final AtomicLong executed = new AtomicLong();
+
+    private final AtomicLong rejected = new AtomicLong();
+
+    private SmackExecutor(String name, Executor executor) {
+        this.name = Objects.requireNonNull(name, "Name must not be null");
+        this.executor = Objects.requireNonNull(executor, "Executor must not be null");
+    }
+
+    /**
+     * Create a new Smack executor using the given executor.
+     *
+     * @param name the name of the executor, used for statistics.
+     * @param executor the executor to run the tasks.
+     * @return a new Smack executor.
+     */
+    public static SmackExecutor wrap(String name, Executor executor) {
+        return new SmackExecutor(name, executor);
+    }
+
+    /**
+     * Create a new Smack executor backed by a cached thread pool. The threads are daemon threads.
+     *
+     * @return a new Smack executor.
+     */
+    public static SmackExecutor newCachedExecutor() {
+        ExecutorService executorService = Executors.newCachedThreadPool(new SmackThreadFactory("Smack Cached Executor"));
+        return new SmackExecutor("cached", executorService);
+    }
+
+    /**
+     * Create a new bounded Smack executor, which blocks submitters at most for the
+     * {@link SmackConfiguration#getDefaultReplyTimeout() default reply timeout}.
+     *
+     * @param maxThreads the maximum number of threads.
+     * @param queueCapacity the capacity of the queue.
+     * @return a new Smack executor.
+     * @see #newBoundedExecutor(int, int, long)
+     */
+    public static SmackExecutor newBoundedExecutor(int maxThreads, int queueCapacity) {
+        return newBoundedExecutor(maxThreads, queueCapacity, SmackConfiguration.getDefaultReplyTimeout());
+    }
+
+    /**
+     * Create a new Smack executor backed by a thread pool with at most <code>maxThreads</code> daemon threads and a
+     * queue with a capacity of <code>queueCapacity</code> tasks. If the queue is full, then back-pressure is applied to
+     * the submitter:
+     * <ul>
+     * <li>If the submitter is itself a task of a Smack executor, then it runs the submitted task, as waiting for the
+     * executor could mean waiting for itself.</li>
+     * <li>Otherwise the submitter is blocked until the queue has room for the task. For example the thread reading
+     * from the connection stops reading, so that the server has to slow down. If the queue is still full after
+     * <code>maxBlockMillis</code>, then the task is rejected. Smack fails the connection if it can not submit a task
+     * for an incoming stanza, e.g. the invocation of an asynchronous stanza listener, rather than dropping it.</li>
+     * </ul>
+     * <p>
+     * Note that the connections using the NIO reactor share the reactor thread, hence all of them stop reading while
+     * the reactor thread is blocked.
+     * </p>
+     *
+     * @param maxThreads the maximum number of threads.
+     * @param queueCapacity the capacity of the queue.
+     * @param maxBlockMillis the maximum time in milliseconds a submitter is blocked.
+     * @return a new Smack executor.
+     */
+    public static SmackExecutor newBoundedExecutor(int maxThreads, int queueCapacity, long maxBlockMillis) {
+        ThreadPoolExecutor threadPoolExecutor = new ThreadPoolExecutor(maxThreads, maxThreads, 60, TimeUnit.SECONDS,
+                        new ArrayBlockingQueue<Runnable>(queueCapacity), new SmackThreadFactory("Smack Bounded Executor"),
+                        new BackPressurePolicy(maxBlockMillis));
+        threadPoolExecutor.allowCoreThreadTimeOut(true);
+        return new SmackExecutor("bounded", threadPoolExecutor);
+    }
+
+    /**
+     * Check if the runtime supports virtual threads.
+     *
+     * @return <code>true</code> if virtual threads are supported.
+     */
+    public static boolean isVirtualThreadSupported() {
+        return NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR != null;
+    }
+
+    /**
+     * Create a new Smack executor which starts a new virtual thread for every task. If the runtime does not support
+     * virtual threads, then this returns a {@link #newCachedExecutor() cached executor}.
+     *
+     * @return a new Smack executor.
+     * @see #isVirtualThreadSupported()
+     */
+    public static SmackExecutor newVirtualThreadExecutor() {
+        if (NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR != null) {
+            try {
+                ExecutorService executorService = (ExecutorService) NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR.invoke(null);
+                return new SmackExecutor("virtual", executorService);
+            } catch (IllegalAccessException | InvocationTargetException e) {
+                LOGGER.log(Level.WARNING, "Could not create virtual thread executor, falling back to cached executor",
+                                e);
+            }
+        }
+        return newCachedExecutor();
+    }
+
+    @Override
+    public void execute(Runnable runnable) {
+        queued.incrementAndGet();
+        try {
+            executor.execute(new Task(runnable));
+        } catch (RejectedExecutionException e) {
+            queued.decrementAndGet();
+            rejected.incrementAndGet();
+            throw e;
+        }
+    }
+
+    /**
+     * Shut down the underlying executor, if it is an {@link ExecutorService}. Tasks which are already submitted are
+     * still executed.
+     */
+    public void shutdown() {
+        if (executor instanceof ExecutorService) {
+            ((ExecutorService) executor).shutdown();
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public Stats getStats() {
+        return new Stats(this);
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + '[' + name + ']';
+    }
+
+    private final class Task implements Runnable {
+        private final Runnable runnable;
+
+        private Task(Runnable runnable) {
+            this.runnable = runnable;
+        }
+
+        @Override
+        public void run() {
+            queued.decrementAndGet();
+            active.incrementAndGet();
+            Boolean wasRunningTask = RUNNING_TASK.get();
+            RUNNING_TASK.set(Boolean.TRUE);
+            try {
+                runnable.run();
+            } finally {
+                RUNNING_TASK.set(wasRunningTask);
+                active.decrementAndGet();
+                executed.incrementAndGet();
+            }
+        }
+    }
+
+    private static final class BackPressurePolicy implements RejectedExecutionHandler {
+        private final long maxBlockMillis;
+
+        private BackPressurePolicy(long maxBlockMillis) {
+            this.maxBlockMillis = maxBlockMillis;
+        }
+
+        @Override
+        public void rejectedExecution(Runnable runnable, ThreadPoolExecutor executor) {
+            if (executor.isShutdown()) {
+                throw new RejectedExecutionException("Executor was shut down");
+            }
+
+            if (RUNNING_TASK.get() != null) {
+                // Waiting for the executor from within one of its tasks may wait forever.
+                runnable.run();
+                return;
+            }
+
+            boolean queued;
+            try {
+                queued = executor.getQueue().offer(runnable, maxBlockMillis, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RejectedExecutionException("Interrupted while waiting for the queue to have room", e);
+            }
+            if (!queued) {
+                throw new RejectedExecutionException("The queue of the executor was full for " + maxBlockMillis + "ms");
+            }
+        }
+    }
+
+    private static final class SmackThreadFactory implements ThreadFactory {
+        private final String threadName;
+
+        private SmackThreadFactory(String threadName) {
+            this.threadName = threadName;
+        }
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable);
+            thread.setName(threadName);
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+    public static final class Stats {
+        public final String name;
+        public final int active;
+        public final int queued;
+        public final long executed;
+        public final long rejected;
+
+        private Stats(SmackExecutor smackExecutor) {
+            name = smackExecutor.name;
+            active = smackExecutor.active.get();
+            queued = smackExecutor.queued.get();
+            executed = smackExecutor.executed.get();
+            rejected = smackExecutor.rejected.get();
+        }
+
+        private transient String toStringCache;
+
+        @Override
+        public String toString() {
+            if (toStringCache != null) {
+                return toStringCache;
+            }
+
+            toStringCache =
+                      "name: " + name + '\n'
+                    + "active: " + active + '\n'
+                    + "queued: " + queued + '\n'
+                    + "executed: " + executed + '\n'
+                    + "rejected: " + rejected
+                    ;
+
+            return toStringCache;
+        }
+    }
+}
@@ -22,6 +22,7 @@ import java.net.SocketAddress;
 import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.logging.Level;
@@ -154,7 +155,7 @@ public abstract class SmackFuture<V, E extends Exception> implements Future<V>,
         }
 
         if (result != null && successCallback != null) {
-            AbstractXMPPConnection.asyncGo(new Runnable() {
+            AbstractXMPPConnection.asyncGoOrLogRejection(new Runnable() {
                 @Override
                 public void run() {
                     successCallback.onSuccess(result);
@@ -162,7 +163,7 @@ public abstract class SmackFuture<V, E extends Exception> implements Future<V>,
             });
         }
         else if (exception != null && exceptionCallback != null) {
-            AbstractXMPPConnection.asyncGo(new Runnable() {
+            AbstractXMPPConnection.asyncGoOrLogRejection(new Runnable() {
                 @Override
                 public void run() {
                     exceptionCallback.processException(exception);
@@ -223,7 +224,7 @@ public abstract class SmackFuture<V, E extends Exception> implements Future<V>,
         }
 
         public void connectAsync(final SocketAddress socketAddress, final int timeout) {
-            AbstractXMPPConnection.asyncGo(new Runnable() {
+            Runnable connect = new Runnable() {
                 @Override
                 public void run() {
                     try {
@@ -241,7 +242,12 @@ public abstract class SmackFuture<V, E extends Exception> implements Future<V>,
                     }
                     setResult(socket);
                 }
-            });
+            };
+            try {
+                AbstractXMPPConnection.asyncGo(connect);
+            } catch (RejectedExecutionException e) {
+                setException(new IOException("Could not connect asynchronously", e));
+            }
         }
 
         private void closeSocket() {
@@ -36,11 +36,14 @@ import java.util.concurrent.DelayQueue;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import org.jivesoftware.smack.util.ByteBufferPool;
+
 /**
  * The SmackReactor for non-blocking I/O.
  * <p>
@@ -48,6 +51,7 @@ import java.util.logging.Logger;
  * <ul>
  * <li>Multiple reactor threads</li>
  * <li>Scheduled actions</li>
+ * <li>Optionally, per-thread selectors with channels pinned to them (see {@link SelectorMode})</li>
  * </ul>
  *
  * <pre>
@@ -74,6 +78,8 @@ public class SmackReactor {
 
     private static final int PENDING_SET_INTEREST_OPS_MAX_BATCH_SIZE = 1024;
 
+    private static final int DEFAULT_PINNED_SELECTOR_COUNT = Math.max(2, Runtime.getRuntime().availableProcessors());
+
     private static SmackReactor INSTANCE;
 
     static synchronized SmackReactor getInstance() {
@@ -103,6 +109,39 @@ public class SmackReactor {
 
     private final Queue<SetInterestOps> pendingSetInterestOps = new ConcurrentLinkedQueue<>();
 
+    /**
+     * The modes in which the reactor can select channels.
+     */
+    public enum SelectorMode {
+        /**
+         * All reactor threads share a single selector. The selected keys are split between the reactor threads.
+         */
+        shared,
+
+        /**
+         * Every channel is pinned to one of multiple selectors, each owned by a dedicated thread. Newly registered
+         * channels are assigned to the selectors in a round-robin fashion. This avoids the contention on the single
+         * selector of the {@link #shared} mode.
+         */
+        pinned,
+    }
+
+    private volatile SelectorMode selectorMode = SelectorMode.shared;
+
+    private final List<PinnedSelector> pinnedSelectors = new ArrayList<>();
+
+    /**
+     * The current pinned selectors. Copy-on-write, modified while holding the {@link #pinnedSelectors} lock.
+     */
+    private volatile PinnedSelector[] pinnedSelectorsArray = new PinnedSelector[0];
+
+    private final AtomicInteger nextPinnedSelector = new AtomicInteger();
+
+    /**
+     * The pool of I/O buffers shared by all connections using this reactor.
+     */
+    private final ByteBufferPool byteBufferPool = new ByteBufferPool();
+
     SmackReactor(String reactorName) {
         this.reactorName = reactorName;
 
@@ -118,7 +157,15 @@ public class SmackReactor {
 
     SelectionKey registerWithSelector(SelectableChannel channel, int ops, ChannelSelectedCallback callback)
             throws ClosedChannelException {
-        SelectionKeyAttachment selectionKeyAttachment = new SelectionKeyAttachment(callback);
+        if (selectorMode == SelectorMode.pinned) {
+            PinnedSelector[] pinnedSelectors = pinnedSelectorsArray;
+            int index = (nextPinnedSelector.getAndIncrement() & Integer.MAX_VALUE) % pinnedSelectors.length;
+            PinnedSelector pinnedSelector = pinnedSelectors[index];
+            SelectionKeyAttachment selectionKeyAttachment = new SelectionKeyAttachment(callback, pinnedSelector);
+            return pinnedSelector.register(channel, ops, selectionKeyAttachment);
+        }
+
+        SelectionKeyAttachment selectionKeyAttachment = new SelectionKeyAttachment(callback, null);
 
         registrationLock.lock();
         try {
@@ -129,12 +176,73 @@ public class SmackReactor {
         }
     }
 
+    ByteBufferPool getByteBufferPool() {
+        return byteBufferPool;
+    }
+
     void setInterestOps(SelectionKey selectionKey, int interestOps) {
+        SelectionKeyAttachment selectionKeyAttachment = (SelectionKeyAttachment) selectionKey.attachment();
+        if (selectionKeyAttachment != null && selectionKeyAttachment.pinnedSelector != null) {
+            selectionKeyAttachment.pinnedSelector.setInterestOps(selectionKey, interestOps);
+            return;
+        }
+
         SetInterestOps setInterestOps = new SetInterestOps(selectionKey, interestOps);
         pendingSetInterestOps.add(setInterestOps);
         selector.wakeup();
     }
 
+    /**
+     * Set the selector mode. Channels which are already registered keep using the selector they were registered
+     * with, the mode only affects channels registered afterwards. Switching to {@link SelectorMode#pinned} starts the
+     * pinned selector threads, unless they are already running.
+     *
+     * @param selectorMode the selector mode.
+     */
+    public void setSelectorMode(SelectorMode selectorMode) {
+        if (selectorMode == SelectorMode.pinned) {
+            synchronized (pinnedSelectors) {
+                if (pinnedSelectors.isEmpty()) {
+                    setPinnedSelectorCount(DEFAULT_PINNED_SELECTOR_COUNT);
+                }
+            }
+        }
+        this.selectorMode = selectorMode;
+    }
+
+    public SelectorMode getSelectorMode() {
+        return selectorMode;
+    }
+
+    /**
+     * Set the number of pinned selectors, each of them is owned by a dedicated thread. Since channels are pinned to
+     * their selector, the number of pinned selectors can only be increased.
+     *
+     * @param pinnedSelectorCount the number of pinned selectors.
+     */
+    public void setPinnedSelectorCount(int pinnedSelectorCount) {
+        synchronized (pinnedSelectors) {
+            if (pinnedSelectorCount < pinnedSelectors.size()) {
+                throw new IllegalArgumentException("The number of pinned selectors can not be decreased from "
+                                + pinnedSelectors.size() + " to " + pinnedSelectorCount);
+            }
+
+            while (pinnedSelectors.size() < pinnedSelectorCount) {
+                PinnedSelector pinnedSelector = new PinnedSelector();
+                pinnedSelector.setDaemon(true);
+                pinnedSelector.setName("Smack " + reactorName + " Pinned Selector Thread #" + pinnedSelectors.size());
+                pinnedSelectors.add(pinnedSelector);
+                pinnedSelector.start();
+            }
+
+            pinnedSelectorsArray = pinnedSelectors.toArray(new PinnedSelector[pinnedSelectors.size()]);
+        }
+    }
+
+    public int getPinnedSelectorCount() {
+        return pinnedSelectorsArray.length;
+    }
+
     private static final class SetInterestOps {
         private final SelectionKey selectionKey;
         private final int interestOps;
@@ -152,6 +260,8 @@ public class SmackReactor {
         synchronized (scheduledActions) {
             scheduledActions.add(scheduledAction);
         }
+        // Ensure that a thread waiting in select() re-calculates the time until the next scheduled action is due.
+        selector.wakeup();
         return scheduledAction;
     }
 
@@ -213,11 +323,11 @@ public class SmackReactor {
                 selectWait = 0;
             } else {
                 selectWait = nextScheduledAction.getTimeToDueMillis();
-            }
-
-            if (selectWait < 0) {
-                // A scheduled action was just released and become ready to execute.
-                return;
+                if (selectWait <= 0) {
+                    // A scheduled action was just released and become ready to execute. Note that a select wait of
+                    // zero would mean to wait indefinitely.
+                    return;
+                }
             }
 
             int newSelectedKeysCount = 0;
@@ -322,7 +432,9 @@ public class SmackReactor {
             }
 
             int currentReactorThreadCount = reactorThreads.size();
-            int myKeyCount = pendingSelectionKeysSize / currentReactorThreadCount;
+            // Handle at least one pending key, otherwise keys could starve if there are less pending keys than reactor
+            // threads.
+            int myKeyCount = Math.max(1, pendingSelectionKeysSize / currentReactorThreadCount);
             Collection<SelectionKey> selectedKeys = new ArrayList<>(myKeyCount);
             for (int i = 0; i < myKeyCount; i++) {
                 SelectionKey selectionKey = pendingSelectionKeys.poll();
@@ -341,20 +453,108 @@ public class SmackReactor {
             handleSelectedKeys(selectedKeys);
         }
 
-        private void setInterestOpsCancelledKeySafe(SelectionKey selectionKey, int interestOps) {
+        void requestShutdown() {
+            shutdownRequestTimestamp = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * A selector owned by a single thread, which selects and handles all channels pinned to this selector.
+     */
+    private final class PinnedSelector extends Thread {
+
+        private final Selector pinnedSelector;
+
+        private final Lock pinnedRegistrationLock = new ReentrantLock();
+
+        private final Queue<SetInterestOps> pinnedPendingSetInterestOps = new ConcurrentLinkedQueue<>();
+
+        private final List<SelectionKey> pinnedSelectedKeys = new ArrayList<>();
+
+        private PinnedSelector() {
+            try {
+                pinnedSelector = Selector.open();
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        private SelectionKey register(SelectableChannel channel, int ops, SelectionKeyAttachment selectionKeyAttachment)
+                        throws ClosedChannelException {
+            pinnedRegistrationLock.lock();
             try {
-                selectionKey.interestOps(interestOps);
+                pinnedSelector.wakeup();
+                return channel.register(pinnedSelector, ops, selectionKeyAttachment);
+            } finally {
+                pinnedRegistrationLock.unlock();
             }
-            catch (CancelledKeyException e) {
-                final Level keyCancelledLogLevel = Level.FINER;
-                if (LOGGER.isLoggable(keyCancelledLogLevel)) {
-                    LOGGER.log(keyCancelledLogLevel, "Key '" + selectionKey + "' has been cancelled", e);
+        }
+
+        private void setInterestOps(SelectionKey selectionKey, int interestOps) {
+            if (Thread.currentThread() == this) {
+                // We are not within select(), hence we can set the interest ops directly. This is the common case, as
+                // the channel selected callbacks set the interest ops when they are done.
+                setInterestOpsCancelledKeySafe(selectionKey, interestOps);
+                return;
+            }
+
+            pinnedPendingSetInterestOps.add(new SetInterestOps(selectionKey, interestOps));
+            pinnedSelector.wakeup();
+        }
+
+        @Override
+        @SuppressWarnings("LockNotBeforeTry")
+        public void run() {
+            while (true) {
+                for (SetInterestOps setInterestOps; (setInterestOps = pinnedPendingSetInterestOps.poll()) != null;) {
+                    setInterestOpsCancelledKeySafe(setInterestOps.selectionKey, setInterestOps.interestOps);
+                }
+
+                // See the comment about the registration lock in Reactor.handleScheduledActionsOrPerformSelect().
+                pinnedRegistrationLock.lock();
+                pinnedRegistrationLock.unlock();
+
+                int newSelectedKeysCount;
+                try {
+                    newSelectedKeysCount = pinnedSelector.select();
+                } catch (IOException e) {
+                    LOGGER.log(Level.SEVERE, "IOException while using select()", e);
+                    continue;
+                }
+
+                if (newSelectedKeysCount == 0) {
+                    continue;
+                }
+
+                Set<SelectionKey> selectedKeySet = pinnedSelector.selectedKeys();
+                for (SelectionKey selectionKey : selectedKeySet) {
+                    SelectionKeyAttachment selectionKeyAttachment = (SelectionKeyAttachment) selectionKey.attachment();
+                    selectionKeyAttachment.setRacing();
+                    setInterestOpsCancelledKeySafe(selectionKey, 0);
+                    pinnedSelectedKeys.add(selectionKey);
+                }
+                selectedKeySet.clear();
+
+                try {
+                    handleSelectedKeys(pinnedSelectedKeys);
+                } catch (RuntimeException e) {
+                    LOGGER.log(Level.SEVERE, "Exception while handling selected keys", e);
+                } finally {
+                    pinnedSelectedKeys.clear();
                 }
             }
         }
+    }
 
-        void requestShutdown() {
-            shutdownRequestTimestamp = System.currentTimeMillis();
+    private static void setInterestOpsCancelledKeySafe(SelectionKey selectionKey, int interestOps) {
+        try {
+            selectionKey.interestOps(interestOps);
+        }
+        catch (CancelledKeyException e) {
+            final Level keyCancelledLogLevel = Level.FINER;
+            if (LOGGER.isLoggable(keyCancelledLogLevel)) {
+                LOGGER.log(keyCancelledLogLevel, "Key '" + selectionKey + "' has been cancelled", e);
+            }
         }
     }
 
@@ -419,8 +619,14 @@ public class SmackReactor {
         private final WeakReference<ChannelSelectedCallback> weaeklyReferencedChannelSelectedCallback;
         private final AtomicBoolean reactorThreadRacing = new AtomicBoolean();
 
-        private SelectionKeyAttachment(ChannelSelectedCallback channelSelectedCallback) {
+        /**
+         * The pinned selector the channel was registered with, or <code>null</code> if the shared selector is used.
+         */
+        private final PinnedSelector pinnedSelector;
+
+        private SelectionKeyAttachment(ChannelSelectedCallback channelSelectedCallback, PinnedSelector pinnedSelector) {
             this.weaeklyReferencedChannelSelectedCallback = new WeakReference<>(channelSelectedCallback);
+            this.pinnedSelector = pinnedSelector;
         }
 
         private void setRacing() {
@@ -0,0 +1,178 @@
+/**
+ *
+ * Copyright 2019 Florian Schmaus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.smack;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.jivesoftware.smack.filter.StanzaFilter;
+import org.jivesoftware.smack.filter.StanzaFilterDecisionTree;
+import org.jivesoftware.smack.packet.Stanza;
+
+/**
+ * A copy-on-write registry of stanza listeners and their associated wrapper. Readers obtain an immutable snapshot via
+ * {@link #getSnapshot()} without taking any lock, writers publish a new snapshot. The entries are kept in
+ * insertion order, re-registering an already registered listener replaces its wrapper but keeps its position, just
+ * like {@link java.util.LinkedHashMap} does.
+ * <p>
+ * Every snapshot lazily compiles the filters of its entries into a {@link StanzaFilterDecisionTree}, so that only the
+ * entries whose filter may accept a given stanza have to be considered.
+ * </p>
+ *
+ * @param <W> the type of the wrapper associated with a listener.
+ */
+final class StanzaListenerRegistry<W> {
+
+    static final class Entry<W> {
+        final StanzaListener listener;
+        final StanzaFilter filter;
+        final W wrapper;
+
+        /**
+         * Set once this entry was removed from, or replaced in, the registry.
+         */
+        private volatile boolean removed;
+
+        private Entry(StanzaListener listener, StanzaFilter filter, W wrapper) {
+            this.listener = listener;
+            this.filter = filter;
+            this.wrapper = wrapper;
+        }
+    }
+
+    static final class Snapshot<W> {
+        final Entry<W>[] entries;
+
+        /**
+         * The lazily compiled decision tree. Since the tree is immutable, a racy initialization is fine.
+         */
+        private StanzaFilterDecisionTree decisionTree;
+
+        private Snapshot(Entry<W>[] entries) {
+            this.entries = entries;
+        }
+
+        /**
+         * Get the indexes of the entries, in ascending order, whose filter may accept the given stanza. The returned
+         * array must not be modified.
+         *
+         * @param stanza the stanza.
+         * @return the indexes of the candidate entries.
+         */
+        int[] getCandidates(Stanza stanza) {
+            StanzaFilterDecisionTree decisionTree = this.decisionTree;
+            if (decisionTree == null) {
+                List<StanzaFilter> filters = new ArrayList<>(entries.length);
+                for (Entry<W> entry : entries) {
+                    filters.add(entry.filter);
+                }
+                decisionTree = StanzaFilterDecisionTree.compile(filters);
+                this.decisionTree = decisionTree;
+            }
+            return decisionTree.getCandidates(stanza);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private volatile Snapshot<W> snapshot = new Snapshot<>(new Entry[0]);
+
+    /**
+     * Register the given listener with the given wrapper.
+     *
+     * @param listener the listener.
+     * @param filter the filter of the listener, may be <code>null</code>.
+     * @param wrapper the wrapper of the listener.
+     * @return the previous wrapper of the listener, or <code>null</code>.
+     */
+    synchronized W put(StanzaListener listener, StanzaFilter filter, W wrapper) {
+        final Entry<W>[] currentEntries = snapshot.entries;
+        final Entry<W> newEntry = new Entry<>(listener, filter, wrapper);
+
+        int index = indexOf(currentEntries, listener);
+        if (index >= 0) {
+            Entry<W>[] newEntries = currentEntries.clone();
+            Entry<W> previousEntry = newEntries[index];
+            newEntries[index] = newEntry;
+            snapshot = new Snapshot<>(newEntries);
+            previousEntry.removed = true;
+            return previousEntry.wrapper;
+        }
+
+        @SuppressWarnings("unchecked")
+        Entry<W>[] newEntries = new Entry[currentEntries.length + 1];
+        System.arraycopy(currentEntries, 0, newEntries, 0, currentEntries.length);
+        newEntries[currentEntries.length] = newEntry;
+        snapshot = new Snapshot<>(newEntries);
+        return null;
+    }
+
+    /**
+     * Remove the given listener.
+     *
+     * @param listener the listener to remove.
+     * @return the wrapper of the removed listener, or <code>null</code> if the listener was not registered.
+     */
+    synchronized W remove(StanzaListener listener) {
+        final Entry<W>[] currentEntries = snapshot.entries;
+        int index = indexOf(currentEntries, listener);
+        if (index < 0) {
+            return null;
+        }
+
+        Entry<W> removedEntry = currentEntries[index];
+        @SuppressWarnings("unchecked")
+        Entry<W>[] newEntries = new Entry[currentEntries.length - 1];
+        System.arraycopy(currentEntries, 0, newEntries, 0, index);
+        System.arraycopy(currentEntries, index + 1, newEntries, index, currentEntries.length - index - 1);
+        snapshot = new Snapshot<>(newEntries);
+
+        removedEntry.removed = true;
+        return removedEntry.wrapper;
+    }
+
+    /**
+     * Get the current snapshot of the registered entries. The entries array of the snapshot must not be modified.
+     *
+     * @return the current snapshot.
+     */
+    Snapshot<W> getSnapshot() {
+        return snapshot;
+    }
+
+    /**
+     * Check if the given entry, which was obtained from a previous snapshot, is still registered. This is a cheap
+     * operation, unless the entry's listener was re-registered in the meantime.
+     *
+     * @param entry the entry to check.
+     * @return <code>true</code> if the entry's listener is still registered.
+     */
+    boolean isStillRegistered(Entry<W> entry) {
+        if (!entry.removed) {
+            return true;
+        }
+        return indexOf(snapshot.entries, entry.listener) >= 0;
+    }
+
+    private static int indexOf(Entry<?>[] entries, StanzaListener listener) {
+        for (int i = 0; i < entries.length; i++) {
+            if (entries[i].listener.equals(listener)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
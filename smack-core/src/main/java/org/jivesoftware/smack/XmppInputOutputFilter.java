@@ -64,6 +64,14 @@ public interface XmppInputOutputFilter {
      */
     ByteBuffer input(ByteBuffer inputData) throws IOException;
 
+    /**
+     * Signals the filter that all data it produced so far was processed, i.e. the returned input data was consumed and
+     * the returned output data was written. The filter may release buffers it only needs while performing I/O, but
+     * must keep buffers holding pending data.
+     */
+    default void releaseIdleBuffers() {
+    }
+
     default void closeInputOutput() {
     }
 
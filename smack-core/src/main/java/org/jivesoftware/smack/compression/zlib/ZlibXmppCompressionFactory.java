@@ -18,6 +18,7 @@ package org.jivesoftware.smack.compression.zlib;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
 import java.util.zip.DataFormatException;
 import java.util.zip.Deflater;
 import java.util.zip.Inflater;
@@ -32,115 +33,212 @@ public final class ZlibXmppCompressionFactory extends XmppCompressionFactory {
 
     public static final ZlibXmppCompressionFactory INSTANCE = new ZlibXmppCompressionFactory();
 
+    private static int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+
+    private static int compressionStrategy = Deflater.DEFAULT_STRATEGY;
+
+    /**
+     * Set the compression level used by new zlib compression filters.
+     *
+     * @param compressionLevel the compression level, either {@link Deflater#DEFAULT_COMPRESSION} or a value between
+     *        {@link Deflater#NO_COMPRESSION} and {@link Deflater#BEST_COMPRESSION}.
+     */
+    public static void setCompressionLevel(int compressionLevel) {
+        if ((compressionLevel < Deflater.NO_COMPRESSION || compressionLevel > Deflater.BEST_COMPRESSION)
+                        && compressionLevel != Deflater.DEFAULT_COMPRESSION) {
+            throw new IllegalArgumentException("Invalid compression level: " + compressionLevel);
+        }
+        ZlibXmppCompressionFactory.compressionLevel = compressionLevel;
+    }
+
+    public static int getCompressionLevel() {
+        return compressionLevel;
+    }
+
+    /**
+     * Set the compression strategy used by new zlib compression filters.
+     *
+     * @param compressionStrategy the compression strategy, one of {@link Deflater#DEFAULT_STRATEGY},
+     *        {@link Deflater#FILTERED} or {@link Deflater#HUFFMAN_ONLY}.
+     */
+    public static void setCompressionStrategy(int compressionStrategy) {
+        switch (compressionStrategy) {
+        case Deflater.DEFAULT_STRATEGY:
+        case Deflater.FILTERED:
+        case Deflater.HUFFMAN_ONLY:
+            break;
+        default:
+            throw new IllegalArgumentException("Invalid compression strategy: " + compressionStrategy);
+        }
+        ZlibXmppCompressionFactory.compressionStrategy = compressionStrategy;
+    }
+
+    public static int getCompressionStrategy() {
+        return compressionStrategy;
+    }
+
     private ZlibXmppCompressionFactory() {
         super("zlib", 100);
     }
 
     @Override
     public XmppInputOutputFilter fabricate(ConnectionConfiguration configuration) {
-        return new ZlibXmppInputOutputFilter();
+        return new ZlibXmppInputOutputFilter(compressionLevel, compressionStrategy);
     }
 
-    private static final class ZlibXmppInputOutputFilter implements XmppInputOutputFilter {
+    /**
+     * The zlib compression filter. The filter re-uses its buffers: The input data is copied into a re-used array if
+     * it is not backed by one, the inflated data is written into a re-used buffer, as it is always completely consumed
+     * before the next invocation of {@link #input(ByteBuffer)}, and the deflated data is written into a re-used buffer
+     * once the previously returned one was completely consumed.
+     */
+    static final class ZlibXmppInputOutputFilter implements XmppInputOutputFilter {
 
         private static final int MINIMUM_OUTPUT_BUFFER_INITIAL_SIZE = 4;
         private static final int MINIMUM_OUTPUT_BUFFER_INCREASE = 480;
 
+        /**
+         * The maximum size of the buffers which are retained while the connection is idle.
+         */
+        private static final int MAX_RETAINED_BUFFER_SIZE = 64 * 1024;
+
         private final Deflater compressor;
         private final Inflater decompressor = new Inflater();
 
         private long compressorInBytes;
         private long compressorOutBytes;
+        private long compressorNanos;
 
         private long decompressorInBytes;
         private long decompressorOutBytes;
+        private long decompressorNanos;
 
         private int maxOutputOutput = -1;
         private int maxInputOutput = -1;
 
         private int maxBytesWrittenAfterFullFlush = -1;
 
-        private ZlibXmppInputOutputFilter() {
-            this(Deflater.DEFAULT_COMPRESSION);
+        private long bufferAllocations;
+
+        /**
+         * The array used to hand over data, which is not backed by an accessible array, to the compressor or
+         * decompressor.
+         */
+        private byte[] inputArray;
+
+        private ByteBuffer outputBuffer;
+
+        private final OutputResult emptyOutputResult = new OutputResult(ByteBuffer.allocate(0));
+
+        /**
+         * Set if the output buffer was returned by {@link #output(ByteBuffer, boolean, boolean, boolean)}, which
+         * means that it can only be re-used once its data was consumed.
+         */
+        private boolean outputBufferReturned;
+
+        private ByteBuffer inputOutputBuffer;
+
+        ZlibXmppInputOutputFilter() {
+            this(Deflater.DEFAULT_COMPRESSION, Deflater.DEFAULT_STRATEGY);
         }
 
-        private ZlibXmppInputOutputFilter(int compressionLevel) {
+        ZlibXmppInputOutputFilter(int compressionLevel, int compressionStrategy) {
             compressor = new Deflater(compressionLevel);
+            compressor.setStrategy(compressionStrategy);
         }
 
-        private ByteBuffer outputBuffer;
-
         @Override
         public OutputResult output(ByteBuffer outputData, boolean isFinalDataOfElement, boolean destinationAddressChanged,
                         boolean moreDataAvailable) throws IOException {
-            if (destinationAddressChanged && XMPPInputOutputStream.getFlushMethod() == FlushMethod.FULL_FLUSH) {
-                outputBuffer = ByteBuffer.allocate(256);
+            final boolean fullFlush = destinationAddressChanged
+                            && XMPPInputOutputStream.getFlushMethod() == FlushMethod.FULL_FLUSH;
+            if (outputData == null && !fullFlush) {
+                return OutputResult.NO_OUTPUT;
+            }
+
+            final int bytesRemaining = outputData != null ? outputData.remaining() : 0;
+            // We assume that the compressed data will not take more space as the uncompressed. Even if this is not
+            // always true, the automatic buffer resize mechanism of deflate() will take care.
+            prepareOutputBuffer(bytesRemaining);
 
+            final long startNanos = System.nanoTime();
+
+            if (fullFlush) {
                 int bytesWritten = deflate(Deflater.FULL_FLUSH);
 
                 maxBytesWrittenAfterFullFlush = Math.max(bytesWritten, maxBytesWrittenAfterFullFlush);
                 compressorOutBytes += bytesWritten;
             }
 
-            if (outputData == null && outputBuffer == null) {
-                return OutputResult.NO_OUTPUT;
-            }
+            if (outputData != null) {
+                // There is an invariant of Deflater/Inflater that input should only be set if needsInput() return true.
+                assert (compressor.needsInput());
 
-            int bytesRemaining = outputData.remaining();
-            if (outputBuffer == null) {
-                final int outputBufferSize = bytesRemaining < MINIMUM_OUTPUT_BUFFER_INITIAL_SIZE ? MINIMUM_OUTPUT_BUFFER_INITIAL_SIZE : bytesRemaining;
-                // We assume that the compressed data will not take more space as the uncompressed. Even if this is not
-                // always true, the automatic buffer resize mechanism of deflate() will take care.
-                outputBuffer = ByteBuffer.allocate(outputBufferSize);
-            }
+                compressorInBytes += bytesRemaining;
 
-            // There is an invariant of Deflater/Inflater that input should only be set if needsInput() return true.
-            assert (compressor.needsInput());
+                if (outputData.hasArray()) {
+                    compressor.setInput(outputData.array(), outputData.arrayOffset() + outputData.position(),
+                                    bytesRemaining);
+                    outputData.position(outputData.limit());
+                } else {
+                    byte[] compressorInputArray = getInputArray(bytesRemaining);
+                    outputData.get(compressorInputArray, 0, bytesRemaining);
+                    compressor.setInput(compressorInputArray, 0, bytesRemaining);
+                }
 
-            final byte[] compressorInputBuffer;
-            final int compressorInputBufferOffset, compressorInputBufferLength;
-            if (outputData.hasArray()) {
-                compressorInputBuffer = outputData.array();
-                compressorInputBufferOffset = outputData.arrayOffset();
-                compressorInputBufferLength = outputData.remaining();
-            } else {
-                compressorInputBuffer = new byte[outputData.remaining()];
-                compressorInputBufferOffset = 0;
-                compressorInputBufferLength = compressorInputBuffer.length;
-                outputData.get(compressorInputBuffer);
-            }
+                int flushMode;
+                if (moreDataAvailable) {
+                    flushMode = Deflater.NO_FLUSH;
+                } else {
+                    flushMode = Deflater.SYNC_FLUSH;
+                }
 
-            compressorInBytes += compressorInputBufferLength;
+                int bytesWritten = deflate(flushMode);
+                compressorOutBytes += bytesWritten;
+            }
 
-            compressor.setInput(compressorInputBuffer, compressorInputBufferOffset, compressorInputBufferLength);
+            compressorNanos += System.nanoTime() - startNanos;
 
-            int flushMode;
-            if (moreDataAvailable) {
-                flushMode = Deflater.NO_FLUSH;
-            } else {
-                flushMode = Deflater.SYNC_FLUSH;
+            if (outputBuffer.position() == 0) {
+                // The compressor did buffer the data internally, the output buffer can be re-used right away. Note that
+                // we hand out an empty buffer instead of no output, so that the following filters know that there was
+                // output data which they may coalesce.
+                if (outputData == null) {
+                    return OutputResult.NO_OUTPUT;
+                }
+                return emptyOutputResult;
             }
 
-            int bytesWritten = deflate(flushMode);
-
             maxOutputOutput = Math.max(outputBuffer.position(), maxOutputOutput);
-            compressorOutBytes += bytesWritten;
 
-            OutputResult outputResult = new OutputResult(outputBuffer);
-            outputBuffer = null;
-            return outputResult;
+            outputBufferReturned = true;
+            return new OutputResult(outputBuffer);
         }
 
-        private int deflate(int flushMode) {
-//            compressor.finish();
+        private void prepareOutputBuffer(int expectedSize) {
+            if (outputBuffer != null && (!outputBufferReturned || !outputBuffer.hasRemaining())) {
+                // Either the buffer was never returned or its data was completely consumed.
+                outputBuffer.clear();
+                outputBufferReturned = false;
+                return;
+            }
+
+            // The previously returned buffer may still be referenced, e.g. by a filter which coalesces its input.
+            final int outputBufferSize = Math.max(expectedSize, MINIMUM_OUTPUT_BUFFER_INITIAL_SIZE);
+            outputBuffer = ByteBuffer.allocate(outputBufferSize);
+            outputBufferReturned = false;
+            bufferAllocations++;
+        }
 
+        private int deflate(int flushMode) {
             int totalBytesWritten = 0;
             while (true) {
                 int initialOutputBufferPosition = outputBuffer.position();
                 byte[] buffer = outputBuffer.array();
                 int length = outputBuffer.limit() - initialOutputBufferPosition;
 
-                int bytesWritten = compressor.deflate(buffer, initialOutputBufferPosition, length, flushMode);
+                int bytesWritten = compressor.deflate(buffer, outputBuffer.arrayOffset() + initialOutputBufferPosition,
+                                length, flushMode);
 
                 int newOutputBufferPosition = initialOutputBufferPosition + bytesWritten;
                 outputBuffer.position(newOutputBufferPosition);
@@ -155,10 +253,7 @@ public final class ZlibXmppCompressionFactory extends XmppCompressionFactory {
                 if (increasedBufferSize < MINIMUM_OUTPUT_BUFFER_INCREASE) {
                     increasedBufferSize = MINIMUM_OUTPUT_BUFFER_INCREASE;
                 }
-                ByteBuffer newCurrentOutputBuffer = ByteBuffer.allocate(increasedBufferSize);
-                outputBuffer.flip();
-                newCurrentOutputBuffer.put(outputBuffer);
-                outputBuffer = newCurrentOutputBuffer;
+                outputBuffer = grow(outputBuffer, increasedBufferSize);
             }
 
             return totalBytesWritten;
@@ -166,43 +261,45 @@ public final class ZlibXmppCompressionFactory extends XmppCompressionFactory {
 
         @Override
         public ByteBuffer input(ByteBuffer inputData) throws IOException {
-            int bytesRemaining = inputData.remaining();
+            final int length = inputData.remaining();
+
+            decompressorInBytes += length;
 
-            final byte[] inputBytes;
-            final int offset, length;
             if (inputData.hasArray()) {
-                inputBytes = inputData.array();
-                offset = inputData.arrayOffset();
-                length = inputData.remaining();
+                decompressor.setInput(inputData.array(), inputData.arrayOffset() + inputData.position(), length);
+                inputData.position(inputData.limit());
             } else {
                 // Copy since we are dealing with a buffer whose array is not accessible (possibly a direct buffer).
-                inputBytes = new byte[bytesRemaining];
-                inputData.get(inputBytes);
-                offset = 0;
-                length = inputBytes.length;
+                byte[] decompressorInputArray = getInputArray(length);
+                inputData.get(decompressorInputArray, 0, length);
+                decompressor.setInput(decompressorInputArray, 0, length);
             }
 
-            decompressorInBytes += length;
-
-            decompressor.setInput(inputBytes, offset, length);
-
-            int bytesInflated;
             // Assume that the inflated/decompressed result will be roughly at most twice the size of the compressed
             // variant. It appears to hold most of the times, if not, then the buffer resize mechanism will take care of
-            // it.
-            ByteBuffer outputBuffer = ByteBuffer.allocate(2 * length);
+            // it. The buffer returned by the previous invocation was already completely consumed.
+            if (inputOutputBuffer == null || inputOutputBuffer.capacity() < 2 * length) {
+                inputOutputBuffer = ByteBuffer.allocate(Math.max(2 * length, MINIMUM_OUTPUT_BUFFER_INCREASE));
+                bufferAllocations++;
+            } else {
+                inputOutputBuffer.clear();
+            }
+
+            final long startNanos = System.nanoTime();
             while (true) {
-                byte[] inflateOutputBuffer = outputBuffer.array();
-                int inflateOutputBufferOffset = outputBuffer.position();
-                int inflateOutputBufferLength = outputBuffer.limit() - inflateOutputBufferOffset;
+                byte[] inflateOutputBuffer = inputOutputBuffer.array();
+                int inflateOutputBufferOffset = inputOutputBuffer.position();
+                int inflateOutputBufferLength = inputOutputBuffer.limit() - inflateOutputBufferOffset;
+                int bytesInflated;
                 try {
-                    bytesInflated = decompressor.inflate(inflateOutputBuffer, inflateOutputBufferOffset, inflateOutputBufferLength);
+                    bytesInflated = decompressor.inflate(inflateOutputBuffer,
+                                    inputOutputBuffer.arrayOffset() + inflateOutputBufferOffset, inflateOutputBufferLength);
                 }
                 catch (DataFormatException e) {
                     throw new IOException(e);
                 }
 
-                outputBuffer.position(inflateOutputBufferOffset + bytesInflated);
+                inputOutputBuffer.position(inflateOutputBufferOffset + bytesInflated);
 
                 decompressorOutBytes += bytesInflated;
 
@@ -210,20 +307,47 @@ public final class ZlibXmppCompressionFactory extends XmppCompressionFactory {
                     break;
                 }
 
-                int increasedBufferSize = outputBuffer.capacity() * 2;
-                ByteBuffer increasedOutputBuffer = ByteBuffer.allocate(increasedBufferSize);
-                outputBuffer.flip();
-                increasedOutputBuffer.put(outputBuffer);
-                outputBuffer = increasedOutputBuffer;
+                inputOutputBuffer = grow(inputOutputBuffer, inputOutputBuffer.capacity() * 2);
             }
+            decompressorNanos += System.nanoTime() - startNanos;
 
-            if (bytesInflated == 0) {
+            if (inputOutputBuffer.position() == 0) {
                 return null;
             }
 
-            maxInputOutput = Math.max(outputBuffer.position(), maxInputOutput);
+            maxInputOutput = Math.max(inputOutputBuffer.position(), maxInputOutput);
+
+            return inputOutputBuffer;
+        }
+
+        private byte[] getInputArray(int minimumLength) {
+            if (inputArray == null || inputArray.length < minimumLength) {
+                inputArray = new byte[minimumLength];
+                bufferAllocations++;
+            }
+            return inputArray;
+        }
+
+        private ByteBuffer grow(ByteBuffer buffer, int newCapacity) {
+            ByteBuffer increasedBuffer = ByteBuffer.allocate(newCapacity);
+            buffer.flip();
+            increasedBuffer.put(buffer);
+            bufferAllocations++;
+            return increasedBuffer;
+        }
 
-            return outputBuffer;
+        @Override
+        public void releaseIdleBuffers() {
+            // Do not retain buffers which grew unusually large, e.g. because of a single huge stanza.
+            if (inputArray != null && inputArray.length > MAX_RETAINED_BUFFER_SIZE) {
+                inputArray = null;
+            }
+            if (inputOutputBuffer != null && inputOutputBuffer.capacity() > MAX_RETAINED_BUFFER_SIZE) {
+                inputOutputBuffer = null;
+            }
+            if (outputBuffer != null && outputBuffer.capacity() > MAX_RETAINED_BUFFER_SIZE) {
+                outputBuffer = null;
+            }
         }
 
         @Override
@@ -236,29 +360,37 @@ public final class ZlibXmppCompressionFactory extends XmppCompressionFactory {
         public final long compressorInBytes;
         public final long compressorOutBytes;
         public final double compressionRatio;
+        public final long compressorMillis;
 
         public final long decompressorInBytes;
         public final long decompressorOutBytes;
         public final double decompressionRatio;
+        public final long decompressorMillis;
 
         public final int maxOutputOutput;
         public final int maxInputOutput;
 
         public final int maxBytesWrittenAfterFullFlush;
 
+        public final long bufferAllocations;
+
         private Stats(ZlibXmppInputOutputFilter filter) {
             // Note that we read the out bytes before the in bytes to not over approximate the compression ratio.
             compressorOutBytes = filter.compressorOutBytes;
             compressorInBytes = filter.compressorInBytes;
             compressionRatio = (double) compressorOutBytes / compressorInBytes;
+            compressorMillis = TimeUnit.NANOSECONDS.toMillis(filter.compressorNanos);
 
             decompressorOutBytes = filter.decompressorOutBytes;
             decompressorInBytes = filter.decompressorInBytes;
             decompressionRatio = (double) decompressorInBytes / decompressorOutBytes;
+            decompressorMillis = TimeUnit.NANOSECONDS.toMillis(filter.decompressorNanos);
 
             maxOutputOutput = filter.maxOutputOutput;
             maxInputOutput = filter.maxInputOutput;
             maxBytesWrittenAfterFullFlush = filter.maxBytesWrittenAfterFullFlush;
+
+            bufferAllocations = filter.bufferAllocations;
         }
 
         private transient String toStringCache;
@@ -273,12 +405,15 @@ public final class ZlibXmppCompressionFactory extends XmppCompressionFactory {
                 "compressor-in-bytes: "  + compressorInBytes + '\n'
               + "compressor-out-bytes: " + compressorOutBytes + '\n'
               + "compression-ratio: " + compressionRatio + '\n'
+              + "compressor-ms: " + compressorMillis + '\n'
               + "decompressor-in-bytes: " + decompressorInBytes + '\n'
               + "decompressor-out-bytes: " + decompressorOutBytes + '\n'
               + "decompression-ratio: " + decompressionRatio + '\n'
+              + "decompressor-ms: " + decompressorMillis + '\n'
               + "max-output-output: " + maxOutputOutput + '\n'
               + "max-input-output: " + maxInputOutput + '\n'
               + "max-bytes-written-after-full-flush: " + maxBytesWrittenAfterFullFlush + '\n'
+              + "buffer-allocations: " + bufferAllocations + '\n'
               ;
 
             return toStringCache;
@@ -65,6 +65,14 @@ public abstract class AbstractFromToMatchesFilter implements StanzaFilter {
 
     protected abstract Jid getAddressToCompare(Stanza stanza);
 
+    final Jid getAddress() {
+        return address;
+    }
+
+    final boolean isIgnoreResourcepart() {
+        return ignoreResourcepart;
+    }
+
     @Override
     public final String toString() {
         String matchMode = ignoreResourcepart ? "ignoreResourcepart" : "full";
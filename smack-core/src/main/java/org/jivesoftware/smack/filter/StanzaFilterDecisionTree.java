@@ -0,0 +1,336 @@
+/**
+ *
+ * Copyright 2019 Florian Schmaus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.smack.filter;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jivesoftware.smack.packet.ExtensionElement;
+import org.jivesoftware.smack.packet.IQ;
+import org.jivesoftware.smack.packet.Message;
+import org.jivesoftware.smack.packet.Presence;
+import org.jivesoftware.smack.packet.Stanza;
+
+import org.jxmpp.jid.Jid;
+
+/**
+ * A decision tree compiled from a list of stanza filters. The tree is able to determine the filters which
+ * <em>may</em> accept a given stanza by looking at the stanza's type, then the namespaces of its extension elements
+ * and finally its 'from' address. This avoids evaluating every single filter for every stanza, e.g. if a hundred
+ * filters all require the stanza to be a message from a certain JID, then only the filters for the JID of the
+ * actual stanza are considered.
+ * <p>
+ * The tree only prunes filters which can never accept the stanza. The candidates returned by
+ * {@link #getCandidates(Stanza)} still need to be evaluated. The following filters, also when they are part of an
+ * {@link AndFilter}, are understood by the compiler: {@link StanzaTypeFilter}, {@link FlexibleStanzaTypeFilter} (e.g.
+ * {@link MessageTypeFilter}), {@link StanzaExtensionFilter} and {@link FromMatchesFilter}. All other filters are
+ * always a candidate.
+ * </p>
+ * <p>
+ * Instances of this class are immutable and therefore thread-safe.
+ * </p>
+ */
+public final class StanzaFilterDecisionTree {
+
+    private enum StanzaKind {
+        MESSAGE,
+        PRESENCE,
+        IQ,
+        OTHER,
+    }
+
+    /**
+     * The conditions a stanza must fulfill in order to be possibly accepted by a filter. A <code>null</code> value
+     * means that there is no condition in this dimension.
+     */
+    private static final class FilterKey {
+        private StanzaKind kind;
+        private String namespace;
+        private Jid fromAddress;
+        private boolean fromBare;
+    }
+
+    private static final int[] NO_CANDIDATES = new int[0];
+
+    private final int size;
+
+    private final NamespaceNode[] byKind;
+
+    private StanzaFilterDecisionTree(FilterKey[] keys) {
+        size = keys.length;
+
+        int[] allIndexes = new int[keys.length];
+        for (int i = 0; i < allIndexes.length; i++) {
+            allIndexes[i] = i;
+        }
+
+        StanzaKind[] kinds = StanzaKind.values();
+        byKind = new NamespaceNode[kinds.length];
+        for (StanzaKind kind : kinds) {
+            int[] indexes = new int[keys.length];
+            int count = 0;
+            for (int i = 0; i < keys.length; i++) {
+                StanzaKind requiredKind = keys[i].kind;
+                if (requiredKind == null || requiredKind == kind) {
+                    indexes[count++] = i;
+                }
+            }
+            byKind[kind.ordinal()] = new NamespaceNode(keys, trim(indexes, count));
+        }
+    }
+
+    /**
+     * Compile the given filters into a decision tree. The filter list may contain <code>null</code> elements, which
+     * are considered to accept every stanza.
+     *
+     * @param filters the filters to compile.
+     * @return the decision tree for the given filters.
+     */
+    public static StanzaFilterDecisionTree compile(List<? extends StanzaFilter> filters) {
+        FilterKey[] keys = new FilterKey[filters.size()];
+        int i = 0;
+        for (StanzaFilter filter : filters) {
+            FilterKey key = new FilterKey();
+            extractKey(filter, key);
+            keys[i++] = key;
+        }
+        return new StanzaFilterDecisionTree(keys);
+    }
+
+    /**
+     * Get the indexes of the filters which may accept the given stanza, in ascending order. The indexes refer to the
+     * position of the filter in the list this tree was compiled from. The returned array must not be modified.
+     *
+     * @param stanza the stanza.
+     * @return the indexes of the candidate filters.
+     */
+    public int[] getCandidates(Stanza stanza) {
+        NamespaceNode namespaceNode = byKind[kindOf(stanza).ordinal()];
+        FromNode fromNode = namespaceNode.lookup(stanza);
+        return fromNode.lookup(stanza.getFrom());
+    }
+
+    /**
+     * Get the number of filters this tree was compiled from.
+     *
+     * @return the number of filters.
+     */
+    public int size() {
+        return size;
+    }
+
+    private static final class NamespaceNode {
+        private final FromNode unkeyed;
+        private final FromNode all;
+        private final Map<String, FromNode> byNamespace;
+
+        private NamespaceNode(FilterKey[] keys, int[] indexes) {
+            int[] unkeyedIndexes = new int[indexes.length];
+            int unkeyedCount = 0;
+            Map<String, FromNode> byNamespace = new HashMap<>();
+            for (int index : indexes) {
+                String namespace = keys[index].namespace;
+                if (namespace == null) {
+                    unkeyedIndexes[unkeyedCount++] = index;
+                    continue;
+                }
+                if (byNamespace.containsKey(namespace)) {
+                    continue;
+                }
+
+                int[] namespaceIndexes = new int[indexes.length];
+                int count = 0;
+                for (int candidate : indexes) {
+                    String candidateNamespace = keys[candidate].namespace;
+                    if (candidateNamespace == null || candidateNamespace.equals(namespace)) {
+                        namespaceIndexes[count++] = candidate;
+                    }
+                }
+                byNamespace.put(namespace, new FromNode(keys, trim(namespaceIndexes, count)));
+            }
+
+            unkeyed = new FromNode(keys, trim(unkeyedIndexes, unkeyedCount));
+            if (byNamespace.isEmpty()) {
+                all = unkeyed;
+                this.byNamespace = Collections.emptyMap();
+            } else {
+                all = new FromNode(keys, indexes);
+                this.byNamespace = byNamespace;
+            }
+        }
+
+        private FromNode lookup(Stanza stanza) {
+            if (byNamespace.isEmpty()) {
+                return unkeyed;
+            }
+
+            FromNode found = null;
+            for (ExtensionElement extension : stanza.getExtensions()) {
+                FromNode node = byNamespace.get(extension.getNamespace());
+                if (node == null || node == found) {
+                    continue;
+                }
+                if (found != null) {
+                    // The stanza carries extensions of at least two different namespaces we have filters for. Simply
+                    // consider all filters in this case.
+                    return all;
+                }
+                found = node;
+            }
+
+            if (found == null) {
+                return unkeyed;
+            }
+            return found;
+        }
+    }
+
+    private static final class FromNode {
+        private final int[] unkeyed;
+        private final Map<Jid, int[]> byFullAddress;
+        private final Map<Jid, int[]> byBareAddress;
+
+        private FromNode(FilterKey[] keys, int[] indexes) {
+            int[] unkeyedIndexes = new int[indexes.length];
+            int unkeyedCount = 0;
+            Map<Jid, int[]> byFullAddress = new HashMap<>();
+            Map<Jid, int[]> byBareAddress = new HashMap<>();
+            for (int index : indexes) {
+                FilterKey key = keys[index];
+                Jid address = key.fromAddress;
+                if (address == null) {
+                    unkeyedIndexes[unkeyedCount++] = index;
+                    continue;
+                }
+
+                Map<Jid, int[]> map = key.fromBare ? byBareAddress : byFullAddress;
+                if (map.containsKey(address)) {
+                    continue;
+                }
+
+                Jid bareAddress = address.asBareJid();
+                int[] addressIndexes = new int[indexes.length];
+                int count = 0;
+                for (int candidate : indexes) {
+                    FilterKey candidateKey = keys[candidate];
+                    Jid candidateAddress = candidateKey.fromAddress;
+                    // A stanza from a full address is also accepted by filters for its bare address.
+                    if (candidateAddress == null
+                                    || (candidateKey.fromBare && candidateAddress.equals(bareAddress))
+                                    || (!key.fromBare && !candidateKey.fromBare && candidateAddress.equals(address))) {
+                        addressIndexes[count++] = candidate;
+                    }
+                }
+                map.put(address, trim(addressIndexes, count));
+            }
+
+            unkeyed = trim(unkeyedIndexes, unkeyedCount);
+            this.byFullAddress = byFullAddress.isEmpty() ? Collections.<Jid, int[]>emptyMap() : byFullAddress;
+            this.byBareAddress = byBareAddress.isEmpty() ? Collections.<Jid, int[]>emptyMap() : byBareAddress;
+        }
+
+        private int[] lookup(Jid from) {
+            if (from == null) {
+                return unkeyed;
+            }
+
+            if (!byFullAddress.isEmpty()) {
+                int[] indexes = byFullAddress.get(from);
+                if (indexes != null) {
+                    return indexes;
+                }
+            }
+
+            if (!byBareAddress.isEmpty()) {
+                int[] indexes = byBareAddress.get(from.asBareJid());
+                if (indexes != null) {
+                    return indexes;
+                }
+            }
+
+            return unkeyed;
+        }
+    }
+
+    private static void extractKey(StanzaFilter filter, FilterKey key) {
+        if (filter == null) {
+            return;
+        }
+
+        // Only exact classes are considered for filters which are not final, as subclasses may change the semantic
+        // of accept().
+        if (filter.getClass() == AndFilter.class) {
+            for (StanzaFilter child : ((AndFilter) filter).filters) {
+                extractKey(child, key);
+            }
+        } else if (filter instanceof StanzaTypeFilter) {
+            setKind(key, ((StanzaTypeFilter) filter).getStanzaType());
+        } else if (filter instanceof FlexibleStanzaTypeFilter) {
+            setKind(key, ((FlexibleStanzaTypeFilter<?>) filter).stanzaType);
+        } else if (filter.getClass() == StanzaExtensionFilter.class) {
+            if (key.namespace == null) {
+                key.namespace = ((StanzaExtensionFilter) filter).getNamespace();
+            }
+        } else if (filter instanceof FromMatchesFilter) {
+            FromMatchesFilter fromMatchesFilter = (FromMatchesFilter) filter;
+            Jid address = fromMatchesFilter.getAddress();
+            // A filter for stanzas without 'from' address is not keyed.
+            if (key.fromAddress == null && address != null) {
+                key.fromAddress = address;
+                key.fromBare = fromMatchesFilter.isIgnoreResourcepart();
+            }
+        }
+    }
+
+    private static void setKind(FilterKey key, Class<? extends Stanza> stanzaType) {
+        if (key.kind != null) {
+            return;
+        }
+        if (Message.class.isAssignableFrom(stanzaType)) {
+            key.kind = StanzaKind.MESSAGE;
+        } else if (Presence.class.isAssignableFrom(stanzaType)) {
+            key.kind = StanzaKind.PRESENCE;
+        } else if (IQ.class.isAssignableFrom(stanzaType)) {
+            key.kind = StanzaKind.IQ;
+        }
+    }
+
+    private static StanzaKind kindOf(Stanza stanza) {
+        if (stanza instanceof Message) {
+            return StanzaKind.MESSAGE;
+        } else if (stanza instanceof Presence) {
+            return StanzaKind.PRESENCE;
+        } else if (stanza instanceof IQ) {
+            return StanzaKind.IQ;
+        }
+        return StanzaKind.OTHER;
+    }
+
+    private static int[] trim(int[] indexes, int count) {
+        if (count == 0) {
+            return NO_CANDIDATES;
+        }
+        if (count == indexes.length) {
+            return indexes;
+        }
+        int[] trimmed = new int[count];
+        System.arraycopy(indexes, 0, trimmed, 0, count);
+        return trimmed;
+    }
+}
@@ -0,0 +1,37 @@
+/**
+ *
+ * Copyright 2019 Florian Schmaus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.smack.filter;
+
+/**
+ * A stanza filter which will only ever accept stanzas with a particular stanza ID. Connections use this information
+ * to look up the matching {@link org.jivesoftware.smack.StanzaCollector} of an incoming stanza by its ID, instead of
+ * evaluating the filter of every active collector.
+ * <p>
+ * Implementations must guarantee that {@link #accept(org.jivesoftware.smack.packet.Stanza)} returns
+ * <code>false</code> for every stanza whose ID is not equal to the ID returned by {@link #getStanzaId()}.
+ * </p>
+ */
+public interface StanzaIdBoundFilter extends StanzaFilter {
+
+    /**
+     * Get the stanza ID which every accepted stanza has.
+     *
+     * @return the stanza ID.
+     */
+    String getStanzaId();
+
+}
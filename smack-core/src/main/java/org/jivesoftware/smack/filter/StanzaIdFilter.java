@@ -25,7 +25,7 @@ import org.jivesoftware.smack.util.StringUtils;
  *
  * @author Matt Tucker
  */
-public class StanzaIdFilter implements StanzaFilter {
+public class StanzaIdFilter implements StanzaIdBoundFilter {
 
     private final String stanzaId;
 
@@ -52,6 +52,11 @@ public class StanzaIdFilter implements StanzaFilter {
         return stanzaId.equals(stanza.getStanzaId());
     }
 
+    @Override
+    public String getStanzaId() {
+        return stanzaId;
+    }
+
     @Override
     public String toString() {
         return getClass().getSimpleName() + ": id=" + stanzaId;
@@ -305,8 +305,29 @@ public abstract class AbstractXmppStateMachineConnection extends AbstractXMPPCon
 
     protected final void parseAndProcessElement(String element) throws XmlPullParserException, IOException,
                     InterruptedException, StreamErrorException, SmackException, SmackParsingException {
-        XmlPullParser parser = PacketParserUtils.getParserFor(element);
-
+        XmlPullParser parser = PacketParserUtils.acquireParserFor(element);
+        try {
+            parseAndProcessElement(parser);
+        } finally {
+            PacketParserUtils.releaseParser(parser);
+        }
+    }
+
+    /**
+     * Parse and process the top level stream elements found in the input of the given parser. The parser must be
+     * positioned at the start tag of the enclosing stream open element, which carries the stream-level namespace
+     * context.
+     *
+     * @param parser the parser positioned at the enclosing stream open element.
+     * @throws XmlPullParserException
+     * @throws IOException
+     * @throws InterruptedException
+     * @throws StreamErrorException
+     * @throws SmackException
+     * @throws SmackParsingException
+     */
+    protected final void parseAndProcessElement(XmlPullParser parser) throws XmlPullParserException, IOException,
+                    InterruptedException, StreamErrorException, SmackException, SmackParsingException {
         // Skip the enclosing stream open what is guaranteed to be there.
         parser.next();
 
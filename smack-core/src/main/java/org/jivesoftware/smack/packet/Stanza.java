@@ -19,19 +19,20 @@ package org.jivesoftware.smack.packet;
 
 import static org.jivesoftware.smack.util.StringUtils.requireNotNullNorEmpty;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 
 import org.jivesoftware.smack.packet.id.StanzaIdUtil;
-import org.jivesoftware.smack.util.MultiMap;
-import org.jivesoftware.smack.util.PacketUtil;
 import org.jivesoftware.smack.util.XmlStringBuilder;
 
 import org.jxmpp.jid.Jid;
 import org.jxmpp.jid.impl.JidCreate;
 import org.jxmpp.stringprep.XmppStringprepException;
-import org.jxmpp.util.XmppStringUtils;
 
 /**
  * Base class for XMPP Stanzas, which are called Stanza in older versions of Smack (i.e. &lt; 4.1).
@@ -56,7 +57,17 @@ public abstract class Stanza implements TopLevelStreamElement {
     protected static final String DEFAULT_LANGUAGE =
             java.util.Locale.getDefault().getLanguage().toLowerCase(Locale.US);
 
-    private final MultiMap<String, ExtensionElement> packetExtensions = new MultiMap<>();
+    private static final ExtensionElement[] NO_EXTENSIONS = new ExtensionElement[0];
+
+    private static final AtomicReferenceFieldUpdater<Stanza, ExtensionElement[]> EXTENSIONS_UPDATER =
+            AtomicReferenceFieldUpdater.newUpdater(Stanza.class, ExtensionElement[].class, "extensions");
+
+    /**
+     * The extension elements of this stanza. The array is never modified, instead it is replaced by a modified copy.
+     * This allows reading the extensions without locking, which is the common case for incoming stanzas. Extensions
+     * with the same element name and namespace are kept next to each other, in the order they were added.
+     */
+    private volatile ExtensionElement[] extensions = NO_EXTENSIONS;
 
     private String id = null;
     private Jid to;
@@ -89,10 +100,8 @@ public abstract class Stanza implements TopLevelStreamElement {
         from = p.getFrom();
         error = p.error;
 
-        // Copy extensions
-        for (ExtensionElement pe : p.getExtensions()) {
-            addExtension(pe);
-        }
+        // Copy extensions, the array can be shared since it is never modified.
+        extensions = p.extensions;
     }
 
     /**
@@ -301,21 +310,22 @@ public abstract class Stanza implements TopLevelStreamElement {
     }
 
     /**
-     * Returns a list of all extension elements of this stanza.
+     * Returns a list of all extension elements of this stanza. The returned list is an unmodifiable snapshot.
      *
      * @return a list of all extension elements of this stanza.
      */
     public List<ExtensionElement> getExtensions() {
-        synchronized (packetExtensions) {
-            // No need to create a new list, values() will already create a new one for us
-            return packetExtensions.values();
+        ExtensionElement[] extensions = this.extensions;
+        if (extensions.length == 0) {
+            return Collections.emptyList();
         }
+        return Collections.unmodifiableList(Arrays.asList(extensions));
     }
 
     /**
      * Return a list of all extensions with the given element name <em>and</em> namespace.
      * <p>
-     * Changes to the returned set will update the stanza extensions, if the returned set is not the empty set.
+     * The returned list is a snapshot, changes to it do not update the stanza extensions.
      * </p>
      *
      * @param elementName the element name, must not be null.
@@ -326,8 +336,19 @@ public abstract class Stanza implements TopLevelStreamElement {
     public List<ExtensionElement> getExtensions(String elementName, String namespace) {
         requireNotNullNorEmpty(elementName, "elementName must not be null nor empty");
         requireNotNullNorEmpty(namespace, "namespace must not be null nor empty");
-        String key = XmppStringUtils.generateKey(elementName, namespace);
-        return packetExtensions.getAll(key);
+        List<ExtensionElement> res = null;
+        for (ExtensionElement extension : extensions) {
+            if (matches(extension, elementName, namespace)) {
+                if (res == null) {
+                    res = new ArrayList<>(2);
+                }
+                res.add(extension);
+            }
+        }
+        if (res == null) {
+            return Collections.emptyList();
+        }
+        return res;
     }
 
     /**
@@ -340,7 +361,7 @@ public abstract class Stanza implements TopLevelStreamElement {
      * @return the stanza extension with the given namespace.
      */
     public ExtensionElement getExtension(String namespace) {
-        return PacketUtil.extensionElementFrom(getExtensions(), null, namespace);
+        return getExtension(null, namespace);
     }
 
     /**
@@ -359,15 +380,12 @@ public abstract class Stanza implements TopLevelStreamElement {
         if (namespace == null) {
             return null;
         }
-        String key = XmppStringUtils.generateKey(elementName, namespace);
-        ExtensionElement packetExtension;
-        synchronized (packetExtensions) {
-            packetExtension = packetExtensions.getFirst(key);
-        }
-        if (packetExtension == null) {
+        ExtensionElement[] extensions = this.extensions;
+        int index = indexOf(extensions, elementName, namespace);
+        if (index < 0) {
             return null;
         }
-        return (PE) packetExtension;
+        return (PE) extensions[index];
     }
 
     /**
@@ -377,10 +395,11 @@ public abstract class Stanza implements TopLevelStreamElement {
      */
     public void addExtension(ExtensionElement extension) {
         if (extension == null) return;
-        String key = XmppStringUtils.generateKey(extension.getElementName(), extension.getNamespace());
-        synchronized (packetExtensions) {
-            packetExtensions.put(key, extension);
-        }
+        ExtensionElement[] current, updated;
+        do {
+            current = extensions;
+            updated = add(current, extension);
+        } while (!EXTENSIONS_UPDATER.compareAndSet(this, current, updated));
     }
 
     /**
@@ -393,14 +412,17 @@ public abstract class Stanza implements TopLevelStreamElement {
      */
     public ExtensionElement overrideExtension(ExtensionElement extension) {
         if (extension == null) return null;
-        synchronized (packetExtensions) {
-            // Note that we need to use removeExtension(String, String) here. If would use
-            // removeExtension(ExtensionElement) then we would remove based on the equality of ExtensionElement, which
-            // is not what we want in this case.
-            ExtensionElement removedExtension = removeExtension(extension.getElementName(), extension.getNamespace());
-            addExtension(extension);
-            return removedExtension;
-        }
+        String elementName = extension.getElementName();
+        String namespace = extension.getNamespace();
+        ExtensionElement[] current, updated;
+        ExtensionElement removedExtension;
+        do {
+            current = extensions;
+            int index = indexOf(current, elementName, namespace);
+            removedExtension = index < 0 ? null : current[index];
+            updated = add(removeAll(current, elementName, namespace), extension);
+        } while (!EXTENSIONS_UPDATER.compareAndSet(this, current, updated));
+        return removedExtension;
     }
 
     /**
@@ -426,13 +448,7 @@ public abstract class Stanza implements TopLevelStreamElement {
      * @return true if a stanza extension exists, false otherwise.
      */
     public boolean hasExtension(String elementName, String namespace) {
-        if (elementName == null) {
-            return hasExtension(namespace);
-        }
-        String key = XmppStringUtils.generateKey(elementName, namespace);
-        synchronized (packetExtensions) {
-            return packetExtensions.containsKey(key);
-        }
+        return indexOf(extensions, elementName, namespace) >= 0;
     }
 
     /**
@@ -442,28 +458,27 @@ public abstract class Stanza implements TopLevelStreamElement {
      * @return true if a stanza extension exists, false otherwise.
      */
     public boolean hasExtension(String namespace) {
-        synchronized (packetExtensions) {
-            for (ExtensionElement packetExtension : packetExtensions.values()) {
-                if (packetExtension.getNamespace().equals(namespace)) {
-                    return true;
-                }
-            }
-        }
-        return false;
+        return hasExtension(null, namespace);
     }
 
     /**
-     * Remove the stanza extension with the given elementName and namespace.
+     * Remove the stanza extensions with the given elementName and namespace.
      *
      * @param elementName
      * @param namespace
-     * @return the removed stanza extension or null.
+     * @return one of the removed stanza extensions or null.
      */
     public ExtensionElement removeExtension(String elementName, String namespace) {
-        String key = XmppStringUtils.generateKey(elementName, namespace);
-        synchronized (packetExtensions) {
-            return packetExtensions.remove(key);
-        }
+        ExtensionElement[] current;
+        int index;
+        do {
+            current = extensions;
+            index = indexOf(current, elementName, namespace);
+            if (index < 0) {
+                return null;
+            }
+        } while (!EXTENSIONS_UPDATER.compareAndSet(this, current, removeAll(current, elementName, namespace)));
+        return current[index];
     }
 
     /**
@@ -473,15 +488,94 @@ public abstract class Stanza implements TopLevelStreamElement {
      * @return the removed stanza extension or null.
      */
     public ExtensionElement removeExtension(ExtensionElement extension)  {
-        String key = XmppStringUtils.generateKey(extension.getElementName(), extension.getNamespace());
-        synchronized (packetExtensions) {
-            List<ExtensionElement> list = packetExtensions.getAll(key);
-            boolean removed = list.remove(extension);
-            if (removed) {
-                return extension;
+        ExtensionElement[] current, updated;
+        do {
+            current = extensions;
+            int index = -1;
+            for (int i = 0; i < current.length; i++) {
+                if (matches(current[i], extension.getElementName(), extension.getNamespace())
+                                && current[i].equals(extension)) {
+                    index = i;
+                    break;
+                }
+            }
+            if (index < 0) {
+                return null;
+            }
+            updated = new ExtensionElement[current.length - 1];
+            System.arraycopy(current, 0, updated, 0, index);
+            System.arraycopy(current, index + 1, updated, index, updated.length - index);
+        } while (!EXTENSIONS_UPDATER.compareAndSet(this, current, updated));
+        return extension;
+    }
+
+    /**
+     * Check if the given extension has the given element name and namespace. If the element name is
+     * <code>null</code>, then only the namespace is matched.
+     */
+    private static boolean matches(ExtensionElement extension, String elementName, String namespace) {
+        String extensionNamespace = extension.getNamespace();
+        if (extensionNamespace == null ? namespace != null : !extensionNamespace.equals(namespace)) {
+            return false;
+        }
+        return elementName == null || elementName.equals(extension.getElementName());
+    }
+
+    private static int indexOf(ExtensionElement[] extensions, String elementName, String namespace) {
+        for (int i = 0; i < extensions.length; i++) {
+            if (matches(extensions[i], elementName, namespace)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns a copy of the given array with the extension added after the last extension with the same element name
+     * and namespace, or at the end if there is no such extension.
+     */
+    private static ExtensionElement[] add(ExtensionElement[] extensions, ExtensionElement extension) {
+        String elementName = extension.getElementName();
+        String namespace = extension.getNamespace();
+        int index = extensions.length;
+        for (int i = extensions.length - 1; i >= 0; i--) {
+            if (matches(extensions[i], elementName, namespace)) {
+                index = i + 1;
+                break;
+            }
+        }
+        ExtensionElement[] res = new ExtensionElement[extensions.length + 1];
+        System.arraycopy(extensions, 0, res, 0, index);
+        res[index] = extension;
+        System.arraycopy(extensions, index, res, index + 1, extensions.length - index);
+        return res;
+    }
+
+    /**
+     * Returns a copy of the given array without the extensions with the given element name and namespace, or the array
+     * itself if there are no such extensions.
+     */
+    private static ExtensionElement[] removeAll(ExtensionElement[] extensions, String elementName, String namespace) {
+        int matching = 0;
+        for (ExtensionElement extension : extensions) {
+            if (matches(extension, elementName, namespace)) {
+                matching++;
+            }
+        }
+        if (matching == 0) {
+            return extensions;
+        }
+        if (matching == extensions.length) {
+            return NO_EXTENSIONS;
+        }
+        ExtensionElement[] res = new ExtensionElement[extensions.length - matching];
+        int i = 0;
+        for (ExtensionElement extension : extensions) {
+            if (!matches(extension, elementName, namespace)) {
+                res[i++] = extension;
             }
         }
-        return null;
+        return res;
     }
 
     /**
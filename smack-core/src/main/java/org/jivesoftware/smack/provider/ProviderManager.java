@@ -26,6 +26,7 @@ import org.jivesoftware.smack.SmackConfiguration;
 import org.jivesoftware.smack.packet.ExtensionElement;
 import org.jivesoftware.smack.packet.IQ;
 import org.jivesoftware.smack.packet.Nonza;
+import org.jivesoftware.smack.util.InternedQName;
 import org.jivesoftware.smack.util.StringUtils;
 import org.jivesoftware.smack.util.XmppElementUtil;
 
@@ -112,9 +113,12 @@ import org.jxmpp.util.XmppStringUtils;
  */
 public final class ProviderManager {
 
-    private static final Map<String, ExtensionElementProvider<ExtensionElement>> extensionProviders = new ConcurrentHashMap<String, ExtensionElementProvider<ExtensionElement>>();
-    private static final Map<String, IQProvider<IQ>> iqProviders = new ConcurrentHashMap<String, IQProvider<IQ>>();
-    private static final Map<String, ExtensionElementProvider<ExtensionElement>> streamFeatureProviders = new ConcurrentHashMap<String, ExtensionElementProvider<ExtensionElement>>();
+    // The providers are keyed by interned qualified names, which have a pre-computed hash code and are compared by
+    // identity. Lookups for elements without a registered provider usually return early, since there is no interned
+    // qualified name for them.
+    private static final Map<InternedQName, ExtensionElementProvider<ExtensionElement>> extensionProviders = new ConcurrentHashMap<>();
+    private static final Map<InternedQName, IQProvider<IQ>> iqProviders = new ConcurrentHashMap<>();
+    private static final Map<InternedQName, ExtensionElementProvider<ExtensionElement>> streamFeatureProviders = new ConcurrentHashMap<>();
     private static final Map<String, NonzaProvider<? extends Nonza>> nonzaProviders = new ConcurrentHashMap<>();
 
     static {
@@ -168,8 +172,21 @@ public final class ProviderManager {
      * @return the IQ provider.
      */
     public static IQProvider<IQ> getIQProvider(String elementName, String namespace) {
-        String key = getKey(elementName, namespace);
-        return iqProviders.get(key);
+        return getIQProvider(InternedQName.lookup(elementName, namespace));
+    }
+
+    /**
+     * Returns the IQ provider registered to the specified qualified name.
+     *
+     * @param qname the qualified name, may be <code>null</code>.
+     * @return the IQ provider or <code>null</code>.
+     * @since 4.4
+     */
+    public static IQProvider<IQ> getIQProvider(InternedQName qname) {
+        if (qname == null) {
+            return null;
+        }
+        return iqProviders.get(qname);
     }
 
     /**
@@ -199,9 +216,9 @@ public final class ProviderManager {
             Object provider) {
         validate(elementName, namespace);
         // First remove existing providers
-        String key = removeIQProvider(elementName, namespace);
+        removeIQProvider(elementName, namespace);
         if (provider instanceof IQProvider) {
-            iqProviders.put(key, (IQProvider<IQ>) provider);
+            iqProviders.put(InternedQName.of(elementName, namespace), (IQProvider<IQ>) provider);
         } else {
             throw new IllegalArgumentException("Provider must be an IQProvider");
         }
@@ -217,9 +234,11 @@ public final class ProviderManager {
      * @return the key of the removed IQ Provider
      */
     public static String removeIQProvider(String elementName, String namespace) {
-        String key = getKey(elementName, namespace);
-        iqProviders.remove(key);
-        return key;
+        InternedQName qname = InternedQName.lookup(elementName, namespace);
+        if (qname != null) {
+            iqProviders.remove(qname);
+        }
+        return getKey(elementName, namespace);
     }
 
     /**
@@ -242,8 +261,21 @@ public final class ProviderManager {
      * @return the extension provider.
      */
     public static ExtensionElementProvider<ExtensionElement> getExtensionProvider(String elementName, String namespace) {
-        String key = getKey(elementName, namespace);
-        return extensionProviders.get(key);
+        return getExtensionProvider(InternedQName.lookup(elementName, namespace));
+    }
+
+    /**
+     * Returns the stanza extension provider registered to the specified qualified name.
+     *
+     * @param qname the qualified name, may be <code>null</code>.
+     * @return the extension provider or <code>null</code>.
+     * @since 4.4
+     */
+    public static ExtensionElementProvider<ExtensionElement> getExtensionProvider(InternedQName qname) {
+        if (qname == null) {
+            return null;
+        }
+        return extensionProviders.get(qname);
     }
 
     /**
@@ -260,9 +292,9 @@ public final class ProviderManager {
             Object provider) {
         validate(elementName, namespace);
         // First remove existing providers
-        String key = removeExtensionProvider(elementName, namespace);
+        removeExtensionProvider(elementName, namespace);
         if (provider instanceof ExtensionElementProvider) {
-            extensionProviders.put(key, (ExtensionElementProvider<ExtensionElement>) provider);
+            extensionProviders.put(InternedQName.of(elementName, namespace), (ExtensionElementProvider<ExtensionElement>) provider);
         } else {
             throw new IllegalArgumentException("Provider must be a PacketExtensionProvider");
         }
@@ -278,9 +310,11 @@ public final class ProviderManager {
      * @return the key of the removed stanza extension provider
      */
     public static String removeExtensionProvider(String elementName, String namespace) {
-        String key = getKey(elementName, namespace);
-        extensionProviders.remove(key);
-        return key;
+        InternedQName qname = InternedQName.lookup(elementName, namespace);
+        if (qname != null) {
+            extensionProviders.remove(qname);
+        }
+        return getKey(elementName, namespace);
     }
 
     /**
@@ -297,19 +331,23 @@ public final class ProviderManager {
     }
 
     public static ExtensionElementProvider<ExtensionElement> getStreamFeatureProvider(String elementName, String namespace) {
-        String key = getKey(elementName, namespace);
-        return streamFeatureProviders.get(key);
+        InternedQName qname = InternedQName.lookup(elementName, namespace);
+        if (qname == null) {
+            return null;
+        }
+        return streamFeatureProviders.get(qname);
     }
 
     public static void addStreamFeatureProvider(String elementName, String namespace, ExtensionElementProvider<ExtensionElement> provider) {
         validate(elementName, namespace);
-        String key = getKey(elementName, namespace);
-        streamFeatureProviders.put(key, provider);
+        streamFeatureProviders.put(InternedQName.of(elementName, namespace), provider);
     }
 
     public static void removeStreamFeatureProvider(String elementName, String namespace) {
-        String key = getKey(elementName, namespace);
-        streamFeatureProviders.remove(key);
+        InternedQName qname = InternedQName.lookup(elementName, namespace);
+        if (qname != null) {
+            streamFeatureProviders.remove(qname);
+        }
     }
 
     public static NonzaProvider<? extends Nonza> getNonzaProvider(String elementName, String namespace) {
@@ -0,0 +1,206 @@
+/**
+ *
+ * Copyright 2019 Florian Schmaus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.smack.util;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A thread-safe pool of direct {@link ByteBuffer}s with power-of-two size classes. Buffers are leased via
+ * {@link #acquire(int)} and must be handed back via {@link #release(ByteBuffer)} once they are no longer used. This
+ * allows connections to only hold I/O buffers while they are actually performing I/O, instead of keeping them for
+ * their whole lifetime.
+ * <p>
+ * Requests larger than the largest size class are served with an unpooled buffer of the exact size. Every size class
+ * keeps at most a configured number of bytes in the pool, additional released buffers are left to the garbage
+ * collector.
+ * </p>
+ *
+ * @since 4.4
+ */
+public final class ByteBufferPool {
+
+    public static final int MIN_SIZE_CLASS = 4 * 1024;
+
+    public static final int MAX_SIZE_CLASS = 64 * 1024;
+
+    private static final int DEFAULT_MAX_POOLED_BYTES_PER_SIZE_CLASS = 4 * 1024 * 1024;
+
+    private static final int SIZE_CLASS_COUNT = Integer.numberOfTrailingZeros(MAX_SIZE_CLASS)
+                    - Integer.numberOfTrailingZeros(MIN_SIZE_CLASS) + 1;
+
+    private final SizeClass[] sizeClasses = new SizeClass[SIZE_CLASS_COUNT];
+
+    private final AtomicLong leasedBytes = new AtomicLong();
+    private final AtomicLong allocatedBuffers = new AtomicLong();
+    private final AtomicLong reusedBuffers = new AtomicLong();
+    private final AtomicLong discardedBuffers = new AtomicLong();
+
+    public ByteBufferPool() {
+        this(DEFAULT_MAX_POOLED_BYTES_PER_SIZE_CLASS);
+    }
+
+    /**
+     * Create a new pool.
+     *
+     * @param maxPooledBytesPerSizeClass the maximum number of bytes every size class keeps in the pool.
+     */
+    public ByteBufferPool(int maxPooledBytesPerSizeClass) {
+        if (maxPooledBytesPerSizeClass < 0) {
+            throw new IllegalArgumentException("maxPooledBytesPerSizeClass must not be negative");
+        }
+        for (int i = 0; i < sizeClasses.length; i++) {
+            int bufferSize = MIN_SIZE_CLASS << i;
+            sizeClasses[i] = new SizeClass(bufferSize, maxPooledBytesPerSizeClass / bufferSize);
+        }
+    }
+
+    /**
+     * Lease a cleared direct buffer with a capacity of at least <code>minCapacity</code> bytes.
+     *
+     * @param minCapacity the minimum capacity of the buffer.
+     * @return a direct buffer.
+     */
+    public ByteBuffer acquire(int minCapacity) {
+        if (minCapacity < 0) {
+            throw new IllegalArgumentException("minCapacity must not be negative");
+        }
+
+        ByteBuffer byteBuffer;
+        if (minCapacity <= MAX_SIZE_CLASS) {
+            SizeClass sizeClass = sizeClasses[sizeClassIndexFor(minCapacity)];
+            byteBuffer = sizeClass.pooledBuffers.poll();
+            if (byteBuffer != null) {
+                sizeClass.pooledBuffersCount.decrementAndGet();
+                byteBuffer.clear();
+                reusedBuffers.incrementAndGet();
+            } else {
+                byteBuffer = ByteBuffer.allocateDirect(sizeClass.bufferSize);
+                allocatedBuffers.incrementAndGet();
+            }
+        } else {
+            byteBuffer = ByteBuffer.allocateDirect(minCapacity);
+            allocatedBuffers.incrementAndGet();
+        }
+
+        leasedBytes.addAndGet(byteBuffer.capacity());
+        return byteBuffer;
+    }
+
+    /**
+     * Hand back a buffer previously obtained by {@link #acquire(int)}. The buffer must not be used afterwards by the
+     * caller. Passing <code>null</code> is a no-op.
+     *
+     * @param byteBuffer the buffer to release, may be <code>null</code>.
+     */
+    public void release(ByteBuffer byteBuffer) {
+        if (byteBuffer == null) {
+            return;
+        }
+
+        final int capacity = byteBuffer.capacity();
+        leasedBytes.addAndGet(-capacity);
+
+        SizeClass sizeClass = sizeClassForCapacity(capacity);
+        if (sizeClass == null || !byteBuffer.isDirect() || !sizeClass.offer(byteBuffer)) {
+            discardedBuffers.incrementAndGet();
+        }
+    }
+
+    public Stats getStats() {
+        return new Stats(this);
+    }
+
+    private static int sizeClassIndexFor(int minCapacity) {
+        if (minCapacity <= MIN_SIZE_CLASS) {
+            return 0;
+        }
+        int bits = 32 - Integer.numberOfLeadingZeros(minCapacity - 1);
+        return bits - Integer.numberOfTrailingZeros(MIN_SIZE_CLASS);
+    }
+
+    private SizeClass sizeClassForCapacity(int capacity) {
+        if (capacity < MIN_SIZE_CLASS || capacity > MAX_SIZE_CLASS || Integer.bitCount(capacity) != 1) {
+            return null;
+        }
+        return sizeClasses[sizeClassIndexFor(capacity)];
+    }
+
+    private static final class SizeClass {
+        private final int bufferSize;
+        private final int maxPooledBuffers;
+        private final Queue<ByteBuffer> pooledBuffers = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger pooledBuffersCount = new AtomicInteger();
+
+        private SizeClass(int bufferSize, int maxPooledBuffers) {
+            this.bufferSize = bufferSize;
+            this.maxPooledBuffers = maxPooledBuffers;
+        }
+
+        private boolean offer(ByteBuffer byteBuffer) {
+            if (pooledBuffersCount.incrementAndGet() > maxPooledBuffers) {
+                pooledBuffersCount.decrementAndGet();
+                return false;
+            }
+            byteBuffer.clear();
+            pooledBuffers.add(byteBuffer);
+            return true;
+        }
+    }
+
+    public static final class Stats {
+        public final long pooledBytes;
+        public final long leasedBytes;
+        public final long allocatedBuffers;
+        public final long reusedBuffers;
+        public final long discardedBuffers;
+
+        private Stats(ByteBufferPool byteBufferPool) {
+            long pooledBytes = 0;
+            for (SizeClass sizeClass : byteBufferPool.sizeClasses) {
+                pooledBytes += (long) sizeClass.pooledBuffersCount.get() * sizeClass.bufferSize;
+            }
+            this.pooledBytes = pooledBytes;
+            leasedBytes = byteBufferPool.leasedBytes.get();
+            allocatedBuffers = byteBufferPool.allocatedBuffers.get();
+            reusedBuffers = byteBufferPool.reusedBuffers.get();
+            discardedBuffers = byteBufferPool.discardedBuffers.get();
+        }
+
+        private transient String toStringCache;
+
+        @Override
+        public String toString() {
+            if (toStringCache != null) {
+                return toStringCache;
+            }
+
+            toStringCache =
+                      "pooled-bytes: " + pooledBytes + '\n'
+                    + "leased-bytes: " + leasedBytes + '\n'
+                    + "allocated-buffers: " + allocatedBuffers + '\n'
+                    + "reused-buffers: " + reusedBuffers + '\n'
+                    + "discarded-buffers: " + discardedBuffers
+                    ;
+
+            return toStringCache;
+        }
+    }
+}
@@ -0,0 +1,160 @@
+/**
+ *
+ * Copyright 2019 Florian Schmaus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.smack.util;
+
+/**
+ * The qualified name of an XML element, i.e. its element name and namespace, of which exists only a single instance
+ * per element name and namespace. Hence instances can be compared by identity and are cheap to use as keys in hash
+ * tables, as their hash code is pre-computed.
+ * <p>
+ * Instances are created via {@link #of(String, String)}, which is meant to be used when registering something, e.g. a
+ * provider, for an element. Hot paths, like the parsing of incoming stanzas, should use
+ * {@link #lookup(String, String)}, which returns the existing instance without allocating anything, or
+ * <code>null</code> if there is none and hence nothing can be registered for the element. This also ensures that the
+ * interned instances are not bloated by element names and namespaces received from remote entities.
+ * </p>
+ *
+ * @since 4.4
+ */
+public final class InternedQName {
+
+    private static final int INITIAL_TABLE_SIZE = 512;
+
+    /**
+     * The intern table, using open addressing with linear probing. A published table is never modified: Qualified names
+     * are added, while holding the lock on {@link InternedQName}.class, to a copy of the table which is then published
+     * via this volatile field. Hence lookups are performed without locking and always see completely filled slots.
+     * Since qualified names are only interned when something is registered, the cost of copying is negligible.
+     */
+    private static volatile InternedQName[] table = new InternedQName[INITIAL_TABLE_SIZE];
+
+    private static int size;
+
+    private final String elementName;
+    private final String namespace;
+    private final int hash;
+
+    private InternedQName(String elementName, String namespace, int hash) {
+        this.elementName = elementName;
+        this.namespace = namespace;
+        this.hash = hash;
+    }
+
+    public String getElementName() {
+        return elementName;
+    }
+
+    public String getNamespace() {
+        return namespace;
+    }
+
+    /**
+     * Get the interned qualified name for the given element name and namespace, creating it if necessary.
+     *
+     * @param elementName the element name.
+     * @param namespace the namespace.
+     * @return the interned qualified name.
+     */
+    public static InternedQName of(String elementName, String namespace) {
+        Objects.requireNonNull(elementName, "elementName must not be null");
+        Objects.requireNonNull(namespace, "namespace must not be null");
+        InternedQName qname = lookup(elementName, namespace);
+        if (qname != null) {
+            return qname;
+        }
+
+        synchronized (InternedQName.class) {
+            // Check again, the qualified name may have been interned by another thread in the meantime.
+            qname = lookup(elementName, namespace);
+            if (qname != null) {
+                return qname;
+            }
+
+            int hash = hash(elementName, namespace);
+            qname = new InternedQName(elementName, namespace, hash);
+
+            InternedQName[] table = InternedQName.table;
+            InternedQName[] newTable;
+            if ((size + 1) * 2 > table.length) {
+                newTable = new InternedQName[table.length * 2];
+                for (InternedQName existing : table) {
+                    if (existing != null) {
+                        insert(newTable, existing);
+                    }
+                }
+            } else {
+                newTable = table.clone();
+            }
+            insert(newTable, qname);
+            InternedQName.table = newTable;
+            size++;
+            return qname;
+        }
+    }
+
+    /**
+     * Get the interned qualified name for the given element name and namespace, if there is one. This method does not
+     * allocate any objects.
+     *
+     * @param elementName the element name.
+     * @param namespace the namespace.
+     * @return the interned qualified name or <code>null</code>.
+     */
+    public static InternedQName lookup(String elementName, String namespace) {
+        if (elementName == null || namespace == null) {
+            return null;
+        }
+        InternedQName[] table = InternedQName.table;
+        int mask = table.length - 1;
+        for (int i = hash(elementName, namespace) & mask; ; i = (i + 1) & mask) {
+            InternedQName qname = table[i];
+            if (qname == null) {
+                return null;
+            }
+            if (qname.elementName.equals(elementName) && qname.namespace.equals(namespace)) {
+                return qname;
+            }
+        }
+    }
+
+    private static void insert(InternedQName[] table, InternedQName qname) {
+        int mask = table.length - 1;
+        int i = qname.hash & mask;
+        while (table[i] != null) {
+            i = (i + 1) & mask;
+        }
+        table[i] = qname;
+    }
+
+    private static int hash(String elementName, String namespace) {
+        int hash = elementName.hashCode() * 31 + namespace.hashCode();
+        // Spread the higher bits, since only the lower bits are used to index the table.
+        return hash ^ (hash >>> 16);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    // equals() is inherited from Object, since there is only a single instance per element name and namespace.
+
+    @Override
+    public String toString() {
+        return '{' + namespace + '}' + elementName;
+    }
+}
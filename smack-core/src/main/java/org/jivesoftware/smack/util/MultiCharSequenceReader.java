@@ -0,0 +1,94 @@
+/**
+ *
+ * Copyright 2019 Florian Schmaus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.smack.util;
+
+import java.io.Reader;
+
+/**
+ * A reusable Reader over a sequence of CharSequences. The CharSequences are read one after another, as if they were
+ * concatenated, but without actually copying them into a new String. Use {@link #reset(CharSequence...)} to re-use
+ * the same instance for new input.
+ * <p>
+ * This class is not thread-safe.
+ * </p>
+ */
+public final class MultiCharSequenceReader extends Reader {
+
+    private static final CharSequence[] EMPTY = new CharSequence[0];
+
+    private CharSequence[] charSequences = EMPTY;
+
+    private int currentCharSequence;
+
+    private int currentPosition;
+
+    public MultiCharSequenceReader() {
+    }
+
+    public MultiCharSequenceReader(CharSequence... charSequences) {
+        reset(charSequences);
+    }
+
+    /**
+     * Reset this reader so that it will read the given CharSequences.
+     *
+     * @param charSequences the CharSequences to read.
+     * @return a reference to this reader.
+     */
+    public MultiCharSequenceReader reset(CharSequence... charSequences) {
+        this.charSequences = charSequences;
+        currentCharSequence = 0;
+        currentPosition = 0;
+        return this;
+    }
+
+    @Override
+    public int read(char[] cbuf, int off, int len) {
+        if (len == 0) {
+            return 0;
+        }
+
+        int read = 0;
+        while (read < len && currentCharSequence < charSequences.length) {
+            CharSequence charSequence = charSequences[currentCharSequence];
+            int remaining = charSequence.length() - currentPosition;
+            if (remaining <= 0) {
+                currentCharSequence++;
+                currentPosition = 0;
+                continue;
+            }
+
+            int toCopy = Math.min(remaining, len - read);
+            int destinationOffset = off + read;
+            StringUtils.getChars(charSequence, currentPosition, currentPosition + toCopy, cbuf, destinationOffset);
+
+            currentPosition += toCopy;
+            read += toCopy;
+        }
+
+        if (read == 0) {
+            return -1;
+        }
+        return read;
+    }
+
+    @Override
+    public void close() {
+        // Release the references to the CharSequences, so that they can be garbage collected.
+        reset(EMPTY);
+    }
+}
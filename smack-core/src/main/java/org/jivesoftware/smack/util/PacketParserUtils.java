@@ -106,16 +106,99 @@ public class PacketParserUtils {
     public static XmlPullParser getParserFor(Reader reader) throws XmlPullParserException, IOException {
         XmlPullParser parser = newXmppParser(reader);
         // Wind the parser forward to the first start tag
-        int event = parser.getEventType();
-        while (event != XmlPullParser.START_TAG) {
-            if (event == XmlPullParser.END_DOCUMENT) {
-                throw new IllegalArgumentException("Document contains no start tag");
-            }
-            event = parser.next();
+        ParserUtils.forwardToStartTag(parser);
+        return parser;
+    }
+
+    /**
+     * Get a XmlPullParser suitable for XMPP for the given element, positioned at the first start tag. The parser
+     * is taken from a per-thread cache, if one is available. Callers should hand the parser back via
+     * {@link #releaseParser(XmlPullParser)} once they are done with it, so that it can be re-used by subsequent
+     * invocations on the same thread. Parsers which are not released are simply garbage collected.
+     *
+     * @param element the element to parse.
+     * @return a XmlPullParser positioned at the first start tag of the element.
+     * @throws XmlPullParserException
+     * @throws IOException
+     * @see #releaseParser(XmlPullParser)
+     */
+    public static XmlPullParser acquireParserFor(String element) throws XmlPullParserException, IOException {
+        return acquireParserFor(new StringReader(element));
+    }
+
+    /**
+     * Get a XmlPullParser suitable for XMPP for the given reader, positioned at the first start tag. See
+     * {@link #acquireParserFor(String)} for details.
+     *
+     * @param reader the reader to parse.
+     * @return a XmlPullParser positioned at the first start tag of the reader's input.
+     * @throws XmlPullParserException
+     * @throws IOException
+     * @see #releaseParser(XmlPullParser)
+     */
+    public static XmlPullParser acquireParserFor(Reader reader) throws XmlPullParserException, IOException {
+        ParserCache parserCache = PARSER_CACHE.get();
+        XmlPullParser parser = parserCache.cachedParser;
+        if (parser != null) {
+            parserCache.cachedParser = null;
+        } else {
+            parser = newXmppParser();
+        }
+        return resetParserFor(parser, reader);
+    }
+
+    /**
+     * Hand a parser obtained via {@link #acquireParserFor(Reader)} back, so that it can be re-used. The parser must
+     * not be used by the caller afterwards.
+     *
+     * @param parser the parser to release, may be <code>null</code>.
+     */
+    public static void releaseParser(XmlPullParser parser) {
+        if (parser == null) {
+            return;
+        }
+
+        try {
+            // Drop the reference to the input, so that it can be garbage collected.
+            parser.setInput(null);
+        } catch (XmlPullParserException e) {
+            LOGGER.log(Level.FINEST, "Could not reset parser input, not caching the parser", e);
+            return;
         }
+
+        ParserCache parserCache = PARSER_CACHE.get();
+        if (parserCache.cachedParser == null) {
+            parserCache.cachedParser = parser;
+        }
+    }
+
+    /**
+     * Reset the given parser so that it will parse the input of the given reader, and wind it forward to the first
+     * start tag. This allows long-lived parsers to be re-used for new input instead of creating a new parser.
+     *
+     * @param parser the parser to reset, which must have been created via {@link #newXmppParser()}.
+     * @param reader the new input.
+     * @return the given parser, positioned at the first start tag.
+     * @throws XmlPullParserException
+     * @throws IOException
+     */
+    public static XmlPullParser resetParserFor(XmlPullParser parser, Reader reader) throws XmlPullParserException, IOException {
+        parser.setInput(reader);
+        ParserUtils.forwardToStartTag(parser);
         return parser;
     }
 
+    private static final class ParserCache {
+        private XmlPullParser cachedParser;
+    }
+
+    private static final ThreadLocal<ParserCache> PARSER_CACHE = new ThreadLocal<ParserCache>() {
+        @Override
+        protected ParserCache initialValue() {
+            return new ParserCache();
+        }
+    };
+
     public static XmlPullParser getParserFor(String stanza, String startTag)
                     throws XmlPullParserException, IOException {
         XmlPullParser parser = getParserFor(stanza);
@@ -138,7 +221,12 @@ public class PacketParserUtils {
 
     @SuppressWarnings("unchecked")
     public static <S extends Stanza> S parseStanza(String stanza) throws Exception {
-        return (S) parseStanza(getParserFor(stanza), null);
+        XmlPullParser parser = acquireParserFor(stanza);
+        try {
+            return (S) parseStanza(parser, null);
+        } finally {
+            releaseParser(parser);
+        }
     }
 
     /**
@@ -179,7 +267,9 @@ public class PacketParserUtils {
      * @throws XmlPullParserException
      */
     public static XmlPullParser newXmppParser() throws XmlPullParserException {
-        XmlPullParser parser = XmlPullParserFactory.newInstance().newPullParser();
+        // Use the factory instance determined when this class was initialized, as XmlPullParserFactory.newInstance()
+        // performs a costly lookup of the available parser implementations.
+        XmlPullParser parser = XML_PULL_PARSER_FACTORY.newPullParser();
         parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, true);
         if (XML_PULL_PARSER_SUPPORTS_ROUNDTRIP) {
             try {
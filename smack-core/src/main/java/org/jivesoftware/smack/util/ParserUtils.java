@@ -61,6 +61,24 @@ public class ParserUtils {
         assert (parser.getEventType() == XmlPullParser.END_TAG);
     }
 
+    /**
+     * Forward the given parser to the first start tag. Useful if the parser was just given new input.
+     *
+     * @param parser the parser.
+     * @throws XmlPullParserException
+     * @throws IOException
+     * @throws IllegalArgumentException if the input contains no start tag.
+     */
+    public static void forwardToStartTag(XmlPullParser parser) throws XmlPullParserException, IOException {
+        int event = parser.getEventType();
+        while (event != XmlPullParser.START_TAG) {
+            if (event == XmlPullParser.END_DOCUMENT) {
+                throw new IllegalArgumentException("Document contains no start tag");
+            }
+            event = parser.next();
+        }
+    }
+
     public static void forwardToEndTagOfDepth(XmlPullParser parser, int depth)
                     throws XmlPullParserException, IOException {
         int event = parser.getEventType();
@@ -495,4 +495,28 @@ public class StringUtils {
         }
         return cs.toString();
     }
+
+    /**
+     * Copy the characters of the given char sequence into the destination array, like {@link String#getChars(int, int,
+     * char[], int)}. This avoids creating a String from the char sequence, and uses the bulk copy methods of String and
+     * StringBuilder if possible.
+     *
+     * @param cs the char sequence to copy the characters from.
+     * @param srcBegin the index of the first character to copy.
+     * @param srcEnd the index after the last character to copy.
+     * @param dst the destination array.
+     * @param dstBegin the start offset in the destination array.
+     * @since 4.4
+     */
+    public static void getChars(CharSequence cs, int srcBegin, int srcEnd, char[] dst, int dstBegin) {
+        if (cs instanceof String) {
+            ((String) cs).getChars(srcBegin, srcEnd, dst, dstBegin);
+        } else if (cs instanceof StringBuilder) {
+            ((StringBuilder) cs).getChars(srcBegin, srcEnd, dst, dstBegin);
+        } else {
+            for (int i = srcBegin; i < srcEnd; i++) {
+                dst[dstBegin++] = cs.charAt(i);
+            }
+        }
+    }
 }
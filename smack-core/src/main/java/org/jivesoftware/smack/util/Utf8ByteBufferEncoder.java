@@ -0,0 +1,193 @@
+/**
+ *
+ * Copyright 2019 Florian Schmaus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.smack.util;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A reusable UTF-8 encoder which encodes a sequence of CharSequences into caller provided ByteBuffers. Unlike
+ * {@link UTF8#encode(CharSequence)}, this does not create a String and a new ByteBuffer for every CharSequence.
+ * Instead, the characters are staged in a reused char array and encoded into the given buffer, which may be filled by
+ * multiple CharSequences or may receive only a part of a CharSequence.
+ * <p>
+ * A typical use looks like this:
+ * </p>
+ * <pre>
+ * encoder.reset();
+ * while (iterator.hasNext() || encoder.hasPendingInput()) {
+ *     if (encoder.needsInput()) {
+ *         CharSequence next = iterator.next();
+ *         encoder.setInput(next, !iterator.hasNext());
+ *     }
+ *     if (!encoder.encode(buffer)) {
+ *         // The buffer is full, write it out and clear it.
+ *     }
+ * }
+ * </pre>
+ * <p>
+ * This class is not thread-safe.
+ * </p>
+ *
+ * @since 4.4
+ */
+public final class Utf8ByteBufferEncoder {
+
+    private static final int DEFAULT_CHAR_BUFFER_SIZE = 1024;
+
+    private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+    private final char[] chars;
+
+    /**
+     * The staged characters, always in "read mode".
+     */
+    private final CharBuffer charBuffer;
+
+    private CharSequence input;
+    private int inputPosition;
+    private boolean lastInput;
+    private boolean finished;
+
+    public Utf8ByteBufferEncoder() {
+        this(DEFAULT_CHAR_BUFFER_SIZE);
+    }
+
+    public Utf8ByteBufferEncoder(int charBufferSize) {
+        // We need at least space for a surrogate pair.
+        if (charBufferSize < 2) {
+            throw new IllegalArgumentException("charBufferSize must be at least 2");
+        }
+        chars = new char[charBufferSize];
+        charBuffer = CharBuffer.wrap(chars);
+        reset();
+    }
+
+    /**
+     * Reset this encoder, discarding all pending input.
+     */
+    public void reset() {
+        encoder.reset();
+        charBuffer.clear();
+        charBuffer.limit(0);
+        input = null;
+        inputPosition = 0;
+        lastInput = false;
+        finished = false;
+    }
+
+    /**
+     * Check if this encoder is able to accept the next input via {@link #setInput(CharSequence, boolean)}.
+     *
+     * @return <code>true</code> if the next input can be set.
+     */
+    public boolean needsInput() {
+        return !lastInput && inputRemaining() == 0;
+    }
+
+    /**
+     * Check if there is input which was not yet completely encoded.
+     *
+     * @return <code>true</code> if there is pending input.
+     */
+    public boolean hasPendingInput() {
+        return inputRemaining() > 0 || charBuffer.hasRemaining() || (lastInput && !finished);
+    }
+
+    /**
+     * Set the next input.
+     *
+     * @param charSequence the char sequence to encode.
+     * @param last <code>true</code> if this is the last input until the next {@link #reset()}.
+     */
+    public void setInput(CharSequence charSequence, boolean last) {
+        if (!needsInput()) {
+            throw new IllegalStateException("The encoder does not need input");
+        }
+        input = charSequence;
+        inputPosition = 0;
+        lastInput = last;
+    }
+
+    /**
+     * Encode the pending input into the given buffer.
+     *
+     * @param out the buffer to encode into.
+     * @return <code>true</code> if all input set so far was encoded, <code>false</code> if the buffer is full.
+     */
+    public boolean encode(ByteBuffer out) {
+        if (finished) {
+            return true;
+        }
+
+        while (true) {
+            stage();
+
+            boolean endOfInput = lastInput && inputRemaining() == 0;
+            CoderResult result = encoder.encode(charBuffer, out, endOfInput);
+            if (result.isOverflow()) {
+                return false;
+            }
+            assert result.isUnderflow();
+
+            if (inputRemaining() > 0) {
+                continue;
+            }
+
+            // At this point, the only staged character left may be a high surrogate waiting for its low surrogate in the
+            // next input.
+            if (!endOfInput) {
+                return true;
+            }
+
+            result = encoder.flush(out);
+            if (result.isOverflow()) {
+                return false;
+            }
+            finished = true;
+            return true;
+        }
+    }
+
+    private int inputRemaining() {
+        if (input == null) {
+            return 0;
+        }
+        return input.length() - inputPosition;
+    }
+
+    private void stage() {
+        int inputRemaining = inputRemaining();
+        if (inputRemaining == 0) {
+            return;
+        }
+
+        charBuffer.compact();
+        int position = charBuffer.position();
+        int toCopy = Math.min(charBuffer.remaining(), inputRemaining);
+        StringUtils.getChars(input, inputPosition, inputPosition + toCopy, chars, position);
+        inputPosition += toCopy;
+        charBuffer.position(position + toCopy);
+        charBuffer.flip();
+    }
+}
@@ -17,16 +17,21 @@
 package org.jivesoftware.smack.util;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
 import java.util.Iterator;
+import java.util.List;
 
 import org.jivesoftware.smack.packet.Element;
 import org.jivesoftware.smack.packet.ExtensionElement;
 import org.jivesoftware.smack.packet.FullyQualifiedElement;
 import org.jivesoftware.smack.packet.NamedElement;
 import org.jivesoftware.smack.packet.XmlEnvironment;
+import org.jivesoftware.smack.util.stringencoder.Base64CharSequence;
 
 import org.jxmpp.util.XmppDateTime;
 
@@ -421,15 +426,154 @@ public class XmlStringBuilder implements Appendable, CharSequence, Element {
         return this;
     }
 
+    /**
+     * The XML escaped form of a String, which is computed on demand. The writing methods of XmlStringBuilder, like
+     * {@link XmlStringBuilder#write(Writer, String)} and {@link XmlStringBuilder#write(OutputStream, String)}, escape
+     * the text while writing it instead of creating an escaped copy first.
+     */
+    private static final class EscapedXml implements CharSequence {
+        private final String text;
+        private final boolean attributeApos;
+        private final int length;
+
+        /**
+         * The escaped index (upper 32 bits) and the text index (lower 32 bits) of the character last returned by
+         * {@link #charAt(int)}, which makes sequential access cheap. Both are kept in a single field so that they are
+         * always consistent, even if the instance is accessed concurrently.
+         */
+        private volatile long cursor;
+
+        private String toStringCache;
+
+        private EscapedXml(String text, boolean attributeApos, int length) {
+            this.text = text;
+            this.attributeApos = attributeApos;
+            this.length = length;
+        }
+
+        /**
+         * Escape the given text. If the text does not contain any characters which need to be escaped, then the text
+         * itself is returned.
+         *
+         * @param text the text to escape.
+         * @param attributeApos <code>true</code> if the text is the value of an attribute quoted using '''.
+         * @return the escaped text.
+         */
+        private static CharSequence of(String text, boolean attributeApos) {
+            int length = 0;
+            for (int i = 0; i < text.length(); i++) {
+                String replacement = replacement(text.charAt(i), attributeApos);
+                length += replacement == null ? 1 : replacement.length();
+            }
+            if (length == text.length()) {
+                return text;
+            }
+            return new EscapedXml(text, attributeApos, length);
+        }
+
+        /**
+         * Get the replacement of the given character. This has to match the escaping performed by
+         * {@link StringUtils#escapeForXml(CharSequence)} and {@link StringUtils#escapeForXmlAttributeApos(CharSequence)}.
+         */
+        private static String replacement(char c, boolean attributeApos) {
+            switch (c) {
+            case '<':
+                return StringUtils.LT_ENCODE;
+            case '&':
+                return StringUtils.AMP_ENCODE;
+            case '\'':
+                return StringUtils.APOS_ENCODE;
+            case '>':
+                return attributeApos ? null : StringUtils.GT_ENCODE;
+            case '"':
+                return attributeApos ? null : StringUtils.QUOTE_ENCODE;
+            default:
+                return null;
+            }
+        }
+
+        @Override
+        public int length() {
+            return length;
+        }
+
+        @Override
+        public char charAt(int index) {
+            if (index < 0 || index >= length) {
+                throw new IndexOutOfBoundsException();
+            }
+            long cursor = this.cursor;
+            int escapedIndex = (int) (cursor >>> 32);
+            int textIndex = (int) cursor;
+            if (index < escapedIndex) {
+                escapedIndex = 0;
+                textIndex = 0;
+            }
+            while (true) {
+                char c = text.charAt(textIndex);
+                String replacement = replacement(c, attributeApos);
+                int replacementLength = replacement == null ? 1 : replacement.length();
+                if (index < escapedIndex + replacementLength) {
+                    this.cursor = ((long) escapedIndex << 32) | textIndex;
+                    return replacement == null ? c : replacement.charAt(index - escapedIndex);
+                }
+                escapedIndex += replacementLength;
+                textIndex++;
+            }
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return toString().subSequence(start, end);
+        }
+
+        private void write(Writer writer) throws IOException {
+            int last = 0;
+            for (int i = 0; i < text.length(); i++) {
+                String replacement = replacement(text.charAt(i), attributeApos);
+                if (replacement == null) {
+                    continue;
+                }
+                if (i > last) {
+                    writer.write(text, last, i - last);
+                }
+                writer.write(replacement);
+                last = i + 1;
+            }
+            if (text.length() > last) {
+                writer.write(text, last, text.length() - last);
+            }
+        }
+
+        @Override
+        public String toString() {
+            if (toStringCache == null) {
+                StringBuilder sb = new StringBuilder(length);
+                int last = 0;
+                for (int i = 0; i < text.length(); i++) {
+                    String replacement = replacement(text.charAt(i), attributeApos);
+                    if (replacement == null) {
+                        continue;
+                    }
+                    sb.append(text, last, i).append(replacement);
+                    last = i + 1;
+                }
+                sb.append(text, last, text.length());
+                toStringCache = sb.toString();
+            }
+            return toStringCache;
+        }
+    }
+
     public XmlStringBuilder escape(String text) {
         assert text != null;
-        sb.append(StringUtils.escapeForXml(text));
+        sb.append(EscapedXml.of(text, false));
         return this;
     }
 
     public XmlStringBuilder escapeAttributeValue(String value) {
         assert value != null;
-        sb.append(StringUtils.escapeForXmlAttributeApos(value));
+        sb.append(EscapedXml.of(value, true));
         return this;
     }
 
@@ -584,14 +728,119 @@ public class XmlStringBuilder implements Appendable, CharSequence, Element {
                     enclosingNamespace = xmlNsAttribute.value;
                 }
             }
+            else if (csq instanceof EscapedXml) {
+                ((EscapedXml) csq).write(writer);
+            }
+            else if (csq instanceof Base64CharSequence) {
+                ((Base64CharSequence) csq).write(writer);
+            }
             else {
                 writer.write(csq.toString());
             }
         }
     }
 
+    private static final class Utf8Output {
+        private final Utf8ByteBufferEncoder encoder = new Utf8ByteBufferEncoder();
+        private final ByteBuffer buffer = ByteBuffer.allocate(8192);
+        private boolean inUse;
+    }
+
+    private static final ThreadLocal<Utf8Output> UTF8_OUTPUT = new ThreadLocal<Utf8Output>() {
+        @Override
+        protected Utf8Output initialValue() {
+            return new Utf8Output();
+        }
+    };
+
+    /**
+     * Write the UTF-8 encoded contents of this <code>XmlStringBuilder</code> to an {@link OutputStream}. The single
+     * parts are encoded one-by-one into a reused, per-thread buffer, and text is escaped while it is encoded. Hence
+     * neither the String representation of this XmlStringBuilder nor escaped copies of its text are created.
+     *
+     * @param outputStream the output stream to write to.
+     * @param enclosingNamespace the namespace of the enclosing element, may be <code>null</code>.
+     * @throws IOException if an I/O error occurs.
+     * @since 4.4
+     */
+    public void write(OutputStream outputStream, String enclosingNamespace) throws IOException {
+        Iterator<CharSequence> iterator = getCharSequenceIterator(enclosingNamespace);
+        if (!iterator.hasNext()) {
+            return;
+        }
+
+        Utf8Output utf8Output = UTF8_OUTPUT.get();
+        if (utf8Output.inUse) {
+            // The output stream itself serializes an XmlStringBuilder, e.g. because it is a debugging stream.
+            utf8Output = new Utf8Output();
+        }
+        utf8Output.inUse = true;
+        try {
+            Utf8ByteBufferEncoder encoder = utf8Output.encoder;
+            ByteBuffer buffer = utf8Output.buffer;
+            encoder.reset();
+            buffer.clear();
+            while (iterator.hasNext() || encoder.hasPendingInput()) {
+                if (encoder.needsInput()) {
+                    CharSequence next = iterator.next();
+                    encoder.setInput(next, !iterator.hasNext());
+                }
+                if (!encoder.encode(buffer)) {
+                    outputStream.write(buffer.array(), 0, buffer.position());
+                    buffer.clear();
+                }
+            }
+            if (buffer.position() > 0) {
+                outputStream.write(buffer.array(), 0, buffer.position());
+            }
+        }
+        finally {
+            utf8Output.inUse = false;
+        }
+    }
+
+    /**
+     * Get an iterator over the parts of this XmlStringBuilder. Nested XmlStringBuilders are flattened, i.e. their parts
+     * are returned instead of the nested XmlStringBuilders themselves.
+     *
+     * @return an iterator over the parts of this XmlStringBuilder.
+     */
     public Iterator<CharSequence> getCharSequenceIterator() {
-        return sb.getAsList().iterator();
+        return getCharSequenceIterator(null);
+    }
+
+    /**
+     * Get an iterator over the parts of this XmlStringBuilder, omitting the xmlns attributes which are equal to the
+     * namespace of the enclosing element. Nested XmlStringBuilders are flattened, i.e. their parts are returned instead
+     * of the nested XmlStringBuilders themselves. Together with a {@link Utf8ByteBufferEncoder}, this allows to write
+     * the XML straight into a {@link ByteBuffer}.
+     *
+     * @param enclosingNamespace the namespace of the enclosing element, may be <code>null</code>.
+     * @return an iterator over the parts of this XmlStringBuilder.
+     * @since 4.4
+     */
+    public Iterator<CharSequence> getCharSequenceIterator(String enclosingNamespace) {
+        List<CharSequence> charSequences = new ArrayList<>(sb.getAsList().size() * 2);
+        appendCharSequencesTo(charSequences, enclosingNamespace);
+        return charSequences.iterator();
+    }
+
+    private void appendCharSequencesTo(List<CharSequence> charSequences, String enclosingNamespace) {
+        for (CharSequence csq : sb.getAsList()) {
+            if (csq instanceof XmlStringBuilder) {
+                ((XmlStringBuilder) csq).appendCharSequencesTo(charSequences, enclosingNamespace);
+            }
+            else if (csq instanceof XmlNsAttribute) {
+                XmlNsAttribute xmlNsAttribute = (XmlNsAttribute) csq;
+                if (!xmlNsAttribute.value.equals(enclosingNamespace)) {
+                    charSequences.add(xmlNsAttribute);
+                    enclosingNamespace = xmlNsAttribute.value;
+                }
+            }
+            else {
+                charSequences.add(csq);
+            }
+        }
     }
 
     @Override
@@ -609,7 +858,7 @@ public class XmlStringBuilder implements Appendable, CharSequence, Element {
             else if (csq instanceof XmlNsAttribute) {
                 XmlNsAttribute xmlNsAttribute = (XmlNsAttribute) csq;
                 if (!xmlNsAttribute.value.equals(enclosingXmlEnvironment.getEffectiveNamespace())) {
-                    sb.append(xmlNsAttribute);
+                    res.append(xmlNsAttribute);
                     enclosingXmlEnvironment = new XmlEnvironment(xmlNsAttribute.value);
                 }
             }
@@ -0,0 +1,129 @@
+/**
+ *
+ * Copyright 2019 Florian Schmaus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.smack.util.stringencoder;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * The Base64 encoding, as specified in RFC 4648 § 4, of some bytes, which is computed on demand. This allows to
+ * encode the bytes straight into the output, e.g. via {@link #write(Writer)}, without creating an intermediate
+ * String. The bytes are not copied, hence they must not be modified afterwards.
+ *
+ * @since 4.4
+ */
+public final class Base64CharSequence implements CharSequence {
+
+    private static final char[] ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+
+    private static final char PAD = '=';
+
+    private final byte[] input;
+    private final int offset;
+    private final int end;
+    private final int length;
+
+    private String toStringCache;
+
+    public Base64CharSequence(byte[] input) {
+        this(input, 0, input.length);
+    }
+
+    public Base64CharSequence(byte[] input, int offset, int len) {
+        if (offset < 0 || len < 0 || offset + len > input.length) {
+            throw new IndexOutOfBoundsException();
+        }
+        this.input = input;
+        this.offset = offset;
+        this.end = offset + len;
+        this.length = (len + 2) / 3 * 4;
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public char charAt(int index) {
+        if (index < 0 || index >= length) {
+            throw new IndexOutOfBoundsException();
+        }
+        int i = offset + index / 4 * 3;
+        switch (index % 4) {
+        case 0:
+            return ALPHABET[(input[i] & 0xff) >> 2];
+        case 1:
+            return ALPHABET[((input[i] & 0x03) << 4) | (byteAt(i + 1) >> 4)];
+        case 2:
+            if (i + 1 >= end) {
+                return PAD;
+            }
+            return ALPHABET[((input[i + 1] & 0x0f) << 2) | (byteAt(i + 2) >> 6)];
+        default:
+            if (i + 2 >= end) {
+                return PAD;
+            }
+            return ALPHABET[input[i + 2] & 0x3f];
+        }
+    }
+
+    private int byteAt(int i) {
+        if (i >= end) {
+            return 0;
+        }
+        return input[i] & 0xff;
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        return toString().subSequence(start, end);
+    }
+
+    /**
+     * Write the Base64 encoding to the given writer.
+     *
+     * @param writer the writer.
+     * @throws IOException if an I/O error occurs.
+     */
+    public void write(Writer writer) throws IOException {
+        char[] chunk = new char[Math.min(length, 1024)];
+        int chunkPosition = 0;
+        for (int i = 0; i < length; i++) {
+            chunk[chunkPosition++] = charAt(i);
+            if (chunkPosition == chunk.length) {
+                writer.write(chunk, 0, chunkPosition);
+                chunkPosition = 0;
+            }
+        }
+        if (chunkPosition > 0) {
+            writer.write(chunk, 0, chunkPosition);
+        }
+    }
+
+    @Override
+    public String toString() {
+        if (toStringCache == null) {
+            char[] chars = new char[length];
+            for (int i = 0; i < length; i++) {
+                chars[i] = charAt(i);
+            }
+            toStringCache = new String(chars);
+        }
+        return toStringCache;
+    }
+}
@@ -0,0 +1,171 @@
+/**
+ *
+ * Copyright 2019 Florian Schmaus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.smack;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class AsyncButOrderedTest {
+
+    @Test
+    public void keepsOrderPerKeyAndBoundsConcurrency() throws InterruptedException {
+        final int maxThreads = 2;
+        final int keyCount = 50;
+        final int runnablesPerKey = 100;
+
+        AsyncButOrdered<Integer> asyncButOrdered = new AsyncButOrdered<>(maxThreads);
+
+        final List<List<Integer>> results = new ArrayList<>(keyCount);
+        for (int i = 0; i < keyCount; i++) {
+            results.add(new ArrayList<Integer>(runnablesPerKey));
+        }
+        final AtomicInteger concurrentRunnables = new AtomicInteger();
+        final AtomicInteger maxConcurrentRunnables = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(keyCount * runnablesPerKey);
+
+        for (int i = 0; i < runnablesPerKey; i++) {
+            for (int key = 0; key < keyCount; key++) {
+                final List<Integer> keyResults = results.get(key);
+                final int sequenceNumber = i;
+                asyncButOrdered.performAsyncButOrdered(key, new Runnable() {
+                    @Override
+                    public void run() {
+                        int concurrent = concurrentRunnables.incrementAndGet();
+                        synchronized (maxConcurrentRunnables) {
+                            maxConcurrentRunnables.set(Math.max(maxConcurrentRunnables.get(), concurrent));
+                        }
+                        synchronized (keyResults) {
+                            keyResults.add(sequenceNumber);
+                        }
+                        concurrentRunnables.decrementAndGet();
+                        done.countDown();
+                    }
+                });
+            }
+        }
+
+        assertTrue(done.await(30, TimeUnit.SECONDS));
+        assertTrue(maxConcurrentRunnables.get() <= maxThreads);
+
+        for (List<Integer> keyResults : results) {
+            synchronized (keyResults) {
+                assertEquals(runnablesPerKey, keyResults.size());
+                for (int i = 0; i < runnablesPerKey; i++) {
+                    assertEquals(i, (int) keyResults.get(i));
+                }
+            }
+        }
+
+        AsyncButOrdered.Stats stats = asyncButOrdered.getStats();
+        assertEquals(maxThreads, stats.maxThreads);
+        assertEquals(0, stats.pendingRunnables);
+    }
+
+    @Test
+    public void blockedKeyDoesNotDelayOtherKeys() throws InterruptedException {
+        AsyncButOrdered<Integer> asyncButOrdered = new AsyncButOrdered<>(2);
+        final CountDownLatch blockKey = new CountDownLatch(1);
+        final CountDownLatch keyBlocked = new CountDownLatch(1);
+        final CountDownLatch otherKeyDone = new CountDownLatch(10);
+
+        try {
+            asyncButOrdered.performAsyncButOrdered(1, new Runnable() {
+                @Override
+                public void run() {
+                    keyBlocked.countDown();
+                    try {
+                        blockKey.await();
+                    } catch (InterruptedException e) {
+                        throw new AssertionError(e);
+                    }
+                }
+            });
+            assertTrue(keyBlocked.await(30, TimeUnit.SECONDS));
+
+            // Keys which would share a lane with the blocked key, if keys were mapped to lanes by their hash code.
+            for (int i = 0; i < 10; i++) {
+                asyncButOrdered.performAsyncButOrdered(1 + 2 * (i + 1), new Runnable() {
+                    @Override
+                    public void run() {
+                        otherKeyDone.countDown();
+                    }
+                });
+            }
+            assertTrue(otherKeyDone.await(30, TimeUnit.SECONDS));
+        } finally {
+            blockKey.countDown();
+        }
+    }
+
+    @Test
+    public void rejectedWorkerIsScheduledAgain() throws InterruptedException {
+        final AtomicBoolean reject = new AtomicBoolean(true);
+        final SmackExecutor defaultExecutor = SmackConfiguration.getAsyncExecutor();
+        SmackConfiguration.setAsyncExecutor(SmackExecutor.wrap("rejecting", new Executor() {
+            @Override
+            public void execute(Runnable runnable) {
+                if (reject.get()) {
+                    throw new RejectedExecutionException();
+                }
+                defaultExecutor.execute(runnable);
+            }
+        }));
+
+        try {
+            AsyncButOrdered<Integer> asyncButOrdered = new AsyncButOrdered<>(1);
+            final CountDownLatch done = new CountDownLatch(2);
+            final List<Integer> order = new ArrayList<>();
+            for (int i = 0; i < 2; i++) {
+                final int sequenceNumber = i;
+                assertFalse(asyncButOrdered.performAsyncButOrdered(1, new Runnable() {
+                    @Override
+                    public void run() {
+                        synchronized (order) {
+                            order.add(sequenceNumber);
+                        }
+                        done.countDown();
+                    }
+                }));
+            }
+            AsyncButOrdered.Stats stats = asyncButOrdered.getStats();
+            assertEquals(0, stats.activeThreads);
+            assertEquals(2, stats.pendingRunnables);
+
+            reject.set(false);
+            // The runnables were not dropped, they are run once the worker was scheduled again.
+            assertTrue(done.await(30, TimeUnit.SECONDS));
+            synchronized (order) {
+                assertEquals(0, (int) order.get(0));
+                assertEquals(1, (int) order.get(1));
+            }
+        } finally {
+            SmackConfiguration.setAsyncExecutor(defaultExecutor);
+        }
+    }
+}
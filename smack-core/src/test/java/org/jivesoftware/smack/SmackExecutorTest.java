@@ -0,0 +1,187 @@
+/**
+ *
+ * Copyright 2019 Florian Schmaus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.smack;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class SmackExecutorTest {
+
+    @Test
+    public void boundedExecutorRejectsIfQueueStaysFull() throws InterruptedException {
+        SmackExecutor executor = SmackExecutor.newBoundedExecutor(1, 1, 10);
+        final CountDownLatch blockWorker = new CountDownLatch(1);
+        final CountDownLatch workerStarted = new CountDownLatch(1);
+        final CountDownLatch allDone = new CountDownLatch(2);
+
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    workerStarted.countDown();
+                    try {
+                        blockWorker.await();
+                    } catch (InterruptedException e) {
+                        throw new AssertionError(e);
+                    }
+                    allDone.countDown();
+                }
+            });
+            assertTrue(workerStarted.await(5, TimeUnit.SECONDS));
+
+            // Fills the queue.
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    allDone.countDown();
+                }
+            });
+
+            SmackExecutor.Stats stats = executor.getStats();
+            assertEquals(1, stats.active);
+            assertEquals(1, stats.queued);
+
+            try {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                    }
+                });
+                fail("Expected the task to be rejected");
+            } catch (RejectedExecutionException e) {
+                // Expected.
+            }
+            assertEquals(1, executor.getStats().rejected);
+
+            blockWorker.countDown();
+            assertTrue(allDone.await(5, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void boundedExecutorBlocksSubmitterUntilQueueHasRoom() throws InterruptedException {
+        final SmackExecutor executor = SmackExecutor.newBoundedExecutor(1, 1, TimeUnit.MINUTES.toMillis(1));
+        final CountDownLatch blockWorker = new CountDownLatch(1);
+        final CountDownLatch workerStarted = new CountDownLatch(1);
+        final CountDownLatch allDone = new CountDownLatch(3);
+        final Runnable countDown = new Runnable() {
+            @Override
+            public void run() {
+                allDone.countDown();
+            }
+        };
+
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    workerStarted.countDown();
+                    try {
+                        blockWorker.await();
+                    } catch (InterruptedException e) {
+                        throw new AssertionError(e);
+                    }
+                    allDone.countDown();
+                }
+            });
+            assertTrue(workerStarted.await(5, TimeUnit.SECONDS));
+
+            // Fills the queue.
+            executor.execute(countDown);
+
+            Thread submitter = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    // Blocks until the worker is released.
+                    executor.execute(countDown);
+                }
+            });
+            submitter.start();
+
+            blockWorker.countDown();
+            submitter.join(TimeUnit.SECONDS.toMillis(5));
+            assertTrue(allDone.await(5, TimeUnit.SECONDS));
+            assertEquals(0, executor.getStats().rejected);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void boundedExecutorRunsTaskInSubmittingTask() throws InterruptedException {
+        final SmackExecutor executor = SmackExecutor.newBoundedExecutor(1, 1, TimeUnit.MINUTES.toMillis(1));
+        final CountDownLatch done = new CountDownLatch(2);
+        final Thread[] threads = new Thread[2];
+
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    threads[0] = Thread.currentThread();
+                    // Fills the queue, as the only thread of the executor is busy.
+                    executor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            done.countDown();
+                        }
+                    });
+                    // Does not wait for the executor, but runs in this thread.
+                    executor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            threads[1] = Thread.currentThread();
+                            done.countDown();
+                        }
+                    });
+                }
+            });
+            assertTrue(done.await(5, TimeUnit.SECONDS));
+            assertEquals(threads[0], threads[1]);
+            assertEquals(0, executor.getStats().rejected);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void virtualThreadExecutorRuns() throws InterruptedException {
+        SmackExecutor executor = SmackExecutor.newVirtualThreadExecutor();
+        assertNotNull(executor);
+        final CountDownLatch done = new CountDownLatch(1);
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    done.countDown();
+                }
+            });
+            assertTrue(done.await(5, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
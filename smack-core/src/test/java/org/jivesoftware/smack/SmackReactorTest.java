@@ -0,0 +1,162 @@
+/**
+ *
+ * Copyright 2019 Florian Schmaus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.smack;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import org.jivesoftware.smack.SmackReactor.ChannelSelectedCallback;
+import org.jivesoftware.smack.SmackReactor.SelectorMode;
+
+import org.junit.Test;
+
+public class SmackReactorTest {
+
+    private static final Logger LOGGER = Logger.getLogger(SmackReactorTest.class.getName());
+
+    private static final int CONNECTION_COUNT = 256;
+
+    private static final int ROUNDS = 4;
+
+    @Test
+    public void pinnedSelectorModeTest() throws IOException, InterruptedException {
+        SmackReactor reactor = new SmackReactor("PinnedSelectorModeTest");
+        reactor.setPinnedSelectorCount(4);
+        reactor.setSelectorMode(SelectorMode.pinned);
+        assertEquals(SelectorMode.pinned, reactor.getSelectorMode());
+
+        Set<String> handlingThreads = runLoopbackConnections(reactor);
+
+        // The channels are assigned round-robin, hence every pinned selector thread has handled some of them.
+        assertEquals(4, handlingThreads.size());
+        for (String handlingThread : handlingThreads) {
+            assertTrue(handlingThread.contains("Pinned Selector"));
+        }
+    }
+
+    @Test
+    public void sharedSelectorModeTest() throws IOException, InterruptedException {
+        SmackReactor reactor = new SmackReactor("SharedSelectorModeTest");
+        assertEquals(SelectorMode.shared, reactor.getSelectorMode());
+
+        Set<String> handlingThreads = runLoopbackConnections(reactor);
+
+        for (String handlingThread : handlingThreads) {
+            assertTrue(!handlingThread.contains("Pinned Selector"));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void pinnedSelectorCountCanNotBeDecreasedTest() {
+        SmackReactor reactor = new SmackReactor("PinnedSelectorCountTest");
+        reactor.setPinnedSelectorCount(3);
+        reactor.setPinnedSelectorCount(2);
+    }
+
+    /**
+     * Connects {@link #CONNECTION_COUNT} loopback connections to an in-process server, which then sends
+     * {@link #ROUNDS} times a single byte over every connection. Returns the names of the threads which handled the
+     * selected channels.
+     */
+    private static Set<String> runLoopbackConnections(final SmackReactor reactor)
+                    throws IOException, InterruptedException {
+        final Set<String> handlingThreads = Collections.synchronizedSet(new HashSet<String>());
+        final CountDownLatch bytesReceived = new CountDownLatch(CONNECTION_COUNT * ROUNDS);
+
+        // The reactor only references the callbacks weakly.
+        List<ChannelSelectedCallback> callbacks = new ArrayList<>(CONNECTION_COUNT);
+        List<SocketChannel> clientChannels = new ArrayList<>(CONNECTION_COUNT);
+        List<SocketChannel> serverChannels = new ArrayList<>(CONNECTION_COUNT);
+
+        ServerSocketChannel serverSocketChannel = ServerSocketChannel.open();
+        try {
+            serverSocketChannel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), CONNECTION_COUNT);
+            InetSocketAddress serverAddress = (InetSocketAddress) serverSocketChannel.getLocalAddress();
+
+            for (int i = 0; i < CONNECTION_COUNT; i++) {
+                SocketChannel clientChannel = SocketChannel.open(serverAddress);
+                clientChannels.add(clientChannel);
+                serverChannels.add(serverSocketChannel.accept());
+
+                clientChannel.configureBlocking(false);
+                ChannelSelectedCallback callback = new ChannelSelectedCallback() {
+                    private final ByteBuffer buffer = ByteBuffer.allocate(16);
+
+                    @Override
+                    public void onChannelSelected(SelectableChannel channel, SelectionKey selectionKey) {
+                        handlingThreads.add(Thread.currentThread().getName());
+                        buffer.clear();
+                        int bytesRead;
+                        try {
+                            bytesRead = ((SocketChannel) channel).read(buffer);
+                        } catch (IOException e) {
+                            return;
+                        }
+                        for (int j = 0; j < bytesRead; j++) {
+                            bytesReceived.countDown();
+                        }
+                        ((SmackReactor.SelectionKeyAttachment) selectionKey.attachment()).resetReactorThreadRacing();
+                        reactor.setInterestOps(selectionKey, SelectionKey.OP_READ);
+                    }
+                };
+                callbacks.add(callback);
+                reactor.registerWithSelector(clientChannel, SelectionKey.OP_READ, callback);
+            }
+
+            final long startNanos = System.nanoTime();
+            for (int round = 0; round < ROUNDS; round++) {
+                for (SocketChannel serverChannel : serverChannels) {
+                    serverChannel.write(ByteBuffer.wrap(new byte[] { (byte) round }));
+                }
+            }
+
+            assertTrue(bytesReceived.await(30, TimeUnit.SECONDS));
+            final long durationMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+            LOGGER.info(reactor.getSelectorMode() + " selector mode: " + CONNECTION_COUNT * ROUNDS + " reads over "
+                            + CONNECTION_COUNT + " connections took " + durationMillis + "ms");
+        } finally {
+            for (SocketChannel channel : clientChannels) {
+                channel.close();
+            }
+            for (SocketChannel channel : serverChannels) {
+                channel.close();
+            }
+            serverSocketChannel.close();
+        }
+
+        // Keep the callbacks strongly reachable until here.
+        assertEquals(CONNECTION_COUNT, callbacks.size());
+        return handlingThreads;
+    }
+}
@@ -22,6 +22,7 @@ import static org.junit.Assert.assertNull;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import org.jivesoftware.smack.filter.StanzaFilter;
+import org.jivesoftware.smack.filter.StanzaIdFilter;
 import org.jivesoftware.smack.packet.Stanza;
 
 import org.junit.Test;
@@ -162,6 +163,34 @@ public class StanzaCollectorTest {
                         + consumer3DequeuedLocal, insertCount, totalDequeued);
     }
 
+    @Test
+    public void stanzaIdBoundCollectorsReceiveOnlyMatchingStanzas() {
+        DummyConnection connection = new DummyConnection();
+
+        StanzaCollector firstCollector = connection.createStanzaCollector(new StanzaIdFilter("1"));
+        // A second collector for the same stanza ID must also receive the stanza.
+        StanzaCollector secondCollector = connection.createStanzaCollector(new StanzaIdFilter("1"));
+        StanzaCollector otherCollector = connection.createStanzaCollector(new StanzaIdFilter("2"));
+        StanzaCollector genericCollector = connection.createStanzaCollector(new OKEverything());
+
+        connection.processStanza(new TestPacket(1));
+
+        assertEquals("1", firstCollector.pollResult().getStanzaId());
+        assertEquals("1", secondCollector.pollResult().getStanzaId());
+        assertNull(otherCollector.pollResult());
+        assertEquals("1", genericCollector.pollResult().getStanzaId());
+
+        firstCollector.cancel();
+        connection.processStanza(new TestPacket(1));
+
+        assertNull(firstCollector.pollResult());
+        assertEquals("1", secondCollector.pollResult().getStanzaId());
+
+        otherCollector.cancel();
+        secondCollector.cancel();
+        genericCollector.cancel();
+    }
+
     static class OKEverything implements StanzaFilter {
         @Override
         public boolean accept(Stanza packet) {
@@ -0,0 +1,85 @@
+/**
+ *
+ * Copyright 2019 Florian Schmaus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.smack;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.jivesoftware.smack.packet.Stanza;
+
+import org.junit.Test;
+
+public class StanzaListenerRegistryTest {
+
+    @Test
+    public void keepsInsertionOrderOnReplace() {
+        StanzaListenerRegistry<String> registry = new StanzaListenerRegistry<>();
+        StanzaListener first = new NoopListener();
+        StanzaListener second = new NoopListener();
+
+        assertNull(registry.put(first, null, "a"));
+        assertNull(registry.put(second, null, "b"));
+        assertEquals("a", registry.put(first, null, "c"));
+
+        StanzaListenerRegistry.Entry<String>[] entries = registry.getSnapshot().entries;
+        assertEquals(2, entries.length);
+        assertSame(first, entries[0].listener);
+        assertEquals("c", entries[0].wrapper);
+        assertSame(second, entries[1].listener);
+    }
+
+    @Test
+    public void snapshotIsNotAffectedByRemoval() {
+        StanzaListenerRegistry<String> registry = new StanzaListenerRegistry<>();
+        StanzaListener first = new NoopListener();
+        StanzaListener second = new NoopListener();
+        registry.put(first, null, "a");
+        registry.put(second, null, "b");
+
+        StanzaListenerRegistry.Entry<String>[] snapshot = registry.getSnapshot().entries;
+        assertEquals("a", registry.remove(first));
+        assertNull(registry.remove(first));
+
+        assertEquals(2, snapshot.length);
+        assertFalse(registry.isStillRegistered(snapshot[0]));
+        assertTrue(registry.isStillRegistered(snapshot[1]));
+        assertEquals(1, registry.getSnapshot().entries.length);
+    }
+
+    @Test
+    public void replacedEntryIsStillRegistered() {
+        StanzaListenerRegistry<String> registry = new StanzaListenerRegistry<>();
+        StanzaListener listener = new NoopListener();
+        registry.put(listener, null, "a");
+
+        StanzaListenerRegistry.Entry<String> entry = registry.getSnapshot().entries[0];
+        registry.put(listener, null, "b");
+        assertTrue(registry.isStillRegistered(entry));
+
+        registry.remove(listener);
+        assertFalse(registry.isStillRegistered(entry));
+    }
+
+    private static final class NoopListener implements StanzaListener {
+        @Override
+        public void processStanza(Stanza packet) {
+        }
+    }
+}
@@ -0,0 +1,100 @@
+/**
+ *
+ * Copyright 2019 Florian Schmaus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.smack.compression.zlib;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.jivesoftware.smack.XmppInputOutputFilter.OutputResult;
+import org.jivesoftware.smack.compression.zlib.ZlibXmppCompressionFactory.ZlibXmppInputOutputFilter;
+
+import org.junit.Test;
+
+public class ZlibXmppCompressionFactoryTest {
+
+    private static final String STANZA = "<message to='juliet@example.org' id='%d'><body>Wherefore art thou, Romeo?</body></message>";
+
+    @Test
+    public void roundTripTest() throws IOException {
+        ZlibXmppInputOutputFilter compressingFilter = new ZlibXmppInputOutputFilter();
+        ZlibXmppInputOutputFilter decompressingFilter = new ZlibXmppInputOutputFilter();
+
+        StringBuilder expected = new StringBuilder();
+        StringBuilder inflated = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            String stanza = String.format(STANZA, i);
+            expected.append(stanza);
+
+            // The filter is usually fed with direct buffers.
+            byte[] stanzaBytes = stanza.getBytes(StandardCharsets.UTF_8);
+            ByteBuffer outputData = ByteBuffer.allocateDirect(stanzaBytes.length);
+            outputData.put(stanzaBytes).flip();
+
+            final boolean moreDataAvailable = i % 10 != 9;
+            OutputResult outputResult = compressingFilter.output(outputData, true, false, moreDataAvailable);
+            ByteBuffer deflated = outputResult.filteredOutputData;
+            deflated.flip();
+            if (!deflated.hasRemaining()) {
+                continue;
+            }
+
+            ByteBuffer inflatedBuffer = decompressingFilter.input(deflated);
+            if (inflatedBuffer == null) {
+                continue;
+            }
+            inflatedBuffer.flip();
+            inflated.append(StandardCharsets.UTF_8.decode(inflatedBuffer));
+        }
+
+        assertEquals(expected.toString(), inflated.toString());
+
+        ZlibXmppCompressionFactory.Stats stats = compressingFilter.getStats();
+        assertEquals(expected.length(), stats.compressorInBytes);
+    }
+
+    @Test
+    public void outputBufferIsReusedOnceConsumedTest() throws IOException {
+        ZlibXmppInputOutputFilter filter = new ZlibXmppInputOutputFilter();
+
+        ByteBuffer first = filter.output(stanza(0), true, false, false).filteredOutputData;
+        first.flip();
+        // Consume the output, like the connection does when it writes the data to the socket.
+        first.position(first.limit());
+
+        ByteBuffer second = filter.output(stanza(1), true, false, false).filteredOutputData;
+        assertSame(first, second);
+        second.flip();
+
+        // Do not consume the output, like a filter which coalesces its input. The buffer must not be re-used.
+        ByteBuffer third = filter.output(stanza(2), true, false, false).filteredOutputData;
+        assertNotSame(second, third);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidCompressionLevelTest() {
+        ZlibXmppCompressionFactory.setCompressionLevel(10);
+    }
+
+    private static ByteBuffer stanza(int id) {
+        return ByteBuffer.wrap(String.format(STANZA, id).getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,126 @@
+/**
+ *
+ * Copyright 2019 Florian Schmaus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.smack.filter;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.logging.Logger;
+
+import org.jivesoftware.smack.packet.ExtensionElement;
+import org.jivesoftware.smack.packet.Message;
+import org.jivesoftware.smack.packet.StandardExtensionElement;
+import org.jivesoftware.smack.test.util.BenchmarkUtil;
+import org.jivesoftware.smack.util.MultiMap;
+
+import org.junit.Test;
+import org.jxmpp.util.XmppStringUtils;
+
+/**
+ * Measures the evaluation of {@link StanzaExtensionFilter}s against a stanza with a typical number of extensions. As
+ * baseline, the same lookups are performed on a synchronized MultiMap keyed by the concatenated element name and
+ * namespace, which is how stanzas used to store their extensions. The timings are only logged, since they depend on
+ * the machine running the test.
+ */
+public class StanzaExtensionFilterBenchmarkTest {
+
+    private static final Logger LOGGER = Logger.getLogger(StanzaExtensionFilterBenchmarkTest.class.getName());
+
+    private static final int WARMUP_ITERATIONS = 100000;
+
+    private static final int ITERATIONS = 1000000;
+
+    private static final String[][] EXTENSIONS = {
+        { "delay", "urn:xmpp:delay" },
+        { "stanza-id", "urn:xmpp:sid:0" },
+        { "active", "http://jabber.org/protocol/chatstates" },
+        { "request", "urn:xmpp:receipts" },
+    };
+
+    private static final String[][] FILTERED = {
+        { "x", "http://jabber.org/protocol/muc#user" },
+        { "request", "urn:xmpp:receipts" },
+        { "event", "http://jabber.org/protocol/pubsub#event" },
+        { "stanza-id", "urn:xmpp:sid:0" },
+    };
+
+    @Test
+    public void filterEvaluationBenchmark() {
+        BenchmarkUtil.assumeBenchmarksEnabled();
+
+        Message message = new Message();
+        MultiMap<String, ExtensionElement> baseline = new MultiMap<>();
+        for (String[] extension : EXTENSIONS) {
+            ExtensionElement extensionElement = StandardExtensionElement.builder(extension[0], extension[1]).build();
+            message.addExtension(extensionElement);
+            baseline.put(XmppStringUtils.generateKey(extension[0], extension[1]), extensionElement);
+        }
+
+        StanzaFilter[] filters = new StanzaFilter[FILTERED.length];
+        for (int i = 0; i < FILTERED.length; i++) {
+            filters[i] = new StanzaExtensionFilter(FILTERED[i][0], FILTERED[i][1]);
+        }
+
+        int accepted = 0;
+        int baselineAccepted = 0;
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            accepted += evaluateFilters(filters, message);
+            baselineAccepted += evaluateBaseline(baseline);
+        }
+        assertEquals(2 * WARMUP_ITERATIONS, accepted);
+        assertEquals(accepted, baselineAccepted);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            accepted += evaluateFilters(filters, message);
+        }
+        long nanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            baselineAccepted += evaluateBaseline(baseline);
+        }
+        long baselineNanos = System.nanoTime() - start;
+
+        assertEquals(accepted, baselineAccepted);
+        long lookups = (long) ITERATIONS * FILTERED.length;
+        LOGGER.info("Extension filter evaluation: " + nanos / (double) lookups + " ns/op, synchronized MultiMap baseline "
+                        + baselineNanos / (double) lookups + " ns/op");
+    }
+
+    private static int evaluateFilters(StanzaFilter[] filters, Message message) {
+        int accepted = 0;
+        for (StanzaFilter filter : filters) {
+            if (filter.accept(message)) {
+                accepted++;
+            }
+        }
+        return accepted;
+    }
+
+    private static int evaluateBaseline(MultiMap<String, ExtensionElement> baseline) {
+        int accepted = 0;
+        for (String[] filtered : FILTERED) {
+            String key = XmppStringUtils.generateKey(filtered[0], filtered[1]);
+            synchronized (baseline) {
+                if (baseline.containsKey(key)) {
+                    accepted++;
+                }
+            }
+        }
+        return accepted;
+    }
+}
@@ -0,0 +1,148 @@
+/**
+ *
+ * Copyright 2019 Florian Schmaus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.smack.filter;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.jivesoftware.smack.packet.IQ;
+import org.jivesoftware.smack.packet.Message;
+import org.jivesoftware.smack.packet.Presence;
+import org.jivesoftware.smack.packet.StandardExtensionElement;
+import org.jivesoftware.smack.packet.Stanza;
+
+import org.junit.Test;
+import org.jxmpp.jid.JidTestUtil;
+
+public class StanzaFilterDecisionTreeTest {
+
+    private static final String NAMESPACE_1 = "urn:example:1";
+    private static final String NAMESPACE_2 = "urn:example:2";
+
+    private static final List<StanzaFilter> FILTERS = Arrays.asList(
+                    // 0
+                    null,
+                    // 1
+                    StanzaTypeFilter.MESSAGE,
+                    // 2
+                    new AndFilter(StanzaTypeFilter.MESSAGE, new StanzaExtensionFilter(NAMESPACE_1)),
+                    // 3
+                    new AndFilter(MessageTypeFilter.CHAT, new StanzaExtensionFilter(NAMESPACE_2)),
+                    // 4
+                    new AndFilter(StanzaTypeFilter.MESSAGE, FromMatchesFilter.create(JidTestUtil.BARE_JID_1)),
+                    // 5
+                    new AndFilter(StanzaTypeFilter.MESSAGE, FromMatchesFilter.create(JidTestUtil.FULL_JID_1_RESOURCE_1)),
+                    // 6
+                    new AndFilter(StanzaTypeFilter.PRESENCE, FromMatchesFilter.createBare(JidTestUtil.BARE_JID_2)),
+                    // 7
+                    IQTypeFilter.GET,
+                    // 8
+                    new OrFilter(StanzaTypeFilter.PRESENCE, StanzaTypeFilter.IQ),
+                    // 9
+                    new StanzaExtensionFilter("element", NAMESPACE_1)
+                    );
+
+    private static final StanzaFilterDecisionTree TREE = StanzaFilterDecisionTree.compile(FILTERS);
+
+    @Test
+    public void prunesByStanzaType() {
+        Stanza presence = new Presence(Presence.Type.available);
+        assertCandidates(presence, 0, 8);
+
+        presence.setFrom(JidTestUtil.FULL_JID_2_RESOURCE_1);
+        assertCandidates(presence, 0, 6, 8);
+    }
+
+    @Test
+    public void prunesByExtensionNamespace() {
+        Message message = new Message();
+        assertCandidates(message, 0, 1);
+
+        message.addExtension(StandardExtensionElement.builder("element", NAMESPACE_1).build());
+        assertCandidates(message, 0, 1, 2, 9);
+
+        // Multiple keyed namespaces fall back to all filters of the stanza type.
+        message.addExtension(StandardExtensionElement.builder("element", NAMESPACE_2).build());
+        assertCandidates(message, 0, 1, 2, 3, 9);
+    }
+
+    @Test
+    public void prunesByFromAddress() {
+        Message message = new Message();
+
+        message.setFrom(JidTestUtil.FULL_JID_1_RESOURCE_1);
+        assertCandidates(message, 0, 1, 4, 5);
+
+        message.setFrom(JidTestUtil.FULL_JID_1_RESOURCE_2);
+        assertCandidates(message, 0, 1, 4);
+
+        message.setFrom(JidTestUtil.BARE_JID_1);
+        assertCandidates(message, 0, 1, 4);
+
+        message.setFrom(JidTestUtil.BARE_JID_2);
+        assertCandidates(message, 0, 1);
+    }
+
+    @Test
+    public void candidatesContainAllAcceptingFilters() {
+        List<Stanza> stanzas = new ArrayList<>();
+        stanzas.add(new Message());
+        stanzas.add(new Presence(Presence.Type.unavailable));
+        IQ iq = new TestIQ();
+        iq.setType(IQ.Type.get);
+        stanzas.add(iq);
+
+        Message chatMessage = new Message(JidTestUtil.BARE_JID_2, Message.Type.chat);
+        chatMessage.setFrom(JidTestUtil.FULL_JID_1_RESOURCE_1);
+        chatMessage.addExtension(StandardExtensionElement.builder("element", NAMESPACE_2).build());
+        stanzas.add(chatMessage);
+
+        for (Stanza stanza : stanzas) {
+            int[] candidates = TREE.getCandidates(stanza);
+            for (int i = 1; i < candidates.length; i++) {
+                assertTrue(candidates[i - 1] < candidates[i]);
+            }
+            for (int i = 0; i < FILTERS.size(); i++) {
+                StanzaFilter filter = FILTERS.get(i);
+                if (filter == null || filter.accept(stanza)) {
+                    assertTrue("Filter " + filter + " accepts " + stanza + " but is not a candidate",
+                                    Arrays.binarySearch(candidates, i) >= 0);
+                }
+            }
+        }
+    }
+
+    private static void assertCandidates(Stanza stanza, int... expected) {
+        assertArrayEquals(expected, TREE.getCandidates(stanza));
+    }
+
+    private static final class TestIQ extends IQ {
+        private TestIQ() {
+            super("test", "urn:example:iq");
+        }
+
+        @Override
+        protected IQChildElementXmlStringBuilder getIQChildElementBuilder(IQChildElementXmlStringBuilder xml) {
+            xml.setEmptyElement();
+            return xml;
+        }
+    }
+}
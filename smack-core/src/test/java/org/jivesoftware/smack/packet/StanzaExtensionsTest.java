@@ -0,0 +1,100 @@
+/**
+ *
+ * Copyright 2019 Florian Schmaus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.smack.packet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+
+public class StanzaExtensionsTest {
+
+    private static final StandardExtensionElement FOO_1 = StandardExtensionElement.builder("foo", "urn:example:foo").build();
+    private static final StandardExtensionElement FOO_2 = StandardExtensionElement.builder("foo", "urn:example:foo").build();
+    private static final StandardExtensionElement BAR = StandardExtensionElement.builder("bar", "urn:example:foo").build();
+    private static final StandardExtensionElement BAZ = StandardExtensionElement.builder("baz", "urn:example:baz").build();
+
+    @Test
+    public void extensionsWithSameNameAndNamespaceAreGrouped() {
+        Message message = new Message();
+        message.addExtension(FOO_1);
+        message.addExtension(BAZ);
+        message.addExtension(FOO_2);
+        message.addExtension(BAR);
+
+        assertEquals(Arrays.asList(FOO_1, FOO_2, BAZ, BAR), message.getExtensions());
+        assertEquals(Arrays.asList(FOO_1, FOO_2), message.getExtensions("foo", "urn:example:foo"));
+        assertEquals(Collections.emptyList(), message.getExtensions("qux", "urn:example:foo"));
+    }
+
+    @Test
+    public void getAndHasExtension() {
+        Message message = new Message();
+        assertFalse(message.hasExtension("urn:example:foo"));
+        assertNull(message.getExtension("foo", "urn:example:foo"));
+
+        message.addExtension(BAR);
+        message.addExtension(FOO_1);
+
+        assertTrue(message.hasExtension("urn:example:foo"));
+        assertTrue(message.hasExtension("foo", "urn:example:foo"));
+        assertTrue(message.hasExtension(null, "urn:example:foo"));
+        assertFalse(message.hasExtension("foo", "urn:example:baz"));
+        assertSame(FOO_1, message.getExtension("foo", "urn:example:foo"));
+        assertSame(BAR, message.getExtension("urn:example:foo"));
+    }
+
+    @Test
+    public void overrideAndRemoveExtension() {
+        Message message = new Message();
+        message.addExtension(FOO_1);
+        message.addExtension(BAZ);
+        message.addExtension(FOO_2);
+
+        assertNull(message.overrideExtension(BAR));
+        assertEquals(Arrays.asList(FOO_1, FOO_2, BAZ, BAR), message.getExtensions());
+
+        StandardExtensionElement foo3 = StandardExtensionElement.builder("foo", "urn:example:foo").build();
+        assertSame(FOO_1, message.overrideExtension(foo3));
+        assertEquals(Arrays.asList(BAZ, BAR, foo3), message.getExtensions());
+
+        assertNull(message.removeExtension(FOO_1));
+        assertSame(foo3, message.removeExtension(foo3));
+        assertSame(BAZ, message.removeExtension("baz", "urn:example:baz"));
+        assertNull(message.removeExtension("baz", "urn:example:baz"));
+        assertEquals(Collections.singletonList(BAR), message.getExtensions());
+    }
+
+    @Test
+    public void copiedStanzaHasIndependentExtensions() {
+        Message message = new Message();
+        message.addExtension(FOO_1);
+
+        Message copy = new Message(message);
+        copy.addExtension(BAZ);
+        message.removeExtension(FOO_1);
+
+        assertEquals(Collections.emptyList(), message.getExtensions());
+        assertEquals(Arrays.asList(FOO_1, BAZ), copy.getExtensions());
+    }
+}
@@ -0,0 +1,142 @@
+/**
+ *
+ * Copyright 2019 Florian Schmaus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.smack.provider;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+import org.jivesoftware.smack.packet.Message;
+import org.jivesoftware.smack.packet.StandardExtensionElement;
+import org.jivesoftware.smack.parsing.StandardExtensionElementProvider;
+import org.jivesoftware.smack.test.util.BenchmarkUtil;
+import org.jivesoftware.smack.util.PacketParserUtils;
+
+import org.junit.Test;
+import org.jxmpp.util.XmppStringUtils;
+
+/**
+ * Measures the lookup of providers while parsing stanzas. As baseline, the same lookups are performed on a map keyed
+ * by the concatenated element name and namespace, which is how the providers used to be stored. The timings are only
+ * logged, since they depend on the machine running the test.
+ */
+public class ProviderLookupBenchmarkTest {
+
+    private static final Logger LOGGER = Logger.getLogger(ProviderLookupBenchmarkTest.class.getName());
+
+    private static final int WARMUP_ITERATIONS = 20000;
+
+    private static final int ITERATIONS = 200000;
+
+    private static final String NAMESPACE = "urn:example:provider-lookup";
+
+    private static final String[] ELEMENTS = { "registered-1", "unknown-1", "registered-2", "unknown-2" };
+
+    @Test
+    public void providerLookupBenchmark() throws Exception {
+        BenchmarkUtil.assumeBenchmarksEnabled();
+
+        Map<String, StandardExtensionElementProvider> baseline = new ConcurrentHashMap<>();
+        for (String element : ELEMENTS) {
+            if (element.startsWith("registered")) {
+                ProviderManager.addExtensionProvider(element, NAMESPACE, StandardExtensionElementProvider.INSTANCE);
+                baseline.put(XmppStringUtils.generateKey(element, NAMESPACE), StandardExtensionElementProvider.INSTANCE);
+            }
+        }
+
+        // Use new String instances, like they are returned by the XML parser.
+        String[] elements = new String[ELEMENTS.length];
+        String[] namespaces = new String[ELEMENTS.length];
+        for (int i = 0; i < ELEMENTS.length; i++) {
+            elements[i] = new String(ELEMENTS[i]);
+            namespaces[i] = new String(NAMESPACE);
+        }
+
+        int found = 0;
+        int baselineFound = 0;
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            found += lookup(elements, namespaces);
+            baselineFound += lookupBaseline(baseline, elements, namespaces);
+        }
+        assertEquals(2 * WARMUP_ITERATIONS, found);
+        assertEquals(found, baselineFound);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            found += lookup(elements, namespaces);
+        }
+        long nanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            baselineFound += lookupBaseline(baseline, elements, namespaces);
+        }
+        long baselineNanos = System.nanoTime() - start;
+        assertEquals(found, baselineFound);
+
+        long lookups = (long) ITERATIONS * ELEMENTS.length;
+        LOGGER.info("Provider lookup: " + nanos / (double) lookups + " ns/op, concatenated key baseline "
+                        + baselineNanos / (double) lookups + " ns/op");
+
+        String stanza = "<message xmlns='jabber:client' from='romeo@example.net/orchard' to='juliet@example.com'>"
+                        + "<body>Wherefore art thou, Romeo?</body>"
+                        + "<registered-1 xmlns='" + NAMESPACE + "'/>"
+                        + "<unknown-1 xmlns='" + NAMESPACE + "'/>"
+                        + "<registered-2 xmlns='" + NAMESPACE + "'>text</registered-2>"
+                        + "</message>";
+        Message message = PacketParserUtils.parseStanza(stanza);
+        StandardExtensionElement extension = message.getExtension("registered-2", NAMESPACE);
+        assertEquals("text", extension.getText());
+
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            PacketParserUtils.parseStanza(stanza);
+        }
+        start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS / 10; i++) {
+            PacketParserUtils.parseStanza(stanza);
+        }
+        nanos = System.nanoTime() - start;
+        LOGGER.info("Parsing a message with extensions: " + nanos / (ITERATIONS / 10) + " ns/op");
+
+        for (String element : ELEMENTS) {
+            ProviderManager.removeExtensionProvider(element, NAMESPACE);
+        }
+    }
+
+    private static int lookup(String[] elements, String[] namespaces) {
+        int found = 0;
+        for (int i = 0; i < elements.length; i++) {
+            if (ProviderManager.getExtensionProvider(elements[i], namespaces[i]) != null) {
+                found++;
+            }
+        }
+        return found;
+    }
+
+    private static int lookupBaseline(Map<String, StandardExtensionElementProvider> baseline, String[] elements,
+                    String[] namespaces) {
+        int found = 0;
+        for (int i = 0; i < elements.length; i++) {
+            if (baseline.get(XmppStringUtils.generateKey(elements[i], namespaces[i])) != null) {
+                found++;
+            }
+        }
+        return found;
+    }
+}
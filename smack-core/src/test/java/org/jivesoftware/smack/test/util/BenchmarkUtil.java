@@ -0,0 +1,40 @@
+/**
+ *
+ * Copyright 2019 Florian Schmaus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.smack.test.util;
+
+import org.junit.Assume;
+
+/**
+ * Benchmarks are part of the unit tests, but they are skipped unless the system property {@value #ENABLE_PROPERTY} is
+ * set to <code>true</code>, e.g. by invoking <code>gradle test -Dsmack.benchmarks=true</code>. Their timings are only
+ * logged, since they depend on the machine running them.
+ */
+public final class BenchmarkUtil {
+
+    public static final String ENABLE_PROPERTY = "smack.benchmarks";
+
+    private BenchmarkUtil() {
+    }
+
+    /**
+     * Skip the calling test, unless benchmarks are enabled.
+     */
+    public static void assumeBenchmarksEnabled() {
+        Assume.assumeTrue("Benchmarks are disabled, set " + ENABLE_PROPERTY + "=true to run them",
+                        Boolean.getBoolean(ENABLE_PROPERTY));
+    }
+}
@@ -0,0 +1,108 @@
+/**
+ *
+ * Copyright 2019 Florian Schmaus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.smack.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+public class ByteBufferPoolTest {
+
+    @Test
+    public void sizeClassesTest() {
+        ByteBufferPool pool = new ByteBufferPool();
+
+        assertEquals(4096, pool.acquire(0).capacity());
+        assertEquals(4096, pool.acquire(4096).capacity());
+        assertEquals(8192, pool.acquire(4097).capacity());
+        assertEquals(32768, pool.acquire(16709).capacity());
+        assertEquals(65536, pool.acquire(65536).capacity());
+        // Larger than the largest size class.
+        assertEquals(65537, pool.acquire(65537).capacity());
+    }
+
+    @Test
+    public void releasedBufferIsReusedTest() {
+        ByteBufferPool pool = new ByteBufferPool();
+
+        ByteBuffer byteBuffer = pool.acquire(8000);
+        assertTrue(byteBuffer.isDirect());
+        byteBuffer.put((byte) 42);
+        pool.release(byteBuffer);
+
+        ByteBuffer reusedByteBuffer = pool.acquire(5000);
+        assertSame(byteBuffer, reusedByteBuffer);
+        assertEquals(0, reusedByteBuffer.position());
+        assertEquals(reusedByteBuffer.capacity(), reusedByteBuffer.limit());
+
+        ByteBufferPool.Stats stats = pool.getStats();
+        assertEquals(1, stats.allocatedBuffers);
+        assertEquals(1, stats.reusedBuffers);
+    }
+
+    @Test
+    public void gaugesTest() {
+        ByteBufferPool pool = new ByteBufferPool();
+
+        ByteBuffer first = pool.acquire(4096);
+        ByteBuffer second = pool.acquire(16 * 1024);
+        ByteBufferPool.Stats stats = pool.getStats();
+        assertEquals(4096 + 16 * 1024, stats.leasedBytes);
+        assertEquals(0, stats.pooledBytes);
+
+        pool.release(first);
+        pool.release(second);
+        stats = pool.getStats();
+        assertEquals(0, stats.leasedBytes);
+        assertEquals(4096 + 16 * 1024, stats.pooledBytes);
+    }
+
+    @Test
+    public void poolIsBoundedTest() {
+        // Allows to pool two buffers of the smallest size class.
+        ByteBufferPool pool = new ByteBufferPool(2 * 4096);
+
+        ByteBuffer first = pool.acquire(4096);
+        ByteBuffer second = pool.acquire(4096);
+        ByteBuffer third = pool.acquire(4096);
+        pool.release(first);
+        pool.release(second);
+        pool.release(third);
+
+        ByteBufferPool.Stats stats = pool.getStats();
+        assertEquals(2 * 4096, stats.pooledBytes);
+        assertEquals(1, stats.discardedBuffers);
+    }
+
+    @Test
+    public void foreignBuffersAreNotPooledTest() {
+        ByteBufferPool pool = new ByteBufferPool();
+
+        // Heap buffers and buffers with a capacity which is not a size class are never handed out by the pool.
+        pool.release(ByteBuffer.allocate(4096));
+        ByteBuffer unpooled = pool.acquire(70000);
+        pool.release(unpooled);
+
+        assertEquals(0, pool.getStats().pooledBytes);
+        assertNotSame(unpooled, pool.acquire(70000));
+    }
+}
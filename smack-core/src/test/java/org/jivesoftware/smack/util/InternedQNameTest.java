@@ -0,0 +1,55 @@
+/**
+ *
+ * Copyright 2019 Florian Schmaus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.smack.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+public class InternedQNameTest {
+
+    @Test
+    public void internedQNamesAreUnique() {
+        InternedQName qname = InternedQName.of("query", "urn:example:interned");
+        // Use new String instances, like they are returned by the XML parser.
+        assertSame(qname, InternedQName.of(new String("query"), new String("urn:example:interned")));
+        assertSame(qname, InternedQName.lookup(new String("query"), new String("urn:example:interned")));
+        assertEquals("query", qname.getElementName());
+        assertEquals("urn:example:interned", qname.getNamespace());
+    }
+
+    @Test
+    public void lookupDoesNotIntern() {
+        assertNull(InternedQName.lookup("query", "urn:example:not-interned"));
+        assertNull(InternedQName.lookup("query", "urn:example:not-interned"));
+        assertNull(InternedQName.lookup(null, "urn:example:not-interned"));
+    }
+
+    @Test
+    public void manyInternedQNames() {
+        final int count = 5000;
+        InternedQName[] qnames = new InternedQName[count];
+        for (int i = 0; i < count; i++) {
+            qnames[i] = InternedQName.of("element" + i, "urn:example:many");
+        }
+        for (int i = 0; i < count; i++) {
+            assertSame(qnames[i], InternedQName.lookup("element" + i, "urn:example:many"));
+        }
+    }
+}
@@ -0,0 +1,75 @@
+/**
+ *
+ * Copyright 2019 Florian Schmaus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.smack.util;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+
+import org.junit.Test;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+public class MultiCharSequenceReaderTest {
+
+    @Test
+    public void readsAllCharSequencesInOrder() throws IOException {
+        MultiCharSequenceReader reader = new MultiCharSequenceReader("<a>", new StringBuilder("foo"), "", "</a>");
+        assertEquals("<a>foo</a>", readFully(reader, 2));
+    }
+
+    @Test
+    public void resetAllowsReuse() throws IOException {
+        MultiCharSequenceReader reader = new MultiCharSequenceReader("first");
+        assertEquals("first", readFully(reader, 3));
+        assertEquals(-1, reader.read());
+
+        reader.reset("sec", "ond");
+        assertEquals("second", readFully(reader, 16));
+    }
+
+    @Test
+    public void reusedParserParsesWrappedElements() throws XmlPullParserException, IOException {
+        final String streamOpen = "<stream:stream xmlns='jabber:client' xmlns:stream='http://etherx.jabber.org/streams'>";
+        final String streamClose = "</stream:stream>";
+
+        MultiCharSequenceReader reader = new MultiCharSequenceReader();
+        XmlPullParser parser = PacketParserUtils.newXmppParser();
+
+        for (String element : new String[] { "<message id='1'/>", "<presence id='2'/>" }) {
+            parser.setInput(reader.reset(streamOpen, element, streamClose));
+            ParserUtils.forwardToStartTag(parser);
+            assertEquals("stream", parser.getName());
+
+            parser.next();
+            assertEquals(XmlPullParser.START_TAG, parser.getEventType());
+            assertEquals("jabber:client", parser.getNamespace());
+        }
+        assertEquals("presence", parser.getName());
+        assertEquals("2", parser.getAttributeValue("", "id"));
+    }
+
+    private static String readFully(MultiCharSequenceReader reader, int bufferSize) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        char[] buffer = new char[bufferSize];
+        int read;
+        while ((read = reader.read(buffer, 0, buffer.length)) != -1) {
+            sb.append(buffer, 0, read);
+        }
+        return sb.toString();
+    }
+}
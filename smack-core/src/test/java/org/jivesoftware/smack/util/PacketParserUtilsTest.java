@@ -20,7 +20,9 @@ import static org.custommonkey.xmlunit.XMLAssert.assertXMLEqual;
 import static org.custommonkey.xmlunit.XMLAssert.assertXMLNotEqual;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
@@ -924,4 +926,25 @@ public class PacketParserUtilsTest {
         StanzaError error = PacketParserUtils.parseError(parser).build();
         assertEquals(text, error.getDescriptiveText());
     }
+
+    @Test
+    public void releasedParserIsReused() throws Exception {
+        XmlPullParser parser = PacketParserUtils.acquireParserFor("<foo xmlns='urn:example:foo'/>");
+        assertEquals("foo", parser.getName());
+
+        // A nested acquisition must not hand out the parser currently in use.
+        XmlPullParser nestedParser = PacketParserUtils.acquireParserFor("<bar/>");
+        assertNotSame(parser, nestedParser);
+        assertEquals("bar", nestedParser.getName());
+        assertEquals("foo", parser.getName());
+
+        PacketParserUtils.releaseParser(nestedParser);
+        PacketParserUtils.releaseParser(parser);
+
+        XmlPullParser reusedParser = PacketParserUtils.acquireParserFor("<baz xmlns='urn:example:baz'/>");
+        assertSame(nestedParser, reusedParser);
+        assertEquals("baz", reusedParser.getName());
+        assertEquals("urn:example:baz", reusedParser.getNamespace());
+        PacketParserUtils.releaseParser(reusedParser);
+    }
 }
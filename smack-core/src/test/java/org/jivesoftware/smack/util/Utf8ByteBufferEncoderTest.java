@@ -0,0 +1,88 @@
+/**
+ *
+ * Copyright 2019 Florian Schmaus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.smack.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import org.junit.Test;
+
+public class Utf8ByteBufferEncoderTest {
+
+    private static final List<CharSequence> INPUT = Arrays.<CharSequence>asList(
+                    "<message to='juliet@example.org'>",
+                    new StringBuilder("<body>Caf\u00e9 \u20ac "),
+                    // Split a surrogate pair (U+1F600) across two char sequences.
+                    "\ud83d",
+                    "\ude00 \ud83d\ude00",
+                    "",
+                    "</body></message>");
+
+    @Test
+    public void encodesLikeStringGetBytes() {
+        byte[] expected = concat(INPUT).getBytes(StandardCharsets.UTF_8);
+
+        for (int charBufferSize : new int[] { 2, 3, 7, 1024 }) {
+            for (int byteBufferSize : new int[] { 4, 5, 13, 4096 }) {
+                Utf8ByteBufferEncoder encoder = new Utf8ByteBufferEncoder(charBufferSize);
+                // Encode twice to verify that the encoder is reusable.
+                for (int i = 0; i < 2; i++) {
+                    byte[] actual = encode(encoder, INPUT, byteBufferSize);
+                    assertArrayEquals(expected, actual);
+                    assertFalse(encoder.hasPendingInput());
+                }
+            }
+        }
+    }
+
+    private static byte[] encode(Utf8ByteBufferEncoder encoder, List<CharSequence> input, int byteBufferSize) {
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(byteBufferSize);
+        Iterator<CharSequence> it = input.iterator();
+
+        encoder.reset();
+        while (it.hasNext() || encoder.hasPendingInput()) {
+            if (encoder.needsInput()) {
+                CharSequence next = it.next();
+                encoder.setInput(next, !it.hasNext());
+            }
+            encoder.encode(buffer);
+
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                result.write(buffer.get());
+            }
+            buffer.clear();
+        }
+        return result.toByteArray();
+    }
+
+    private static String concat(List<CharSequence> input) {
+        StringBuilder sb = new StringBuilder();
+        for (CharSequence cs : input) {
+            sb.append(cs);
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,137 @@
+/**
+ *
+ * Copyright 2019 Florian Schmaus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.smack.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+
+import org.jivesoftware.smack.util.stringencoder.Base64CharSequence;
+
+import org.junit.Test;
+
+public class XmlStringBuilderTest {
+
+    private static final String TEXT = "<b>Caf\u00e9 & \"cr\u00e8me\" \u20ac 'br\u00fbl\u00e9e' \ud83d\ude00</b>";
+
+    @Test
+    public void escapeLikeStringUtils() {
+        XmlStringBuilder xml = new XmlStringBuilder();
+        xml.escape(TEXT);
+        assertEquals(StringUtils.escapeForXml(TEXT).toString(), xml.toString());
+
+        xml = new XmlStringBuilder();
+        xml.escapeAttributeValue(TEXT);
+        assertEquals(StringUtils.escapeForXmlAttributeApos(TEXT).toString(), xml.toString());
+    }
+
+    @Test
+    public void escapedTextRandomAccess() {
+        XmlStringBuilder xml = new XmlStringBuilder();
+        xml.escape(TEXT);
+        String expected = StringUtils.escapeForXml(TEXT).toString();
+
+        assertEquals(expected.length(), xml.length());
+        // Access the characters backwards, so that no lookup can be answered from the previous one.
+        for (int i = expected.length() - 1; i >= 0; i--) {
+            assertEquals(expected.charAt(i), xml.charAt(i));
+        }
+        for (int i = 0; i < expected.length(); i++) {
+            assertEquals(expected.charAt(i), xml.charAt(i));
+        }
+    }
+
+    @Test
+    public void textWithoutSpecialCharactersIsNotCopied() {
+        String text = "nothing to escape here";
+        XmlStringBuilder xml = new XmlStringBuilder();
+        xml.escape(text);
+        Iterator<CharSequence> iterator = xml.getCharSequenceIterator();
+        assertSame(text, iterator.next());
+    }
+
+    @Test
+    public void writeToOutputStream() throws IOException {
+        XmlStringBuilder xml = createNestedXml();
+        String expected = writeToWriter(xml, "jabber:client");
+
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        xml.write(outputStream, "jabber:client");
+
+        assertArrayEquals(expected.getBytes(StandardCharsets.UTF_8), outputStream.toByteArray());
+    }
+
+    @Test
+    public void writeLargeXmlToOutputStream() throws IOException {
+        XmlStringBuilder xml = new XmlStringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            xml.append(createNestedXml());
+        }
+        String expected = writeToWriter(xml, null);
+
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        xml.write(outputStream, null);
+
+        assertArrayEquals(expected.getBytes(StandardCharsets.UTF_8), outputStream.toByteArray());
+    }
+
+    @Test
+    public void charSequenceIteratorIsFlattened() throws IOException {
+        XmlStringBuilder xml = createNestedXml();
+        StringBuilder sb = new StringBuilder();
+        Iterator<CharSequence> iterator = xml.getCharSequenceIterator("jabber:client");
+        while (iterator.hasNext()) {
+            CharSequence next = iterator.next();
+            assertFalse(next instanceof XmlStringBuilder);
+            sb.append(next);
+        }
+        assertEquals(writeToWriter(xml, "jabber:client"), sb.toString());
+    }
+
+    private static XmlStringBuilder createNestedXml() {
+        XmlStringBuilder body = new XmlStringBuilder();
+        body.halfOpenElement("body").xmlnsAttribute("jabber:client").rightAngleBracket();
+        body.escape(TEXT);
+        body.closeElement("body");
+
+        XmlStringBuilder data = new XmlStringBuilder();
+        data.halfOpenElement("data").xmlnsAttribute("urn:example:data").attribute("alt", TEXT).rightAngleBracket();
+        data.append(new Base64CharSequence(TEXT.getBytes(StandardCharsets.UTF_8)));
+        data.closeElement("data");
+
+        XmlStringBuilder message = new XmlStringBuilder();
+        message.halfOpenElement("message").xmlnsAttribute("jabber:client").attribute("id", "a'b").rightAngleBracket();
+        // Append the nested builders as CharSequences, so that they are not merged into the enclosing builder.
+        message.append((CharSequence) body);
+        message.append((CharSequence) data);
+        message.closeElement("message");
+        return message;
+    }
+
+    private static String writeToWriter(XmlStringBuilder xml, String enclosingNamespace) throws IOException {
+        StringWriter writer = new StringWriter();
+        xml.write(writer, enclosingNamespace);
+        return writer.toString();
+    }
+}
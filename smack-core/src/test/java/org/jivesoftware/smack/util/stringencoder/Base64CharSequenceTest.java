@@ -0,0 +1,82 @@
+/**
+ *
+ * Copyright 2019 Florian Schmaus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.smack.util.stringencoder;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.UnsupportedEncodingException;
+
+import org.jivesoftware.smack.util.StringUtils;
+import org.jivesoftware.smack.util.XmlStringBuilder;
+
+import org.junit.Test;
+
+public class Base64CharSequenceTest {
+
+    @Test
+    public void testEncode() throws UnsupportedEncodingException {
+        assertEncoding("", "");
+        assertEncoding("f", "Zg==");
+        assertEncoding("fo", "Zm8=");
+        assertEncoding("foo", "Zm9v");
+        assertEncoding("foob", "Zm9vYg==");
+        assertEncoding("fooba", "Zm9vYmE=");
+        assertEncoding("foobar", "Zm9vYmFy");
+        assertEncoding("abcdefghijklmnopqrstuvwxyz0123456789\n\t\"?!.@{}[]();',./<>#$%^&*",
+                        "YWJjZGVmZ2hpamtsbW5vcHFyc3R1dnd4eXowMTIzNDU2Nzg5CgkiPyEuQHt9W10oKTsnLC4vPD4jJCVeJio=");
+        assertEncoding(new byte[] { (byte) 0xfb, (byte) 0xff, (byte) 0xbf }, "+/+/");
+    }
+
+    @Test
+    public void testEncodeRange() throws UnsupportedEncodingException {
+        byte[] input = "xxfoobarxx".getBytes(StringUtils.UTF8);
+        assertEquals("Zm9vYmE=", new Base64CharSequence(input, 2, 5).toString());
+    }
+
+    @Test
+    public void testWriteLargeInput() throws IOException {
+        byte[] input = new byte[3000];
+        for (int i = 0; i < input.length; i++) {
+            input[i] = (byte) i;
+        }
+        Base64CharSequence base64 = new Base64CharSequence(input);
+
+        XmlStringBuilder xml = new XmlStringBuilder();
+        xml.append(base64);
+        StringWriter writer = new StringWriter();
+        xml.write(writer, null);
+
+        assertEquals(4000, writer.toString().length());
+        assertEquals(base64.toString(), writer.toString());
+        assertEquals(new StringBuilder(base64).toString(), writer.toString());
+    }
+
+    private static void assertEncoding(String input, String expected) throws UnsupportedEncodingException {
+        assertEncoding(input.getBytes(StringUtils.UTF8), expected);
+    }
+
+    private static void assertEncoding(byte[] input, String expected) {
+        Base64CharSequence base64 = new Base64CharSequence(input);
+        assertEquals(expected.length(), base64.length());
+        assertEquals(expected, base64.toString());
+        for (int i = 0; i < expected.length(); i++) {
+            assertEquals(expected.charAt(i), base64.charAt(i));
+        }
+    }
+}
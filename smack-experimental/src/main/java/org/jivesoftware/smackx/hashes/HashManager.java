@@ -212,13 +212,48 @@ public final class HashManager extends Manager {
      * @return the hash value produced by the given algorithm for the given data.
      */
     public static byte[] hash(ALGORITHM algorithm, byte[] data) {
-        return getMessageDigest(algorithm).digest(data);
+        return getThreadLocalMessageDigest(algorithm).digest(data);
     }
 
     public static byte[] hash(ALGORITHM algorithm, String data) {
         return hash(algorithm, toUtf8Bytes(data));
     }
 
+    /**
+     * The MessageDigest instances of the current thread, indexed by the ordinal of the algorithm. Re-using the
+     * instances avoids the costly provider lookup of {@link MessageDigest#getInstance(String, String)} for every hash.
+     */
+    private static final ThreadLocal<MessageDigest[]> MESSAGE_DIGESTS = new ThreadLocal<MessageDigest[]>() {
+        @Override
+        protected MessageDigest[] initialValue() {
+            return new MessageDigest[ALGORITHM.values().length];
+        }
+    };
+
+    /**
+     * Get a MessageDigest of the current thread for the given algorithm. The returned instance must not be passed to
+     * other threads and must be reset after use, which {@link MessageDigest#digest(byte[])} does.
+     *
+     * @param algorithm the algorithm.
+     * @return a MessageDigest of the current thread.
+     */
+    private static MessageDigest getThreadLocalMessageDigest(ALGORITHM algorithm) {
+        MessageDigest[] messageDigests = MESSAGE_DIGESTS.get();
+        MessageDigest md = messageDigests[algorithm.ordinal()];
+        if (md == null) {
+            md = getMessageDigest(algorithm);
+            messageDigests[algorithm.ordinal()] = md;
+        }
+        return md;
+    }
+
+    /**
+     * Get a new MessageDigest instance for the given algorithm. Use {@link #hash(ALGORITHM, byte[])} if the data is
+     * available as a whole, as it re-uses the instances.
+     *
+     * @param algorithm the algorithm.
+     * @return a new MessageDigest instance.
+     */
     public static MessageDigest getMessageDigest(ALGORITHM algorithm) {
         MessageDigest md;
         try {
@@ -275,7 +310,7 @@ public final class HashManager extends Manager {
     }
 
     public static byte[] md5(byte[] data) {
-        return getMessageDigest(MD5).digest(data);
+        return hash(MD5, data);
     }
 
     public static byte[] md5(String data) {
@@ -291,7 +326,7 @@ public final class HashManager extends Manager {
     }
 
     public static byte[] sha_1(byte[] data) {
-        return getMessageDigest(SHA_1).digest(data);
+        return hash(SHA_1, data);
     }
 
     public static byte[] sha_1(String data) {
@@ -307,7 +342,7 @@ public final class HashManager extends Manager {
     }
 
     public static byte[] sha_224(byte[] data) {
-        return getMessageDigest(SHA_224).digest(data);
+        return hash(SHA_224, data);
     }
 
     public static byte[] sha_224(String data) {
@@ -323,7 +358,7 @@ public final class HashManager extends Manager {
     }
 
     public static byte[] sha_256(byte[] data) {
-        return getMessageDigest(SHA_256).digest(data);
+        return hash(SHA_256, data);
     }
 
     public static byte[] sha_256(String data) {
@@ -339,7 +374,7 @@ public final class HashManager extends Manager {
     }
 
     public static byte[] sha_384(byte[] data) {
-        return getMessageDigest(SHA_384).digest(data);
+        return hash(SHA_384, data);
     }
 
     public static byte[] sha_384(String data) {
@@ -355,7 +390,7 @@ public final class HashManager extends Manager {
     }
 
     public static byte[] sha_512(byte[] data) {
-        return getMessageDigest(SHA_512).digest(data);
+        return hash(SHA_512, data);
     }
 
     public static byte[] sha_512(String data) {
@@ -371,7 +406,7 @@ public final class HashManager extends Manager {
     }
 
     public static byte[] sha3_224(byte[] data) {
-        return getMessageDigest(SHA3_224).digest(data);
+        return hash(SHA3_224, data);
     }
 
     public static byte[] sha3_224(String data) {
@@ -387,7 +422,7 @@ public final class HashManager extends Manager {
     }
 
     public static byte[] sha3_256(byte[] data) {
-        return getMessageDigest(SHA3_256).digest(data);
+        return hash(SHA3_256, data);
     }
 
     public static byte[] sha3_256(String data) {
@@ -403,7 +438,7 @@ public final class HashManager extends Manager {
     }
 
     public static byte[] sha3_384(byte[] data) {
-        return getMessageDigest(SHA3_384).digest(data);
+        return hash(SHA3_384, data);
     }
 
     public static byte[] sha3_384(String data) {
@@ -419,7 +454,7 @@ public final class HashManager extends Manager {
     }
 
     public static byte[] sha3_512(byte[] data) {
-        return getMessageDigest(SHA3_512).digest(data);
+        return hash(SHA3_512, data);
     }
 
     public static byte[] sha3_512(String data) {
@@ -435,7 +470,7 @@ public final class HashManager extends Manager {
     }
 
     public static byte[] blake2b160(byte[] data) {
-        return getMessageDigest(BLAKE2B160).digest(data);
+        return hash(BLAKE2B160, data);
     }
 
     public static byte[] blake2b160(String data) {
@@ -451,7 +486,7 @@ public final class HashManager extends Manager {
     }
 
     public static byte[] blake2b256(byte[] data) {
-        return getMessageDigest(BLAKE2B256).digest(data);
+        return hash(BLAKE2B256, data);
     }
 
     public static byte[] blake2b256(String data) {
@@ -467,7 +502,7 @@ public final class HashManager extends Manager {
     }
 
     public static byte[] blake2b384(byte[] data) {
-        return getMessageDigest(BLAKE2B384).digest(data);
+        return hash(BLAKE2B384, data);
     }
 
     public static byte[] blake2b384(String data) {
@@ -483,7 +518,7 @@ public final class HashManager extends Manager {
     }
 
     public static byte[] blake2b512(byte[] data) {
-        return getMessageDigest(BLAKE2B512).digest(data);
+        return hash(BLAKE2B512, data);
     }
 
     public static byte[] blake2b512(String data) {
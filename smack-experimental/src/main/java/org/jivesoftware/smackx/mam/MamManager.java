@@ -17,6 +17,7 @@
 package org.jivesoftware.smackx.mam;
 
 import java.text.ParseException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
@@ -25,6 +26,8 @@ import java.util.List;
 import java.util.Map;
 import java.util.UUID;
 import java.util.WeakHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import org.jivesoftware.smack.ConnectionCreationListener;
 import org.jivesoftware.smack.Manager;
@@ -32,10 +35,13 @@ import org.jivesoftware.smack.SmackException.NoResponseException;
 import org.jivesoftware.smack.SmackException.NotConnectedException;
 import org.jivesoftware.smack.SmackException.NotLoggedInException;
 import org.jivesoftware.smack.StanzaCollector;
+import org.jivesoftware.smack.StanzaListener;
 import org.jivesoftware.smack.XMPPConnection;
 import org.jivesoftware.smack.XMPPConnectionRegistry;
 import org.jivesoftware.smack.XMPPException.XMPPErrorException;
 import org.jivesoftware.smack.filter.IQReplyFilter;
+import org.jivesoftware.smack.filter.OrFilter;
+import org.jivesoftware.smack.filter.StanzaFilter;
 import org.jivesoftware.smack.packet.IQ;
 import org.jivesoftware.smack.packet.Message;
 import org.jivesoftware.smack.packet.Stanza;
@@ -143,6 +149,22 @@ import org.jxmpp.jid.Jid;
  * }
  * </pre>
  *
+ * <h2>Streaming the results</h2>
+ *
+ * If you want to process a large result set, e.g. when synchronizing the whole history, use {@link #streamArchive(MamQueryArgs)}.
+ * The returned {@link MamResultStream} hands out the results as they arrive, requests the following pages automatically and bounds the number of buffered results.
+ *
+ * <pre>
+ * {@code
+ * try (MamResultStream mamResultStream = mamManager.streamArchive(mamQueryArgs)) {
+ *     MamResultExtension mamResult;
+ *     while ((mamResult = mamResultStream.nextResult()) != null) {
+ *         process(mamResult.getForwarded());
+ *     }
+ * }
+ * }
+ * </pre>
+ *
  * <h2>Get the supported form fields</h2>
  *
  * You can use {@link #retrieveFormFields()} to retrieve a list of the supported additional form fields by this archive.
@@ -166,6 +188,8 @@ public final class MamManager extends Manager {
         });
     }
 
+    private static final Logger LOGGER = Logger.getLogger(MamManager.class.getName());
+
     private static final String FORM_FIELD_WITH = "with";
     private static final String FORM_FIELD_START = "start";
     private static final String FORM_FIELD_END = "end";
@@ -468,6 +492,70 @@ public final class MamManager extends Manager {
         return queryArchive(mamQueryIQ);
     }
 
+    /**
+     * The page size used by {@link #streamArchive(MamQueryArgs)} if the query arguments do not limit the number of
+     * results per page.
+     */
+    public static final int DEFAULT_STREAM_PAGE_SIZE = 50;
+
+    /**
+     * Stream the results of a query on the archive. The returned stream requests the archive's pages one after
+     * another and delivers the results as they arrive. The number of buffered results is bounded by two times the
+     * page size, which is the maximum number of results set via the query arguments or
+     * {@link #DEFAULT_STREAM_PAGE_SIZE}.
+     *
+     * @param mamQueryArgs the query arguments.
+     * @return a stream over the results of the query.
+     * @throws NotConnectedException
+     * @throws NotLoggedInException
+     * @throws InterruptedException
+     * @see #streamArchive(MamQueryArgs, int)
+     */
+    public MamResultStream streamArchive(MamQueryArgs mamQueryArgs)
+                    throws NotConnectedException, NotLoggedInException, InterruptedException {
+        return streamArchive(mamQueryArgs, 2 * getStreamPageSize(mamQueryArgs));
+    }
+
+    /**
+     * Stream the results of a query on the archive. The returned stream requests the archive's pages one after
+     * another and delivers the results as they arrive, i.e. without waiting for the page to be complete. The next
+     * page is requested as soon as the results of that page fit into the buffer, so that it is transferred while the
+     * results of the current page are processed. If the query arguments request the results before a given UID, e.g.
+     * via {@link MamQueryArgs.Builder#queryLastPage()}, then the stream pages backwards through the archive.
+     *
+     * @param mamQueryArgs the query arguments.
+     * @param maxBufferedResults the maximum number of results buffered by the stream, must be at least the page size.
+     * @return a stream over the results of the query.
+     * @throws NotConnectedException
+     * @throws NotLoggedInException
+     * @throws InterruptedException
+     */
+    public MamResultStream streamArchive(MamQueryArgs mamQueryArgs, int maxBufferedResults)
+                    throws NotConnectedException, NotLoggedInException, InterruptedException {
+        int pageSize = getStreamPageSize(mamQueryArgs);
+        if (maxBufferedResults < pageSize) {
+            throw new IllegalArgumentException("The maximum number of buffered results (" + maxBufferedResults
+                            + ") must be at least the page size (" + pageSize + ')');
+        }
+
+        final XMPPConnection connection = getAuthenticatedConnectionOrThrow();
+        boolean pagingBackwards = mamQueryArgs.beforeUid != null;
+        MamResultStream mamResultStream = new MamResultStream(connection, mamQueryArgs.node,
+                        mamQueryArgs.getDataForm(), pageSize, maxBufferedResults, pagingBackwards);
+
+        RSMSet rsmSet = new RSMSet(mamQueryArgs.afterUid, mamQueryArgs.beforeUid, -1, -1, null, pageSize, null, -1);
+        mamResultStream.requestFirstPage(rsmSet);
+
+        return mamResultStream;
+    }
+
+    private static int getStreamPageSize(MamQueryArgs mamQueryArgs) {
+        if (mamQueryArgs.maxResults != null) {
+            return mamQueryArgs.maxResults;
+        }
+        return DEFAULT_STREAM_PAGE_SIZE;
+    }
+
     private static FormField getWithFormField(Jid withJid) {
         FormField formField = new FormField(FORM_FIELD_WITH);
         formField.addValue(withJid.toString());
@@ -644,6 +732,308 @@ public final class MamManager extends Manager {
         }
     }
 
+    /**
+     * A stream over the results of a MAM query, obtained via {@link MamManager#streamArchive(MamQueryArgs)}. Unlike
+     * {@link MamQuery}, which materializes every page, the stream hands out the results as they arrive and
+     * automatically requests the following pages using Result Set Management (RSM). At most
+     * {@code maxBufferedResults} results are buffered: a page is only requested if there is enough space in the buffer
+     * for all of its results. Streams should be closed once they are no longer used.
+     */
+    public final class MamResultStream implements AutoCloseable {
+        private final XMPPConnection connection;
+        private final String node;
+        private final DataForm form;
+        private final int pageSize;
+        private final int maxBufferedResults;
+        private final boolean pagingBackwards;
+
+        private final ArrayDeque<MamResultExtension> bufferedResults;
+
+        /**
+         * The page which was requested but whose final IQ has not been received yet. There is at most one outstanding
+         * page.
+         */
+        private PageListener outstandingPage;
+
+        private MamFinIQ mamFin;
+
+        private boolean complete;
+
+        private boolean closed;
+
+        private Exception failure;
+
+        /**
+         * The point in time, as returned by {@link System#nanoTime()}, when the outstanding page was requested or the
+         * last stanza of it was received.
+         */
+        private long lastActivity;
+
+        private int requestedPages;
+
+        private MamResultStream(XMPPConnection connection, String node, DataForm form, int pageSize,
+                        int maxBufferedResults, boolean pagingBackwards) {
+            this.connection = connection;
+            this.node = node;
+            this.form = form;
+            this.pageSize = pageSize;
+            this.maxBufferedResults = maxBufferedResults;
+            this.pagingBackwards = pagingBackwards;
+            bufferedResults = new ArrayDeque<>(maxBufferedResults);
+        }
+
+        /**
+         * Get the next result of the query. Blocks until the next result was received, or until the query is complete
+         * in which case {@code null} is returned.
+         *
+         * @return the next result or {@code null} if there are no further results.
+         * @throws NoResponseException if the archive did not respond within the connection's reply timeout.
+         * @throws XMPPErrorException if the archive responded with an error.
+         * @throws NotConnectedException
+         * @throws InterruptedException
+         */
+        public MamResultExtension nextResult() throws NoResponseException, XMPPErrorException, NotConnectedException,
+                        InterruptedException {
+            MamResultExtension result;
+            PageListener nextPage;
+            PageListener timedOutPage = null;
+            synchronized (this) {
+                while (true) {
+                    result = bufferedResults.poll();
+                    if (result != null) {
+                        break;
+                    }
+                    throwIfFailed();
+                    if (outstandingPage == null) {
+                        // The query is complete or the stream was closed.
+                        return null;
+                    }
+
+                    long remainingMillis = connection.getReplyTimeout() - (System.nanoTime() - lastActivity) / 1000000;
+                    if (remainingMillis <= 0) {
+                        timedOutPage = outstandingPage;
+                        outstandingPage = null;
+                        failure = NoResponseException.newWith(connection, timedOutPage.filter);
+                        break;
+                    }
+                    wait(remainingMillis);
+                }
+
+                nextPage = prepareNextPageRequest();
+            }
+
+            if (timedOutPage != null) {
+                connection.removeSyncStanzaListener(timedOutPage);
+                throw (NoResponseException) failure;
+            }
+
+            if (nextPage != null) {
+                sendPageRequest(nextPage);
+            }
+
+            return result;
+        }
+
+        /**
+         * Check if the query is complete, that is, if the last page of the archive was received. Note that there may
+         * still be buffered results if this method returns {@code true}.
+         *
+         * @return {@code true} if the query is complete.
+         */
+        public synchronized boolean isComplete() {
+            return complete;
+        }
+
+        /**
+         * Get the MAM fin IQ of the most recently received page, or {@code null} if no page was received yet. It can be
+         * used to resume the query later on.
+         *
+         * @return the most recently received MAM fin IQ or {@code null}.
+         */
+        public synchronized MamFinIQ getMamFinIq() {
+            return mamFin;
+        }
+
+        synchronized int getRequestedPages() {
+            return requestedPages;
+        }
+
+        @Override
+        public void close() {
+            PageListener page;
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                page = outstandingPage;
+                outstandingPage = null;
+                bufferedResults.clear();
+                notifyAll();
+            }
+
+            if (page != null) {
+                connection.removeSyncStanzaListener(page);
+            }
+        }
+
+        private void requestFirstPage(RSMSet rsmSet) throws NotConnectedException, InterruptedException {
+            PageListener firstPage;
+            synchronized (this) {
+                firstPage = newPage(rsmSet);
+            }
+            sendPageRequest(firstPage);
+        }
+
+        /**
+         * Prepare the request for the next page, if the query is not complete yet and if there is enough space in the
+         * buffer for the results of the next page. Must be called while holding this stream's monitor.
+         *
+         * @return the next page, which has to be send via {@link #sendPageRequest(PageListener)}, or {@code null}.
+         */
+        private PageListener prepareNextPageRequest() {
+            if (outstandingPage != null || complete || closed || failure != null) {
+                return null;
+            }
+            if (bufferedResults.size() + pageSize > maxBufferedResults) {
+                return null;
+            }
+
+            RSMSet previousResultRsmSet = mamFin.getRSMSet();
+            RSMSet requestRsmSet;
+            if (pagingBackwards) {
+                requestRsmSet = new RSMSet(pageSize, previousResultRsmSet.getFirst(), RSMSet.PageDirection.before);
+            } else {
+                requestRsmSet = new RSMSet(pageSize, previousResultRsmSet.getLast(), RSMSet.PageDirection.after);
+            }
+            return newPage(requestRsmSet);
+        }
+
+        private PageListener newPage(RSMSet rsmSet) {
+            MamQueryIQ mamQueryIQ = new MamQueryIQ(UUID.randomUUID().toString(), node, form);
+            mamQueryIQ.setType(IQ.Type.set);
+            mamQueryIQ.setTo(archiveAddress);
+            mamQueryIQ.addExtension(rsmSet);
+
+            outstandingPage = new PageListener(mamQueryIQ);
+            lastActivity = System.nanoTime();
+            requestedPages++;
+            return outstandingPage;
+        }
+
+        private void sendPageRequest(PageListener page) throws NotConnectedException, InterruptedException {
+            // Register the listener before sending the request, so that no result is missed.
+            connection.addSyncStanzaListener(page, page.filter);
+            boolean closedInTheMeantime;
+            synchronized (this) {
+                closedInTheMeantime = outstandingPage != page;
+            }
+            if (closedInTheMeantime) {
+                connection.removeSyncStanzaListener(page);
+                return;
+            }
+            boolean success = false;
+            try {
+                connection.sendStanza(page.request);
+                success = true;
+            }
+            catch (NotConnectedException | InterruptedException e) {
+                synchronized (this) {
+                    if (outstandingPage == page) {
+                        outstandingPage = null;
+                        failure = e;
+                        notifyAll();
+                    }
+                }
+                throw e;
+            }
+            finally {
+                if (!success) {
+                    connection.removeSyncStanzaListener(page);
+                }
+            }
+        }
+
+        private void throwIfFailed() throws NoResponseException, XMPPErrorException, NotConnectedException,
+                        InterruptedException {
+            if (failure == null) {
+                return;
+            }
+            if (failure instanceof NoResponseException) {
+                throw (NoResponseException) failure;
+            }
+            if (failure instanceof XMPPErrorException) {
+                throw (XMPPErrorException) failure;
+            }
+            if (failure instanceof NotConnectedException) {
+                throw (NotConnectedException) failure;
+            }
+            throw (InterruptedException) failure;
+        }
+
+        private final class PageListener implements StanzaListener {
+            private final MamQueryIQ request;
+            private final StanzaFilter filter;
+
+            private PageListener(MamQueryIQ request) {
+                this.request = request;
+                filter = new OrFilter(new MamResultFilter(request), new IQReplyFilter(request, connection));
+            }
+
+            @Override
+            public void processStanza(Stanza stanza) {
+                PageListener nextPage;
+                synchronized (MamResultStream.this) {
+                    if (outstandingPage != this) {
+                        // The stream was closed or timed out.
+                        return;
+                    }
+                    lastActivity = System.nanoTime();
+
+                    if (stanza instanceof Message) {
+                        bufferedResults.add(MamResultExtension.from((Message) stanza));
+                        MamResultStream.this.notifyAll();
+                        return;
+                    }
+
+                    // The archive sends the final IQ after all results of the page.
+                    outstandingPage = null;
+                    IQ iq = (IQ) stanza;
+                    if (iq.getType() == IQ.Type.error) {
+                        failure = new XMPPErrorException(iq, iq.getError());
+                    } else if (iq instanceof MamFinIQ) {
+                        mamFin = (MamFinIQ) iq;
+                        RSMSet rsmSet = mamFin.getRSMSet();
+                        if (mamFin.isComplete() || rsmSet == null) {
+                            complete = true;
+                        } else {
+                            String uid = pagingBackwards ? rsmSet.getFirst() : rsmSet.getLast();
+                            complete = uid == null;
+                        }
+                    } else {
+                        // Not a MAM fin IQ, there is no information about the next page.
+                        complete = true;
+                    }
+
+                    nextPage = prepareNextPageRequest();
+                    MamResultStream.this.notifyAll();
+                }
+
+                connection.removeSyncStanzaListener(this);
+
+                if (nextPage != null) {
+                    try {
+                        sendPageRequest(nextPage);
+                    }
+                    catch (NotConnectedException | InterruptedException e) {
+                        // Already recorded as failure, which will be thrown by nextResult().
+                        LOGGER.log(Level.FINE, "Could not request the next page of MAM results", e);
+                    }
+                }
+            }
+        }
+    }
+
     public static final class MamQueryPage {
         private final MamFinIQ mamFin;
         private final List<Message> mamResultCarrierMessages;
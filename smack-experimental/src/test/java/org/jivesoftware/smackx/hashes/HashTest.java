@@ -17,6 +17,9 @@
 package org.jivesoftware.smackx.hashes;
 
 import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.assertNull;
+
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.jivesoftware.smack.test.util.SmackTestSuite;
 import org.jivesoftware.smack.util.StringUtils;
@@ -157,6 +160,31 @@ public class HashTest extends SmackTestSuite {
         assertEquals(b2_512sum, actual);
     }
 
+    @Test
+    public void concurrentHashTest() throws InterruptedException {
+        final AtomicReference<String> failure = new AtomicReference<>();
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < 1000; j++) {
+                        String sha256 = StringUtils.encodeHex(HashManager.sha_256(array()));
+                        String sha1 = StringUtils.encodeHex(HashManager.sha_1(array()));
+                        if (!sha256sum.equals(sha256) || !sha1sum.equals(sha1)) {
+                            failure.set(sha256 + ' ' + sha1);
+                        }
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertNull(failure.get());
+    }
+
     @Test
     public void asFeatureTest() {
         assertEquals("urn:xmpp:hash-function-text-names:id-blake2b384", HashManager.asFeature(HashManager.ALGORITHM.BLAKE2B384));
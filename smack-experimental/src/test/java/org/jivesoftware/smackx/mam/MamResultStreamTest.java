@@ -0,0 +1,122 @@
+/**
+ *
+ * Copyright 2019 Florian Schmaus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.smackx.mam;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.jivesoftware.smack.DummyConnection;
+import org.jivesoftware.smack.XMPPException.XMPPErrorException;
+import org.jivesoftware.smack.packet.IQ;
+import org.jivesoftware.smack.packet.Message;
+import org.jivesoftware.smack.packet.StanzaError;
+
+import org.jivesoftware.smackx.InitExtensions;
+import org.jivesoftware.smackx.forward.packet.Forwarded;
+import org.jivesoftware.smackx.mam.MamManager.MamQueryArgs;
+import org.jivesoftware.smackx.mam.MamManager.MamResultStream;
+import org.jivesoftware.smackx.mam.element.MamElements.MamResultExtension;
+import org.jivesoftware.smackx.mam.element.MamFinIQ;
+import org.jivesoftware.smackx.mam.element.MamQueryIQ;
+import org.jivesoftware.smackx.rsm.packet.RSMSet;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class MamResultStreamTest extends InitExtensions {
+
+    private DummyConnection connection;
+    private MamManager mamManager;
+
+    @Before
+    public void setup() {
+        connection = DummyConnection.newConnectedDummyConnection();
+        mamManager = MamManager.getInstanceFor(connection);
+    }
+
+    @Test
+    public void streamPagesThroughArchiveTest() throws Exception {
+        MamQueryArgs mamQueryArgs = MamQueryArgs.builder().setResultPageSizeTo(2).build();
+        MamResultStream stream = mamManager.streamArchive(mamQueryArgs, 4);
+
+        MamQueryIQ firstPageRequest = connection.getSentPacket();
+        assertEquals(2, RSMSet.from(firstPageRequest).getMax());
+        respondWithPage(firstPageRequest, 1, 2, false);
+
+        // The second page fits into the buffer, hence it is requested before the first page was consumed.
+        MamQueryIQ secondPageRequest = connection.getSentPacket();
+        assertEquals("id2", RSMSet.from(secondPageRequest).getAfter());
+        respondWithPage(secondPageRequest, 3, 2, false);
+
+        assertEquals("id1", stream.nextResult().getId());
+        assertEquals("id2", stream.nextResult().getId());
+
+        // The third page is only requested once there is space for its results in the buffer.
+        MamQueryIQ thirdPageRequest = connection.getSentPacket();
+        assertEquals("id4", RSMSet.from(thirdPageRequest).getAfter());
+        respondWithPage(thirdPageRequest, 5, 1, true);
+
+        assertEquals("id3", stream.nextResult().getId());
+        assertEquals("id4", stream.nextResult().getId());
+        MamResultExtension lastResult = stream.nextResult();
+        assertEquals("id5", lastResult.getId());
+        assertEquals("Message 5", ((Message) lastResult.getForwarded().getForwardedStanza()).getBody());
+        assertNull(stream.nextResult());
+
+        assertTrue(stream.isComplete());
+        assertEquals(3, stream.getRequestedPages());
+        assertEquals(0, connection.getNumberOfSentPackets());
+        stream.close();
+    }
+
+    @Test
+    public void errorResponseIsThrownTest() throws Exception {
+        MamQueryArgs mamQueryArgs = MamQueryArgs.builder().setResultPageSizeTo(2).build();
+        MamResultStream stream = mamManager.streamArchive(mamQueryArgs);
+
+        MamQueryIQ request = connection.getSentPacket();
+        IQ errorResponse = IQ.createErrorResponse(request, StanzaError.Condition.item_not_found);
+        connection.processStanza(errorResponse);
+
+        try {
+            stream.nextResult();
+            fail("Expected an XMPPErrorException");
+        }
+        catch (XMPPErrorException e) {
+            assertEquals(StanzaError.Condition.item_not_found, e.getStanzaError().getCondition());
+        }
+        stream.close();
+    }
+
+    private void respondWithPage(MamQueryIQ request, int firstId, int count, boolean complete) {
+        for (int i = firstId; i < firstId + count; i++) {
+            Message message = new Message();
+            message.setBody("Message " + i);
+            Message resultCarrier = new Message();
+            resultCarrier.addExtension(new MamResultExtension(request.getQueryId(), "id" + i, new Forwarded(message)));
+            connection.processStanza(resultCarrier);
+        }
+
+        RSMSet rsmSet = new RSMSet(null, null, -1, -1, "id" + (firstId + count - 1), -1, "id" + firstId, -1);
+        MamFinIQ mamFin = new MamFinIQ(request.getQueryId(), rsmSet, complete, true);
+        mamFin.setType(IQ.Type.result);
+        mamFin.setStanzaId(request.getStanzaId());
+        connection.processStanza(mamFin);
+    }
+}
@@ -49,7 +49,9 @@ class DataListener extends AbstractIqRequestHandler {
      * @param manager the In-Band Bytestream manager
      */
     DataListener(InBandBytestreamManager manager) {
-      super(DataPacketExtension.ELEMENT, DataPacketExtension.NAMESPACE, IQ.Type.set, Mode.async);
+        // Handle the data packets in the order they were received, as the sender may send multiple
+        // data packets without waiting for their acknowledgments.
+        super(DataPacketExtension.ELEMENT, DataPacketExtension.NAMESPACE, IQ.Type.set, Mode.sync);
         this.manager = manager;
     }
 
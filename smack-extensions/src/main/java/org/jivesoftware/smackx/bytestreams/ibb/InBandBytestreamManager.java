@@ -135,6 +135,11 @@ public final class InBandBytestreamManager extends Manager implements Bytestream
      */
     public static final int MAXIMUM_BLOCK_SIZE = 65535;
 
+    /**
+     * The default maximum number of data packets sent without being acknowledged.
+     */
+    public static final int DEFAULT_WINDOW_SIZE = 8;
+
     /* prefix used to generate session IDs */
     private static final String SESSION_ID_PREFIX = "jibb_";
 
@@ -177,6 +182,9 @@ public final class InBandBytestreamManager extends Manager implements Bytestream
     /* the stanza used to send data packets */
     private StanzaType stanza = StanzaType.IQ;
 
+    /* window size used for new In-Band Bytestreams */
+    private int defaultWindowSize = DEFAULT_WINDOW_SIZE;
+
     /*
      * list containing session IDs of In-Band Bytestream open packets that should be ignored by the
      * InitiationListener
@@ -364,6 +372,34 @@ public final class InBandBytestreamManager extends Manager implements Bytestream
         this.maximumBlockSize = maximumBlockSize;
     }
 
+    /**
+     * Returns the default window size, i.e. the maximum number of data packets which are sent
+     * without waiting for their acknowledgment. Only used if data packets are encapsulated in IQ
+     * stanzas.
+     * <p>
+     * Default is 8.
+     *
+     * @return the default window size
+     */
+    public int getDefaultWindowSize() {
+        return defaultWindowSize;
+    }
+
+    /**
+     * Sets the default window size for new In-Band Bytestream sessions. See
+     * {@link InBandBytestreamSession#setWindowSize(int)}.
+     * <p>
+     * The default window size must be at least 1.
+     *
+     * @param defaultWindowSize the default window size to set
+     */
+    public void setDefaultWindowSize(int defaultWindowSize) {
+        if (defaultWindowSize < 1) {
+            throw new IllegalArgumentException("Default window size must be at least 1");
+        }
+        this.defaultWindowSize = defaultWindowSize;
+    }
+
     /**
      * Returns the stanza used to send data packets.
      * <p>
@@ -438,6 +474,7 @@ public final class InBandBytestreamManager extends Manager implements Bytestream
 
         InBandBytestreamSession inBandBytestreamSession = new InBandBytestreamSession(
                         connection, byteStreamRequest, targetJID);
+        inBandBytestreamSession.setWindowSize(defaultWindowSize);
         this.sessions.put(sessionID, inBandBytestreamSession);
 
         return inBandBytestreamSession;
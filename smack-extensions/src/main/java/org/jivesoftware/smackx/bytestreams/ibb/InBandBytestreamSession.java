@@ -20,12 +20,15 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.SocketTimeoutException;
+import java.util.Queue;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
 
 import org.jivesoftware.smack.SmackException.NotConnectedException;
 import org.jivesoftware.smack.SmackException.NotLoggedInException;
+import org.jivesoftware.smack.StanzaCollector;
 import org.jivesoftware.smack.StanzaListener;
 import org.jivesoftware.smack.XMPPConnection;
 import org.jivesoftware.smack.filter.AndFilter;
@@ -35,7 +38,6 @@ import org.jivesoftware.smack.packet.IQ;
 import org.jivesoftware.smack.packet.Message;
 import org.jivesoftware.smack.packet.Stanza;
 import org.jivesoftware.smack.packet.StanzaError;
-import org.jivesoftware.smack.util.stringencoder.Base64;
 
 import org.jivesoftware.smackx.bytestreams.BytestreamSession;
 import org.jivesoftware.smackx.bytestreams.ibb.packet.Close;
@@ -85,6 +87,9 @@ public class InBandBytestreamSession implements BytestreamSession {
     /* flag to indicate if session is closed */
     private boolean isClosed = false;
 
+    /* maximum number of data packets sent without being acknowledged */
+    private volatile int windowSize = InBandBytestreamManager.DEFAULT_WINDOW_SIZE;
+
     /**
      * Constructor.
      *
@@ -158,6 +163,32 @@ public class InBandBytestreamSession implements BytestreamSession {
         this.closeBothStreamsEnabled = closeBothStreamsEnabled;
     }
 
+    /**
+     * Returns the maximum number of data packets which are sent without waiting for their
+     * acknowledgment. Only used if the data packets are encapsulated in IQ stanzas.
+     *
+     * @return the maximum number of unacknowledged data packets
+     */
+    public int getWindowSize() {
+        return windowSize;
+    }
+
+    /**
+     * Sets the maximum number of data packets which are sent without waiting for their
+     * acknowledgment. Only used if the data packets are encapsulated in IQ stanzas.
+     * <p>
+     * A window size of 1 means that every data packet is acknowledged before the next one is sent.
+     * Larger windows increase the throughput over links with a high latency.
+     *
+     * @param windowSize the maximum number of unacknowledged data packets, must be at least 1
+     */
+    public void setWindowSize(int windowSize) {
+        if (windowSize < 1) {
+            throw new IllegalArgumentException("Window size must be at least 1");
+        }
+        this.windowSize = windowSize;
+    }
+
     @Override
     public void close() throws IOException {
         closeByLocal(true); // close input stream
@@ -613,7 +644,7 @@ public class InBandBytestreamSession implements BytestreamSession {
     private abstract class IBBOutputStream extends OutputStream {
 
         /* buffer with the size of this sessions block size */
-        protected final byte[] buffer;
+        protected byte[] buffer;
 
         /* pointer to next byte to write to buffer */
         protected int bufferPointer = 0;
@@ -641,6 +672,20 @@ public class InBandBytestreamSession implements BytestreamSession {
          */
         protected abstract void writeToXML(DataPacketExtension data) throws IOException, NotConnectedException, InterruptedException;
 
+        /**
+         * Waits until all data packets written to the XMPP stream have been acknowledged by the remote peer.
+         *
+         * @throws IOException if a data packet was not acknowledged
+         */
+        protected void waitForAcknowledgments() throws IOException {
+        }
+
+        /**
+         * Stops waiting for the acknowledgments of the data packets written to the XMPP stream.
+         */
+        protected void cancelAcknowledgments() {
+        }
+
         @Override
         public synchronized void write(int b) throws IOException {
             if (this.isClosed) {
@@ -729,6 +774,7 @@ public class InBandBytestreamSession implements BytestreamSession {
                 throw new IOException("Stream is closed");
             }
             flushBuffer();
+            waitForAcknowledgments();
         }
 
         private synchronized void flushBuffer() throws IOException {
@@ -738,10 +784,14 @@ public class InBandBytestreamSession implements BytestreamSession {
                 return;
             }
 
-            // create data packet
-            String enc = Base64.encodeToString(buffer, 0, bufferPointer);
+            // create data packet, the data is Base64 encoded when the packet is written to the XMPP stream. A full
+            // buffer is handed over to the data packet and replaced, a partially filled buffer is copied by it. Either
+            // way the packet, which may be serialized (or resent) later, is not affected by the next write.
             DataPacketExtension data = new DataPacketExtension(byteStreamRequest.getSessionID(),
-                            this.seq, enc);
+                            this.seq, buffer, 0, bufferPointer);
+            if (bufferPointer == buffer.length) {
+                buffer = new byte[buffer.length];
+            }
 
             // write to XMPP stream
             try {
@@ -756,8 +806,8 @@ public class InBandBytestreamSession implements BytestreamSession {
             // reset buffer pointer
             bufferPointer = 0;
 
-            // increment sequence, considering sequence overflow
-            this.seq = (this.seq + 1 == 65535 ? 0 : this.seq + 1);
+            // increment sequence, considering sequence overflow (see XEP-0047 Section 2.2)
+            this.seq = (this.seq == 65535 ? 0 : this.seq + 1);
 
         }
 
@@ -783,6 +833,10 @@ public class InBandBytestreamSession implements BytestreamSession {
             try {
                 if (flush) {
                     flushBuffer();
+                    waitForAcknowledgments();
+                }
+                else {
+                    cancelAcknowledgments();
                 }
             }
             catch (IOException e) {
@@ -801,27 +855,71 @@ public class InBandBytestreamSession implements BytestreamSession {
      */
     private class IQIBBOutputStream extends IBBOutputStream {
 
+        /*
+         * collectors for the acknowledgments of the data packets which have been sent but not yet
+         * acknowledged, in the order of their sequence
+         */
+        private final Queue<StanzaCollector> unacknowledgedDataPackets = new ConcurrentLinkedQueue<>();
+
         @Override
         protected synchronized void writeToXML(DataPacketExtension data) throws IOException {
+            // wait until the data packet fits into the window of unacknowledged data packets
+            while (unacknowledgedDataPackets.size() >= windowSize) {
+                StanzaCollector collector = unacknowledgedDataPackets.poll();
+                if (collector != null) {
+                    waitForAcknowledgment(collector);
+                }
+            }
+
             // create IQ stanza containing data packet
             IQ iq = new Data(data);
             iq.setTo(remoteJID);
 
             try {
-                connection.createStanzaCollectorAndSend(iq).nextResultOrThrow();
+                unacknowledgedDataPackets.add(connection.createStanzaCollectorAndSend(iq));
             }
             catch (Exception e) {
-                // close session unless it is already closed
-                if (!this.isClosed) {
-                    InBandBytestreamSession.this.close();
-                    // Sadly we are unable to use the IOException(Throwable) constructor because this
-                    // constructor is only supported from Android API 9 on.
-                    IOException ioException = new IOException();
-                    ioException.initCause(e);
-                    throw ioException;
-                }
+                handleException(e);
+            }
+
+        }
+
+        @Override
+        protected synchronized void waitForAcknowledgments() throws IOException {
+            StanzaCollector collector;
+            while ((collector = unacknowledgedDataPackets.poll()) != null) {
+                waitForAcknowledgment(collector);
             }
+        }
+
+        @Override
+        protected void cancelAcknowledgments() {
+            StanzaCollector collector;
+            while ((collector = unacknowledgedDataPackets.poll()) != null) {
+                collector.cancel();
+            }
+        }
 
+        private void waitForAcknowledgment(StanzaCollector collector) throws IOException {
+            try {
+                collector.nextResultOrThrow();
+            }
+            catch (Exception e) {
+                handleException(e);
+            }
+        }
+
+        private void handleException(Exception e) throws IOException {
+            cancelAcknowledgments();
+            // close session unless it is already closed
+            if (!this.isClosed) {
+                InBandBytestreamSession.this.close();
+                // Sadly we are unable to use the IOException(Throwable) constructor because this
+                // constructor is only supported from Android API 9 on.
+                IOException ioException = new IOException();
+                ioException.initCause(e);
+                throw ioException;
+            }
         }
 
     }
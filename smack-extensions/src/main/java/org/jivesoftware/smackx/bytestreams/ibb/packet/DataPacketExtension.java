@@ -16,10 +16,13 @@
  */
 package org.jivesoftware.smackx.bytestreams.ibb.packet;
 
+import java.util.Arrays;
+
 import org.jivesoftware.smack.packet.ExtensionElement;
 import org.jivesoftware.smack.packet.IQ.IQChildElementXmlStringBuilder;
 import org.jivesoftware.smack.util.XmlStringBuilder;
 import org.jivesoftware.smack.util.stringencoder.Base64;
+import org.jivesoftware.smack.util.stringencoder.Base64CharSequence;
 
 /**
  * Represents a chunk of data of an In-Band Bytestream within an IQ stanza or a
@@ -45,8 +48,8 @@ public class DataPacketExtension implements ExtensionElement {
     /* sequence of this packet in regard to the other data packets */
     private final long seq;
 
-    /* the data contained in this packet */
-    private final String data;
+    /* the base64 encoded data contained in this packet */
+    private final CharSequence data;
 
     private byte[] decodedData;
 
@@ -58,6 +61,37 @@ public class DataPacketExtension implements ExtensionElement {
      * @param data the base64 encoded data contained in this packet
      */
     public DataPacketExtension(String sessionID, long seq, String data) {
+        this(sessionID, seq, (CharSequence) data);
+    }
+
+    /**
+     * Creates a new In-Band Bytestream data packet. The data is Base64 encoded straight into the XML representation
+     * of this packet, without creating an intermediate String. If the given range covers the whole array, then the
+     * array is used as is and must not be modified afterwards, otherwise the range is copied.
+     *
+     * @param sessionID unique session ID identifying this In-Band Bytestream
+     * @param seq sequence of this stanza in regard to the other data packets
+     * @param data the array containing the data of this packet
+     * @param offset the offset of the data in the array
+     * @param length the length of the data
+     */
+    public DataPacketExtension(String sessionID, long seq, byte[] data, int offset, int length) {
+        this(sessionID, seq, rangeOf(data, offset, length));
+    }
+
+    private DataPacketExtension(String sessionID, long seq, byte[] data) {
+        this(sessionID, seq, new Base64CharSequence(data, 0, data.length));
+        this.decodedData = data;
+    }
+
+    private static byte[] rangeOf(byte[] data, int offset, int length) {
+        if (offset == 0 && length == data.length) {
+            return data;
+        }
+        return Arrays.copyOfRange(data, offset, offset + length);
+    }
+
+    private DataPacketExtension(String sessionID, long seq, CharSequence data) {
         if (sessionID == null || "".equals(sessionID)) {
             throw new IllegalArgumentException("Session ID must not be null or empty");
         }
@@ -96,7 +130,7 @@ public class DataPacketExtension implements ExtensionElement {
      * @return the data contained in this packet.
      */
     public String getData() {
-        return data;
+        return data.toString();
     }
 
     /**
@@ -117,12 +151,12 @@ public class DataPacketExtension implements ExtensionElement {
         }
 
         // data must not contain the pad (=) other than end of data
-        if (data.matches(".*={1,2}+.+")) {
+        if (getData().matches(".*={1,2}+.+")) {
             return null;
         }
 
         // decodeBase64 will return null if bad characters are included
-        this.decodedData = Base64.decode(data);
+        this.decodedData = Base64.decode(getData());
         return this.decodedData;
     }
 
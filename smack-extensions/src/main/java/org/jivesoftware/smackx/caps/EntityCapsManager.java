@@ -19,13 +19,17 @@ package org.jivesoftware.smackx.caps;
 import java.io.UnsupportedEncodingException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Queue;
+import java.util.Set;
 import java.util.SortedSet;
 import java.util.TreeSet;
 import java.util.WeakHashMap;
@@ -85,7 +89,21 @@ public final class EntityCapsManager extends Manager {
     public static final String NAMESPACE = CapsExtension.NAMESPACE;
     public static final String ELEMENT = CapsExtension.ELEMENT;
 
-    private static final Map<String, MessageDigest> SUPPORTED_HASHES = new HashMap<String, MessageDigest>();
+    /**
+     * The supported hashes, in the format of MessageDigest, which is uppercase, e.g. "SHA-1".
+     */
+    private static final Set<String> SUPPORTED_HASHES = new HashSet<>();
+
+    /**
+     * The MessageDigest instances of the current thread, by hash. MessageDigest is not thread-safe, but creating an
+     * instance for every verification string is costly.
+     */
+    private static final ThreadLocal<Map<String, MessageDigest>> MESSAGE_DIGESTS = new ThreadLocal<Map<String, MessageDigest>>() {
+        @Override
+        protected Map<String, MessageDigest> initialValue() {
+            return new HashMap<>();
+        }
+    };
 
     /**
      * The default hash. Currently 'sha-1'.
@@ -116,6 +134,13 @@ public final class EntityCapsManager extends Manager {
      */
     static final LruCache<Jid, NodeVerHash> JID_TO_NODEVER_CACHE = new LruCache<>(10000);
 
+    /**
+     * Map of "hash + ':' + ver" to the fingerprint of the DiscoverInfo which was successfully verified. If a
+     * DiscoverInfo has the same fingerprint, then it is known to be valid without generating and hashing the
+     * verification string input S again, see XEP-0115 § 5.1.
+     */
+    static final LruCache<String, VerificationFingerprint> VERIFIED_VERSIONS = new LruCache<>(1000);
+
     static {
         XMPPConnectionRegistry.addConnectionCreationListener(new ConnectionCreationListener() {
             @Override
@@ -125,8 +150,8 @@ public final class EntityCapsManager extends Manager {
         });
 
         try {
-            MessageDigest sha1MessageDigest = MessageDigest.getInstance(DEFAULT_HASH);
-            SUPPORTED_HASHES.put(DEFAULT_HASH, sha1MessageDigest);
+            MessageDigest.getInstance(DEFAULT_HASH);
+            SUPPORTED_HASHES.add(DEFAULT_HASH);
         } catch (NoSuchAlgorithmException e) {
             // Ignore
         }
@@ -278,13 +303,14 @@ public final class EntityCapsManager extends Manager {
     public static void clearMemoryCache() {
         JID_TO_NODEVER_CACHE.clear();
         CAPS_CACHE.clear();
+        VERIFIED_VERSIONS.clear();
     }
 
     private static void addCapsExtensionInfo(Jid from, CapsExtension capsExtension) {
         String capsExtensionHash = capsExtension.getHash();
         String hashInUppercase = capsExtensionHash.toUpperCase(Locale.US);
         // SUPPORTED_HASHES uses the format of MessageDigest, which is uppercase, e.g. "SHA-1" instead of "sha-1"
-        if (!SUPPORTED_HASHES.containsKey(hashInUppercase))
+        if (!SUPPORTED_HASHES.contains(hashInUppercase))
             return;
         String hash = capsExtensionHash.toLowerCase(Locale.US);
 
@@ -594,11 +620,26 @@ public final class EntityCapsManager extends Manager {
         if (verifyPacketExtensions(info))
             return false;
 
-        String calculatedVer = generateVerificationString(info, hash).version;
+        if (hash == null) {
+            hash = DEFAULT_HASH;
+        }
+        String hashInUppercase = hash.toUpperCase(Locale.US);
+        if (!SUPPORTED_HASHES.contains(hashInUppercase))
+            return false;
+
+        // If the same ver was already verified with a DiscoverInfo of the same fingerprint, then generating and hashing
+        // the input S would yield the same ver.
+        String verifiedVersionKey = hashInUppercase + ':' + ver;
+        VerificationFingerprint fingerprint = new VerificationFingerprint(info);
+        if (fingerprint.equals(VERIFIED_VERSIONS.lookup(verifiedVersionKey)))
+            return true;
+
+        String calculatedVer = hashVerificationInput(generateVerificationInput(info), hashInUppercase);
 
         if (!ver.equals(calculatedVer))
             return false;
 
+        VERIFIED_VERSIONS.put(verifiedVersionKey, fingerprint);
         return true;
     }
 
@@ -647,14 +688,26 @@ public final class EntityCapsManager extends Manager {
             hash = DEFAULT_HASH;
         }
         // SUPPORTED_HASHES uses the format of MessageDigest, which is uppercase, e.g. "SHA-1" instead of "sha-1"
-        MessageDigest md = SUPPORTED_HASHES.get(hash.toUpperCase(Locale.US));
-        if (md == null)
+        String hashInUppercase = hash.toUpperCase(Locale.US);
+        if (!SUPPORTED_HASHES.contains(hashInUppercase))
             return null;
         // Then transform the hash to lowercase, as this value will be put on the wire within the caps element's hash
         // attribute. I'm not sure if the standard is case insensitive here, but let's assume that even it is, there could
         // be "broken" implementation in the wild, so we *always* transform to lowercase.
         hash = hash.toLowerCase(Locale.US);
 
+        String version = hashVerificationInput(generateVerificationInput(discoverInfo), hashInUppercase);
+        return new CapsVersionAndHash(version, hash);
+    }
+
+    /**
+     * Generates the input S of the verification string, i.e. the string which gets hashed, as specified in steps 1. to
+     * 7. of XEP-0115 § 5.1.
+     *
+     * @param discoverInfo the DiscoverInfo of which the identities, features and extended information are used.
+     * @return the input of the verification string.
+     */
+    private static String generateVerificationInput(DiscoverInfo discoverInfo) {
         DataForm extendedInfo =  DataForm.from(discoverInfo);
 
         // 1. Initialize an empty string S ('sb' in this method).
@@ -740,6 +793,17 @@ public final class EntityCapsManager extends Manager {
                 }
             }
         }
+        return sb.toString();
+    }
+
+    /**
+     * Hashes the input S of the verification string, as specified in steps 8. and 9. of XEP-0115 § 5.1.
+     *
+     * @param verificationInput the input S.
+     * @param hashInUppercase the supported hash, in the format of MessageDigest.
+     * @return the verification string.
+     */
+    private static String hashVerificationInput(String verificationInput, String hashInUppercase) {
         // 8. Ensure that S is encoded according to the UTF-8 encoding (RFC
         // 3269).
         // 9. Compute the verification string by hashing S using the algorithm
@@ -751,17 +815,29 @@ public final class EntityCapsManager extends Manager {
         // padding bits to zero).
         byte[] bytes;
         try {
-            bytes = sb.toString().getBytes(StringUtils.UTF8);
+            bytes = verificationInput.getBytes(StringUtils.UTF8);
         }
         catch (UnsupportedEncodingException e) {
             throw new AssertionError(e);
         }
-        byte[] digest;
-        synchronized (md) {
-            digest = md.digest(bytes);
+        byte[] digest = getMessageDigest(hashInUppercase).digest(bytes);
+        return Base64.encodeToString(digest);
+    }
+
+    private static MessageDigest getMessageDigest(String hashInUppercase) {
+        Map<String, MessageDigest> messageDigests = MESSAGE_DIGESTS.get();
+        MessageDigest md = messageDigests.get(hashInUppercase);
+        if (md == null) {
+            try {
+                md = MessageDigest.getInstance(hashInUppercase);
+            }
+            catch (NoSuchAlgorithmException e) {
+                // Should never happen, as only supported hashes are used.
+                throw new AssertionError(e);
+            }
+            messageDigests.put(hashInUppercase, md);
         }
-        String version = Base64.encodeToString(digest);
-        return new CapsVersionAndHash(version, hash);
+        return md;
     }
 
     private static void formFieldValuesToCaps(List<CharSequence> i, StringBuilder sb) {
@@ -773,6 +849,72 @@ public final class EntityCapsManager extends Manager {
         }
     }
 
+    /**
+     * The parts of a DiscoverInfo which the verification string input S is generated from. Unlike S, the fingerprint is
+     * built without sorting the identities, features and form fields, or serializing the data form. Two DiscoverInfos
+     * with an equal fingerprint result in the same S.
+     */
+    static final class VerificationFingerprint {
+        private final Set<List<String>> identities;
+        private final Set<String> features;
+        private final List<Object> formFields;
+        private final int hashCode;
+
+        private VerificationFingerprint(DiscoverInfo discoverInfo) {
+            List<Identity> discoverInfoIdentities = discoverInfo.getIdentities();
+            identities = new HashSet<>(discoverInfoIdentities.size());
+            for (Identity identity : discoverInfoIdentities) {
+                identities.add(Arrays.asList(identity.getCategory(), identity.getType(), identity.getLanguage(),
+                                identity.getName()));
+            }
+
+            List<Feature> discoverInfoFeatures = discoverInfo.getFeatures();
+            features = new HashSet<>(discoverInfoFeatures.size());
+            for (Feature feature : discoverInfoFeatures) {
+                features.add(feature.getVar());
+            }
+
+            DataForm extendedInfo = DataForm.from(discoverInfo);
+            if (extendedInfo != null && extendedInfo.hasHiddenFormTypeField()) {
+                formFields = new ArrayList<>();
+                synchronized (extendedInfo) {
+                    for (FormField field : extendedInfo.getFields()) {
+                        formFields.add(field.getVariable());
+                        List<String> values = new ArrayList<>();
+                        for (CharSequence value : field.getValues()) {
+                            values.add(value.toString());
+                        }
+                        formFields.add(values);
+                    }
+                }
+            } else {
+                formFields = null;
+            }
+
+            int result = identities.hashCode();
+            result = 31 * result + features.hashCode();
+            result = 31 * result + (formFields == null ? 0 : formFields.hashCode());
+            hashCode = result;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (obj == this)
+                return true;
+            if (!(obj instanceof VerificationFingerprint))
+                return false;
+
+            VerificationFingerprint other = (VerificationFingerprint) obj;
+            return hashCode == other.hashCode && identities.equals(other.identities) && features.equals(other.features)
+                            && (formFields == null ? other.formFields == null : formFields.equals(other.formFields));
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+
     public static class NodeVerHash {
         private String node;
         private String hash;
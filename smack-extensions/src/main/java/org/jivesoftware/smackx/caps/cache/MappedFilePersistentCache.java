@@ -0,0 +1,553 @@
+/**
+ *
+ * Copyright 2019 Florian Schmaus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.smackx.caps.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.jivesoftware.smack.packet.ExtensionElement;
+import org.jivesoftware.smack.packet.IQ;
+import org.jivesoftware.smack.util.PacketParserUtils;
+
+import org.jivesoftware.smackx.disco.packet.DiscoverInfo;
+
+import org.jxmpp.util.cache.LruCache;
+import org.xmlpull.v1.XmlPullParser;
+
+/**
+ * A persistent cache which stores all DiscoverInfo in a single memory-mapped file.
+ * <p>
+ * The file consists of a header, a hash index keyed by the node#ver string and a data region. The data region holds
+ * string records and entry records. Entry records do not contain the strings of the DiscoverInfo, like the features,
+ * but refer to string records. Since every distinct string is only stored once, features shared by many entities,
+ * which is the common case, take up space only once. Looking up an entry only decodes the strings of that entry,
+ * which are memoized, and does not require to parse XML, unless the DiscoverInfo contains extension elements, e.g.
+ * the data forms of XEP-0128: Service Discovery Extensions.
+ * </p>
+ * <p>
+ * The file is opened lazily on the first access. Unlike {@link SimpleDirectoryPersistentCache}, the instance must not
+ * be shared across multiple processes. If the file turns out to be corrupted, e.g. because the process crashed while
+ * the file was modified, then it is discarded and the cache starts empty.
+ * </p>
+ *
+ * @since 4.4
+ */
+public class MappedFilePersistentCache implements EntityCapsPersistentCache {
+    private static final Logger LOGGER = Logger.getLogger(MappedFilePersistentCache.class.getName());
+
+    private static final int MAGIC = 0x534d4b43;
+    private static final int FORMAT_VERSION = 1;
+
+    /**
+     * The header consists of the magic, the format version, the index capacity, the entry count and the length of the
+     * data region.
+     */
+    private static final int HEADER_SIZE = 5 * 4;
+
+    private static final int INITIAL_INDEX_CAPACITY = 256;
+    private static final int INITIAL_DATA_SIZE = 64 * 1024;
+
+    private static final byte RECORD_STRING = 1;
+    private static final byte RECORD_ENTRY = 2;
+
+    /**
+     * The reference used for absent, i.e. <code>null</code>, strings.
+     */
+    private static final int NO_STRING = -1;
+
+    private static final int MAX_DECODED_STRINGS = 4096;
+
+    private final File cacheFile;
+
+    private MappedByteBuffer buffer;
+
+    /**
+     * The number of slots of the hash index. Always a power of two.
+     */
+    private int indexCapacity;
+    private int entryCount;
+    /**
+     * The length of the used part of the data region. All references into the data region are relative to its
+     * start, so that the data region can be moved as a whole when the index grows.
+     */
+    private int dataLength;
+
+    /**
+     * The references of the string records, only built once a DiscoverInfo is added.
+     */
+    private Map<String, Integer> stringReferences;
+
+    /**
+     * The recently decoded strings, by their reference.
+     */
+    private final LruCache<Integer, String> decodedStrings = new LruCache<>(MAX_DECODED_STRINGS);
+
+    /**
+     * Creates a new MappedFilePersistentCache Object. Make sure that the parent directory of the cache file exists.
+     *
+     * @param cacheFile the file where the cache will be stored.
+     */
+    public MappedFilePersistentCache(File cacheFile) {
+        File cacheDir = cacheFile.getAbsoluteFile().getParentFile();
+        if (cacheDir == null || !cacheDir.isDirectory())
+            throw new IllegalStateException("Cache directory \"" + cacheDir + "\" does not exist");
+
+        this.cacheFile = cacheFile;
+    }
+
+    @Override
+    public synchronized void addDiscoverInfoByNodePersistent(String nodeVer, DiscoverInfo info) {
+        try {
+            ensureOpen();
+            int slot = findSlot(nodeVer);
+            if (buffer.getInt(slotPosition(slot)) != 0) {
+                // Already cached.
+                return;
+            }
+            if ((entryCount + 1) * 2 > indexCapacity) {
+                growIndex(indexCapacity * 2);
+                slot = findSlot(nodeVer);
+            }
+            addEntry(slot, nodeVer, info);
+        }
+        catch (IOException e) {
+            LOGGER.log(Level.SEVERE, "Failed to write disco info to cache file", e);
+        }
+        catch (RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Discarding corrupted entity caps cache file " + cacheFile, e);
+            discard();
+        }
+    }
+
+    @Override
+    public synchronized DiscoverInfo lookup(String nodeVer) {
+        try {
+            ensureOpen();
+            int entryReference = buffer.getInt(slotPosition(findSlot(nodeVer))) - 1;
+            if (entryReference < 0) {
+                return null;
+            }
+            return readEntry(entryReference);
+        }
+        catch (RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Discarding corrupted entity caps cache file " + cacheFile, e);
+            discard();
+            return null;
+        }
+        catch (Exception e) {
+            LOGGER.log(Level.WARNING, "Could not restore info from cache file", e);
+            return null;
+        }
+    }
+
+    @Override
+    public synchronized void emptyCache() {
+        discard();
+    }
+
+    /**
+     * Discard the cache file. A new one is created on the next access.
+     */
+    private void discard() {
+        buffer = null;
+        stringReferences = null;
+        decodedStrings.clear();
+        cacheFile.delete();
+    }
+
+    private void ensureOpen() throws IOException {
+        if (buffer != null) {
+            return;
+        }
+
+        long fileLength = cacheFile.length();
+        if (fileLength >= HEADER_SIZE && fileLength <= Integer.MAX_VALUE) {
+            buffer = map(cacheFile, (int) fileLength);
+            indexCapacity = buffer.getInt(8);
+            entryCount = buffer.getInt(12);
+            dataLength = buffer.getInt(16);
+            if (buffer.getInt(0) == MAGIC && buffer.getInt(4) == FORMAT_VERSION && indexCapacity > 0
+                            && Integer.bitCount(indexCapacity) == 1 && indexCapacity <= fileLength / 4
+                            && entryCount >= 0 && entryCount * 2 <= indexCapacity && dataLength >= 0
+                            && (long) dataStart() + dataLength <= fileLength) {
+                return;
+            }
+            LOGGER.info("Discarding invalid entity caps cache file " + cacheFile);
+        }
+
+        // Start with an empty cache file.
+        buffer = null;
+        RandomAccessFile file = new RandomAccessFile(cacheFile, "rw");
+        try {
+            file.setLength(0);
+        }
+        finally {
+            file.close();
+        }
+        indexCapacity = INITIAL_INDEX_CAPACITY;
+        entryCount = 0;
+        dataLength = 0;
+        buffer = map(cacheFile, dataStart() + INITIAL_DATA_SIZE);
+        writeHeader();
+        stringReferences = new HashMap<>();
+        decodedStrings.clear();
+    }
+
+    private static MappedByteBuffer map(File file, int size) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            if (randomAccessFile.length() < size) {
+                randomAccessFile.setLength(size);
+            }
+            // The mapping stays valid after the file was closed.
+            return randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+        finally {
+            randomAccessFile.close();
+        }
+    }
+
+    private void writeHeader() {
+        buffer.putInt(0, MAGIC);
+        buffer.putInt(4, FORMAT_VERSION);
+        buffer.putInt(8, indexCapacity);
+        buffer.putInt(12, entryCount);
+        buffer.putInt(16, dataLength);
+    }
+
+    private int dataStart() {
+        return HEADER_SIZE + indexCapacity * 4;
+    }
+
+    private int slotPosition(int slot) {
+        return HEADER_SIZE + slot * 4;
+    }
+
+    /**
+     * Find the slot of the index which either contains the entry of the given node#ver or is the empty slot where the
+     * entry would be inserted. The slots contain the reference of the entry plus one, or zero if empty.
+     *
+     * @param nodeVer the node#ver string.
+     * @return the slot.
+     */
+    private int findSlot(String nodeVer) {
+        int hash = nodeVer.hashCode();
+        hash ^= hash >>> 16;
+        final int mask = indexCapacity - 1;
+        int slot = hash & mask;
+        for (int i = 0; i < indexCapacity; i++) {
+            int entryReference = buffer.getInt(slotPosition(slot)) - 1;
+            if (entryReference < 0) {
+                return slot;
+            }
+            checkRecord(entryReference, 5);
+            if (nodeVer.equals(readString(buffer.getInt(dataStart() + entryReference + 1)))) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        // Can only happen if the cache file is corrupted, as the index is never filled more than half.
+        throw new IllegalStateException("The index of the cache file is full");
+    }
+
+    private void addEntry(int slot, String nodeVer, DiscoverInfo info) throws IOException {
+        ensureStringReferences();
+
+        List<Integer> references = new ArrayList<>();
+        references.add(putString(nodeVer));
+        references.add(putString(info.getNode()));
+        List<DiscoverInfo.Identity> identities = info.getIdentities();
+        references.add(identities.size());
+        for (DiscoverInfo.Identity identity : identities) {
+            references.add(putString(identity.getCategory()));
+            references.add(putString(identity.getType()));
+            references.add(putString(identity.getName()));
+            references.add(putString(identity.getLanguage()));
+        }
+        List<DiscoverInfo.Feature> features = info.getFeatures();
+        references.add(features.size());
+        for (DiscoverInfo.Feature feature : features) {
+            references.add(putString(feature.getVar()));
+        }
+        List<ExtensionElement> extensions = info.getExtensions();
+        references.add(extensions.size());
+        for (ExtensionElement extension : extensions) {
+            references.add(putString(extension.toXML().toString()));
+        }
+
+        final int entryReference = dataLength;
+        ensureDataCapacity(1 + references.size() * 4);
+        int position = dataStart() + entryReference;
+        buffer.put(position++, RECORD_ENTRY);
+        for (int reference : references) {
+            buffer.putInt(position, reference);
+            position += 4;
+        }
+        dataLength = position - dataStart();
+
+        // Reference the entry only once it was written, so that an exception while writing it, e.g. because the data
+        // region could not be grown, does not leave a reference to an incomplete entry. This does not protect against
+        // crashes, since the order in which the modified pages are written back to the file is unspecified. A file
+        // corrupted by a crash is discarded once the corruption is detected.
+        buffer.putInt(slotPosition(slot), entryReference + 1);
+        entryCount++;
+        writeHeader();
+    }
+
+    private DiscoverInfo readEntry(int entryReference) throws Exception {
+        // Validates the entry record.
+        nextRecord(entryReference);
+        int position = dataStart() + entryReference;
+        if (buffer.get(position++) != RECORD_ENTRY) {
+            throw new IllegalStateException("No entry record at " + entryReference);
+        }
+        // Skip the node#ver.
+        position += 4;
+
+        DiscoverInfo info = new DiscoverInfo();
+        info.setType(IQ.Type.result);
+        info.setNode(readString(buffer.getInt(position)));
+        position += 4;
+
+        int identityCount = buffer.getInt(position);
+        position += 4;
+        for (int i = 0; i < identityCount; i++) {
+            String category = readString(buffer.getInt(position));
+            String type = readString(buffer.getInt(position + 4));
+            String name = readString(buffer.getInt(position + 8));
+            String lang = readString(buffer.getInt(position + 12));
+            position += 16;
+            info.addIdentity(new DiscoverInfo.Identity(category, type, name, lang));
+        }
+
+        int featureCount = buffer.getInt(position);
+        position += 4;
+        for (int i = 0; i < featureCount; i++) {
+            info.addFeature(readString(buffer.getInt(position)));
+            position += 4;
+        }
+
+        int extensionCount = buffer.getInt(position);
+        position += 4;
+        for (int i = 0; i < extensionCount; i++) {
+            String extensionXml = readString(buffer.getInt(position));
+            position += 4;
+            XmlPullParser parser = PacketParserUtils.getParserFor(extensionXml);
+            info.addExtension(PacketParserUtils.parseExtensionElement(parser.getName(), parser.getNamespace(), parser,
+                            null));
+        }
+        return info;
+    }
+
+    private String readString(int reference) {
+        if (reference == NO_STRING) {
+            return null;
+        }
+        String string = decodedStrings.get(reference);
+        if (string != null) {
+            return string;
+        }
+
+        checkRecord(reference, 5);
+        int position = dataStart() + reference;
+        if (buffer.get(position) != RECORD_STRING) {
+            throw new IllegalStateException("No string record at " + reference);
+        }
+        int length = buffer.getInt(position + 1);
+        checkRecord(reference, 5L + length);
+        byte[] bytes = new byte[length];
+        getBytes(position + 5, bytes);
+        string = new String(bytes, StandardCharsets.UTF_8);
+        decodedStrings.put(reference, string);
+        return string;
+    }
+
+    private int putString(String string) throws IOException {
+        if (string == null) {
+            return NO_STRING;
+        }
+        Integer existingReference = stringReferences.get(string);
+        if (existingReference != null) {
+            return existingReference;
+        }
+
+        byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        final int reference = dataLength;
+        ensureDataCapacity(5 + bytes.length);
+        int position = dataStart() + reference;
+        buffer.put(position, RECORD_STRING);
+        buffer.putInt(position + 1, bytes.length);
+        putBytes(position + 5, bytes);
+        dataLength += 5 + bytes.length;
+
+        stringReferences.put(string, reference);
+        decodedStrings.put(reference, string);
+        return reference;
+    }
+
+    /**
+     * Build the references of the string records by scanning the data region. This is only done when the first
+     * DiscoverInfo is added, as lookups do not require it.
+     */
+    private void ensureStringReferences() {
+        if (stringReferences != null) {
+            return;
+        }
+
+        stringReferences = new HashMap<>();
+        int reference = 0;
+        while (reference < dataLength) {
+            if (buffer.get(dataStart() + reference) == RECORD_STRING) {
+                stringReferences.put(readString(reference), reference);
+            }
+            reference = nextRecord(reference);
+        }
+    }
+
+    private int nextRecord(int reference) {
+        checkRecord(reference, 5);
+        int position = dataStart() + reference;
+        byte recordType = buffer.get(position++);
+        switch (recordType) {
+        case RECORD_STRING:
+            int length = buffer.getInt(position);
+            checkRecord(reference, 5L + length);
+            return reference + 5 + length;
+        case RECORD_ENTRY:
+            // Skip the node#ver and the node.
+            position += 8;
+            position = skipItems(position, 16);
+            position = skipItems(position, 4);
+            position = skipItems(position, 4);
+            return position - dataStart();
+        default:
+            throw new IllegalStateException("Unknown record type " + recordType + " at " + reference);
+        }
+    }
+
+    /**
+     * Check that a record of the given length, starting at the given reference, lies within the used part of the data
+     * region.
+     *
+     * @param reference the reference of the record.
+     * @param length the length of the record in bytes.
+     * @throws IllegalStateException if the record does not lie within the data region, i.e. the file is corrupted.
+     */
+    private void checkRecord(int reference, long length) {
+        if (reference < 0 || length < 0 || reference + length > dataLength) {
+            throw new IllegalStateException("Invalid record of length " + length + " at " + reference);
+        }
+    }
+
+    /**
+     * Skip a list of items of an entry record, which is prefixed by the number of items.
+     *
+     * @param position the position of the number of items.
+     * @param itemLength the length of a single item in bytes.
+     * @return the position after the last item.
+     * @throws IllegalStateException if the items do not lie within the data region, i.e. the file is corrupted.
+     */
+    private int skipItems(int position, int itemLength) {
+        checkRecord(position - dataStart(), 4);
+        int count = buffer.getInt(position);
+        if (count < 0) {
+            throw new IllegalStateException("Invalid item count " + count + " at " + (position - dataStart()));
+        }
+        position += 4;
+        checkRecord(position - dataStart(), (long) count * itemLength);
+        return position + count * itemLength;
+    }
+
+    private void ensureDataCapacity(int bytes) throws IOException {
+        int required = dataStart() + dataLength + bytes;
+        if (required <= buffer.capacity()) {
+            return;
+        }
+        int newSize = Math.max(buffer.capacity() * 2, required);
+        buffer = map(cacheFile, newSize);
+    }
+
+    /**
+     * Grow the index. As the index is located in front of the data region, this rewrites the cache file.
+     *
+     * @param newIndexCapacity the new capacity of the index.
+     * @throws IOException if an I/O error occurs.
+     */
+    private void growIndex(int newIndexCapacity) throws IOException {
+        byte[] data = new byte[dataLength];
+        getBytes(dataStart(), data);
+
+        File cacheDir = cacheFile.getAbsoluteFile().getParentFile();
+        File tempFile = File.createTempFile(cacheFile.getName(), ".tmp", cacheDir);
+        try {
+            indexCapacity = newIndexCapacity;
+            buffer = map(tempFile, dataStart() + Math.max(2 * dataLength, INITIAL_DATA_SIZE));
+            putBytes(dataStart(), data);
+
+            // Re-insert all entries into the new index.
+            entryCount = 0;
+            int reference = 0;
+            while (reference < dataLength) {
+                if (buffer.get(dataStart() + reference) == RECORD_ENTRY) {
+                    String nodeVer = readString(buffer.getInt(dataStart() + reference + 1));
+                    buffer.putInt(slotPosition(findSlot(nodeVer)), reference + 1);
+                    entryCount++;
+                }
+                reference = nextRecord(reference);
+            }
+            writeHeader();
+            buffer.force();
+
+            if (!tempFile.renameTo(cacheFile)) {
+                // Some platforms do not replace an existing file on rename.
+                cacheFile.delete();
+                if (!tempFile.renameTo(cacheFile)) {
+                    throw new IOException("Could not rename " + tempFile + " to " + cacheFile);
+                }
+            }
+        }
+        catch (IOException | RuntimeException e) {
+            // Re-open the cache file on the next access.
+            buffer = null;
+            tempFile.delete();
+            throw e;
+        }
+    }
+
+    private void getBytes(int position, byte[] bytes) {
+        ByteBuffer source = buffer.duplicate();
+        source.position(position);
+        source.get(bytes);
+    }
+
+    private void putBytes(int position, byte[] bytes) {
+        ByteBuffer destination = buffer.duplicate();
+        destination.position(position);
+        destination.put(bytes);
+    }
+}
@@ -0,0 +1,158 @@
+/**
+ *
+ * Copyright 2019 Florian Schmaus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.smackx;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.util.logging.Logger;
+
+import org.jivesoftware.smack.packet.Message;
+import org.jivesoftware.smack.packet.Presence;
+import org.jivesoftware.smack.packet.Stanza;
+import org.jivesoftware.smack.packet.StreamOpen;
+import org.jivesoftware.smack.test.util.BenchmarkUtil;
+import org.jivesoftware.smack.util.XmlStringBuilder;
+
+import org.jivesoftware.smackx.caps.packet.CapsExtension;
+import org.jivesoftware.smackx.disco.packet.DiscoverInfo;
+
+import org.junit.Test;
+import org.jxmpp.jid.JidTestUtil;
+
+/**
+ * Compares the serialization of stanzas via {@link XmlStringBuilder#write(OutputStream, String)} with the
+ * serialization via their String representation. The timings and allocated bytes are only logged, since they depend
+ * on the machine running the test. The serialized bytes are always compared, the benchmark only runs if enabled, see
+ * {@link BenchmarkUtil}.
+ */
+public class StanzaSerializationBenchmarkTest extends InitExtensions {
+
+    private static final Logger LOGGER = Logger.getLogger(StanzaSerializationBenchmarkTest.class.getName());
+
+    private static final int WARMUP_ITERATIONS = 5000;
+
+    private static final int ITERATIONS = 20000;
+
+    @Test
+    public void messageSerializationTest() throws IOException {
+        Message message = new Message(JidTestUtil.FULL_JID_1_RESOURCE_1, "Hello, this is a message with some <markup> & \"quotes\" \u2013 and non-ASCII characters \u00e9\u20ac.");
+        message.setFrom(JidTestUtil.DUMMY_AT_EXAMPLE_ORG_SLASH_DUMMYRESOURCE);
+        message.setType(Message.Type.chat);
+        message.setThread("thread-1");
+        message.setSubject("Subject");
+        benchmark("Message", message);
+    }
+
+    @Test
+    public void presenceSerializationTest() throws IOException {
+        Presence presence = new Presence(Presence.Type.available, "Away for lunch", 5, Presence.Mode.away);
+        presence.setFrom(JidTestUtil.DUMMY_AT_EXAMPLE_ORG_SLASH_DUMMYRESOURCE);
+        presence.addExtension(new CapsExtension("https://igniterealtime.org/projects/smack", "QgayPKawpkPSDYmwT/WM94uAlu0=", "sha-1"));
+        benchmark("Presence", presence);
+    }
+
+    @Test
+    public void discoverInfoSerializationTest() throws IOException {
+        DiscoverInfo discoverInfo = new DiscoverInfo();
+        discoverInfo.setFrom(JidTestUtil.DUMMY_AT_EXAMPLE_ORG_SLASH_DUMMYRESOURCE);
+        discoverInfo.setTo(JidTestUtil.FULL_JID_1_RESOURCE_1);
+        discoverInfo.addIdentity(new DiscoverInfo.Identity("client", "Smack", "pc"));
+        for (int i = 0; i < 20; i++) {
+            discoverInfo.addFeature("urn:xmpp:example:feature:" + i);
+        }
+        benchmark("DiscoverInfo", discoverInfo);
+    }
+
+    private static void benchmark(String name, Stanza stanza) throws IOException {
+        StringWriter writer = new StringWriter();
+        ((XmlStringBuilder) stanza.toXML(StreamOpen.CLIENT_NAMESPACE)).write(writer, StreamOpen.CLIENT_NAMESPACE);
+        byte[] expected = writer.toString().getBytes(StandardCharsets.UTF_8);
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        writeBytes(stanza, outputStream);
+        assertArrayEquals(expected, outputStream.toByteArray());
+
+        BenchmarkUtil.assumeBenchmarksEnabled();
+
+        CountingOutputStream sink = new CountingOutputStream();
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            writeString(stanza, sink);
+            writeBytes(stanza, sink);
+        }
+
+        long stringAllocatedBytes = allocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            writeString(stanza, sink);
+        }
+        long stringNanos = (System.nanoTime() - start) / ITERATIONS;
+        stringAllocatedBytes = (allocatedBytes() - stringAllocatedBytes) / ITERATIONS;
+
+        long bytesAllocatedBytes = allocatedBytes();
+        start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            writeBytes(stanza, sink);
+        }
+        long bytesNanos = (System.nanoTime() - start) / ITERATIONS;
+        bytesAllocatedBytes = (allocatedBytes() - bytesAllocatedBytes) / ITERATIONS;
+
+        LOGGER.info(name + " (" + expected.length + " bytes): via String " + stringNanos + " ns/op, "
+                        + stringAllocatedBytes + " bytes allocated/op; direct to bytes " + bytesNanos + " ns/op, "
+                        + bytesAllocatedBytes + " bytes allocated/op");
+    }
+
+    private static void writeString(Stanza stanza, OutputStream outputStream) throws IOException {
+        String xml = stanza.toXML(StreamOpen.CLIENT_NAMESPACE).toString();
+        outputStream.write(xml.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void writeBytes(Stanza stanza, OutputStream outputStream) throws IOException {
+        XmlStringBuilder xml = (XmlStringBuilder) stanza.toXML(StreamOpen.CLIENT_NAMESPACE);
+        xml.write(outputStream, StreamOpen.CLIENT_NAMESPACE);
+    }
+
+    /**
+     * Returns the number of bytes allocated by the current thread, or 0 if the JVM does not provide this information.
+     */
+    private static long allocatedBytes() {
+        ThreadMXBean threadMxBean = ManagementFactory.getThreadMXBean();
+        if (!(threadMxBean instanceof com.sun.management.ThreadMXBean)) {
+            return 0;
+        }
+        return ((com.sun.management.ThreadMXBean) threadMxBean).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private static final class CountingOutputStream extends OutputStream {
+        private long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+}
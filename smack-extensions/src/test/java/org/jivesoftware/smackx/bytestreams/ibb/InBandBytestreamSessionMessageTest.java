@@ -16,6 +16,7 @@
  */
 package org.jivesoftware.smackx.bytestreams.ibb;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
@@ -221,6 +222,38 @@ public class InBandBytestreamSessionMessageTest extends InitExtensions {
 
     }
 
+    /**
+     * Data packets are serialized after they have been handed over to the connection, so a partially filled block
+     * sent by flush() must not be affected by the following writes.
+     *
+     * @throws Exception should not happen
+     */
+    @Test
+    public void shouldNotModifyFlushedDataPacketsOnSubsequentWrites() throws Exception {
+        InBandBytestreamSession session = new InBandBytestreamSession(connection, initBytestream,
+                        initiatorJID);
+
+        protocol.addResponse(null, incrementingSequence);
+        protocol.addResponse(null, incrementingSequence);
+
+        OutputStream outputStream = session.getOutputStream();
+        outputStream.write(new byte[] { 1, 2, 3 });
+        outputStream.flush();
+        outputStream.write(new byte[] { 4, 5, 6, 7 });
+        outputStream.flush();
+
+        protocol.verifyAll();
+
+        DataPacketExtension first = protocol.getRequests().get(0).getExtension(DataPacketExtension.ELEMENT,
+                        DataPacketExtension.NAMESPACE);
+        DataPacketExtension second = protocol.getRequests().get(1).getExtension(DataPacketExtension.ELEMENT,
+                        DataPacketExtension.NAMESPACE);
+        assertEquals(Base64.encodeToString(new byte[] { 1, 2, 3 }), first.getData());
+        assertTrue(first.toXML().toString().contains(Base64.encodeToString(new byte[] { 1, 2, 3 })));
+        assertArrayEquals(new byte[] { 1, 2, 3 }, first.getDecodedData());
+        assertEquals(Base64.encodeToString(new byte[] { 4, 5, 6, 7 }), second.getData());
+    }
+
     /**
      * Test successive calls to the output stream flush() method.
      *
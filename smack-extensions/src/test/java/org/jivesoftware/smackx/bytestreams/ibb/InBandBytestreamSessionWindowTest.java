@@ -0,0 +1,155 @@
+/**
+ *
+ * Copyright 2019 Florian Schmaus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.smackx.bytestreams.ibb;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.mockito.ArgumentMatchers.isA;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import org.jivesoftware.smack.StanzaCollector;
+import org.jivesoftware.smack.XMPPConnection;
+import org.jivesoftware.smack.packet.IQ;
+import org.jivesoftware.smack.util.stringencoder.Base64;
+
+import org.jivesoftware.smackx.InitExtensions;
+import org.jivesoftware.smackx.bytestreams.ibb.packet.Data;
+import org.jivesoftware.smackx.bytestreams.ibb.packet.DataPacketExtension;
+import org.jivesoftware.smackx.bytestreams.ibb.packet.Open;
+
+import org.junit.Test;
+import org.jxmpp.jid.EntityFullJid;
+import org.jxmpp.jid.JidTestUtil;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+/**
+ * Tests sending data over an In-Band Bytestream session with multiple unacknowledged data packets.
+ */
+public class InBandBytestreamSessionWindowTest extends InitExtensions {
+
+    private static final Logger LOGGER = Logger.getLogger(InBandBytestreamSessionWindowTest.class.getName());
+
+    private static final EntityFullJid initiatorJID = JidTestUtil.DUMMY_AT_EXAMPLE_ORG_SLASH_DUMMYRESOURCE;
+    private static final EntityFullJid targetJID = JidTestUtil.FULL_JID_1_RESOURCE_1;
+
+    private static final int blockSize = 4096;
+
+    private static final int blockCount = 128;
+
+    /* simulated round trip time of the link */
+    private static final long roundTripTimeMillis = 2;
+
+    /**
+     * Sends data over a simulated link with a fixed round trip time for window sizes from 1 to
+     * 32 and checks that the data packets are sent in sequence, contain the written data and that
+     * the window of unacknowledged data packets is filled.
+     *
+     * @throws Exception should not happen
+     */
+    @Test
+    public void loopbackThroughputTest() throws Exception {
+        byte[] controlData = new byte[blockSize * blockCount];
+        new Random().nextBytes(controlData);
+
+        for (int windowSize = 1; windowSize <= 32; windowSize *= 2) {
+            List<Data> sentDataPackets = new ArrayList<>(blockCount);
+            AtomicInteger maxOutstandingRequests = new AtomicInteger();
+            XMPPConnection connection = createLoopbackConnection(sentDataPackets, maxOutstandingRequests);
+
+            Open open = new Open("session_id_" + windowSize, blockSize);
+            InBandBytestreamSession session = new InBandBytestreamSession(connection, open, targetJID);
+            session.setWindowSize(windowSize);
+
+            long start = System.nanoTime();
+            OutputStream outputStream = session.getOutputStream();
+            outputStream.write(controlData);
+            outputStream.flush();
+            long millis = (System.nanoTime() - start) / 1000000;
+
+            assertEquals(blockCount, sentDataPackets.size());
+            ByteArrayOutputStream receivedData = new ByteArrayOutputStream(controlData.length);
+            for (int i = 0; i < blockCount; i++) {
+                DataPacketExtension data = sentDataPackets.get(i).getDataPacketExtension();
+                assertEquals(i, data.getSeq());
+                assertEquals(Base64.encodeToString(data.getDecodedData()), data.getData());
+                receivedData.write(data.getDecodedData());
+            }
+            assertArrayEquals(controlData, receivedData.toByteArray());
+
+            // Without a window every data packet costs one round trip, with a window the data packets of a whole
+            // window share one. The timings are only logged, since they depend on the machine running the test.
+            assertEquals(Math.min(windowSize, blockCount), maxOutstandingRequests.get());
+
+            long kibPerSecond = controlData.length * 1000L / 1024 / Math.max(millis, 1);
+            LOGGER.info("Sending " + controlData.length / 1024 + " KiB with a window size of " + windowSize + " took "
+                            + millis + "ms (" + kibPerSecond + " KiB/s)");
+        }
+    }
+
+    /**
+     * Creates a mocked connection which acknowledges every data packet one round trip time after
+     * it was sent. Records the maximum number of data packets which were not yet acknowledged at once.
+     */
+    private static XMPPConnection createLoopbackConnection(final List<Data> sentDataPackets,
+                    final AtomicInteger maxOutstandingRequests) throws Exception {
+        XMPPConnection connection = mock(XMPPConnection.class);
+        when(connection.getUser()).thenReturn(initiatorJID);
+
+        final BlockingQueue<Long> acknowledgmentTimes = new LinkedBlockingQueue<>();
+        final AtomicInteger outstandingRequests = new AtomicInteger();
+        final StanzaCollector collector = mock(StanzaCollector.class);
+        when(connection.createStanzaCollectorAndSend(isA(IQ.class))).thenAnswer(new Answer<StanzaCollector>() {
+            @Override
+            public StanzaCollector answer(InvocationOnMock invocation) {
+                sentDataPackets.add((Data) invocation.getArguments()[0]);
+                acknowledgmentTimes.add(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(roundTripTimeMillis));
+                int outstanding = outstandingRequests.incrementAndGet();
+                int max;
+                do {
+                    max = maxOutstandingRequests.get();
+                } while (outstanding > max && !maxOutstandingRequests.compareAndSet(max, outstanding));
+                return collector;
+            }
+        });
+        when(collector.nextResultOrThrow()).thenAnswer(new Answer<IQ>() {
+            @Override
+            public IQ answer(InvocationOnMock invocation) throws InterruptedException {
+                long remainingNanos = acknowledgmentTimes.take() - System.nanoTime();
+                if (remainingNanos > 0) {
+                    TimeUnit.NANOSECONDS.sleep(remainingNanos);
+                }
+                outstandingRequests.decrementAndGet();
+                return IBBPacketUtils.createResultIQ(targetJID, initiatorJID);
+            }
+        });
+
+        return connection;
+    }
+}
@@ -17,6 +17,7 @@
 package org.jivesoftware.smackx.caps;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 
@@ -24,6 +25,8 @@ import java.io.File;
 import java.io.IOException;
 import java.util.Collection;
 import java.util.LinkedList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
 
 import org.jivesoftware.smack.packet.IQ;
 import org.jivesoftware.smack.util.StringUtils;
@@ -32,6 +35,7 @@ import org.jivesoftware.smack.util.stringencoder.StringEncoder;
 
 import org.jivesoftware.smackx.InitExtensions;
 import org.jivesoftware.smackx.caps.cache.EntityCapsPersistentCache;
+import org.jivesoftware.smackx.caps.cache.MappedFilePersistentCache;
 import org.jivesoftware.smackx.caps.cache.SimpleDirectoryPersistentCache;
 import org.jivesoftware.smackx.disco.packet.DiscoverInfo;
 import org.jivesoftware.smackx.xdata.FormField;
@@ -44,6 +48,8 @@ import org.jxmpp.stringprep.XmppStringprepException;
 
 public class EntityCapsManagerTest extends InitExtensions {
 
+    private static final Logger LOGGER = Logger.getLogger(EntityCapsManagerTest.class.getName());
+
     /**
      * <a href="http://xmpp.org/extensions/xep-0115.html#ver-gen-complex">XEP-
      * 0115 Complex Generation Example</a>.
@@ -63,6 +69,89 @@ public class EntityCapsManagerTest extends InitExtensions {
         testSimpleDirectoryCache(Base32.getStringEncoder());
     }
 
+    @Test
+    public void testMappedFileCache() throws IOException {
+        EntityCapsManager.persistentCache = null;
+        EntityCapsPersistentCache cache = new MappedFilePersistentCache(new File(createTempDirectory(), "caps"));
+        EntityCapsManager.setPersistentCache(cache);
+
+        DiscoverInfo di = createComplexSamplePacket();
+        CapsVersionAndHash versionAndHash = EntityCapsManager.generateVerificationString(di, StringUtils.SHA1);
+        String nodeVer = di.getNode() + "#" + versionAndHash.version;
+
+        EntityCapsManager.addDiscoverInfoByNode(nodeVer, di);
+        EntityCapsManager.clearMemoryCache();
+
+        // The cache does not store the addressing of the stanza, only the information which is relevant for caps.
+        DiscoverInfo restoredDi = EntityCapsManager.getDiscoveryInfoByNodeVer(nodeVer);
+        assertNotNull(restoredDi);
+        assertEquals(di.getIdentities(), restoredDi.getIdentities());
+        assertEquals(di.getFeatures(), restoredDi.getFeatures());
+        assertEquals(di.getExtensions().size(), restoredDi.getExtensions().size());
+        assertEquals(di.getExtensions().get(0).toXML().toString(), restoredDi.getExtensions().get(0).toXML().toString());
+        assertEquals(versionAndHash.version,
+                        EntityCapsManager.generateVerificationString(restoredDi, StringUtils.SHA1).version);
+
+        EntityCapsManager.persistentCache = null;
+    }
+
+    @Test
+    public void testVerifiedVersionIsMemoized() throws XmppStringprepException {
+        EntityCapsManager.clearMemoryCache();
+        DiscoverInfo di = createComplexSamplePacket();
+        String ver = "q07IKJEyjvHSyhy//CH0CxmKi8w=";
+
+        assertTrue(EntityCapsManager.verifyDiscoverInfoVersion(ver, "sha-1", di));
+        assertEquals(1, EntityCapsManager.VERIFIED_VERSIONS.size());
+        assertTrue(EntityCapsManager.verifyDiscoverInfoVersion(ver, "sha-1", createComplexSamplePacket()));
+
+        // A different DiscoverInfo claiming the same ver must not be considered valid.
+        di.addFeature("urn:example:spoofed");
+        assertFalse(EntityCapsManager.verifyDiscoverInfoVersion(ver, "sha-1", di));
+    }
+
+    /**
+     * Measures the throughput of {@link EntityCapsManager#verifyDiscoverInfoVersion(String, String, DiscoverInfo)}
+     * with multiple threads.
+     */
+    @Test
+    public void testConcurrentVerificationThroughput() throws XmppStringprepException, InterruptedException {
+        final int threadCount = 4;
+        final int verificationsPerThread = 10000;
+        final String ver = "q07IKJEyjvHSyhy//CH0CxmKi8w=";
+        final DiscoverInfo di = createComplexSamplePacket();
+        final AtomicInteger failures = new AtomicInteger();
+
+        for (boolean memoized : new boolean[] { false, true }) {
+            Thread[] threads = new Thread[threadCount];
+            long start = System.nanoTime();
+            for (int i = 0; i < threadCount; i++) {
+                final boolean clearMemoizedVersions = !memoized;
+                threads[i] = new Thread() {
+                    @Override
+                    public void run() {
+                        for (int j = 0; j < verificationsPerThread; j++) {
+                            if (clearMemoizedVersions) {
+                                EntityCapsManager.VERIFIED_VERSIONS.clear();
+                            }
+                            if (!EntityCapsManager.verifyDiscoverInfoVersion(ver, "sha-1", di)) {
+                                failures.incrementAndGet();
+                            }
+                        }
+                    }
+                };
+                threads[i].start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            long millis = (System.nanoTime() - start) / 1000000;
+            LOGGER.info("Performed " + threadCount * verificationsPerThread + " verifications on " + threadCount
+                            + " threads in " + millis + "ms (memoized: " + memoized + ")");
+        }
+        assertEquals(0, failures.get());
+    }
+
     @Test
     public void testVerificationDuplicateFeatures() throws XmppStringprepException {
         DiscoverInfo di = createMalformedDiscoverInfo();
@@ -0,0 +1,203 @@
+/**
+ *
+ * Copyright 2019 Florian Schmaus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.smackx.caps.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.logging.Logger;
+
+import org.jivesoftware.smackx.InitExtensions;
+import org.jivesoftware.smackx.disco.packet.DiscoverInfo;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class MappedFilePersistentCacheTest extends InitExtensions {
+
+    private static final Logger LOGGER = Logger.getLogger(MappedFilePersistentCacheTest.class.getName());
+
+    private static final int ENTRY_COUNT = 2000;
+
+    @Rule
+    public TemporaryFolder tmpFolder = new TemporaryFolder();
+
+    @Test
+    public void entriesSurviveReopenTest() throws IOException {
+        File cacheFile = new File(tmpFolder.newFolder(), "caps");
+        MappedFilePersistentCache cache = new MappedFilePersistentCache(cacheFile);
+        // Enough entries to grow the index multiple times.
+        for (int i = 0; i < ENTRY_COUNT; i++) {
+            cache.addDiscoverInfoByNodePersistent(nodeVer(i), createDiscoverInfo(i));
+        }
+        assertNull(cache.lookup("http://example.org#unknown"));
+
+        cache = new MappedFilePersistentCache(cacheFile);
+        for (int i = 0; i < ENTRY_COUNT; i++) {
+            DiscoverInfo info = cache.lookup(nodeVer(i));
+            assertNotNull(info);
+            assertEquals(createDiscoverInfo(i).getFeatures(), info.getFeatures());
+            assertEquals(createDiscoverInfo(i).getIdentities(), info.getIdentities());
+        }
+
+        // Adding further entries to a re-opened cache must not affect the existing ones.
+        cache.addDiscoverInfoByNodePersistent(nodeVer(ENTRY_COUNT), createDiscoverInfo(ENTRY_COUNT));
+        cache = new MappedFilePersistentCache(cacheFile);
+        assertEquals(createDiscoverInfo(0).getFeatures(), cache.lookup(nodeVer(0)).getFeatures());
+        assertEquals(createDiscoverInfo(ENTRY_COUNT).getFeatures(), cache.lookup(nodeVer(ENTRY_COUNT)).getFeatures());
+
+        cache.emptyCache();
+        assertNull(cache.lookup(nodeVer(0)));
+    }
+
+    @Test
+    public void sharedFeaturesAreStoredOnceTest() throws IOException {
+        File cacheFile = new File(tmpFolder.newFolder(), "caps");
+        MappedFilePersistentCache cache = new MappedFilePersistentCache(cacheFile);
+        cache.addDiscoverInfoByNodePersistent(nodeVer(0), createDiscoverInfo(0));
+        long lengthAfterFirstEntry = usedLength(cacheFile);
+        cache.addDiscoverInfoByNodePersistent(nodeVer(1), createDiscoverInfo(1));
+        long secondEntryLength = usedLength(cacheFile) - lengthAfterFirstEntry;
+
+        // The second entry only adds its node#ver, its unique feature and the entry record itself.
+        assertEquals(5 + nodeVer(1).length() + 5 + uniqueFeature(1).length() + 1 + 4 * (2 + 1 + 4 + 1 + 6 + 1),
+                        secondEntryLength);
+    }
+
+    @Test
+    public void corruptedFileIsDiscardedTest() throws IOException {
+        File cacheFile = new File(tmpFolder.newFolder(), "caps");
+        MappedFilePersistentCache cache = new MappedFilePersistentCache(cacheFile);
+        for (int i = 0; i < 10; i++) {
+            cache.addDiscoverInfoByNodePersistent(nodeVer(i), createDiscoverInfo(i));
+        }
+        corruptDataRegion(cacheFile);
+
+        cache = new MappedFilePersistentCache(cacheFile);
+        assertNull(cache.lookup(nodeVer(0)));
+        cache.addDiscoverInfoByNodePersistent(nodeVer(0), createDiscoverInfo(0));
+        assertEquals(createDiscoverInfo(0).getFeatures(), cache.lookup(nodeVer(0)).getFeatures());
+        assertNull(cache.lookup(nodeVer(1)));
+
+        corruptDataRegion(cacheFile);
+        cache = new MappedFilePersistentCache(cacheFile);
+        // Adding to a corrupted file does not throw, but discards the file.
+        cache.addDiscoverInfoByNodePersistent(nodeVer(0), createDiscoverInfo(0));
+        cache.addDiscoverInfoByNodePersistent(nodeVer(1), createDiscoverInfo(1));
+        assertEquals(createDiscoverInfo(1).getFeatures(), cache.lookup(nodeVer(1)).getFeatures());
+    }
+
+    /**
+     * Compares the time required for cold lookups with the time required by {@link SimpleDirectoryPersistentCache}.
+     */
+    @Test
+    public void coldLookupTimeTest() throws IOException {
+        File mappedCacheFile = new File(tmpFolder.newFolder(), "caps");
+        EntityCapsPersistentCache mappedCache = new MappedFilePersistentCache(mappedCacheFile);
+        File directoryCacheDir = tmpFolder.newFolder();
+        EntityCapsPersistentCache directoryCache = new SimpleDirectoryPersistentCache(directoryCacheDir);
+        for (int i = 0; i < ENTRY_COUNT; i++) {
+            mappedCache.addDiscoverInfoByNodePersistent(nodeVer(i), createDiscoverInfo(i));
+            directoryCache.addDiscoverInfoByNodePersistent(nodeVer(i), createDiscoverInfo(i));
+        }
+
+        long start = System.nanoTime();
+        mappedCache = new MappedFilePersistentCache(mappedCacheFile);
+        for (int i = 0; i < ENTRY_COUNT; i++) {
+            assertNotNull(mappedCache.lookup(nodeVer(i)));
+        }
+        long mappedMicros = (System.nanoTime() - start) / 1000;
+
+        start = System.nanoTime();
+        directoryCache = new SimpleDirectoryPersistentCache(directoryCacheDir);
+        for (int i = 0; i < ENTRY_COUNT; i++) {
+            assertNotNull(directoryCache.lookup(nodeVer(i)));
+        }
+        long directoryMicros = (System.nanoTime() - start) / 1000;
+
+        LOGGER.info("Looking up " + ENTRY_COUNT + " entries after a cold start took " + mappedMicros / ENTRY_COUNT
+                        + "µs per entry with the MappedFilePersistentCache and " + directoryMicros / ENTRY_COUNT
+                        + "µs per entry with the SimpleDirectoryPersistentCache");
+    }
+
+    private static String nodeVer(int i) {
+        return "http://example.org/client" + i + "#ver" + i;
+    }
+
+    private static String uniqueFeature(int i) {
+        return "urn:example:feature:" + i;
+    }
+
+    private static DiscoverInfo createDiscoverInfo(int i) {
+        DiscoverInfo info = new DiscoverInfo();
+        info.addIdentity(new DiscoverInfo.Identity("client", "pc", "Example Client", null));
+        info.addFeature("http://jabber.org/protocol/caps");
+        info.addFeature("http://jabber.org/protocol/disco#info");
+        info.addFeature("http://jabber.org/protocol/disco#items");
+        info.addFeature("http://jabber.org/protocol/muc");
+        info.addFeature("urn:xmpp:ping");
+        info.addFeature(uniqueFeature(i));
+        return info;
+    }
+
+    /**
+     * Overwrite the used part of the data region of the cache file with garbage, while keeping the header and the
+     * index intact.
+     */
+    private static void corruptDataRegion(File cacheFile) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(cacheFile, "rw");
+        try {
+            file.seek(8);
+            int indexCapacity = file.readInt();
+            file.skipBytes(4);
+            int dataLength = file.readInt();
+            byte[] garbage = new byte[dataLength];
+            Arrays.fill(garbage, (byte) 0x7f);
+            file.seek(5 * 4 + indexCapacity * 4);
+            file.write(garbage);
+        }
+        finally {
+            file.close();
+        }
+    }
+
+    /**
+     * Get the used length of the cache file, i.e. the length of the header, the index and the used part of the data
+     * region.
+     */
+    private static long usedLength(File cacheFile) throws IOException {
+        DataInputStream in = new DataInputStream(new FileInputStream(cacheFile));
+        try {
+            in.skipBytes(8);
+            int indexCapacity = in.readInt();
+            in.skipBytes(4);
+            int dataLength = in.readInt();
+            return 5 * 4 + indexCapacity * 4 + dataLength;
+        }
+        finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,159 @@
+/**
+ *
+ * Copyright 2019 Florian Schmaus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.smack.roster;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.jivesoftware.smack.packet.Presence;
+
+import org.jxmpp.jid.Jid;
+
+/**
+ * Batches the delivery of {@link RosterListener#presenceChanged(Presence)} events.
+ * <p>
+ * Presences are added via {@link #add(Presence)}. If no delivery is in progress, then the calling thread delivers the
+ * presence right away, just as if there was no batching. Otherwise the presence is queued and the thread which
+ * currently performs the delivery will deliver it as part of the next batch. If a further presence from the same
+ * address is queued before the previous one was delivered, then it replaces the previous one. This way a presence
+ * flood, e.g. after reconnecting, results in fewer listener invocations, while the listeners still observe the latest
+ * presence of every address.
+ * </p>
+ */
+final class PresenceChangedBatcher {
+
+    interface PresenceDeliverer {
+        /**
+         * Deliver a batch of presences to the roster listeners.
+         *
+         * @param presences the presences, in the order they were added.
+         */
+        void deliver(Collection<Presence> presences);
+    }
+
+    private final PresenceDeliverer deliverer;
+
+    private Map<Jid, Presence> pendingPresences = new LinkedHashMap<>();
+
+    private boolean deliveryInProgress;
+
+    private long addedPresences;
+    private long deliveredPresences;
+    private long batches;
+    private int maxBatchSize;
+
+    PresenceChangedBatcher(PresenceDeliverer deliverer) {
+        this.deliverer = deliverer;
+    }
+
+    /**
+     * Add a presence which should be delivered to the roster listeners. This method returns once the presence was
+     * delivered, or, if another thread is currently delivering presences, once it was queued for delivery.
+     *
+     * @param presence the presence.
+     */
+    void add(Presence presence) {
+        synchronized (this) {
+            addedPresences++;
+            pendingPresences.put(presence.getFrom(), presence);
+            if (deliveryInProgress) {
+                return;
+            }
+            deliveryInProgress = true;
+        }
+
+        boolean success = false;
+        try {
+            deliverPending();
+            success = true;
+        }
+        finally {
+            if (!success) {
+                // A listener threw an exception, let the next added presence resume the delivery.
+                synchronized (this) {
+                    deliveryInProgress = false;
+                }
+            }
+        }
+    }
+
+    private void deliverPending() {
+        while (true) {
+            final Map<Jid, Presence> batch;
+            synchronized (this) {
+                if (pendingPresences.isEmpty()) {
+                    deliveryInProgress = false;
+                    return;
+                }
+                batch = pendingPresences;
+                pendingPresences = new LinkedHashMap<>();
+
+                batches++;
+                deliveredPresences += batch.size();
+                if (batch.size() > maxBatchSize) {
+                    maxBatchSize = batch.size();
+                }
+            }
+
+            // The batch map is not modified anymore, hence the deliverer may iterate over the values multiple times.
+            deliverer.deliver(batch.values());
+        }
+    }
+
+    Stats getStats() {
+        return new Stats(this);
+    }
+
+    static final class Stats {
+        final long addedPresences;
+        final long deliveredPresences;
+        final long coalescedPresences;
+        final long batches;
+        final int maxBatchSize;
+
+        private Stats(PresenceChangedBatcher batcher) {
+            synchronized (batcher) {
+                addedPresences = batcher.addedPresences;
+                deliveredPresences = batcher.deliveredPresences;
+                // Presences which are still pending are not counted as coalesced.
+                coalescedPresences = addedPresences - deliveredPresences - batcher.pendingPresences.size();
+                batches = batcher.batches;
+                maxBatchSize = batcher.maxBatchSize;
+            }
+        }
+
+        private transient String toStringCache;
+
+        @Override
+        public String toString() {
+            if (toStringCache != null) {
+                return toStringCache;
+            }
+
+            toStringCache =
+                      "added-presences: " + addedPresences + '\n'
+                    + "delivered-presences: " + deliveredPresences + '\n'
+                    + "coalesced-presences: " + coalescedPresences + '\n'
+                    + "batches: " + batches + '\n'
+                    + "max-batch-size: " + maxBatchSize
+                    ;
+
+            return toStringCache;
+        }
+    }
+}
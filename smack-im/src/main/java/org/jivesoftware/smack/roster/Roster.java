@@ -176,6 +176,25 @@ public final class Roster extends Manager {
     private final LruCache<BareJid, Map<Resourcepart, Presence>> nonRosterPresenceMap = new LruCache<>(
                     defaultNonRosterPresenceMapMaxSize);
 
+    /**
+     * The number of locks used to guard the creation of the presence maps of entities. Must be a power of two.
+     */
+    private static final int PRESENCE_LOCK_STRIPES = 64;
+
+    /**
+     * Striped locks guarding the creation of the presence map of an entity, so that presences of different entities
+     * can be processed concurrently.
+     */
+    private final Object[] presenceLocks = new Object[PRESENCE_LOCK_STRIPES];
+
+    private final PresenceChangedBatcher presenceChangedBatcher = new PresenceChangedBatcher(
+                    new PresenceChangedBatcher.PresenceDeliverer() {
+        @Override
+        public void deliver(Collection<Presence> presences) {
+            fireRosterPresenceEvents(presences);
+        }
+    });
+
     /**
      * Listeners called when the Roster was loaded.
      */
@@ -244,6 +263,9 @@ public final class Roster extends Manager {
      */
     private Roster(final XMPPConnection connection) {
         super(connection);
+        for (int i = 0; i < presenceLocks.length; i++) {
+            presenceLocks[i] = new Object();
+        }
 
         // Note that we use sync packet listeners because RosterListeners should be invoked in the same order as the
         // roster stanzas arrive.
@@ -384,22 +406,36 @@ public final class Roster extends Manager {
      * @param entity the entity
      * @return the user presences
      */
-    private synchronized Map<Resourcepart, Presence> getOrCreatePresencesInternal(BareJid entity) {
+    private Map<Resourcepart, Presence> getOrCreatePresencesInternal(BareJid entity) {
         Map<Resourcepart, Presence> entityPresences = getPresencesInternal(entity);
-        if (entityPresences == null) {
-            if (contains(entity)) {
-                entityPresences = new ConcurrentHashMap<>();
-                presenceMap.put(entity, entityPresences);
-            }
-            else {
-                LruCache<Resourcepart, Presence> nonRosterEntityPresences = new LruCache<>(32);
-                nonRosterPresenceMap.put(entity, nonRosterEntityPresences);
-                entityPresences = nonRosterEntityPresences;
+        if (entityPresences != null) {
+            return entityPresences;
+        }
+
+        synchronized (getPresenceLock(entity)) {
+            entityPresences = getPresencesInternal(entity);
+            if (entityPresences == null) {
+                if (contains(entity)) {
+                    entityPresences = new ConcurrentHashMap<>();
+                    presenceMap.put(entity, entityPresences);
+                }
+                else {
+                    LruCache<Resourcepart, Presence> nonRosterEntityPresences = new LruCache<>(32);
+                    nonRosterPresenceMap.put(entity, nonRosterEntityPresences);
+                    entityPresences = nonRosterEntityPresences;
+                }
             }
         }
         return entityPresences;
     }
 
+    private Object getPresenceLock(BareJid entity) {
+        int hash = entity.hashCode();
+        // Spread the higher bits, as only the lower bits are used to select the lock.
+        hash ^= hash >>> 16;
+        return presenceLocks[hash & (PRESENCE_LOCK_STRIPES - 1)];
+    }
+
     /**
      * Returns the subscription processing mode, which dictates what action
      * Smack will take when subscription requests from other users are made.
@@ -1271,18 +1307,34 @@ public final class Roster extends Manager {
     }
 
     /**
-     * Fires roster presence changed event to roster listeners.
+     * Fires roster presence changed event to roster listeners. The event may be delivered as part of a batch by a
+     * different thread, see {@link PresenceChangedBatcher}.
      *
      * @param presence the presence change.
      */
     private void fireRosterPresenceEvent(final Presence presence) {
+        presenceChangedBatcher.add(presence);
+    }
+
+    /**
+     * Fires roster presence changed events for a batch of presences to roster listeners.
+     *
+     * @param presences the presence changes.
+     */
+    private void fireRosterPresenceEvents(final Collection<Presence> presences) {
         synchronized (rosterListenersAndEntriesLock) {
             for (RosterListener listener : rosterListeners) {
-                listener.presenceChanged(presence);
+                for (Presence presence : presences) {
+                    listener.presenceChanged(presence);
+                }
             }
         }
     }
 
+    PresenceChangedBatcher.Stats getPresenceChangedStats() {
+        return presenceChangedBatcher.getStats();
+    }
+
     private void addUpdateEntry(Collection<Jid> addedEntries, Collection<Jid> updatedEntries,
                     Collection<Jid> unchangedEntries, RosterPacket.Item item, RosterEntry entry) {
         RosterEntry oldEntry;
@@ -75,6 +75,10 @@ public interface RosterListener {
      * (e.g presence of types available and unavailable. Subscription-related
      * presence packets will not cause this method to be called.
      *
+     * Presence changes are delivered in batches, possibly by a different thread than the one processing the
+     * presence. If a further presence of the same address arrives before the previous one was delivered, e.g.
+     * during a presence flood after reconnecting, then only the latest presence is delivered.
+     *
      * @param presence the presence that changed.
      * @see Roster#getPresence(org.jxmpp.jid.BareJid)
      */
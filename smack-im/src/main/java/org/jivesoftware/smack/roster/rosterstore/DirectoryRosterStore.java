@@ -196,8 +196,9 @@ public final class DirectoryRosterStore implements RosterStore {
             return null;
         }
 
+        XmlPullParser parser = null;
         try {
-            XmlPullParser parser = PacketParserUtils.getParserFor(reader);
+            parser = PacketParserUtils.acquireParserFor(reader);
             Item item = RosterPacketProvider.parseItem(parser);
             reader.close();
             return item;
@@ -209,6 +210,8 @@ public final class DirectoryRosterStore implements RosterStore {
             }
             LOGGER.log(Level.SEVERE, message, e);
             return null;
+        } finally {
+            PacketParserUtils.releaseParser(parser);
         }
     }
 
@@ -0,0 +1,719 @@
+/**
+ *
+ * Copyright 2019 Florian Schmaus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.smack.roster.rosterstore;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+import org.jivesoftware.smack.SmackConfiguration;
+import org.jivesoftware.smack.roster.packet.RosterPacket.Item;
+import org.jivesoftware.smack.roster.packet.RosterPacket.ItemType;
+import org.jivesoftware.smack.util.CloseableUtil;
+
+import org.jxmpp.jid.BareJid;
+import org.jxmpp.jid.Jid;
+import org.jxmpp.jid.impl.JidCreate;
+import org.jxmpp.stringprep.XmppStringprepException;
+
+/**
+ * Stores roster entries as specified by RFC 6121 for roster versioning in a compact binary snapshot file and an
+ * append-only journal file.
+ * <p>
+ * The entries are kept in memory. Adding or removing an entry only appends a single record to the journal, instead
+ * of writing one file per entry like {@link DirectoryRosterStore}, and opening the store reads just the two files.
+ * Once the journal has grown larger than the roster, it is compacted in the background by writing a new snapshot.
+ * Resetting the entries writes a new snapshot right away. A journal record which was only partially written, e.g.
+ * because the process was killed, is discarded when the store is opened.
+ * </p>
+ * <p>
+ * The store keeps the journal file open. Invoke {@link #close()} once the store is no longer used.
+ * </p>
+ *
+ * @since 4.4
+ */
+public final class JournaledRosterStore implements RosterStore, Closeable {
+
+    private static final Logger LOGGER = Logger.getLogger(JournaledRosterStore.class.getName());
+
+    private static final String SNAPSHOT_FILE_NAME = "roster-snapshot";
+    private static final String JOURNAL_FILE_NAME = "roster-journal";
+    private static final String TEMP_FILE_PREFIX = "roster-";
+    private static final String TEMP_FILE_SUFFIX = ".tmp";
+
+    private static final int SNAPSHOT_MAGIC = 0x534d4b52;
+    private static final int JOURNAL_MAGIC = 0x534d4b4a;
+    private static final byte FORMAT_VERSION = 1;
+
+    /**
+     * The size of the journal header, consisting of the magic and the epoch.
+     */
+    private static final int JOURNAL_HEADER_BYTES = 4 + 8;
+
+    private static final byte RECORD_ADD = 1;
+    private static final byte RECORD_REMOVE = 2;
+
+    /**
+     * The minimum number of journal records before the journal is compacted.
+     */
+    private static final int MIN_RECORDS_BEFORE_COMPACTION = 1024;
+
+    private final File snapshotFile;
+    private final File journalFile;
+    private final File fileDir;
+
+    private final Map<BareJid, Item> entries = new LinkedHashMap<>();
+    private String rosterVersion;
+
+    /**
+     * The epoch of the snapshot, which the journal must match. A new epoch starts every time the entries are reset,
+     * so that a journal which belongs to a previous snapshot is never replayed.
+     */
+    private long epoch;
+
+    private DataOutputStream journalOut;
+    /**
+     * The number of bytes of the journal records, not including the journal header.
+     */
+    private long journalBytes;
+    private int journalRecords;
+
+    private final ByteArrayOutputStream recordBuffer = new ByteArrayOutputStream();
+    private final DataOutputStream recordOut = new DataOutputStream(recordBuffer);
+    private final CRC32 crc32 = new CRC32();
+
+    /**
+     * Incremented every time a new snapshot is written, so that a compaction running in the background can detect that
+     * its snapshot is already outdated.
+     */
+    private int snapshotGeneration;
+    private boolean compactionInProgress;
+
+    private boolean closed;
+
+    private JournaledRosterStore(File baseDir) {
+        fileDir = baseDir;
+        snapshotFile = new File(baseDir, SNAPSHOT_FILE_NAME);
+        journalFile = new File(baseDir, JOURNAL_FILE_NAME);
+    }
+
+    /**
+     * Creates a new roster store on disk.
+     *
+     * @param baseDir
+     *            The directory to create the store in. The directory should
+     *            be empty
+     * @return A {@link JournaledRosterStore} instance if successful,
+     *         <code>null</code> else.
+     */
+    public static JournaledRosterStore init(final File baseDir) {
+        JournaledRosterStore store = new JournaledRosterStore(baseDir);
+        if (store.resetEntries(Collections.<Item>emptyList(), "")) {
+            return store;
+        }
+        else {
+            return null;
+        }
+    }
+
+    /**
+     * Opens a roster store.
+     * @param baseDir
+     *            The directory containing the roster store.
+     * @return A {@link JournaledRosterStore} instance if successful,
+     *         <code>null</code> else.
+     */
+    public static JournaledRosterStore open(final File baseDir) {
+        JournaledRosterStore store = new JournaledRosterStore(baseDir);
+        try {
+            store.load();
+        }
+        catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Could not open roster store in " + baseDir, e);
+            store.closeJournal();
+            return null;
+        }
+        return store;
+    }
+
+    @Override
+    public synchronized List<Item> getEntries() {
+        List<Item> items = new ArrayList<>(entries.size());
+        for (Item item : entries.values()) {
+            items.add(copy(item));
+        }
+        return items;
+    }
+
+    @Override
+    public synchronized Item getEntry(Jid bareJid) {
+        Item item = entries.get(bareJid);
+        if (item == null) {
+            return null;
+        }
+        return copy(item);
+    }
+
+    @Override
+    public synchronized String getRosterVersion() {
+        return rosterVersion;
+    }
+
+    @Override
+    public synchronized boolean addEntry(Item item, String version) {
+        // Copy the item, as the caller may modify it later on.
+        Item storedItem = copy(item);
+        try {
+            recordOut.writeByte(RECORD_ADD);
+            writeString(recordOut, version);
+            writeItem(recordOut, storedItem);
+            appendRecord();
+        }
+        catch (IOException e) {
+            LOGGER.log(Level.SEVERE, "Could not append roster entry to journal", e);
+            return false;
+        }
+
+        entries.put(storedItem.getJid(), storedItem);
+        rosterVersion = version;
+        maybeCompactInBackground();
+        return true;
+    }
+
+    @Override
+    public synchronized boolean removeEntry(Jid bareJid, String version) {
+        try {
+            recordOut.writeByte(RECORD_REMOVE);
+            writeString(recordOut, version);
+            writeString(recordOut, bareJid.toString());
+            appendRecord();
+        }
+        catch (IOException e) {
+            LOGGER.log(Level.SEVERE, "Could not append roster entry removal to journal", e);
+            return false;
+        }
+
+        entries.remove(bareJid);
+        rosterVersion = version;
+        maybeCompactInBackground();
+        return true;
+    }
+
+    @Override
+    public synchronized boolean resetEntries(Collection<Item> items, String version) {
+        if (closed) {
+            LOGGER.warning("Can not reset the entries of the closed roster store in " + fileDir);
+            return false;
+        }
+
+        Map<BareJid, Item> newEntries = new LinkedHashMap<>(items.size());
+        for (Item item : items) {
+            Item storedItem = copy(item);
+            newEntries.put(storedItem.getJid(), storedItem);
+        }
+
+        // Any compaction currently running in the background is outdated by the new snapshot.
+        snapshotGeneration++;
+        final long newEpoch = epoch + 1;
+        try {
+            File tempSnapshotFile = writeTempSnapshot(newEntries.values(), version, newEpoch);
+            // Once the snapshot was replaced, the current journal belongs to the previous epoch and will be ignored.
+            replace(tempSnapshotFile, snapshotFile);
+        }
+        catch (IOException e) {
+            LOGGER.log(Level.SEVERE, "Could not write roster snapshot", e);
+            return false;
+        }
+
+        // The new snapshot is persisted, hence the in-memory state must reflect it, even if the journal of the new
+        // epoch can not be started right now.
+        epoch = newEpoch;
+        journalBytes = 0;
+        journalRecords = 0;
+        entries.clear();
+        entries.putAll(newEntries);
+        rosterVersion = version;
+
+        closeJournal();
+        try {
+            journalOut = openJournal(true);
+        }
+        catch (IOException e) {
+            // appendRecord() will start the journal once the next record is appended.
+            LOGGER.log(Level.WARNING, "Could not start a new roster journal", e);
+        }
+        return true;
+    }
+
+    @Override
+    public void resetStore() {
+        resetEntries(Collections.<Item>emptyList(), "");
+    }
+
+    /**
+     * Compact the journal by writing a new snapshot. This is usually done automatically in the background.
+     *
+     * @throws IOException if an I/O error occurs.
+     */
+    public void compact() throws IOException {
+        final List<Item> snapshotEntries;
+        final String snapshotVersion;
+        final long snapshotJournalBytes;
+        final int snapshotJournalRecords;
+        final int generation;
+        final long snapshotEpoch;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            // The stored items are never modified, hence it is sufficient to copy the collection.
+            snapshotEntries = new ArrayList<>(entries.values());
+            snapshotVersion = rosterVersion;
+            snapshotJournalBytes = journalBytes;
+            snapshotJournalRecords = journalRecords;
+            generation = snapshotGeneration;
+            snapshotEpoch = epoch;
+        }
+
+        // Write the snapshot without holding the lock, so that the store can be modified in the meantime.
+        File tempSnapshotFile = writeTempSnapshot(snapshotEntries, snapshotVersion, snapshotEpoch);
+
+        synchronized (this) {
+            if (closed || generation != snapshotGeneration) {
+                // The store was closed or the entries were reset in the meantime.
+                tempSnapshotFile.delete();
+                return;
+            }
+            replace(tempSnapshotFile, snapshotFile);
+            snapshotGeneration++;
+
+            // Retain only the journal records which were appended while the snapshot was written. Note that if we fail
+            // before the journal is rewritten, then replaying the whole journal onto the new snapshot still yields the
+            // correct entries, as the snapshot equals the state after a prefix of the journal.
+            closeJournal();
+            try {
+                removeJournalHead(snapshotJournalBytes);
+                journalBytes -= snapshotJournalBytes;
+                journalRecords -= snapshotJournalRecords;
+            }
+            finally {
+                journalOut = openJournal(false);
+            }
+        }
+    }
+
+    /**
+     * Close the journal file of this store. Afterwards the store can still be read, but not modified anymore.
+     */
+    @Override
+    public synchronized void close() {
+        closed = true;
+        closeJournal();
+    }
+
+    private void maybeCompactInBackground() {
+        if (compactionInProgress || journalRecords < MIN_RECORDS_BEFORE_COMPACTION
+                        || journalRecords < entries.size()) {
+            return;
+        }
+
+        compactionInProgress = true;
+        try {
+            SmackConfiguration.getAsyncExecutor().execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        compact();
+                    }
+                    catch (IOException e) {
+                        LOGGER.log(Level.WARNING, "Could not compact roster journal", e);
+                    }
+                    finally {
+                        synchronized (JournaledRosterStore.this) {
+                            compactionInProgress = false;
+                        }
+                    }
+                }
+            });
+        }
+        catch (RejectedExecutionException e) {
+            // Try again once the next record is appended.
+            LOGGER.log(Level.FINE, "Executor rejected the compaction of the roster journal", e);
+            compactionInProgress = false;
+        }
+    }
+
+    private void load() throws IOException {
+        deleteTempFiles();
+
+        DataInputStream snapshotIn = new DataInputStream(new BufferedInputStream(new FileInputStream(snapshotFile)));
+        try {
+            if (snapshotIn.readInt() != SNAPSHOT_MAGIC) {
+                throw new IOException("Not a roster snapshot: " + snapshotFile);
+            }
+            byte formatVersion = snapshotIn.readByte();
+            if (formatVersion != FORMAT_VERSION) {
+                throw new IOException("Unsupported roster snapshot format version: " + formatVersion);
+            }
+            epoch = snapshotIn.readLong();
+            rosterVersion = readString(snapshotIn);
+            int count = snapshotIn.readInt();
+            for (int i = 0; i < count; i++) {
+                Item item = readItem(snapshotIn);
+                entries.put(item.getJid(), item);
+            }
+        }
+        finally {
+            CloseableUtil.maybeClose(snapshotIn, LOGGER);
+        }
+
+        long validJournalBytes = replayJournal();
+        if (validJournalBytes < 0) {
+            // The journal does not belong to the snapshot, start a new one.
+            journalOut = openJournal(true);
+            return;
+        }
+        if (JOURNAL_HEADER_BYTES + validJournalBytes < journalFile.length()) {
+            LOGGER.warning("Discarding incomplete record at the end of the roster journal " + journalFile);
+            RandomAccessFile journal = new RandomAccessFile(journalFile, "rw");
+            try {
+                journal.setLength(JOURNAL_HEADER_BYTES + validJournalBytes);
+            }
+            finally {
+                journal.close();
+            }
+        }
+        journalBytes = validJournalBytes;
+        journalOut = openJournal(false);
+    }
+
+    /**
+     * Replay the journal onto the entries read from the snapshot.
+     *
+     * @return the number of bytes of the journal which contain complete records or <code>-1</code> if the journal does
+     *         not belong to the snapshot.
+     * @throws IOException if an I/O error occurs.
+     */
+    private long replayJournal() throws IOException {
+        final long journalLength = journalFile.length();
+        if (journalLength < JOURNAL_HEADER_BYTES) {
+            return -1;
+        }
+
+        long validBytes = 0;
+        DataInputStream journalIn = new DataInputStream(new BufferedInputStream(new FileInputStream(journalFile)));
+        try {
+            if (journalIn.readInt() != JOURNAL_MAGIC || journalIn.readLong() != epoch) {
+                return -1;
+            }
+            while (true) {
+                byte[] record;
+                try {
+                    int length = journalIn.readInt();
+                    long checksum = journalIn.readInt() & 0xffffffffL;
+                    if (length < 0 || length > journalLength) {
+                        // A corrupted length, do not attempt to allocate a buffer of that size.
+                        break;
+                    }
+                    record = new byte[length];
+                    journalIn.readFully(record);
+                    crc32.reset();
+                    crc32.update(record, 0, length);
+                    if (crc32.getValue() != checksum) {
+                        break;
+                    }
+                }
+                catch (EOFException e) {
+                    break;
+                }
+
+                applyRecord(new DataInputStream(new ByteArrayInputStream(record)));
+                validBytes += 8 + record.length;
+                journalRecords++;
+            }
+        }
+        finally {
+            CloseableUtil.maybeClose(journalIn, LOGGER);
+        }
+        return validBytes;
+    }
+
+    private void applyRecord(DataInputStream recordIn) throws IOException {
+        byte type = recordIn.readByte();
+        String version = readString(recordIn);
+        switch (type) {
+        case RECORD_ADD:
+            Item item = readItem(recordIn);
+            entries.put(item.getJid(), item);
+            break;
+        case RECORD_REMOVE:
+            entries.remove(parseBareJid(readString(recordIn)));
+            break;
+        default:
+            throw new IOException("Unknown roster journal record type: " + type);
+        }
+        rosterVersion = version;
+    }
+
+    private void appendRecord() throws IOException {
+        try {
+            if (closed) {
+                throw new IOException("Roster store in " + fileDir + " is closed");
+            }
+            if (journalOut == null) {
+                // If the journal contains no records, e.g. because it could not be started after the entries were
+                // reset, then start a new journal, as an existing one may belong to a previous epoch.
+                journalOut = openJournal(journalBytes == 0);
+            }
+            final int length = recordBuffer.size();
+            crc32.reset();
+            // Note that toByteArray() creates a copy, but the records are small.
+            byte[] record = recordBuffer.toByteArray();
+            crc32.update(record, 0, length);
+
+            journalOut.writeInt(length);
+            journalOut.writeInt((int) crc32.getValue());
+            journalOut.write(record, 0, length);
+            journalOut.flush();
+
+            journalBytes += 8 + length;
+            journalRecords++;
+        }
+        finally {
+            recordBuffer.reset();
+        }
+    }
+
+    private File writeTempSnapshot(Collection<Item> items, String version, long epoch) throws IOException {
+        File tempSnapshotFile = File.createTempFile(TEMP_FILE_PREFIX, TEMP_FILE_SUFFIX, fileDir);
+        FileOutputStream fileOut = new FileOutputStream(tempSnapshotFile);
+        try {
+            DataOutputStream snapshotOut = new DataOutputStream(new BufferedOutputStream(fileOut));
+            snapshotOut.writeInt(SNAPSHOT_MAGIC);
+            snapshotOut.writeByte(FORMAT_VERSION);
+            snapshotOut.writeLong(epoch);
+            writeString(snapshotOut, version);
+            snapshotOut.writeInt(items.size());
+            for (Item item : items) {
+                writeItem(snapshotOut, item);
+            }
+            snapshotOut.flush();
+            // Ensure the snapshot is on disk before it replaces the previous one.
+            fileOut.getFD().sync();
+        }
+        catch (IOException e) {
+            CloseableUtil.maybeClose(fileOut, LOGGER);
+            tempSnapshotFile.delete();
+            throw e;
+        }
+        fileOut.close();
+        return tempSnapshotFile;
+    }
+
+    /**
+     * Remove the given number of bytes of records from the head of the journal.
+     *
+     * @param bytes the number of bytes to remove.
+     * @throws IOException if an I/O error occurs.
+     */
+    private void removeJournalHead(long bytes) throws IOException {
+        if (JOURNAL_HEADER_BYTES + bytes >= journalFile.length()) {
+            // There are no further records.
+            openJournal(true).close();
+            return;
+        }
+
+        File tempJournalFile = File.createTempFile(TEMP_FILE_PREFIX, TEMP_FILE_SUFFIX, fileDir);
+        InputStream in = new FileInputStream(journalFile);
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(tempJournalFile));
+        try {
+            writeJournalHeader(out);
+            bytes += JOURNAL_HEADER_BYTES;
+            long skipped = 0;
+            while (skipped < bytes) {
+                long n = in.skip(bytes - skipped);
+                if (n <= 0) {
+                    throw new EOFException();
+                }
+                skipped += n;
+            }
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                out.write(buffer, 0, n);
+            }
+        }
+        finally {
+            in.close();
+            out.close();
+        }
+        replace(tempJournalFile, journalFile);
+    }
+
+    /**
+     * Open the journal for appending records.
+     *
+     * @param truncate if <code>true</code>, then a new empty journal of the current epoch is started.
+     * @return the output stream of the journal.
+     * @throws IOException if an I/O error occurs.
+     */
+    private DataOutputStream openJournal(boolean truncate) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(journalFile, !truncate)));
+        if (truncate) {
+            try {
+                writeJournalHeader(out);
+                out.flush();
+            }
+            catch (IOException e) {
+                CloseableUtil.maybeClose(out, LOGGER);
+                throw e;
+            }
+        }
+        return out;
+    }
+
+    private void writeJournalHeader(DataOutputStream out) throws IOException {
+        out.writeInt(JOURNAL_MAGIC);
+        out.writeLong(epoch);
+    }
+
+    private void closeJournal() {
+        CloseableUtil.maybeClose(journalOut, LOGGER);
+        journalOut = null;
+    }
+
+    private void deleteTempFiles() {
+        File[] files = fileDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            String name = file.getName();
+            if (name.startsWith(TEMP_FILE_PREFIX) && name.endsWith(TEMP_FILE_SUFFIX)) {
+                file.delete();
+            }
+        }
+    }
+
+    private static void replace(File source, File destination) throws IOException {
+        if (source.renameTo(destination)) {
+            return;
+        }
+        // Some platforms do not replace an existing file on rename.
+        destination.delete();
+        if (!source.renameTo(destination)) {
+            throw new IOException("Could not rename " + source + " to " + destination);
+        }
+    }
+
+    private static void writeItem(DataOutputStream out, Item item) throws IOException {
+        writeString(out, item.getJid().toString());
+        writeString(out, item.getName());
+        ItemType itemType = item.getItemType();
+        out.writeByte(itemType != null ? itemType.ordinal() : -1);
+        out.writeBoolean(item.isSubscriptionPending());
+        out.writeBoolean(item.isApproved());
+        Collection<String> groupNames = item.getGroupNames();
+        out.writeInt(groupNames.size());
+        for (String groupName : groupNames) {
+            writeString(out, groupName);
+        }
+    }
+
+    private static Item readItem(DataInputStream in) throws IOException {
+        BareJid jid = parseBareJid(readString(in));
+        String name = readString(in);
+        byte itemTypeOrdinal = in.readByte();
+        boolean subscriptionPending = in.readBoolean();
+        boolean approved = in.readBoolean();
+
+        Item item = new Item(jid, name, subscriptionPending);
+        if (itemTypeOrdinal >= 0) {
+            item.setItemType(ItemType.values()[itemTypeOrdinal]);
+        } else {
+            item.setItemType(null);
+        }
+        item.setApproved(approved);
+        int groupCount = in.readInt();
+        for (int i = 0; i < groupCount; i++) {
+            item.addGroupName(readString(in));
+        }
+        return item;
+    }
+
+    private static BareJid parseBareJid(String jid) throws IOException {
+        try {
+            return JidCreate.bareFrom(jid);
+        }
+        catch (XmppStringprepException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String string) throws IOException {
+        if (string == null) {
+            out.writeInt(-1);
+            return;
+        }
+        // Not using writeUTF(), as it is limited to 64 KiB.
+        byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static Item copy(Item item) {
+        Item copy = new Item(item.getJid(), item.getName(), item.isSubscriptionPending());
+        copy.setItemType(item.getItemType());
+        copy.setApproved(item.isApproved());
+        for (String groupName : item.getGroupNames()) {
+            copy.addGroupName(groupName);
+        }
+        return copy;
+    }
+}
@@ -0,0 +1,130 @@
+/**
+ *
+ * Copyright 2019 Florian Schmaus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.smack.roster;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import org.jivesoftware.smack.packet.Presence;
+
+import org.junit.Test;
+import org.jxmpp.jid.Jid;
+import org.jxmpp.jid.impl.JidCreate;
+import org.jxmpp.stringprep.XmppStringprepException;
+
+public class PresenceChangedBatcherTest {
+
+    private static final Logger LOGGER = Logger.getLogger(PresenceChangedBatcherTest.class.getName());
+
+    @Test
+    public void presenceIsDeliveredByCallingThreadTest() throws XmppStringprepException {
+        final Thread[] deliveringThread = new Thread[1];
+        final Presence[] deliveredPresence = new Presence[1];
+        PresenceChangedBatcher batcher = new PresenceChangedBatcher(new PresenceChangedBatcher.PresenceDeliverer() {
+            @Override
+            public void deliver(Collection<Presence> presences) {
+                deliveringThread[0] = Thread.currentThread();
+                assertEquals(1, presences.size());
+                deliveredPresence[0] = presences.iterator().next();
+            }
+        });
+
+        Presence presence = createPresence(0, 0);
+        batcher.add(presence);
+
+        assertSame(Thread.currentThread(), deliveringThread[0]);
+        assertSame(presence, deliveredPresence[0]);
+    }
+
+    /**
+     * Replays a flood of 50.000 presences, from 5.000 addresses, which are processed by multiple threads, as it
+     * happens after reconnecting with a large roster.
+     */
+    @Test
+    public void presenceFloodTest() throws InterruptedException, XmppStringprepException {
+        final int threadCount = 8;
+        final int addressCount = 5000;
+        final int presencesPerAddress = 10;
+
+        final Map<Jid, Presence> latestDeliveredPresences = new HashMap<>();
+        final PresenceChangedBatcher batcher = new PresenceChangedBatcher(new PresenceChangedBatcher.PresenceDeliverer() {
+            @Override
+            public void deliver(Collection<Presence> presences) {
+                for (Presence presence : presences) {
+                    latestDeliveredPresences.put(presence.getFrom(), presence);
+                }
+            }
+        });
+
+        // Like the roster's presence processing, all presences from the same address are handled by the same thread.
+        final Presence[][] presences = new Presence[addressCount][presencesPerAddress];
+        for (int i = 0; i < addressCount; i++) {
+            for (int j = 0; j < presencesPerAddress; j++) {
+                presences[i][j] = createPresence(i, j);
+            }
+        }
+
+        final CountDownLatch threadsDone = new CountDownLatch(threadCount);
+        long start = System.nanoTime();
+        for (int t = 0; t < threadCount; t++) {
+            final int thread = t;
+            new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int j = 0; j < presencesPerAddress; j++) {
+                            for (int i = thread; i < addressCount; i += threadCount) {
+                                batcher.add(presences[i][j]);
+                            }
+                        }
+                    } finally {
+                        threadsDone.countDown();
+                    }
+                }
+            }.start();
+        }
+        assertTrue(threadsDone.await(60, TimeUnit.SECONDS));
+        long millis = (System.nanoTime() - start) / 1000000;
+
+        // Every address's latest presence must have been delivered.
+        assertEquals(addressCount, latestDeliveredPresences.size());
+        for (int i = 0; i < addressCount; i++) {
+            Presence latestPresence = presences[i][presencesPerAddress - 1];
+            assertSame(latestPresence, latestDeliveredPresences.get(latestPresence.getFrom()));
+        }
+
+        PresenceChangedBatcher.Stats stats = batcher.getStats();
+        assertEquals(addressCount * presencesPerAddress, stats.addedPresences);
+        assertEquals(stats.addedPresences, stats.deliveredPresences + stats.coalescedPresences);
+        LOGGER.info("Delivering a flood of " + stats.addedPresences + " presences took " + millis + "ms\n" + stats);
+    }
+
+    private static Presence createPresence(int address, int sequence) throws XmppStringprepException {
+        Presence presence = new Presence(Presence.Type.available);
+        presence.setFrom(JidCreate.from("contact" + address + "@example.org/resource"));
+        presence.setStatus(Integer.toString(sequence));
+        return presence;
+    }
+}
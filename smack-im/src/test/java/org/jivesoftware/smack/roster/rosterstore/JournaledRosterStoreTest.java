@@ -0,0 +1,260 @@
+/**
+ *
+ * Copyright 2019 Florian Schmaus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.smack.roster.rosterstore;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+import org.jivesoftware.smack.roster.packet.RosterPacket.Item;
+import org.jivesoftware.smack.roster.packet.RosterPacket.ItemType;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.jxmpp.jid.BareJid;
+import org.jxmpp.jid.JidTestUtil;
+import org.jxmpp.jid.impl.JidCreate;
+
+/**
+ * Tests the implementation of {@link JournaledRosterStore}.
+ */
+public class JournaledRosterStoreTest {
+
+    private static final Logger LOGGER = Logger.getLogger(JournaledRosterStoreTest.class.getName());
+
+    @Rule
+    public TemporaryFolder tmpFolder = new TemporaryFolder();
+
+    /**
+     * Tests that opening an uninitialized directory fails.
+     */
+    @Test
+    public void testStoreUninitialized() throws IOException {
+        File storeDir = tmpFolder.newFolder();
+        assertNull(JournaledRosterStore.open(storeDir));
+    }
+
+    /**
+     * Tests that an initialized directory is empty.
+     */
+    @Test
+    public void testStoreInitializedEmpty() throws IOException {
+        File storeDir = tmpFolder.newFolder();
+        JournaledRosterStore store = JournaledRosterStore.init(storeDir);
+        assertNotNull("Initialization returns store", store);
+        assertEquals("Freshly initialized store must have empty version", "", store.getRosterVersion());
+        assertEquals("Freshly initialized store must have no entries", 0, store.getEntries().size());
+
+        store = reopen(store, storeDir);
+        assertNotNull("Opening initialized store", store);
+        assertEquals("", store.getRosterVersion());
+        assertEquals(0, store.getEntries().size());
+        store.close();
+    }
+
+    /**
+     * Tests that added, removed and reset entries are persisted.
+     */
+    @Test
+    public void testStoreAddRemoveReset() throws IOException {
+        File storeDir = tmpFolder.newFolder();
+        JournaledRosterStore store = JournaledRosterStore.init(storeDir);
+
+        BareJid userName = JidTestUtil.DUMMY_AT_EXAMPLE_ORG;
+        Item item1 = new Item(userName, "Ursula Example");
+        item1.addGroupName("users");
+        item1.addGroupName("examples");
+        item1.setSubscriptionPending(true);
+        item1.setItemType(ItemType.none);
+        item1.setApproved(true);
+        assertTrue(store.addEntry(item1, "1"));
+
+        // Modifying the item afterwards must not affect the store.
+        item1.setItemType(ItemType.both);
+
+        store = reopen(store, storeDir);
+        assertEquals("1", store.getRosterVersion());
+        Item storedItem = store.getEntry(userName);
+        assertNotNull("Added entry not found", storedItem);
+        assertEquals("Ursula Example", storedItem.getName());
+        assertEquals(item1.getGroupNames(), storedItem.getGroupNames());
+        assertEquals(ItemType.none, storedItem.getItemType());
+        assertTrue(storedItem.isSubscriptionPending());
+        assertTrue(storedItem.isApproved());
+
+        assertTrue(store.removeEntry(userName, "2"));
+        store = reopen(store, storeDir);
+        assertEquals("2", store.getRosterVersion());
+        assertNull("Removed entry is still present", store.getEntry(userName));
+
+        List<Item> items = createItems(2);
+        assertTrue(store.resetEntries(items, "3"));
+        store = reopen(store, storeDir);
+        assertEquals("3", store.getRosterVersion());
+        assertEquals(2, store.getEntries().size());
+        assertEquals("User 0", store.getEntry(items.get(0).getJid()).getName());
+        assertEquals("User 1", store.getEntry(items.get(1).getJid()).getName());
+        store.close();
+    }
+
+    /**
+     * Tests that the entries are preserved when the journal is compacted, and that records appended after the
+     * compaction are replayed.
+     */
+    @Test
+    public void testCompaction() throws IOException {
+        File storeDir = tmpFolder.newFolder();
+        JournaledRosterStore store = JournaledRosterStore.init(storeDir);
+
+        List<Item> items = createItems(100);
+        int version = 0;
+        for (Item item : items) {
+            store.addEntry(item, Integer.toString(++version));
+        }
+        store.removeEntry(items.get(0).getJid(), Integer.toString(++version));
+
+        store.compact();
+        // Only the journal header remains.
+        assertEquals(12, new File(storeDir, "roster-journal").length());
+
+        store.removeEntry(items.get(1).getJid(), Integer.toString(++version));
+
+        store = reopen(store, storeDir);
+        assertEquals(Integer.toString(version), store.getRosterVersion());
+        assertEquals(items.size() - 2, store.getEntries().size());
+        assertNull(store.getEntry(items.get(0).getJid()));
+        assertNull(store.getEntry(items.get(1).getJid()));
+        assertNotNull(store.getEntry(items.get(2).getJid()));
+        store.close();
+    }
+
+    /**
+     * Tests that a partially written journal record, e.g. caused by a crash, is discarded.
+     */
+    @Test
+    public void testTornJournalRecordIsDiscarded() throws IOException {
+        File storeDir = tmpFolder.newFolder();
+        JournaledRosterStore store = JournaledRosterStore.init(storeDir);
+        List<Item> items = createItems(2);
+        store.addEntry(items.get(0), "1");
+        store.addEntry(items.get(1), "2");
+        store.close();
+
+        File journalFile = new File(storeDir, "roster-journal");
+        RandomAccessFile journal = new RandomAccessFile(journalFile, "rw");
+        try {
+            journal.setLength(journal.length() - 3);
+        }
+        finally {
+            journal.close();
+        }
+
+        store = JournaledRosterStore.open(storeDir);
+        assertNotNull(store);
+        assertEquals("1", store.getRosterVersion());
+        assertEquals(1, store.getEntries().size());
+        assertNotNull(store.getEntry(items.get(0).getJid()));
+
+        // Records appended after the torn record was discarded must be readable.
+        store.addEntry(items.get(1), "3");
+        store = reopen(store, storeDir);
+        assertEquals("3", store.getRosterVersion());
+        assertEquals(2, store.getEntries().size());
+        store.close();
+    }
+
+    /**
+     * Tests that a closed store can still be read, but not modified.
+     */
+    @Test
+    public void testClosedStoreIsNotModified() throws IOException {
+        File storeDir = tmpFolder.newFolder();
+        JournaledRosterStore store = JournaledRosterStore.init(storeDir);
+        List<Item> items = createItems(2);
+        assertTrue(store.addEntry(items.get(0), "1"));
+        store.close();
+
+        assertFalse(store.addEntry(items.get(1), "2"));
+        assertFalse(store.resetEntries(items, "3"));
+        assertEquals("1", store.getRosterVersion());
+        assertEquals(1, store.getEntries().size());
+
+        store = JournaledRosterStore.open(storeDir);
+        assertEquals("1", store.getRosterVersion());
+        assertEquals(1, store.getEntries().size());
+        store.close();
+    }
+
+    /**
+     * Compares the time required to open a {@link JournaledRosterStore} with the time required to open a
+     * {@link DirectoryRosterStore}.
+     */
+    @Test
+    public void testLoadTime() throws IOException {
+        for (int rosterSize : new int[] { 1000, 10000 }) {
+            List<Item> items = createItems(rosterSize);
+
+            File journaledStoreDir = tmpFolder.newFolder();
+            JournaledRosterStore journaledStore = JournaledRosterStore.init(journaledStoreDir);
+            journaledStore.resetEntries(items, "1");
+            journaledStore.close();
+            long start = System.nanoTime();
+            journaledStore = JournaledRosterStore.open(journaledStoreDir);
+            List<Item> loadedItems = journaledStore.getEntries();
+            long journaledMillis = (System.nanoTime() - start) / 1000000;
+            journaledStore.close();
+            assertEquals(rosterSize, loadedItems.size());
+
+            File directoryStoreDir = tmpFolder.newFolder();
+            DirectoryRosterStore.init(directoryStoreDir).resetEntries(items, "1");
+            start = System.nanoTime();
+            loadedItems = DirectoryRosterStore.open(directoryStoreDir).getEntries();
+            long directoryMillis = (System.nanoTime() - start) / 1000000;
+            assertEquals(rosterSize, loadedItems.size());
+
+            LOGGER.info("Loading a roster of " + rosterSize + " entries took " + journaledMillis
+                            + "ms with the JournaledRosterStore and " + directoryMillis
+                            + "ms with the DirectoryRosterStore");
+        }
+    }
+
+    private static JournaledRosterStore reopen(JournaledRosterStore store, File storeDir) {
+        store.close();
+        return JournaledRosterStore.open(storeDir);
+    }
+
+    private static List<Item> createItems(int count) throws IOException {
+        List<Item> items = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            Item item = new Item(JidCreate.bareFrom("user" + i + "@example.org"), "User " + i);
+            item.setItemType(ItemType.both);
+            item.addGroupName("Friends");
+            items.add(item);
+        }
+        return items;
+    }
+}
@@ -36,6 +36,10 @@ import org.jxmpp.jid.BareJid;
  *
  * Alternatively this implementation can be used as an ephemeral keystore without a persisting backend.
  *
+ * The methods of this class are synchronized, since messages from different devices may be processed in parallel.
+ * Mutable values, like maps and dates, are copied when they are stored or returned, so that they are never accessed
+ * outside of the lock.
+ *
  * @param <T_IdKeyPair>
  * @param <T_IdKey>
  * @param <T_PreKey>
@@ -70,16 +74,16 @@ public class CachingOmemoStore<T_IdKeyPair, T_IdKey, T_PreKey, T_SigPreKey, T_Se
     }
 
     @Override
-    public SortedSet<Integer> localDeviceIdsOf(BareJid localUser) {
+    public synchronized SortedSet<Integer> localDeviceIdsOf(BareJid localUser) {
         if (persistent != null) {
-            return persistent.localDeviceIdsOf(localUser);
+            return new TreeSet<>(persistent.localDeviceIdsOf(localUser));
         } else {
             return new TreeSet<>(); //TODO: ?
         }
     }
 
     @Override
-    public T_IdKeyPair loadOmemoIdentityKeyPair(OmemoDevice userDevice)
+    public synchronized T_IdKeyPair loadOmemoIdentityKeyPair(OmemoDevice userDevice)
             throws CorruptedOmemoKeyException {
         T_IdKeyPair pair = getCache(userDevice).identityKeyPair;
 
@@ -94,7 +98,7 @@ public class CachingOmemoStore<T_IdKeyPair, T_IdKey, T_PreKey, T_SigPreKey, T_Se
     }
 
     @Override
-    public void storeOmemoIdentityKeyPair(OmemoDevice userDevice, T_IdKeyPair identityKeyPair) {
+    public synchronized void storeOmemoIdentityKeyPair(OmemoDevice userDevice, T_IdKeyPair identityKeyPair) {
         getCache(userDevice).identityKeyPair = identityKeyPair;
         if (persistent != null) {
             persistent.storeOmemoIdentityKeyPair(userDevice, identityKeyPair);
@@ -102,7 +106,7 @@ public class CachingOmemoStore<T_IdKeyPair, T_IdKey, T_PreKey, T_SigPreKey, T_Se
     }
 
     @Override
-    public void removeOmemoIdentityKeyPair(OmemoDevice userDevice) {
+    public synchronized void removeOmemoIdentityKeyPair(OmemoDevice userDevice) {
         getCache(userDevice).identityKeyPair = null;
         if (persistent != null) {
             persistent.removeOmemoIdentityKeyPair(userDevice);
@@ -110,7 +114,7 @@ public class CachingOmemoStore<T_IdKeyPair, T_IdKey, T_PreKey, T_SigPreKey, T_Se
     }
 
     @Override
-    public T_IdKey loadOmemoIdentityKey(OmemoDevice userDevice, OmemoDevice contactsDevice)
+    public synchronized T_IdKey loadOmemoIdentityKey(OmemoDevice userDevice, OmemoDevice contactsDevice)
             throws CorruptedOmemoKeyException {
         T_IdKey idKey = getCache(userDevice).identityKeys.get(contactsDevice);
 
@@ -125,7 +129,7 @@ public class CachingOmemoStore<T_IdKeyPair, T_IdKey, T_PreKey, T_SigPreKey, T_Se
     }
 
     @Override
-    public void storeOmemoIdentityKey(OmemoDevice userDevice, OmemoDevice device, T_IdKey t_idKey) {
+    public synchronized void storeOmemoIdentityKey(OmemoDevice userDevice, OmemoDevice device, T_IdKey t_idKey) {
         getCache(userDevice).identityKeys.put(device, t_idKey);
         if (persistent != null) {
             persistent.storeOmemoIdentityKey(userDevice, device, t_idKey);
@@ -133,7 +137,7 @@ public class CachingOmemoStore<T_IdKeyPair, T_IdKey, T_PreKey, T_SigPreKey, T_Se
     }
 
     @Override
-    public void removeOmemoIdentityKey(OmemoDevice userDevice, OmemoDevice contactsDevice) {
+    public synchronized void removeOmemoIdentityKey(OmemoDevice userDevice, OmemoDevice contactsDevice) {
         getCache(userDevice).identityKeys.remove(contactsDevice);
         if (persistent != null) {
             persistent.removeOmemoIdentityKey(userDevice, contactsDevice);
@@ -141,7 +145,7 @@ public class CachingOmemoStore<T_IdKeyPair, T_IdKey, T_PreKey, T_SigPreKey, T_Se
     }
 
     @Override
-    public void storeOmemoMessageCounter(OmemoDevice userDevice, OmemoDevice contactsDevice, int counter) {
+    public synchronized void storeOmemoMessageCounter(OmemoDevice userDevice, OmemoDevice contactsDevice, int counter) {
         getCache(userDevice).messageCounters.put(contactsDevice, counter);
         if (persistent != null) {
             persistent.storeOmemoMessageCounter(userDevice, contactsDevice, counter);
@@ -149,7 +153,7 @@ public class CachingOmemoStore<T_IdKeyPair, T_IdKey, T_PreKey, T_SigPreKey, T_Se
     }
 
     @Override
-    public int loadOmemoMessageCounter(OmemoDevice userDevice, OmemoDevice contactsDevice) {
+    public synchronized int loadOmemoMessageCounter(OmemoDevice userDevice, OmemoDevice contactsDevice) {
         Integer counter = getCache(userDevice).messageCounters.get(contactsDevice);
         if (counter == null && persistent != null) {
             counter = persistent.loadOmemoMessageCounter(userDevice, contactsDevice);
@@ -165,15 +169,15 @@ public class CachingOmemoStore<T_IdKeyPair, T_IdKey, T_PreKey, T_SigPreKey, T_Se
     }
 
     @Override
-    public void setDateOfLastReceivedMessage(OmemoDevice userDevice, OmemoDevice from, Date date) {
-        getCache(userDevice).lastMessagesDates.put(from, date);
+    public synchronized void setDateOfLastReceivedMessage(OmemoDevice userDevice, OmemoDevice from, Date date) {
+        getCache(userDevice).lastMessagesDates.put(from, copyOf(date));
         if (persistent != null) {
             persistent.setDateOfLastReceivedMessage(userDevice, from, date);
         }
     }
 
     @Override
-    public Date getDateOfLastReceivedMessage(OmemoDevice userDevice, OmemoDevice from) {
+    public synchronized Date getDateOfLastReceivedMessage(OmemoDevice userDevice, OmemoDevice from) {
         Date last = getCache(userDevice).lastMessagesDates.get(from);
 
         if (last == null && persistent != null) {
@@ -183,19 +187,19 @@ public class CachingOmemoStore<T_IdKeyPair, T_IdKey, T_PreKey, T_SigPreKey, T_Se
             }
         }
 
-        return last;
+        return copyOf(last);
     }
 
     @Override
-    public void setDateOfLastDeviceIdPublication(OmemoDevice userDevice, OmemoDevice contactsDevice, Date date) {
-        getCache(userDevice).lastDeviceIdPublicationDates.put(contactsDevice, date);
+    public synchronized void setDateOfLastDeviceIdPublication(OmemoDevice userDevice, OmemoDevice contactsDevice, Date date) {
+        getCache(userDevice).lastDeviceIdPublicationDates.put(contactsDevice, copyOf(date));
         if (persistent != null) {
             persistent.setDateOfLastReceivedMessage(userDevice, contactsDevice, date);
         }
     }
 
     @Override
-    public Date getDateOfLastDeviceIdPublication(OmemoDevice userDevice, OmemoDevice contactsDevice) {
+    public synchronized Date getDateOfLastDeviceIdPublication(OmemoDevice userDevice, OmemoDevice contactsDevice) {
         Date last = getCache(userDevice).lastDeviceIdPublicationDates.get(contactsDevice);
 
         if (last == null && persistent != null) {
@@ -205,19 +209,19 @@ public class CachingOmemoStore<T_IdKeyPair, T_IdKey, T_PreKey, T_SigPreKey, T_Se
             }
         }
 
-        return last;
+        return copyOf(last);
     }
 
     @Override
-    public void setDateOfLastSignedPreKeyRenewal(OmemoDevice userDevice, Date date) {
-        getCache(userDevice).lastRenewalDate = date;
+    public synchronized void setDateOfLastSignedPreKeyRenewal(OmemoDevice userDevice, Date date) {
+        getCache(userDevice).lastRenewalDate = copyOf(date);
         if (persistent != null) {
             persistent.setDateOfLastSignedPreKeyRenewal(userDevice, date);
         }
     }
 
     @Override
-    public Date getDateOfLastSignedPreKeyRenewal(OmemoDevice userDevice) {
+    public synchronized Date getDateOfLastSignedPreKeyRenewal(OmemoDevice userDevice) {
         Date lastRenewal = getCache(userDevice).lastRenewalDate;
 
         if (lastRenewal == null && persistent != null) {
@@ -227,11 +231,11 @@ public class CachingOmemoStore<T_IdKeyPair, T_IdKey, T_PreKey, T_SigPreKey, T_Se
             }
         }
 
-        return lastRenewal;
+        return copyOf(lastRenewal);
     }
 
     @Override
-    public T_PreKey loadOmemoPreKey(OmemoDevice userDevice, int preKeyId) {
+    public synchronized T_PreKey loadOmemoPreKey(OmemoDevice userDevice, int preKeyId) {
         T_PreKey preKey = getCache(userDevice).preKeys.get(preKeyId);
 
         if (preKey == null && persistent != null) {
@@ -245,7 +249,7 @@ public class CachingOmemoStore<T_IdKeyPair, T_IdKey, T_PreKey, T_SigPreKey, T_Se
     }
 
     @Override
-    public void storeOmemoPreKey(OmemoDevice userDevice, int preKeyId, T_PreKey t_preKey) {
+    public synchronized void storeOmemoPreKey(OmemoDevice userDevice, int preKeyId, T_PreKey t_preKey) {
         getCache(userDevice).preKeys.put(preKeyId, t_preKey);
         if (persistent != null) {
             persistent.storeOmemoPreKey(userDevice, preKeyId, t_preKey);
@@ -253,7 +257,7 @@ public class CachingOmemoStore<T_IdKeyPair, T_IdKey, T_PreKey, T_SigPreKey, T_Se
     }
 
     @Override
-    public void removeOmemoPreKey(OmemoDevice userDevice, int preKeyId) {
+    public synchronized void removeOmemoPreKey(OmemoDevice userDevice, int preKeyId) {
         getCache(userDevice).preKeys.remove(preKeyId);
         if (persistent != null) {
             persistent.removeOmemoPreKey(userDevice, preKeyId);
@@ -261,7 +265,7 @@ public class CachingOmemoStore<T_IdKeyPair, T_IdKey, T_PreKey, T_SigPreKey, T_Se
     }
 
     @Override
-    public TreeMap<Integer, T_PreKey> loadOmemoPreKeys(OmemoDevice userDevice) {
+    public synchronized TreeMap<Integer, T_PreKey> loadOmemoPreKeys(OmemoDevice userDevice) {
         TreeMap<Integer, T_PreKey> preKeys = getCache(userDevice).preKeys;
 
         if (preKeys.isEmpty() && persistent != null) {
@@ -272,7 +276,7 @@ public class CachingOmemoStore<T_IdKeyPair, T_IdKey, T_PreKey, T_SigPreKey, T_Se
     }
 
     @Override
-    public T_SigPreKey loadOmemoSignedPreKey(OmemoDevice userDevice, int signedPreKeyId) {
+    public synchronized T_SigPreKey loadOmemoSignedPreKey(OmemoDevice userDevice, int signedPreKeyId) {
         T_SigPreKey sigPreKey = getCache(userDevice).signedPreKeys.get(signedPreKeyId);
 
         if (sigPreKey == null && persistent != null) {
@@ -286,7 +290,7 @@ public class CachingOmemoStore<T_IdKeyPair, T_IdKey, T_PreKey, T_SigPreKey, T_Se
     }
 
     @Override
-    public TreeMap<Integer, T_SigPreKey> loadOmemoSignedPreKeys(OmemoDevice userDevice) {
+    public synchronized TreeMap<Integer, T_SigPreKey> loadOmemoSignedPreKeys(OmemoDevice userDevice) {
         TreeMap<Integer, T_SigPreKey> sigPreKeys = getCache(userDevice).signedPreKeys;
 
         if (sigPreKeys.isEmpty() && persistent != null) {
@@ -297,7 +301,7 @@ public class CachingOmemoStore<T_IdKeyPair, T_IdKey, T_PreKey, T_SigPreKey, T_Se
     }
 
     @Override
-    public void storeOmemoSignedPreKey(OmemoDevice userDevice,
+    public synchronized void storeOmemoSignedPreKey(OmemoDevice userDevice,
                                        int signedPreKeyId,
                                        T_SigPreKey signedPreKey) {
         getCache(userDevice).signedPreKeys.put(signedPreKeyId, signedPreKey);
@@ -307,7 +311,7 @@ public class CachingOmemoStore<T_IdKeyPair, T_IdKey, T_PreKey, T_SigPreKey, T_Se
     }
 
     @Override
-    public void removeOmemoSignedPreKey(OmemoDevice userDevice, int signedPreKeyId) {
+    public synchronized void removeOmemoSignedPreKey(OmemoDevice userDevice, int signedPreKeyId) {
         getCache(userDevice).signedPreKeys.remove(signedPreKeyId);
         if (persistent != null) {
             persistent.removeOmemoSignedPreKey(userDevice, signedPreKeyId);
@@ -315,7 +319,7 @@ public class CachingOmemoStore<T_IdKeyPair, T_IdKey, T_PreKey, T_SigPreKey, T_Se
     }
 
     @Override
-    public T_Sess loadRawSession(OmemoDevice userDevice, OmemoDevice contactsDevice) {
+    public synchronized T_Sess loadRawSession(OmemoDevice userDevice, OmemoDevice contactsDevice) {
         HashMap<Integer, T_Sess> contactSessions = getCache(userDevice).sessions.get(contactsDevice.getJid());
         if (contactSessions == null) {
             contactSessions = new HashMap<>();
@@ -334,7 +338,7 @@ public class CachingOmemoStore<T_IdKeyPair, T_IdKey, T_PreKey, T_SigPreKey, T_Se
     }
 
     @Override
-    public HashMap<Integer, T_Sess> loadAllRawSessionsOf(OmemoDevice userDevice, BareJid contact) {
+    public synchronized HashMap<Integer, T_Sess> loadAllRawSessionsOf(OmemoDevice userDevice, BareJid contact) {
         HashMap<Integer, T_Sess> sessions = getCache(userDevice).sessions.get(contact);
         if (sessions == null) {
             sessions = new HashMap<>();
@@ -349,7 +353,7 @@ public class CachingOmemoStore<T_IdKeyPair, T_IdKey, T_PreKey, T_SigPreKey, T_Se
     }
 
     @Override
-    public void storeRawSession(OmemoDevice userDevice, OmemoDevice contactsDevicece, T_Sess session) {
+    public synchronized void storeRawSession(OmemoDevice userDevice, OmemoDevice contactsDevicece, T_Sess session) {
         HashMap<Integer, T_Sess> sessions = getCache(userDevice).sessions.get(contactsDevicece.getJid());
         if (sessions == null) {
             sessions = new HashMap<>();
@@ -363,7 +367,7 @@ public class CachingOmemoStore<T_IdKeyPair, T_IdKey, T_PreKey, T_SigPreKey, T_Se
     }
 
     @Override
-    public void removeRawSession(OmemoDevice userDevice, OmemoDevice contactsDevice) {
+    public synchronized void removeRawSession(OmemoDevice userDevice, OmemoDevice contactsDevice) {
         HashMap<Integer, T_Sess> sessions = getCache(userDevice).sessions.get(contactsDevice.getJid());
         if (sessions != null) {
             sessions.remove(contactsDevice.getDeviceId());
@@ -375,7 +379,7 @@ public class CachingOmemoStore<T_IdKeyPair, T_IdKey, T_PreKey, T_SigPreKey, T_Se
     }
 
     @Override
-    public void removeAllRawSessionsOf(OmemoDevice userDevice, BareJid contact) {
+    public synchronized void removeAllRawSessionsOf(OmemoDevice userDevice, BareJid contact) {
         getCache(userDevice).sessions.remove(contact);
         if (persistent != null) {
             persistent.removeAllRawSessionsOf(userDevice, contact);
@@ -383,7 +387,7 @@ public class CachingOmemoStore<T_IdKeyPair, T_IdKey, T_PreKey, T_SigPreKey, T_Se
     }
 
     @Override
-    public boolean containsRawSession(OmemoDevice userDevice, OmemoDevice contactsDevice) {
+    public synchronized boolean containsRawSession(OmemoDevice userDevice, OmemoDevice contactsDevice) {
         HashMap<Integer, T_Sess> sessions = getCache(userDevice).sessions.get(contactsDevice.getJid());
 
         return (sessions != null && sessions.get(contactsDevice.getDeviceId()) != null) ||
@@ -391,7 +395,7 @@ public class CachingOmemoStore<T_IdKeyPair, T_IdKey, T_PreKey, T_SigPreKey, T_Se
     }
 
     @Override
-    public OmemoCachedDeviceList loadCachedDeviceList(OmemoDevice userDevice, BareJid contact) {
+    public synchronized OmemoCachedDeviceList loadCachedDeviceList(OmemoDevice userDevice, BareJid contact) {
         OmemoCachedDeviceList list = getCache(userDevice).deviceLists.get(contact);
 
         if (list == null && persistent != null) {
@@ -405,7 +409,7 @@ public class CachingOmemoStore<T_IdKeyPair, T_IdKey, T_PreKey, T_SigPreKey, T_Se
     }
 
     @Override
-    public void storeCachedDeviceList(OmemoDevice userDevice,
+    public synchronized void storeCachedDeviceList(OmemoDevice userDevice,
                                       BareJid contact,
                                       OmemoCachedDeviceList deviceList) {
         getCache(userDevice).deviceLists.put(contact, new OmemoCachedDeviceList(deviceList));
@@ -416,7 +420,7 @@ public class CachingOmemoStore<T_IdKeyPair, T_IdKey, T_PreKey, T_SigPreKey, T_Se
     }
 
     @Override
-    public void purgeOwnDeviceKeys(OmemoDevice userDevice) {
+    public synchronized void purgeOwnDeviceKeys(OmemoDevice userDevice) {
         caches.remove(userDevice);
 
         if (persistent != null) {
@@ -434,6 +438,10 @@ public class CachingOmemoStore<T_IdKeyPair, T_IdKey, T_PreKey, T_SigPreKey, T_Se
         }
     }
 
+    private static Date copyOf(Date date) {
+        return date == null ? null : new Date(date.getTime());
+    }
+
     /**
      * Return the {@link KeyCache} object of an {@link OmemoManager}.
      * @param device
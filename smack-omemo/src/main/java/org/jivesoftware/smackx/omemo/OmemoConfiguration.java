@@ -239,4 +239,82 @@ public final class OmemoConfiguration {
     public static void setCompleteSessionWithEmptyMessage(boolean complete) {
         COMPLETE_SESSION_WITH_EMPTY_MESSAGE = complete;
     }
+
+    private static int MAX_CONCURRENT_BUNDLE_REQUESTS = 16;
+
+    /**
+     * Set the maximum number of bundle requests which are sent to the server before waiting for the responses, when
+     * sessions with multiple devices have to be established at once, e.g. before sending the first message to a group
+     * chat.
+     *
+     * @param maxRequests maximum number of outstanding bundle requests.
+     */
+    public static void setMaxConcurrentBundleRequests(int maxRequests) {
+        if (maxRequests <= 0) {
+            throw new IllegalArgumentException("maxRequests MUST be greater than 0.");
+        }
+        MAX_CONCURRENT_BUNDLE_REQUESTS = maxRequests;
+    }
+
+    /**
+     * Get the maximum number of bundle requests which are sent to the server before waiting for the responses.
+     *
+     * @return maximum number of outstanding bundle requests.
+     */
+    public static int getMaxConcurrentBundleRequests() {
+        return MAX_CONCURRENT_BUNDLE_REQUESTS;
+    }
+
+    private static long FAILED_BUNDLE_LOOKUP_CACHE_EXPIRATION_MILLIS = 1000L * 30;   // 30 seconds
+
+    /**
+     * Set the time in milliseconds, for which failed bundle lookups are cached. A lookup failed if the server answered
+     * with an error, e.g. because the device never published a bundle, or if the bundle node contains no bundle. The
+     * bundle of such a device is not requested again until the entry expires, which avoids requesting it before every
+     * message sent to stale devices in a device list. Fetched bundles themselves are never cached, since a session
+     * consumes one of their preKeys. A value of 0 disables the cache. The new value applies to lookups failing
+     * afterwards.
+     *
+     * @param millis time in milliseconds after which cached failed bundle lookups expire.
+     */
+    public static void setFailedBundleLookupCacheExpirationMillis(long millis) {
+        if (millis < 0) {
+            throw new IllegalArgumentException("millis MUST NOT be negative.");
+        }
+        FAILED_BUNDLE_LOOKUP_CACHE_EXPIRATION_MILLIS = millis;
+    }
+
+    /**
+     * Get the time in milliseconds, for which failed bundle lookups are cached.
+     *
+     * @return time in milliseconds after which cached failed bundle lookups expire.
+     */
+    public static long getFailedBundleLookupCacheExpirationMillis() {
+        return FAILED_BUNDLE_LOOKUP_CACHE_EXPIRATION_MILLIS;
+    }
+
+    private static long MAM_DECRYPTION_TIMEOUT_MILLIS = 1000L * 60;   // 1 minute
+
+    /**
+     * Set the time in milliseconds, for which {@link OmemoManager#decryptMamQueryResult} waits for the decryption of
+     * the messages of a MAM query result. Messages which are not decrypted within this time are returned as they are.
+     *
+     * @param millis time in milliseconds.
+     */
+    public static void setMamDecryptionTimeoutMillis(long millis) {
+        if (millis <= 0) {
+            throw new IllegalArgumentException("millis MUST be greater than 0.");
+        }
+        MAM_DECRYPTION_TIMEOUT_MILLIS = millis;
+    }
+
+    /**
+     * Get the time in milliseconds, for which {@link OmemoManager#decryptMamQueryResult} waits for the decryption of
+     * the messages of a MAM query result.
+     *
+     * @return time in milliseconds.
+     */
+    public static long getMamDecryptionTimeoutMillis() {
+        return MAM_DECRYPTION_TIMEOUT_MILLIS;
+    }
 }
@@ -83,6 +83,7 @@ import org.jxmpp.jid.BareJid;
 import org.jxmpp.jid.DomainBareJid;
 import org.jxmpp.jid.EntityBareJid;
 import org.jxmpp.jid.EntityFullJid;
+import org.jxmpp.util.cache.ExpirationCache;
 
 /**
  * Manager that allows sending messages encrypted with OMEMO.
@@ -95,8 +96,28 @@ public final class OmemoManager extends Manager {
     private static final Logger LOGGER = Logger.getLogger(OmemoManager.class.getName());
 
     private static final Integer UNKNOWN_DEVICE_ID = -1;
+
+    /**
+     * Guards our own keys and device list. The sessions with remote devices are guarded by the locks returned by
+     * {@link #getLockFor(OmemoDevice)}. Code holding this lock may acquire a device lock, but not vice versa.
+     */
     final Object LOCK = new Object();
 
+    private static final int DEVICE_LOCK_STRIPES = 32;
+
+    /**
+     * The locks of the remote devices. Devices are mapped to a fixed number of locks by their hash code, so that the
+     * locks do not accumulate with every remote device ever seen.
+     */
+    private final Object[] deviceLocks = new Object[DEVICE_LOCK_STRIPES];
+
+    /**
+     * The reasons why recently looked up bundles of remote devices could not be fetched. Entries expire after
+     * {@link OmemoConfiguration#getFailedBundleLookupCacheExpirationMillis()}.
+     */
+    private final ExpirationCache<OmemoDevice, Exception> failedBundleLookups = new ExpirationCache<>(128,
+            OmemoConfiguration.getFailedBundleLookupCacheExpirationMillis());
+
     private static final WeakHashMap<XMPPConnection, TreeMap<Integer,OmemoManager>> INSTANCES = new WeakHashMap<>();
     private final OmemoService<?, ?, ?, ?, ?, ?, ?, ?, ?> service;
 
@@ -106,7 +127,7 @@ public final class OmemoManager extends Manager {
     private OmemoTrustCallback trustCallback;
 
     private BareJid ownJid;
-    private Integer deviceId;
+    private volatile Integer deviceId;
 
     /**
      * Private constructor.
@@ -119,6 +140,10 @@ public final class OmemoManager extends Manager {
 
         service = OmemoService.getInstance();
 
+        for (int i = 0; i < deviceLocks.length; i++) {
+            deviceLocks[i] = new Object();
+        }
+
         this.deviceId = deviceId;
 
         if (connection.isAuthenticated()) {
@@ -398,11 +423,12 @@ public final class OmemoManager extends Manager {
     }
 
     /**
-     * Decrypt messages from a MAM query.
+     * Decrypt messages from a MAM query. Messages from different devices are decrypted in parallel.
      *
      * @param mamQuery The MAM query
-     * @return list of decrypted OmemoMessages
+     * @return list of decrypted OmemoMessages in the order of the query result
      * @throws SmackException.NotLoggedInException if the Manager is not authenticated.
+     * @see OmemoConfiguration#setMamDecryptionTimeoutMillis(long)
      */
     public List<MessageOrOmemoMessage> decryptMamQueryResult(MamManager.MamQuery mamQuery)
             throws SmackException.NotLoggedInException {
@@ -791,9 +817,7 @@ public final class OmemoManager extends Manager {
      * @return deviceId
      */
     public Integer getDeviceId() {
-        synchronized (LOCK) {
-            return deviceId;
-        }
+        return deviceId;
     }
 
     /**
@@ -802,13 +826,35 @@ public final class OmemoManager extends Manager {
      * @return omemoDevice
      */
     public OmemoDevice getOwnDevice() {
-        synchronized (LOCK) {
-            BareJid jid = getOwnJid();
-            if (jid == null) {
-                return null;
-            }
-            return new OmemoDevice(jid, getDeviceId());
+        BareJid jid = getOwnJid();
+        if (jid == null) {
+            return null;
         }
+        return new OmemoDevice(jid, getDeviceId());
+    }
+
+    /**
+     * Return the lock which guards the session with the given remote device. Messages from and to different devices
+     * can be processed in parallel, while the ratchet steps of a single device are performed one after another.
+     * Different devices may share the same lock, hence code holding a device lock must not acquire the lock of another
+     * device.
+     *
+     * @param device the remote device.
+     * @return the lock of the device.
+     */
+    Object getLockFor(OmemoDevice device) {
+        int hash = device.hashCode();
+        hash ^= hash >>> 16;
+        return deviceLocks[(hash & 0x7fffffff) % deviceLocks.length];
+    }
+
+    /**
+     * Return the cache of the bundle lookups of this manager which recently failed.
+     *
+     * @return the failed bundle lookup cache.
+     */
+    ExpirationCache<OmemoDevice, Exception> getFailedBundleLookupCache() {
+        return failedBundleLookups;
     }
 
     /**
@@ -26,24 +26,35 @@ import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
 import java.security.Security;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.crypto.BadPaddingException;
 import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.NoSuchPaddingException;
 
+import org.jivesoftware.smack.AsyncButOrdered;
 import org.jivesoftware.smack.SmackException;
+import org.jivesoftware.smack.SmackFuture;
 import org.jivesoftware.smack.XMPPConnection;
 import org.jivesoftware.smack.XMPPException;
+import org.jivesoftware.smack.packet.ExtensionElement;
+import org.jivesoftware.smack.packet.IQ;
 import org.jivesoftware.smack.packet.Message;
+import org.jivesoftware.smack.packet.NamedElement;
 import org.jivesoftware.smack.packet.Stanza;
 import org.jivesoftware.smack.packet.StanzaError;
 import org.jivesoftware.smackx.carbons.packet.CarbonExtension;
@@ -56,6 +67,7 @@ import org.jivesoftware.smackx.omemo.element.OmemoDeviceListElement;
 import org.jivesoftware.smackx.omemo.element.OmemoDeviceListElement_VAxolotl;
 import org.jivesoftware.smackx.omemo.element.OmemoElement;
 import org.jivesoftware.smackx.omemo.element.OmemoElement_VAxolotl;
+import org.jivesoftware.smackx.omemo.element.OmemoKeyElement;
 import org.jivesoftware.smackx.omemo.exceptions.CannotEstablishOmemoSessionException;
 import org.jivesoftware.smackx.omemo.exceptions.CorruptedOmemoKeyException;
 import org.jivesoftware.smackx.omemo.exceptions.CryptoFailedException;
@@ -75,15 +87,20 @@ import org.jivesoftware.smackx.omemo.trust.TrustState;
 import org.jivesoftware.smackx.omemo.util.MessageOrOmemoMessage;
 import org.jivesoftware.smackx.omemo.util.OmemoConstants;
 import org.jivesoftware.smackx.omemo.util.OmemoMessageBuilder;
+import org.jivesoftware.smackx.pubsub.GetItemsRequest;
+import org.jivesoftware.smackx.pubsub.ItemsExtension;
 import org.jivesoftware.smackx.pubsub.LeafNode;
 import org.jivesoftware.smackx.pubsub.PayloadItem;
+import org.jivesoftware.smackx.pubsub.PubSubElementType;
 import org.jivesoftware.smackx.pubsub.PubSubException;
 import org.jivesoftware.smackx.pubsub.PubSubManager;
+import org.jivesoftware.smackx.pubsub.packet.PubSub;
 
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
 import org.jxmpp.jid.BareJid;
 import org.jxmpp.jid.EntityBareJid;
 import org.jxmpp.jid.Jid;
+import org.jxmpp.util.cache.ExpirationCache;
 
 /**
  * This class contains OMEMO related logic and registers listeners etc.
@@ -110,6 +127,13 @@ public abstract class OmemoService<T_IdKeyPair, T_IdKey, T_PreKey, T_SigPreKey,
 
     private static final long MILLIS_PER_HOUR = 1000L * 60 * 60;
 
+    /**
+     * Decrypts the messages of MAM query results in parallel, while keeping the order of the messages of each sender
+     * device. As decryption is CPU bound, the number of threads is limited to the number of processors.
+     */
+    private static final AsyncButOrdered<OmemoDevice> MAM_DECRYPTION = new AsyncButOrdered<>(
+            Runtime.getRuntime().availableProcessors());
+
     /**
      * This is a singleton.
      */
@@ -206,20 +230,23 @@ public abstract class OmemoService<T_IdKeyPair, T_IdKey, T_PreKey, T_SigPreKey,
 
     /**
      * Return the deposited instance of the OmemoRatchet for the given manager.
-     * If there is none yet, create a new one, deposit it and return it.
+     * If there is none yet, create a new one, deposit it and return it. This method may be called concurrently, e.g.
+     * while messages of different devices are decrypted in parallel.
      *
      * @param manager OmemoManager we want to have the ratchet for.
      * @return OmemoRatchet instance
      */
     protected OmemoRatchet<T_IdKeyPair, T_IdKey, T_PreKey, T_SigPreKey, T_Sess, T_Addr, T_ECPub, T_Bundle, T_Ciph>
     getOmemoRatchet(OmemoManager manager) {
-        OmemoRatchet<T_IdKeyPair, T_IdKey, T_PreKey, T_SigPreKey, T_Sess, T_Addr, T_ECPub, T_Bundle, T_Ciph>
-                omemoRatchet = omemoRatchets.get(manager);
-        if (omemoRatchet == null) {
-            omemoRatchet = instantiateOmemoRatchet(manager, omemoStore);
-            omemoRatchets.put(manager, omemoRatchet);
+        synchronized (omemoRatchets) {
+            OmemoRatchet<T_IdKeyPair, T_IdKey, T_PreKey, T_SigPreKey, T_Sess, T_Addr, T_ECPub, T_Bundle, T_Ciph>
+                    omemoRatchet = omemoRatchets.get(manager);
+            if (omemoRatchet == null) {
+                omemoRatchet = instantiateOmemoRatchet(manager, omemoStore);
+                omemoRatchets.put(manager, omemoRatchet);
+            }
+            return omemoRatchet;
         }
-        return omemoRatchet;
     }
 
     /**
@@ -228,7 +255,9 @@ public abstract class OmemoService<T_IdKeyPair, T_IdKey, T_PreKey, T_SigPreKey,
      * @param manager manager.
      */
     void registerRatchetForManager(OmemoManager manager) {
-        omemoRatchets.put(manager, instantiateOmemoRatchet(manager, getOmemoStoreBackend()));
+        synchronized (omemoRatchets) {
+            omemoRatchets.put(manager, instantiateOmemoRatchet(manager, getOmemoStoreBackend()));
+        }
     }
 
     /**
@@ -294,11 +323,6 @@ public abstract class OmemoService<T_IdKeyPair, T_IdKey, T_PreKey, T_SigPreKey,
             throw new IllegalArgumentException("\"Thou shall not update thy own ratchet!\" - William Shakespeare");
         }
 
-        // Establish session if necessary
-        if (!hasSession(userDevice, contactsDevice)) {
-            buildFreshSessionWithDevice(manager.getConnection(), userDevice, contactsDevice);
-        }
-
         // Generate fresh AES key and IV
         byte[] messageKey = OmemoMessageBuilder.generateKey(KEYTYPE, KEYLENGTH);
         byte[] iv = OmemoMessageBuilder.generateIv();
@@ -314,7 +338,15 @@ public abstract class OmemoService<T_IdKeyPair, T_IdKey, T_PreKey, T_SigPreKey,
 
         // Add recipient
         try {
-            builder.addRecipient(contactsDevice);
+            // Avoid the ratchet of the contacts device being manipulated simultaneously
+            synchronized (manager.getLockFor(contactsDevice)) {
+                // Establish session if necessary
+                if (!hasSession(userDevice, contactsDevice)) {
+                    buildFreshSessionWithDevice(manager.getConnection(), userDevice, contactsDevice);
+                }
+
+                builder.addRecipient(contactsDevice);
+            }
         } catch (UndecidedOmemoIdentityException | UntrustedOmemoIdentityException e) {
             throw new AssertionError("Gullible Trust Callback reported undecided or untrusted device, " +
                     "even though it MUST NOT do that.");
@@ -356,16 +388,17 @@ public abstract class OmemoService<T_IdKeyPair, T_IdKey, T_PreKey, T_SigPreKey,
         // Do not encrypt for our own device.
         removeOurDevice(userDevice, contactsDevices);
 
-        buildMissingSessionsWithDevices(manager.getConnection(), userDevice, contactsDevices);
+        // Keep track of skipped devices
+        HashMap<OmemoDevice, Throwable> skippedRecipients = new HashMap<>();
+
+        Set<OmemoDevice> devicesWithSession = buildMissingSessionsWithDevices(manager.getConnection(), userDevice,
+                contactsDevices, manager.getFailedBundleLookupCache(), skippedRecipients);
 
         Set<OmemoDevice> undecidedDevices = getUndecidedDevices(userDevice, manager.getTrustCallback(), contactsDevices);
         if (!undecidedDevices.isEmpty()) {
             throw new UndecidedOmemoIdentityException(undecidedDevices);
         }
 
-        // Keep track of skipped devices
-        HashMap<OmemoDevice, Throwable> skippedRecipients = new HashMap<>();
-
         OmemoMessageBuilder<T_IdKeyPair, T_IdKey, T_PreKey, T_SigPreKey, T_Sess, T_Addr, T_ECPub, T_Bundle, T_Ciph> builder;
         try {
             builder = new OmemoMessageBuilder<>(
@@ -376,55 +409,52 @@ public abstract class OmemoService<T_IdKeyPair, T_IdKey, T_PreKey, T_SigPreKey,
         }
 
         for (OmemoDevice contactsDevice : contactsDevices) {
-            // Build missing sessions
-            if (!hasSession(userDevice, contactsDevice)) {
-                try {
-                    buildFreshSessionWithDevice(manager.getConnection(), userDevice, contactsDevice);
-                } catch (CorruptedOmemoKeyException | CannotEstablishOmemoSessionException e) {
-                    LOGGER.log(Level.WARNING, "Could not build session with " + contactsDevice + ".", e);
-                    skippedRecipients.put(contactsDevice, e);
-                    continue;
-                }
+            // Skip devices we could not build a session with
+            if (!devicesWithSession.contains(contactsDevice)) {
+                continue;
             }
 
-            int messageCounter = omemoStore.loadOmemoMessageCounter(userDevice, contactsDevice);
+            // Avoid the ratchet and the message counter of the device being manipulated simultaneously
+            synchronized (manager.getLockFor(contactsDevice)) {
+                int messageCounter = omemoStore.loadOmemoMessageCounter(userDevice, contactsDevice);
 
-            // Ignore read-only devices
-            if (OmemoConfiguration.getIgnoreReadOnlyDevices()) {
+                // Ignore read-only devices
+                if (OmemoConfiguration.getIgnoreReadOnlyDevices()) {
 
-                boolean readOnly = messageCounter >= OmemoConfiguration.getMaxReadOnlyMessageCount();
+                    boolean readOnly = messageCounter >= OmemoConfiguration.getMaxReadOnlyMessageCount();
 
-                if (readOnly) {
-                    LOGGER.log(Level.FINE, "Device " + contactsDevice + " seems to be read-only (We sent "
-                            + messageCounter + " messages without getting a reply back (max allowed is " +
-                            OmemoConfiguration.getMaxReadOnlyMessageCount() + "). Ignoring the device.");
-                    skippedRecipients.put(contactsDevice, new ReadOnlyDeviceException(contactsDevice));
+                    if (readOnly) {
+                        LOGGER.log(Level.FINE, "Device " + contactsDevice + " seems to be read-only (We sent "
+                                + messageCounter + " messages without getting a reply back (max allowed is " +
+                                OmemoConfiguration.getMaxReadOnlyMessageCount() + "). Ignoring the device.");
+                        skippedRecipients.put(contactsDevice, new ReadOnlyDeviceException(contactsDevice));
 
-                    // Skip this device and handle next device
-                    continue;
+                        // Skip this device and handle next device
+                        continue;
+                    }
                 }
-            }
 
-            // Add recipients
-            try {
-                builder.addRecipient(contactsDevice);
-            }
-            catch (NoIdentityKeyException | CorruptedOmemoKeyException e) {
-                LOGGER.log(Level.WARNING, "Encryption failed for device " + contactsDevice + ".", e);
-                skippedRecipients.put(contactsDevice, e);
-            }
-            catch (UndecidedOmemoIdentityException e) {
-                throw new AssertionError("Recipients device seems to be undecided, even though we should have thrown" +
-                        " an exception earlier in that case. " + e);
-            }
-            catch (UntrustedOmemoIdentityException e) {
-                LOGGER.log(Level.WARNING, "Device " + contactsDevice + " is untrusted. Message is not encrypted for it.");
-                skippedRecipients.put(contactsDevice, e);
-            }
+                // Add recipients
+                try {
+                    builder.addRecipient(contactsDevice);
+                }
+                catch (NoIdentityKeyException | CorruptedOmemoKeyException e) {
+                    LOGGER.log(Level.WARNING, "Encryption failed for device " + contactsDevice + ".", e);
+                    skippedRecipients.put(contactsDevice, e);
+                }
+                catch (UndecidedOmemoIdentityException e) {
+                    throw new AssertionError("Recipients device seems to be undecided, even though we should have thrown" +
+                            " an exception earlier in that case. " + e);
+                }
+                catch (UntrustedOmemoIdentityException e) {
+                    LOGGER.log(Level.WARNING, "Device " + contactsDevice + " is untrusted. Message is not encrypted for it.");
+                    skippedRecipients.put(contactsDevice, e);
+                }
 
-            // Increment the message counter of the device
-            omemoStore.storeOmemoMessageCounter(userDevice, contactsDevice,
-                    messageCounter + 1);
+                // Increment the message counter of the device
+                omemoStore.storeOmemoMessageCounter(userDevice, contactsDevice,
+                        messageCounter + 1);
+            }
         }
 
         OmemoElement element = builder.finish();
@@ -452,19 +482,25 @@ public abstract class OmemoService<T_IdKeyPair, T_IdKey, T_PreKey, T_SigPreKey,
         int senderId = omemoElement.getHeader().getSid();
         OmemoDevice senderDevice = new OmemoDevice(senderJid, senderId);
 
-        CipherAndAuthTag cipherAndAuthTag = getOmemoRatchet(manager)
-                .retrieveMessageKeyAndAuthTag(senderDevice, omemoElement);
-
-        // Retrieve senders fingerprint. TODO: Find a way to do this without the store.
+        CipherAndAuthTag cipherAndAuthTag;
         OmemoFingerprint senderFingerprint;
-        try {
-            senderFingerprint = getOmemoStoreBackend().getFingerprint(manager.getOwnDevice(), senderDevice);
-        } catch (NoIdentityKeyException e) {
-            throw new AssertionError("Cannot retrieve OmemoFingerprint of sender although decryption was successful: " + e);
-        }
+        // Avoid the ratchet of the senders device being manipulated simultaneously. Also avoid our preKeys being
+        // modified while a preKeyMessage consumes one of them.
+        synchronized (getPreKeyLock(manager, senderDevice, omemoElement)) {
+            synchronized (manager.getLockFor(senderDevice)) {
+                cipherAndAuthTag = getOmemoRatchet(manager).retrieveMessageKeyAndAuthTag(senderDevice, omemoElement);
+
+                // Retrieve senders fingerprint. TODO: Find a way to do this without the store.
+                try {
+                    senderFingerprint = getOmemoStoreBackend().getFingerprint(manager.getOwnDevice(), senderDevice);
+                } catch (NoIdentityKeyException e) {
+                    throw new AssertionError("Cannot retrieve OmemoFingerprint of sender although decryption was successful: " + e);
+                }
 
-        // Reset the message counter.
-        omemoStore.storeOmemoMessageCounter(manager.getOwnDevice(), senderDevice, 0);
+                // Reset the message counter.
+                omemoStore.storeOmemoMessageCounter(manager.getOwnDevice(), senderDevice, 0);
+            }
+        }
 
         if (omemoElement.isMessageElement()) {
             // Use symmetric message key to decrypt message payload.
@@ -572,6 +608,144 @@ public abstract class OmemoService<T_IdKeyPair, T_IdKey, T_PreKey, T_SigPreKey,
         return bundleItems.get(bundleItems.size() - 1).getPayload();
     }
 
+    /**
+     * Retrieve the OMEMO bundles of multiple devices. Instead of requesting one bundle after another, up to
+     * {@link OmemoConfiguration#getMaxConcurrentBundleRequests()} requests are sent before waiting for their responses,
+     * which saves a round trip per device. Devices whose bundle lookup failed recently are not requested again, but
+     * reported with the cached reason.
+     * <p>
+     * Contrary to {@link #fetchBundle(XMPPConnection, OmemoDevice)}, the bundle nodes are queried without asking for
+     * their node type first, since bundle nodes are always leaf nodes.
+     * </p>
+     *
+     * @param connection authenticated XMPP connection.
+     * @param contactsDevices devices of which we want to retrieve the bundles.
+     * @param failedLookups an optional cache of the reasons why bundle lookups failed recently, which is filled with
+     *                      the lookups failing now. Lookups which timed out are not cached.
+     * @param encounteredExceptions an optional map which will be filled with the exceptions encountered while
+     *                              retrieving the bundles of the devices.
+     * @return a map of the devices and their bundles. Devices which did not publish a bundle are not contained.
+     *
+     * @throws SmackException.NotConnectedException
+     * @throws InterruptedException
+     */
+    static Map<OmemoDevice, OmemoBundleElement> fetchBundles(XMPPConnection connection,
+                                                             Collection<OmemoDevice> contactsDevices,
+                                                             ExpirationCache<OmemoDevice, Exception> failedLookups,
+                                                             Map<? super OmemoDevice, Exception> encounteredExceptions)
+            throws SmackException.NotConnectedException, InterruptedException {
+
+        Map<OmemoDevice, OmemoBundleElement> bundles = new HashMap<>(contactsDevices.size());
+        // Outstanding requests in the order they were sent.
+        Map<OmemoDevice, SmackFuture<IQ, Exception>> pendingRequests = new LinkedHashMap<>();
+        int maxConcurrentRequests = OmemoConfiguration.getMaxConcurrentBundleRequests();
+
+        for (OmemoDevice contactsDevice : contactsDevices) {
+            Exception cachedFailure = failedLookups != null ? failedLookups.lookup(contactsDevice) : null;
+            if (cachedFailure != null) {
+                if (encounteredExceptions != null) {
+                    encounteredExceptions.put(contactsDevice, cachedFailure);
+                }
+                continue;
+            }
+
+            if (pendingRequests.size() >= maxConcurrentRequests) {
+                awaitBundle(pendingRequests, bundles, failedLookups, encounteredExceptions);
+            }
+
+            PubSub request = PubSub.createPubsubPacket(contactsDevice.getJid(), IQ.Type.get,
+                    new GetItemsRequest(contactsDevice.getBundleNodeName()));
+            pendingRequests.put(contactsDevice, connection.sendIqRequestAsync(request));
+        }
+
+        while (!pendingRequests.isEmpty()) {
+            awaitBundle(pendingRequests, bundles, failedLookups, encounteredExceptions);
+        }
+
+        return bundles;
+    }
+
+    /**
+     * Wait for the response to the oldest of the pending bundle requests and process it.
+     */
+    private static void awaitBundle(Map<OmemoDevice, SmackFuture<IQ, Exception>> pendingRequests,
+                                    Map<OmemoDevice, OmemoBundleElement> bundles,
+                                    ExpirationCache<OmemoDevice, Exception> failedLookups,
+                                    Map<? super OmemoDevice, Exception> encounteredExceptions)
+            throws SmackException.NotConnectedException, InterruptedException {
+
+        Iterator<Map.Entry<OmemoDevice, SmackFuture<IQ, Exception>>> it = pendingRequests.entrySet().iterator();
+        Map.Entry<OmemoDevice, SmackFuture<IQ, Exception>> oldest = it.next();
+        it.remove();
+        OmemoDevice contactsDevice = oldest.getKey();
+
+        IQ result;
+        try {
+            result = oldest.getValue().getOrThrow();
+        } catch (SmackException.NotConnectedException | InterruptedException e) {
+            throw e;
+        } catch (SmackException.NoResponseException e) {
+            // The next lookup may well succeed, hence it is not cached.
+            if (encounteredExceptions != null) {
+                encounteredExceptions.put(contactsDevice, e);
+            }
+            return;
+        } catch (Exception e) {
+            lookupFailed(contactsDevice, e, failedLookups, encounteredExceptions);
+            return;
+        }
+
+        OmemoBundleElement bundle = extractBundle(result);
+        if (bundle == null) {
+            lookupFailed(contactsDevice, new SmackException.SmackMessageException(
+                    "The bundle node of " + contactsDevice + " contains no bundle"), failedLookups, encounteredExceptions);
+            return;
+        }
+
+        bundles.put(contactsDevice, bundle);
+    }
+
+    private static OmemoBundleElement extractBundle(IQ result) {
+        if (!(result instanceof PubSub)) {
+            return null;
+        }
+
+        ItemsExtension itemsElement = ((PubSub) result).getExtension(PubSubElementType.ITEMS);
+        if (itemsElement == null) {
+            return null;
+        }
+
+        List<? extends NamedElement> items = itemsElement.getItems();
+        if (items.isEmpty()) {
+            return null;
+        }
+
+        NamedElement lastItem = items.get(items.size() - 1);
+        if (!(lastItem instanceof PayloadItem)) {
+            return null;
+        }
+
+        ExtensionElement payload = ((PayloadItem<?>) lastItem).getPayload();
+        if (!(payload instanceof OmemoBundleElement)) {
+            return null;
+        }
+
+        return (OmemoBundleElement) payload;
+    }
+
+    private static void lookupFailed(OmemoDevice contactsDevice, Exception reason,
+                                     ExpirationCache<OmemoDevice, Exception> failedLookups,
+                                     Map<? super OmemoDevice, Exception> encounteredExceptions) {
+        long expirationMillis = OmemoConfiguration.getFailedBundleLookupCacheExpirationMillis();
+        if (failedLookups != null && expirationMillis > 0) {
+            // The expiration time is passed explicitly, as it may have been changed since the cache was created.
+            failedLookups.put(contactsDevice, reason, expirationMillis);
+        }
+        if (encounteredExceptions != null) {
+            encounteredExceptions.put(contactsDevice, reason);
+        }
+    }
+
     /**
      * Publish the given OMEMO bundle to the server using PubSub.
      * @param connection our connection.
@@ -776,6 +950,27 @@ public abstract class OmemoService<T_IdKeyPair, T_IdKey, T_PreKey, T_SigPreKey,
             throw new CannotEstablishOmemoSessionException(contactsDevice, e);
         }
 
+        buildSessionFromBundle(connection, userDevice, contactsDevice, bundleElement, true);
+    }
+
+    /**
+     * Build a fresh OMEMO session with the contacts device from the given bundle.
+     *
+     * @param connection authenticated XMPP connection
+     * @param userDevice our OmemoDevice
+     * @param contactsDevice OmemoDevice of a contact.
+     * @param bundleElement the bundle of the contacts device.
+     * @param replaceExistingSession whether an existing session with the contacts device is replaced. If not, then no
+     *                               session is built if one was established in the meantime, e.g. by a preKeyMessage
+     *                               of the contacts device.
+     * @return true if a session was built, false if there already was one.
+     * @throws CorruptedOmemoKeyException if the bundle does not contain a valid preKey.
+     */
+    private boolean buildSessionFromBundle(XMPPConnection connection, OmemoDevice userDevice,
+                                           OmemoDevice contactsDevice, OmemoBundleElement bundleElement,
+                                           boolean replaceExistingSession)
+            throws CorruptedOmemoKeyException {
+
         // Select random Bundle
         HashMap<Integer, T_Bundle> bundlesList = getOmemoStoreBackend().keyUtil().BUNDLE.bundles(bundleElement, contactsDevice);
         int randomIndex = new Random().nextInt(bundlesList.size());
@@ -783,7 +978,13 @@ public abstract class OmemoService<T_IdKeyPair, T_IdKey, T_PreKey, T_SigPreKey,
 
         // build the session
         OmemoManager omemoManager = OmemoManager.getInstanceFor(connection, userDevice.getDeviceId());
-        processBundle(omemoManager, randomPreKeyBundle, contactsDevice);
+        synchronized (omemoManager.getLockFor(contactsDevice)) {
+            if (!replaceExistingSession && hasSession(userDevice, contactsDevice)) {
+                return false;
+            }
+            processBundle(omemoManager, randomPreKeyBundle, contactsDevice);
+            return true;
+        }
     }
 
     /**
@@ -823,32 +1024,79 @@ public abstract class OmemoService<T_IdKeyPair, T_IdKey, T_PreKey, T_SigPreKey,
      *
      * @throws SmackException.NotConnectedException
      * @throws InterruptedException
-     * @throws SmackException.NoResponseException
      */
     private Set<OmemoDevice> buildMissingSessionsWithDevices(XMPPConnection connection,
                                                              OmemoDevice userDevice,
                                                              Set<OmemoDevice> devices)
-            throws SmackException.NotConnectedException, InterruptedException, SmackException.NoResponseException {
+            throws SmackException.NotConnectedException, InterruptedException {
+        return buildMissingSessionsWithDevices(connection, userDevice, devices, null, null);
+    }
+
+    /**
+     * Build sessions with all devices from the set, we don't have a session with yet.
+     * Return the set of all devices we have a session with afterwards. The bundles of the devices are fetched
+     * concurrently, see {@link #fetchBundles(XMPPConnection, Collection, ExpirationCache, Map)}.
+     * @param connection authenticated XMPP connection
+     * @param userDevice our OmemoDevice
+     * @param devices set of devices we may want to build a session with if necessary
+     * @param failedLookups an optional cache of the reasons why bundle lookups failed recently. The bundles of these
+     *                      devices are not requested again until the cache entry expires.
+     * @param failures an optional map which will be filled with the reasons why sessions could not be built.
+     * @return set of all devices with sessions
+     *
+     * @throws SmackException.NotConnectedException
+     * @throws InterruptedException
+     */
+    private Set<OmemoDevice> buildMissingSessionsWithDevices(XMPPConnection connection,
+                                                             OmemoDevice userDevice,
+                                                             Set<OmemoDevice> devices,
+                                                             ExpirationCache<OmemoDevice, Exception> failedLookups,
+                                                             Map<OmemoDevice, Throwable> failures)
+            throws SmackException.NotConnectedException, InterruptedException {
 
         Set<OmemoDevice> devicesWithSession = new HashSet<>();
+        Set<OmemoDevice> devicesWithoutSession = new HashSet<>();
         for (OmemoDevice device : devices) {
-
-            if (hasSession(userDevice, device)) {
+            // Do not build a session with yourself.
+            if (device.equals(userDevice) || hasSession(userDevice, device)) {
                 devicesWithSession.add(device);
+            } else {
+                devicesWithoutSession.add(device);
+            }
+        }
+
+        if (devicesWithoutSession.isEmpty()) {
+            return devicesWithSession;
+        }
+
+        Map<OmemoDevice, Exception> fetchExceptions = new HashMap<>();
+        Map<OmemoDevice, OmemoBundleElement> bundles = fetchBundles(connection, devicesWithoutSession, failedLookups,
+                fetchExceptions);
+
+        for (OmemoDevice device : devicesWithoutSession) {
+            OmemoBundleElement bundle = bundles.get(device);
+            if (bundle == null) {
+                CannotEstablishOmemoSessionException e = new CannotEstablishOmemoSessionException(device,
+                        fetchExceptions.get(device));
+                LOGGER.log(Level.WARNING, userDevice + " cannot establish session with " + device +
+                        " because their bundle could not be fetched.", e);
+                if (failures != null) {
+                    failures.put(device, e);
+                }
                 continue;
             }
 
             try {
-                buildFreshSessionWithDevice(connection, userDevice, device);
+                // The session may have been established while the bundle was fetched, which must not be replaced.
+                buildSessionFromBundle(connection, userDevice, device, bundle, false);
                 devicesWithSession.add(device);
-            } catch (CannotEstablishOmemoSessionException e) {
-                LOGGER.log(Level.WARNING, userDevice + " cannot establish session with " + device +
-                        " because their bundle could not be fetched.", e);
             } catch (CorruptedOmemoKeyException e) {
                 LOGGER.log(Level.WARNING, userDevice + " could not establish session with " + device +
                         "because their bundle seems to be corrupt.", e);
+                if (failures != null) {
+                    failures.put(device, e);
+                }
             }
-
         }
 
         return devicesWithSession;
@@ -1109,38 +1357,131 @@ public abstract class OmemoService<T_IdKeyPair, T_IdKey, T_PreKey, T_SigPreKey,
         }
     };
 
+    private static final int MAM_MESSAGE_PENDING = 0;
+    private static final int MAM_MESSAGE_DECRYPTING = 1;
+    private static final int MAM_MESSAGE_DONE = 2;
+
     /**
      * Decrypt a possible OMEMO encrypted messages in a {@link MamManager.MamQuery}.
      * The returned list contains wrappers that either hold an {@link OmemoMessage} in case the message was decrypted
      * properly, otherwise it contains the message itself.
+     * <p>
+     * Messages of different sender devices are decrypted in parallel, while the messages of a single device are
+     * decrypted in the order of the query result, since each of them advances the ratchet of the device.
+     * </p>
+     * <p>
+     * If the decryption does not finish within {@link OmemoConfiguration#getMamDecryptionTimeoutMillis()}, or if the
+     * calling thread is interrupted, then the messages whose decryption did not start yet are not decrypted anymore and
+     * returned as they are. Since their decryption did not advance the ratchets, they can be decrypted later. In case
+     * of an interruption, the interrupted status of the thread is set again.
+     * </p>
      *
      * @param managerGuard authenticated OmemoManager.
      * @param mamQuery Mam archive query
      * @return list of {@link MessageOrOmemoMessage}s.
      */
-    List<MessageOrOmemoMessage> decryptMamQueryResult(OmemoManager.LoggedInOmemoManager managerGuard,
+    List<MessageOrOmemoMessage> decryptMamQueryResult(final OmemoManager.LoggedInOmemoManager managerGuard,
                                                       MamManager.MamQuery mamQuery) {
-        List<MessageOrOmemoMessage> result = new ArrayList<>();
-        for (Message message : mamQuery.getMessages()) {
+        List<Message> messages = mamQuery.getMessages();
+        final MessageOrOmemoMessage[] result = new MessageOrOmemoMessage[messages.size()];
+        // The state of each message, guarded by itself. A message is only decrypted if its state was pending, so that
+        // messages can be left undecrypted once we stop waiting.
+        final int[] state = new int[messages.size()];
+
+        int omemoMessageCount = 0;
+        for (Message message : messages) {
             if (OmemoManager.stanzaContainsOmemoElement(message)) {
-                OmemoElement element =
-                        message.getExtension(OmemoElement.NAME_ENCRYPTED, OmemoConstants.OMEMO_NAMESPACE_V_AXOLOTL);
-                // Decrypt OMEMO messages
-                try {
-                    OmemoMessage.Received omemoMessage = decryptMessage(managerGuard, message.getFrom().asBareJid(), element);
-                    result.add(new MessageOrOmemoMessage(omemoMessage));
-                } catch (NoRawSessionException | CorruptedOmemoKeyException | CryptoFailedException e) {
-                    LOGGER.log(Level.WARNING, "decryptMamQueryResult failed to decrypt message from "
-                            + message.getFrom() + " due to corrupted session/key: " + e.getMessage());
-                    result.add(new MessageOrOmemoMessage(message));
-                }
-            } else {
+                omemoMessageCount++;
+            }
+        }
+        final CountDownLatch decrypted = new CountDownLatch(omemoMessageCount);
+
+        for (int i = 0; i < result.length; i++) {
+            final Message message = messages.get(i);
+            if (!OmemoManager.stanzaContainsOmemoElement(message)) {
                 // Wrap cleartext messages
-                result.add(new MessageOrOmemoMessage(message));
+                result[i] = new MessageOrOmemoMessage(message);
+                state[i] = MAM_MESSAGE_DONE;
+                continue;
+            }
+
+            final OmemoElement element =
+                    message.getExtension(OmemoElement.NAME_ENCRYPTED, OmemoConstants.OMEMO_NAMESPACE_V_AXOLOTL);
+            final BareJid sender = message.getFrom().asBareJid();
+            OmemoDevice senderDevice = new OmemoDevice(sender, element.getHeader().getSid());
+            final int index = i;
+
+            Runnable decryption = new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (state) {
+                        if (state[index] != MAM_MESSAGE_PENDING) {
+                            return;
+                        }
+                        state[index] = MAM_MESSAGE_DECRYPTING;
+                    }
+                    MessageOrOmemoMessage messageOrOmemoMessage = null;
+                    try {
+                        // Decrypt OMEMO messages
+                        OmemoMessage.Received omemoMessage = decryptMessage(managerGuard, sender, element);
+                        messageOrOmemoMessage = new MessageOrOmemoMessage(omemoMessage);
+                    } catch (NoRawSessionException | CorruptedOmemoKeyException | CryptoFailedException e) {
+                        LOGGER.log(Level.WARNING, "decryptMamQueryResult failed to decrypt message from "
+                                + message.getFrom() + " due to corrupted session/key: " + e.getMessage());
+                    } finally {
+                        if (messageOrOmemoMessage == null) {
+                            messageOrOmemoMessage = new MessageOrOmemoMessage(message);
+                        }
+                        synchronized (state) {
+                            result[index] = messageOrOmemoMessage;
+                            state[index] = MAM_MESSAGE_DONE;
+                            state.notifyAll();
+                        }
+                        decrypted.countDown();
+                    }
+                }
+            };
+
+            MAM_DECRYPTION.performAsyncButOrdered(senderDevice, decryption);
+        }
+
+        boolean interrupted = false;
+        boolean finished;
+        try {
+            finished = decrypted.await(OmemoConfiguration.getMamDecryptionTimeoutMillis(), TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            interrupted = true;
+            finished = false;
+        }
+        if (!finished && !interrupted) {
+            LOGGER.warning("Decryption of the MAM query result did not finish within "
+                    + OmemoConfiguration.getMamDecryptionTimeoutMillis() + " ms, returning the remaining messages"
+                    + " undecrypted");
+        }
+
+        synchronized (state) {
+            for (int i = 0; i < result.length; i++) {
+                if (state[i] == MAM_MESSAGE_PENDING) {
+                    // Either the decryption was rejected, or we stopped waiting for it. Prevent it from running later.
+                    state[i] = MAM_MESSAGE_DONE;
+                    result[i] = new MessageOrOmemoMessage(messages.get(i));
+                    continue;
+                }
+                // A decryption which is in progress advances the ratchet, hence we need to wait for its result.
+                while (state[i] == MAM_MESSAGE_DECRYPTING) {
+                    try {
+                        state.wait();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
             }
         }
 
-        return result;
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        return Arrays.asList(result);
     }
 
 
@@ -1150,136 +1491,100 @@ public abstract class OmemoService<T_IdKeyPair, T_IdKey, T_PreKey, T_SigPreKey,
                                           Message wrappingMessage,
                                           OmemoManager.LoggedInOmemoManager managerGuard) {
         OmemoManager manager = managerGuard.get();
-        // Avoid the ratchet being manipulated and the bundle being published multiple times simultaneously
-        synchronized (manager.LOCK) {
-            OmemoDevice userDevice = manager.getOwnDevice();
-            OmemoElement element = carbonCopy.getExtension(OmemoElement.NAME_ENCRYPTED, OmemoElement_VAxolotl.NAMESPACE);
-            if (element == null) {
-                return;
-            }
+        OmemoDevice userDevice = manager.getOwnDevice();
+        OmemoElement element = carbonCopy.getExtension(OmemoElement.NAME_ENCRYPTED, OmemoElement_VAxolotl.NAMESPACE);
+        if (element == null) {
+            return;
+        }
 
-            OmemoMessage.Received decrypted;
-            BareJid sender = carbonCopy.getFrom().asBareJid();
+        OmemoMessage.Received decrypted = null;
+        BareJid sender = carbonCopy.getFrom().asBareJid();
+        OmemoDevice senderDevice = new OmemoDevice(sender, element.getHeader().getSid());
 
-            try {
-                decrypted = decryptMessage(managerGuard, sender, element);
-                manager.notifyOmemoCarbonCopyReceived(direction, carbonCopy, wrappingMessage, decrypted);
+        // Avoid the ratchet of the senders device being manipulated simultaneously. Also avoid our preKeys being
+        // modified while a preKeyMessage consumes one of them.
+        synchronized (getPreKeyLock(manager, senderDevice, element)) {
+            synchronized (manager.getLockFor(senderDevice)) {
+                try {
+                    decrypted = decryptMessage(managerGuard, sender, element);
+                    completeSessionIfNecessary(managerGuard, decrypted);
+                } catch (NoRawSessionException e) {
+                    OmemoDevice device = e.getDeviceWithoutSession();
+                    LOGGER.log(Level.WARNING, "No raw session found for contact " + device + ". ", e);
 
-                if (decrypted.isPreKeyMessage() && OmemoConfiguration.getCompleteSessionWithEmptyMessage()) {
-                    LOGGER.log(Level.FINE, "Received a preKeyMessage in a carbon copy from " + decrypted.getSenderDevice() + ".\n" +
-                            "Complete the session by sending an empty response message.");
-                    try {
-                        sendRatchetUpdate(managerGuard, decrypted.getSenderDevice());
-                    } catch (CannotEstablishOmemoSessionException e) {
-                        throw new AssertionError("Since we successfully received a message, we MUST be able to " +
-                                "establish a session. " + e);
-                    } catch (NoSuchAlgorithmException | InterruptedException | SmackException.NotConnectedException | SmackException.NoResponseException e) {
-                        LOGGER.log(Level.WARNING, "Cannot send a ratchet update message.", e);
+                    if (OmemoConfiguration.getRepairBrokenSessionsWithPreKeyMessages()) {
+                        repairBrokenSessionWithPreKeyMessage(managerGuard, device);
                     }
+                } catch (CorruptedOmemoKeyException | CryptoFailedException e) {
+                    LOGGER.log(Level.WARNING, "Could not decrypt incoming carbon copy: ", e);
                 }
-            } catch (NoRawSessionException e) {
-                OmemoDevice device = e.getDeviceWithoutSession();
-                LOGGER.log(Level.WARNING, "No raw session found for contact " + device + ". ", e);
-
-                if (OmemoConfiguration.getRepairBrokenSessionsWithPreKeyMessages()) {
-                    repairBrokenSessionWithPreKeyMessage(managerGuard, device);
-                }
-            } catch (CorruptedOmemoKeyException | CryptoFailedException e) {
-                LOGGER.log(Level.WARNING, "Could not decrypt incoming carbon copy: ", e);
             }
+        }
 
-            // Upload fresh bundle.
-            if (getOmemoStoreBackend().loadOmemoPreKeys(userDevice).size() < OmemoConstants.PRE_KEY_COUNT_PER_BUNDLE) {
-                LOGGER.log(Level.FINE, "We used up a preKey. Upload a fresh bundle.");
-                try {
-                    getOmemoStoreBackend().replenishKeys(userDevice);
-                    OmemoBundleElement bundleElement = getOmemoStoreBackend().packOmemoBundle(userDevice);
-                    publishBundle(manager.getConnection(), userDevice, bundleElement);
-                } catch (CorruptedOmemoKeyException | InterruptedException | SmackException.NoResponseException | SmackException.NotConnectedException | XMPPException.XMPPErrorException e) {
-                    LOGGER.log(Level.WARNING, "Could not republish replenished bundle.", e);
-                }
-            }
+        if (decrypted == null) {
+            return;
+        }
+
+        // Notify the listeners without holding the lock, since they may send messages to the senders device.
+        manager.notifyOmemoCarbonCopyReceived(direction, carbonCopy, wrappingMessage, decrypted);
+
+        if (decrypted.isPreKeyMessage()) {
+            replenishKeysIfNecessary(manager, userDevice);
         }
     }
 
     @Override
     public void onOmemoMessageStanzaReceived(Stanza stanza, OmemoManager.LoggedInOmemoManager managerGuard) {
         OmemoManager manager = managerGuard.get();
-        // Avoid the ratchet being manipulated and the bundle being published multiple times simultaneously
-        synchronized (manager.LOCK) {
-            OmemoDevice userDevice = manager.getOwnDevice();
-            OmemoElement element = stanza.getExtension(OmemoElement.NAME_ENCRYPTED, OmemoElement_VAxolotl.NAMESPACE);
-            if (element == null) {
-                return;
-            }
-
-            OmemoMessage.Received decrypted;
-            BareJid sender;
-
-            try {
-                MultiUserChat muc = getMuc(manager.getConnection(), stanza.getFrom());
-                if (muc != null) {
-                    Occupant occupant = muc.getOccupant(stanza.getFrom().asEntityFullJidIfPossible());
-                    if (occupant == null) {
-                        LOGGER.log(Level.WARNING, "Cannot decrypt OMEMO MUC message; MUC Occupant is null.");
-                        return;
-                    }
-                    Jid occupantJid = occupant.getJid();
-
-                    if (occupantJid == null) {
-                        LOGGER.log(Level.WARNING, "Cannot decrypt OMEMO MUC message; Senders Jid is null. " +
-                                stanza.getFrom());
-                        return;
-                    }
-
-                    sender = occupantJid.asBareJid();
+        OmemoDevice userDevice = manager.getOwnDevice();
+        OmemoElement element = stanza.getExtension(OmemoElement.NAME_ENCRYPTED, OmemoElement_VAxolotl.NAMESPACE);
+        if (element == null) {
+            return;
+        }
 
-                    // try is for this
-                    decrypted = decryptMessage(managerGuard, sender, element);
-                    manager.notifyOmemoMucMessageReceived(muc, stanza, decrypted);
+        MultiUserChat muc = getMuc(manager.getConnection(), stanza.getFrom());
+        BareJid sender = getSender(muc, stanza);
+        if (sender == null) {
+            LOGGER.log(Level.WARNING, "Cannot decrypt OMEMO MUC message; Senders Jid is unknown. " + stanza.getFrom());
+            return;
+        }
 
-                } else {
-                    sender = stanza.getFrom().asBareJid();
+        OmemoMessage.Received decrypted = null;
+        OmemoDevice senderDevice = new OmemoDevice(sender, element.getHeader().getSid());
 
-                    // and this
+        // Avoid the ratchet of the senders device being manipulated simultaneously. Also avoid our preKeys being
+        // modified while a preKeyMessage consumes one of them.
+        synchronized (getPreKeyLock(manager, senderDevice, element)) {
+            synchronized (manager.getLockFor(senderDevice)) {
+                try {
                     decrypted = decryptMessage(managerGuard, sender, element);
-                    manager.notifyOmemoMessageReceived(stanza, decrypted);
-                }
+                    completeSessionIfNecessary(managerGuard, decrypted);
+                } catch (NoRawSessionException e) {
+                    OmemoDevice device = e.getDeviceWithoutSession();
+                    LOGGER.log(Level.WARNING, "No raw session found for contact " + device + ". ", e);
 
-                if (decrypted.isPreKeyMessage() && OmemoConfiguration.getCompleteSessionWithEmptyMessage()) {
-                    LOGGER.log(Level.FINE, "Received a preKeyMessage from " + decrypted.getSenderDevice() + ".\n" +
-                            "Complete the session by sending an empty response message.");
-                    try {
-                        sendRatchetUpdate(managerGuard, decrypted.getSenderDevice());
-                    } catch (CannotEstablishOmemoSessionException e) {
-                        throw new AssertionError("Since we successfully received a message, we MUST be able to " +
-                                "establish a session. " + e);
-                    } catch (NoSuchAlgorithmException | InterruptedException | SmackException.NotConnectedException | SmackException.NoResponseException e) {
-                        LOGGER.log(Level.WARNING, "Cannot send a ratchet update message.", e);
+                    if (OmemoConfiguration.getRepairBrokenSessionsWithPreKeyMessages()) {
+                        repairBrokenSessionWithPreKeyMessage(managerGuard, device);
                     }
+                } catch (CorruptedOmemoKeyException | CryptoFailedException e) {
+                    LOGGER.log(Level.WARNING, "Could not decrypt incoming message: ", e);
                 }
-            } catch (NoRawSessionException e) {
-                OmemoDevice device = e.getDeviceWithoutSession();
-                LOGGER.log(Level.WARNING, "No raw session found for contact " + device + ". ", e);
-
-                if (OmemoConfiguration.getRepairBrokenSessionsWithPreKeyMessages()) {
-                    repairBrokenSessionWithPreKeyMessage(managerGuard, device);
-                }
-            } catch (CorruptedOmemoKeyException | CryptoFailedException e) {
-                LOGGER.log(Level.WARNING, "Could not decrypt incoming message: ", e);
             }
+        }
 
-            // Upload fresh bundle.
-            if (getOmemoStoreBackend().loadOmemoPreKeys(userDevice).size() < OmemoConstants.PRE_KEY_COUNT_PER_BUNDLE) {
-                LOGGER.log(Level.FINE, "We used up a preKey. Upload a fresh bundle.");
-                try {
-                    getOmemoStoreBackend().replenishKeys(userDevice);
-                    OmemoBundleElement bundleElement = getOmemoStoreBackend().packOmemoBundle(userDevice);
-                    publishBundle(manager.getConnection(), userDevice, bundleElement);
-                } catch (CorruptedOmemoKeyException | InterruptedException | SmackException.NoResponseException | SmackException.NotConnectedException | XMPPException.XMPPErrorException e) {
-                    LOGGER.log(Level.WARNING, "Could not republish replenished bundle.", e);
-                }
-            }
+        if (decrypted == null) {
+            return;
+        }
+
+        // Notify the listeners without holding the lock, since they may send messages to the senders device.
+        if (muc != null) {
+            manager.notifyOmemoMucMessageReceived(muc, stanza, decrypted);
+        } else {
+            manager.notifyOmemoMessageReceived(stanza, decrypted);
+        }
+
+        if (decrypted.isPreKeyMessage()) {
+            replenishKeysIfNecessary(manager, userDevice);
         }
     }
 
@@ -1293,73 +1598,140 @@ public abstract class OmemoService<T_IdKeyPair, T_IdKey, T_PreKey, T_SigPreKey,
      */
     OmemoMessage.Received decryptStanza(Stanza stanza, OmemoManager.LoggedInOmemoManager managerGuard) {
         OmemoManager manager = managerGuard.get();
-        // Avoid the ratchet being manipulated and the bundle being published multiple times simultaneously
-        synchronized (manager.LOCK) {
-            OmemoDevice userDevice = manager.getOwnDevice();
-            OmemoElement element = stanza.getExtension(OmemoElement.NAME_ENCRYPTED, OmemoElement_VAxolotl.NAMESPACE);
-            if (element == null) {
-                return null;
+        OmemoDevice userDevice = manager.getOwnDevice();
+        OmemoElement element = stanza.getExtension(OmemoElement.NAME_ENCRYPTED, OmemoElement_VAxolotl.NAMESPACE);
+        if (element == null) {
+            return null;
+        }
+
+        MultiUserChat muc = getMuc(manager.getConnection(), stanza.getFrom());
+        BareJid sender = getSender(muc, stanza);
+        if (sender == null) {
+            LOGGER.log(Level.WARNING, "MUC message received, but there is no way to retrieve the senders Jid. " +
+                    stanza.getFrom());
+            return null;
+        }
+
+        OmemoMessage.Received decrypted = null;
+        OmemoDevice senderDevice = new OmemoDevice(sender, element.getHeader().getSid());
+
+        // Avoid the ratchet of the senders device being manipulated simultaneously. Also avoid our preKeys being
+        // modified while a preKeyMessage consumes one of them.
+        synchronized (getPreKeyLock(manager, senderDevice, element)) {
+            synchronized (manager.getLockFor(senderDevice)) {
+                try {
+                    decrypted = decryptMessage(managerGuard, sender, element);
+                    completeSessionIfNecessary(managerGuard, decrypted);
+                } catch (NoRawSessionException e) {
+                    OmemoDevice device = e.getDeviceWithoutSession();
+                    LOGGER.log(Level.WARNING, "No raw session found for contact " + device + ". ", e);
+
+                } catch (CorruptedOmemoKeyException | CryptoFailedException e) {
+                    LOGGER.log(Level.WARNING, "Could not decrypt incoming message: ", e);
+                }
             }
+        }
+
+        if (decrypted != null && decrypted.isPreKeyMessage()) {
+            replenishKeysIfNecessary(manager, userDevice);
+        }
+        return decrypted;
+    }
 
-            OmemoMessage.Received decrypted = null;
-            BareJid sender;
+    /**
+     * Return the BareJid of the sender of the stanza. If the stanza was sent from a MUC, this is the Jid of the
+     * occupant, which is null if it cannot be determined.
+     *
+     * @param muc the MUC the stanza was sent from or null.
+     * @param stanza stanza
+     * @return the BareJid of the sender or null.
+     */
+    private static BareJid getSender(MultiUserChat muc, Stanza stanza) {
+        if (muc == null) {
+            return stanza.getFrom().asBareJid();
+        }
 
-            try {
-                MultiUserChat muc = getMuc(manager.getConnection(), stanza.getFrom());
-                if (muc != null) {
-                    Occupant occupant = muc.getOccupant(stanza.getFrom().asEntityFullJidIfPossible());
-                    Jid occupantJid = occupant.getJid();
-
-                    if (occupantJid == null) {
-                        LOGGER.log(Level.WARNING, "MUC message received, but there is no way to retrieve the senders Jid. " +
-                                stanza.getFrom());
-                        return null;
-                    }
+        Occupant occupant = muc.getOccupant(stanza.getFrom().asEntityFullJidIfPossible());
+        if (occupant == null) {
+            return null;
+        }
 
-                    sender = occupantJid.asBareJid();
+        Jid occupantJid = occupant.getJid();
+        if (occupantJid == null) {
+            return null;
+        }
 
-                    // try is for this
-                    decrypted = decryptMessage(managerGuard, sender, element);
+        return occupantJid.asBareJid();
+    }
 
-                } else {
-                    sender = stanza.getFrom().asBareJid();
+    /**
+     * If the decrypted message was a preKeyMessage, complete the session by sending an empty response message.
+     * The caller must hold the lock of the senders device.
+     *
+     * @param managerGuard authenticated OmemoManager
+     * @param decrypted decrypted message
+     */
+    private void completeSessionIfNecessary(OmemoManager.LoggedInOmemoManager managerGuard,
+                                            OmemoMessage.Received decrypted) {
+        if (!decrypted.isPreKeyMessage() || !OmemoConfiguration.getCompleteSessionWithEmptyMessage()) {
+            return;
+        }
 
-                    // and this
-                    decrypted = decryptMessage(managerGuard, sender, element);
-                }
+        LOGGER.log(Level.FINE, "Received a preKeyMessage from " + decrypted.getSenderDevice() + ".\n" +
+                "Complete the session by sending an empty response message.");
+        try {
+            sendRatchetUpdate(managerGuard, decrypted.getSenderDevice());
+        } catch (CannotEstablishOmemoSessionException e) {
+            throw new AssertionError("Since we successfully received a message, we MUST be able to " +
+                    "establish a session. " + e);
+        } catch (NoSuchAlgorithmException | InterruptedException | SmackException.NotConnectedException | SmackException.NoResponseException | CorruptedOmemoKeyException | CryptoFailedException e) {
+            LOGGER.log(Level.WARNING, "Cannot send a ratchet update message.", e);
+        }
+    }
 
-                if (decrypted.isPreKeyMessage() && OmemoConfiguration.getCompleteSessionWithEmptyMessage()) {
-                    LOGGER.log(Level.FINE, "Received a preKeyMessage from " + decrypted.getSenderDevice() + ".\n" +
-                            "Complete the session by sending an empty response message.");
-                    try {
-                        sendRatchetUpdate(managerGuard, decrypted.getSenderDevice());
-                    } catch (CannotEstablishOmemoSessionException e) {
-                        throw new AssertionError("Since we successfully received a message, we MUST be able to " +
-                                "establish a session. " + e);
-                    } catch (NoSuchAlgorithmException | InterruptedException | SmackException.NotConnectedException | SmackException.NoResponseException e) {
-                        LOGGER.log(Level.WARNING, "Cannot send a ratchet update message.", e);
-                    }
-                }
-            } catch (NoRawSessionException e) {
-                OmemoDevice device = e.getDeviceWithoutSession();
-                LOGGER.log(Level.WARNING, "No raw session found for contact " + device + ". ", e);
+    /**
+     * Return the lock which has to be acquired before the lock of the sender device, when the given element is
+     * decrypted. Decrypting a preKeyMessage consumes one of our preKeys, which are guarded by
+     * {@link OmemoManager#LOCK}, hence that lock is returned in this case. Otherwise the lock of the sender device is
+     * returned, so that only that lock is held.
+     *
+     * @param manager OmemoManager
+     * @param senderDevice the device which sent the element.
+     * @param element the element which is going to be decrypted.
+     * @return the lock to acquire before the lock of the sender device.
+     */
+    private static Object getPreKeyLock(OmemoManager manager, OmemoDevice senderDevice, OmemoElement element) {
+        int ownDeviceId = manager.getDeviceId();
+        for (OmemoKeyElement key : element.getHeader().getKeys()) {
+            if (key.getId() == ownDeviceId && key.isPreKey()) {
+                return manager.LOCK;
+            }
+        }
+        return manager.getLockFor(senderDevice);
+    }
 
-            } catch (CorruptedOmemoKeyException | CryptoFailedException e) {
-                LOGGER.log(Level.WARNING, "Could not decrypt incoming message: ", e);
+    /**
+     * Upload a fresh bundle, if we used up a preKey. Since this modifies our own keys, it must not be called while
+     * holding the lock of a remote device.
+     *
+     * @param manager OmemoManager
+     * @param userDevice our OmemoDevice
+     */
+    private void replenishKeysIfNecessary(OmemoManager manager, OmemoDevice userDevice) {
+        // Avoid the bundle being published multiple times simultaneously
+        synchronized (manager.LOCK) {
+            if (getOmemoStoreBackend().loadOmemoPreKeys(userDevice).size() >= OmemoConstants.PRE_KEY_COUNT_PER_BUNDLE) {
+                return;
             }
 
-            // Upload fresh bundle.
-            if (getOmemoStoreBackend().loadOmemoPreKeys(userDevice).size() < OmemoConstants.PRE_KEY_COUNT_PER_BUNDLE) {
-                LOGGER.log(Level.FINE, "We used up a preKey. Upload a fresh bundle.");
-                try {
-                    getOmemoStoreBackend().replenishKeys(userDevice);
-                    OmemoBundleElement bundleElement = getOmemoStoreBackend().packOmemoBundle(userDevice);
-                    publishBundle(manager.getConnection(), userDevice, bundleElement);
-                } catch (CorruptedOmemoKeyException | InterruptedException | SmackException.NoResponseException | SmackException.NotConnectedException | XMPPException.XMPPErrorException e) {
-                    LOGGER.log(Level.WARNING, "Could not republish replenished bundle.", e);
-                }
+            LOGGER.log(Level.FINE, "We used up a preKey. Upload a fresh bundle.");
+            try {
+                getOmemoStoreBackend().replenishKeys(userDevice);
+                OmemoBundleElement bundleElement = getOmemoStoreBackend().packOmemoBundle(userDevice);
+                publishBundle(manager.getConnection(), userDevice, bundleElement);
+            } catch (CorruptedOmemoKeyException | InterruptedException | SmackException.NoResponseException | SmackException.NotConnectedException | XMPPException.XMPPErrorException e) {
+                LOGGER.log(Level.WARNING, "Could not republish replenished bundle.", e);
             }
-            return decrypted;
         }
     }
 
@@ -0,0 +1,245 @@
+/**
+ *
+ * Copyright 2019 Florian Schmaus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.smackx.omemo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import org.jivesoftware.smack.DummyConnection;
+import org.jivesoftware.smack.XMPPException;
+import org.jivesoftware.smack.packet.IQ;
+import org.jivesoftware.smack.packet.Stanza;
+import org.jivesoftware.smack.packet.StanzaError;
+import org.jivesoftware.smack.test.util.SmackTestSuite;
+import org.jivesoftware.smackx.omemo.element.OmemoBundleElement;
+import org.jivesoftware.smackx.omemo.element.OmemoBundleElement_VAxolotl;
+import org.jivesoftware.smackx.omemo.internal.OmemoDevice;
+import org.jivesoftware.smackx.pubsub.GetItemsRequest;
+import org.jivesoftware.smackx.pubsub.ItemsExtension;
+import org.jivesoftware.smackx.pubsub.PayloadItem;
+import org.jivesoftware.smackx.pubsub.PubSubElementType;
+import org.jivesoftware.smackx.pubsub.packet.PubSub;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.jxmpp.jid.impl.JidCreate;
+import org.jxmpp.util.cache.ExpirationCache;
+
+/**
+ * Test the retrieval of the bundles of multiple devices, as it happens before the first message is sent to a group
+ * chat. The PubSub service of the contacts is simulated by a connection which answers bundle requests after a fixed
+ * latency. The timings are only logged, since they depend on the machine running the test.
+ */
+public class OmemoBundleFetchTest extends SmackTestSuite {
+
+    private static final Logger LOGGER = Logger.getLogger(OmemoBundleFetchTest.class.getName());
+
+    private static final int NUMBER_OF_CONTACTS = 10;
+
+    private static final int DEVICES_PER_CONTACT = 5;
+
+    private static final long LATENCY_MILLIS = 20;
+
+    private final int maxConcurrentBundleRequests = OmemoConfiguration.getMaxConcurrentBundleRequests();
+    private final long failedBundleLookupCacheExpirationMillis =
+            OmemoConfiguration.getFailedBundleLookupCacheExpirationMillis();
+
+    private BundleResponderConnection connection;
+    private List<OmemoDevice> devices;
+
+    @Before
+    public void setUp() throws Exception {
+        connection = new BundleResponderConnection();
+        connection.connect();
+        connection.login();
+
+        devices = new ArrayList<>();
+        for (int i = 0; i < NUMBER_OF_CONTACTS; i++) {
+            for (int j = 0; j < DEVICES_PER_CONTACT; j++) {
+                devices.add(new OmemoDevice(JidCreate.bareFrom("contact" + i + "@example.org"), 1000 * i + j));
+            }
+        }
+    }
+
+    @After
+    public void tearDown() {
+        OmemoConfiguration.setMaxConcurrentBundleRequests(maxConcurrentBundleRequests);
+        OmemoConfiguration.setFailedBundleLookupCacheExpirationMillis(failedBundleLookupCacheExpirationMillis);
+        connection.disconnect();
+    }
+
+    @Test
+    public void fetchBundlesOfManyDevicesTest() throws Exception {
+        OmemoConfiguration.setMaxConcurrentBundleRequests(1);
+        long sequentialMillis = fetchAllBundles();
+
+        OmemoConfiguration.setMaxConcurrentBundleRequests(16);
+        long concurrentMillis = fetchAllBundles();
+
+        assertEquals(2 * devices.size(), connection.requests.get());
+        assertTrue(connection.maxOutstandingRequests.get() <= 16);
+        LOGGER.info("Fetching the bundles of " + devices.size() + " devices with a latency of " + LATENCY_MILLIS
+                + " ms: one request at a time " + sequentialMillis + " ms, up to 16 concurrent requests "
+                + concurrentMillis + " ms");
+    }
+
+    @Test
+    public void failedLookupsAreCachedTest() throws Exception {
+        OmemoConfiguration.setFailedBundleLookupCacheExpirationMillis(60 * 1000);
+        ExpirationCache<OmemoDevice, Exception> failedLookups = new ExpirationCache<>(128, 60 * 1000);
+        OmemoDevice unknownDevice = new OmemoDevice(devices.get(0).getJid(), BundleResponderConnection.UNKNOWN_DEVICE_ID);
+        List<OmemoDevice> requestedDevices = new ArrayList<>(devices);
+        requestedDevices.add(unknownDevice);
+
+        Map<OmemoDevice, Exception> encounteredExceptions = new HashMap<>();
+        OmemoService.fetchBundles(connection, requestedDevices, failedLookups, encounteredExceptions);
+        assertEquals(requestedDevices.size(), connection.requests.get());
+        Exception failure = encounteredExceptions.get(unknownDevice);
+
+        // The bundles of the other devices are requested again, as their preKeys may have been consumed meanwhile.
+        encounteredExceptions.clear();
+        Map<OmemoDevice, OmemoBundleElement> bundles = OmemoService.fetchBundles(connection, requestedDevices,
+                failedLookups, encounteredExceptions);
+        assertEquals(devices.size(), bundles.size());
+        assertEquals(requestedDevices.size() + devices.size(), connection.requests.get());
+        assertSame(failure, encounteredExceptions.get(unknownDevice));
+    }
+
+    @Test
+    public void failedLookupsAreNotCachedIfExpirationIsZeroTest() throws Exception {
+        OmemoConfiguration.setFailedBundleLookupCacheExpirationMillis(0);
+        // The expiration time the cache was created with is not used.
+        ExpirationCache<OmemoDevice, Exception> failedLookups = new ExpirationCache<>(128, 60 * 1000);
+        OmemoDevice unknownDevice = new OmemoDevice(devices.get(0).getJid(), BundleResponderConnection.UNKNOWN_DEVICE_ID);
+        List<OmemoDevice> requestedDevices = Collections.singletonList(unknownDevice);
+
+        OmemoService.fetchBundles(connection, requestedDevices, failedLookups, null);
+        assertNull(failedLookups.lookup(unknownDevice));
+
+        OmemoService.fetchBundles(connection, requestedDevices, failedLookups, null);
+        assertEquals(2, connection.requests.get());
+    }
+
+    @Test
+    public void missingBundleIsReportedTest() throws Exception {
+        OmemoDevice unknownDevice = new OmemoDevice(devices.get(0).getJid(), BundleResponderConnection.UNKNOWN_DEVICE_ID);
+        List<OmemoDevice> requestedDevices = new ArrayList<>(devices);
+        requestedDevices.add(unknownDevice);
+
+        Map<OmemoDevice, Exception> encounteredExceptions = new HashMap<>();
+        Map<OmemoDevice, OmemoBundleElement> bundles = OmemoService.fetchBundles(connection, requestedDevices, null,
+                encounteredExceptions);
+
+        assertEquals(devices.size(), bundles.size());
+        assertEquals(Collections.singleton(unknownDevice), encounteredExceptions.keySet());
+        XMPPException.XMPPErrorException e = (XMPPException.XMPPErrorException) encounteredExceptions.get(unknownDevice);
+        assertEquals(StanzaError.Condition.item_not_found, e.getStanzaError().getCondition());
+    }
+
+    private long fetchAllBundles() throws Exception {
+        long start = System.nanoTime();
+        Map<OmemoDevice, OmemoBundleElement> bundles = OmemoService.fetchBundles(connection, devices, null, null);
+        long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertEquals(devices.size(), bundles.size());
+        return millis;
+    }
+
+    private static OmemoBundleElement createBundle(int deviceId) {
+        HashMap<Integer, String> preKeys = new HashMap<>();
+        for (int i = 1; i <= 10; i++) {
+            preKeys.put(i, "cHJlS2V5" + deviceId + i);
+        }
+        return new OmemoBundleElement_VAxolotl(1, "c2lnbmVkUHJlS2V5", "c2lnbmF0dXJl", "aWRlbnRpdHlLZXk=", preKeys);
+    }
+
+    /**
+     * A connection which answers the bundle requests of OMEMO devices after a fixed latency, like the PubSub services
+     * of the contacts would do.
+     */
+    private static final class BundleResponderConnection extends DummyConnection {
+
+        private static final int UNKNOWN_DEVICE_ID = 424242;
+
+        private final ScheduledExecutorService responder = Executors.newSingleThreadScheduledExecutor();
+
+        private final AtomicInteger requests = new AtomicInteger();
+
+        private final AtomicInteger outstandingRequests = new AtomicInteger();
+
+        private final AtomicInteger maxOutstandingRequests = new AtomicInteger();
+
+        @Override
+        protected void sendStanzaInternal(Stanza stanza) {
+            if (!(stanza instanceof PubSub)) {
+                super.sendStanzaInternal(stanza);
+                return;
+            }
+
+            final PubSub request = (PubSub) stanza;
+            GetItemsRequest itemsRequest = request.getExtension(PubSubElementType.ITEMS);
+            String node = itemsRequest.getNode();
+            int deviceId = Integer.parseInt(node.substring(node.lastIndexOf(':') + 1));
+
+            final IQ response;
+            if (deviceId == UNKNOWN_DEVICE_ID) {
+                response = IQ.createErrorResponse(request, StanzaError.Condition.item_not_found);
+            } else {
+                PayloadItem<OmemoBundleElement> item = new PayloadItem<>("current", createBundle(deviceId));
+                response = PubSub.createPubsubPacket(request.getTo(), IQ.Type.result,
+                        new ItemsExtension(ItemsExtension.ItemsElementType.items, node, Collections.singletonList(item)));
+            }
+            response.setFrom(request.getTo());
+            response.setTo(getUser());
+            response.setStanzaId(request.getStanzaId());
+
+            requests.incrementAndGet();
+            int outstanding = outstandingRequests.incrementAndGet();
+            int max;
+            do {
+                max = maxOutstandingRequests.get();
+            } while (outstanding > max && !maxOutstandingRequests.compareAndSet(max, outstanding));
+
+            responder.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    outstandingRequests.decrementAndGet();
+                    processStanza(response);
+                }
+            }, LATENCY_MILLIS, TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        protected void shutdown() {
+            responder.shutdownNow();
+            super.shutdown();
+        }
+    }
+}
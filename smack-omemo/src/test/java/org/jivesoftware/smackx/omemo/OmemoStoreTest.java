@@ -30,6 +30,7 @@ import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.jivesoftware.smackx.omemo.exceptions.CorruptedOmemoKeyException;
 import org.jivesoftware.smackx.omemo.internal.OmemoCachedDeviceList;
@@ -321,6 +322,39 @@ public abstract class OmemoStoreTest<T_IdKeyPair, T_IdKey, T_PreKey, T_SigPreKey
         assertEquals(20, store.loadOmemoMessageCounter(alice, bob));
     }
 
+    @Test
+    public void concurrentlyStoreMessageCountersOfDifferentDevicesTest() throws Exception {
+        final int threadCount = 8;
+        final int iterations = 100;
+        final AtomicInteger failures = new AtomicInteger();
+        Thread[] threads = new Thread[threadCount];
+        for (int i = 0; i < threadCount; i++) {
+            final OmemoDevice contactsDevice = new OmemoDevice(bob.getJid(), 2000 + i);
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int j = 1; j <= iterations; j++) {
+                        store.storeOmemoMessageCounter(alice, contactsDevice, j);
+                        if (store.loadOmemoMessageCounter(alice, contactsDevice) != j) {
+                            failures.incrementAndGet();
+                        }
+                    }
+                }
+            });
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(0, failures.get());
+        for (int i = 0; i < threadCount; i++) {
+            assertEquals(iterations, store.loadOmemoMessageCounter(alice, new OmemoDevice(bob.getJid(), 2000 + i)));
+        }
+    }
+
     @Test
     public void getFingerprint() throws IOException, CorruptedOmemoKeyException {
         assertNull("Method must return null for a non-existent fingerprint.", store.getFingerprint(alice));
@@ -0,0 +1,329 @@
+/**
+ *
+ * Copyright 2019 Florian Schmaus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.smack.sm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.jivesoftware.smack.packet.Stanza;
+
+/**
+ * The buffer of stanzas which were sent but not yet acknowledged by the server, as required by Stream Management
+ * (XEP-198) in order to resend them after the stream was resumed.
+ * <p>
+ * The buffer is a growable ring buffer, hence adding a stanza never blocks, and acknowledged stanzas are released in
+ * bulk by simply advancing the head of the ring. The buffer also records when each stanza was sent, which allows to
+ * measure the acknowledgement latency, and decides when an acknowledgement should be requested: If there are at least
+ * a threshold of unacknowledged stanzas, then an acknowledgement is requested, but only if there is no request
+ * outstanding which is younger than twice the average acknowledgement latency. This way the rate of ack requests
+ * follows the rate in which the server answers them.
+ * </p>
+ * <p>
+ * This class is thread-safe.
+ * </p>
+ *
+ * @since 4.4
+ */
+public final class UnacknowledgedStanzaBuffer {
+
+    public static final int DEFAULT_ACK_REQUEST_THRESHOLD = 400;
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    /**
+     * The minimum time in milliseconds before another acknowledgement is requested while a request is outstanding.
+     */
+    private static final long MIN_ACK_REQUEST_INTERVAL_MILLIS = 100;
+
+    /**
+     * The weight of a new acknowledgement latency sample in the exponentially weighted moving average.
+     */
+    private static final double ACK_LATENCY_SAMPLE_WEIGHT = 0.2;
+
+    private final int ackRequestThreshold;
+
+    private Stanza[] stanzas = new Stanza[INITIAL_CAPACITY];
+    private long[] sendTimestamps = new long[INITIAL_CAPACITY];
+
+    private int head;
+    private int size;
+
+    private long ackRequestSentTimestamp = -1;
+
+    private int maxSize;
+    private long addedStanzas;
+    private long acknowledgedStanzas;
+    private long ackRequestsSent;
+    private long lastAckLatencyNanos = -1;
+    private double averageAckLatencyNanos = -1;
+    private long maxAckLatencyNanos;
+
+    public UnacknowledgedStanzaBuffer() {
+        this(DEFAULT_ACK_REQUEST_THRESHOLD);
+    }
+
+    /**
+     * Create a new buffer.
+     *
+     * @param ackRequestThreshold the number of unacknowledged stanzas after which an acknowledgement is requested.
+     */
+    public UnacknowledgedStanzaBuffer(int ackRequestThreshold) {
+        if (ackRequestThreshold < 1) {
+            throw new IllegalArgumentException("ackRequestThreshold must be positive");
+        }
+        this.ackRequestThreshold = ackRequestThreshold;
+    }
+
+    /**
+     * Add a stanza which is about to be sent.
+     *
+     * @param stanza the stanza.
+     */
+    public synchronized void add(Stanza stanza) {
+        if (size == stanzas.length) {
+            grow();
+        }
+        int index = (head + size) & (stanzas.length - 1);
+        stanzas[index] = stanza;
+        sendTimestamps[index] = System.nanoTime();
+        size++;
+        addedStanzas++;
+        if (size > maxSize) {
+            maxSize = size;
+        }
+    }
+
+    /**
+     * Add the given stanzas, all with the current time as send time.
+     *
+     * @param stanzas the stanzas.
+     */
+    public synchronized void addAll(List<? extends Stanza> stanzas) {
+        for (Stanza stanza : stanzas) {
+            add(stanza);
+        }
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    public synchronized boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Remove the given number of acknowledged stanzas from the head of the buffer and return them.
+     *
+     * @param count the number of acknowledged stanzas.
+     * @return the acknowledged stanzas, in the order they were sent.
+     * @throws IllegalArgumentException if the buffer holds less than the given number of stanzas.
+     */
+    public synchronized List<Stanza> removeAcknowledged(int count) {
+        checkCount(count);
+        if (count == 0) {
+            acknowledgementReceived(0);
+            return Collections.emptyList();
+        }
+
+        List<Stanza> acknowledged = new ArrayList<>(count);
+        int firstPart = Math.min(count, stanzas.length - head);
+        acknowledged.addAll(Arrays.asList(stanzas).subList(head, head + firstPart));
+        acknowledged.addAll(Arrays.asList(stanzas).subList(0, count - firstPart));
+
+        acknowledgementReceived(count);
+        return acknowledged;
+    }
+
+    /**
+     * Discard the given number of acknowledged stanzas from the head of the buffer. Unlike
+     * {@link #removeAcknowledged(int)}, this does not create a list of the acknowledged stanzas.
+     *
+     * @param count the number of acknowledged stanzas.
+     * @throws IllegalArgumentException if the buffer holds less than the given number of stanzas.
+     */
+    public synchronized void discardAcknowledged(int count) {
+        checkCount(count);
+        acknowledgementReceived(count);
+    }
+
+    /**
+     * Remove and return all stanzas of this buffer, in the order they were sent.
+     *
+     * @return all stanzas.
+     */
+    public synchronized List<Stanza> drain() {
+        int count = size;
+        List<Stanza> stanzas = new ArrayList<>(count);
+        int firstPart = Math.min(count, this.stanzas.length - head);
+        stanzas.addAll(Arrays.asList(this.stanzas).subList(head, head + firstPart));
+        stanzas.addAll(Arrays.asList(this.stanzas).subList(0, count - firstPart));
+        release(count);
+        ackRequestSentTimestamp = -1;
+        return stanzas;
+    }
+
+    /**
+     * Check if an acknowledgement should be requested from the server.
+     *
+     * @return <code>true</code> if an acknowledgement should be requested.
+     * @see #ackRequestSent()
+     */
+    public synchronized boolean shouldRequestAck() {
+        if (size < ackRequestThreshold) {
+            return false;
+        }
+        if (ackRequestSentTimestamp < 0) {
+            return true;
+        }
+
+        long outstandingNanos = System.nanoTime() - ackRequestSentTimestamp;
+        long minIntervalNanos = TimeUnit.MILLISECONDS.toNanos(MIN_ACK_REQUEST_INTERVAL_MILLIS);
+        if (averageAckLatencyNanos > 0) {
+            minIntervalNanos = Math.max(minIntervalNanos, (long) (2 * averageAckLatencyNanos));
+        }
+        return outstandingNanos >= minIntervalNanos;
+    }
+
+    /**
+     * Signal that an acknowledgement was requested from the server.
+     */
+    public synchronized void ackRequestSent() {
+        ackRequestSentTimestamp = System.nanoTime();
+        ackRequestsSent++;
+    }
+
+    public int getAckRequestThreshold() {
+        return ackRequestThreshold;
+    }
+
+    public Stats getStats() {
+        return new Stats(this);
+    }
+
+    private void checkCount(int count) {
+        if (count < 0 || count > size) {
+            throw new IllegalArgumentException(
+                            "Can not acknowledge " + count + " stanzas, only " + size + " are unacknowledged");
+        }
+    }
+
+    private void acknowledgementReceived(int count) {
+        long now = System.nanoTime();
+        if (count > 0) {
+            // The latency of the most recently sent stanza which was acknowledged.
+            int lastIndex = (head + count - 1) & (stanzas.length - 1);
+            long ackLatencyNanos = now - sendTimestamps[lastIndex];
+            lastAckLatencyNanos = ackLatencyNanos;
+            if (averageAckLatencyNanos < 0) {
+                averageAckLatencyNanos = ackLatencyNanos;
+            } else {
+                averageAckLatencyNanos = ACK_LATENCY_SAMPLE_WEIGHT * ackLatencyNanos
+                                + (1 - ACK_LATENCY_SAMPLE_WEIGHT) * averageAckLatencyNanos;
+            }
+            if (ackLatencyNanos > maxAckLatencyNanos) {
+                maxAckLatencyNanos = ackLatencyNanos;
+            }
+            acknowledgedStanzas += count;
+        }
+
+        // An acknowledgement answers all outstanding requests.
+        ackRequestSentTimestamp = -1;
+
+        release(count);
+    }
+
+    private void release(int count) {
+        int firstPart = Math.min(count, stanzas.length - head);
+        // Null out the references, so that the stanzas can be garbage collected.
+        Arrays.fill(stanzas, head, head + firstPart, null);
+        Arrays.fill(stanzas, 0, count - firstPart, null);
+        head = (head + count) & (stanzas.length - 1);
+        size -= count;
+        if (size == 0) {
+            head = 0;
+        }
+    }
+
+    private void grow() {
+        int newCapacity = stanzas.length * 2;
+        if (newCapacity < 0) {
+            throw new IllegalStateException("Too many unacknowledged stanzas");
+        }
+        Stanza[] newStanzas = new Stanza[newCapacity];
+        long[] newSendTimestamps = new long[newCapacity];
+        int firstPart = stanzas.length - head;
+        System.arraycopy(stanzas, head, newStanzas, 0, firstPart);
+        System.arraycopy(stanzas, 0, newStanzas, firstPart, head);
+        System.arraycopy(sendTimestamps, head, newSendTimestamps, 0, firstPart);
+        System.arraycopy(sendTimestamps, 0, newSendTimestamps, firstPart, head);
+        stanzas = newStanzas;
+        sendTimestamps = newSendTimestamps;
+        head = 0;
+    }
+
+    public static final class Stats {
+        public final int inFlight;
+        public final int maxInFlight;
+        public final long addedStanzas;
+        public final long acknowledgedStanzas;
+        public final long ackRequestsSent;
+        public final long lastAckLatencyMillis;
+        public final long averageAckLatencyMillis;
+        public final long maxAckLatencyMillis;
+
+        private Stats(UnacknowledgedStanzaBuffer buffer) {
+            synchronized (buffer) {
+                inFlight = buffer.size;
+                maxInFlight = buffer.maxSize;
+                addedStanzas = buffer.addedStanzas;
+                acknowledgedStanzas = buffer.acknowledgedStanzas;
+                ackRequestsSent = buffer.ackRequestsSent;
+                lastAckLatencyMillis = buffer.lastAckLatencyNanos < 0 ? -1
+                                : TimeUnit.NANOSECONDS.toMillis(buffer.lastAckLatencyNanos);
+                averageAckLatencyMillis = buffer.averageAckLatencyNanos < 0 ? -1
+                                : TimeUnit.NANOSECONDS.toMillis((long) buffer.averageAckLatencyNanos);
+                maxAckLatencyMillis = TimeUnit.NANOSECONDS.toMillis(buffer.maxAckLatencyNanos);
+            }
+        }
+
+        private transient String toStringCache;
+
+        @Override
+        public String toString() {
+            if (toStringCache != null) {
+                return toStringCache;
+            }
+
+            toStringCache =
+                      "in-flight: " + inFlight + '\n'
+                    + "max-in-flight: " + maxInFlight + '\n'
+                    + "added-stanzas: " + addedStanzas + '\n'
+                    + "acknowledged-stanzas: " + acknowledgedStanzas + '\n'
+                    + "ack-requests-sent: " + ackRequestsSent + '\n'
+                    + "last-ack-latency-ms: " + lastAckLatencyMillis + '\n'
+                    + "average-ack-latency-ms: " + averageAckLatencyMillis + '\n'
+                    + "max-ack-latency-ms: " + maxAckLatencyMillis
+                    ;
+
+            return toStringCache;
+        }
+    }
+}
@@ -0,0 +1,276 @@
+/**
+ *
+ * Copyright 2019 Florian Schmaus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.smack.tcp;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A bundle and defer callback which adapts to the observed outgoing traffic, similar to Nagle's algorithm for TCP.
+ * <p>
+ * The callback tracks the rate in which elements are queued for sending, the average size of the written elements and
+ * whether the socket was ready when data was written. If elements arrive in short succession, then Smack waits a
+ * little for further elements, so that they are coalesced into a single flush. If elements arrive only sporadically,
+ * then waiting would not pay off and they are sent immediately. The waiting time never exceeds the configured latency
+ * cap and the current bundle is sent early once it reached the target bundle size.
+ * </p>
+ * <p>
+ * Unlike a static bundle and defer period, which is typically used to save energy on mobile devices, this callback is
+ * meant to reduce the number of flushes, and hence syscalls and TCP segments, under load while keeping the added
+ * latency low. Since the callback keeps track of the traffic of a single connection, install a new instance on every
+ * connection via {@link XMPPTCPConnection#setBundleandDeferCallback(BundleAndDeferCallback)}.
+ * </p>
+ *
+ * @since 4.4
+ */
+public final class AdaptiveBundleAndDeferCallback implements BundleAndDeferCallback {
+
+    public static final int DEFAULT_MAX_DEFER_MILLIS = 20;
+
+    public static final int DEFAULT_TARGET_BUNDLE_SIZE = 16;
+
+    static final int DEFAULT_COALESCE_THRESHOLD_BYTES = 8 * 1024;
+
+    static final int MIN_COALESCE_THRESHOLD_BYTES = 1024;
+
+    static final int MAX_COALESCE_THRESHOLD_BYTES = 64 * 1024;
+
+    /**
+     * The weight of a new sample in the exponentially weighted moving averages.
+     */
+    private static final double SAMPLE_WEIGHT = 0.1;
+
+    /**
+     * Flushes taking longer than this are considered to be blocked by a socket which is not ready for writing.
+     */
+    private static final long BLOCKED_FLUSH_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final long maxDeferNanos;
+
+    private final int targetBundleSize;
+
+    private final NanoClock clock;
+
+    private long lastQueuedNanos = -1;
+    private double averageInterArrivalNanos = -1;
+    private double averageElementBytes = -1;
+    private double writeBlockedRatio;
+
+    private BundleAndDefer currentBundleAndDefer;
+    private int queuedDuringCurrentBundleAndDefer;
+
+    private long bundles;
+    private long bundlesStoppedEarly;
+
+    public AdaptiveBundleAndDeferCallback() {
+        this(DEFAULT_MAX_DEFER_MILLIS, DEFAULT_TARGET_BUNDLE_SIZE);
+    }
+
+    /**
+     * Create a new adaptive bundle and defer callback.
+     *
+     * @param maxDeferMillis the maximum time in milliseconds an element is deferred.
+     * @param targetBundleSize the number of elements after which a bundle is sent, even if the defer period did not
+     *        yet expire.
+     */
+    public AdaptiveBundleAndDeferCallback(int maxDeferMillis, int targetBundleSize) {
+        this(maxDeferMillis, targetBundleSize, SYSTEM_CLOCK);
+    }
+
+    AdaptiveBundleAndDeferCallback(int maxDeferMillis, int targetBundleSize, NanoClock clock) {
+        if (maxDeferMillis < 0) {
+            throw new IllegalArgumentException("maxDeferMillis must not be negative");
+        }
+        if (targetBundleSize < 1) {
+            throw new IllegalArgumentException("targetBundleSize must be positive");
+        }
+        this.maxDeferNanos = TimeUnit.MILLISECONDS.toNanos(maxDeferMillis);
+        this.targetBundleSize = targetBundleSize;
+        this.clock = clock;
+    }
+
+    @Override
+    public synchronized int getBundleAndDeferMillis(BundleAndDefer bundleAndDefer) {
+        if (averageInterArrivalNanos < 0 || averageInterArrivalNanos > maxDeferNanos) {
+            // We either know nothing about the traffic yet or the next element is not expected within the latency
+            // cap. Waiting would only add latency.
+            return 0;
+        }
+
+        long deferNanos;
+        if (writeBlockedRatio > 0.5) {
+            // The socket is the bottleneck, so we can as well wait the maximum time and coalesce as much as possible.
+            deferNanos = maxDeferNanos;
+        } else {
+            // The time it takes until enough elements for a full bundle are expected to be queued.
+            deferNanos = Math.min(maxDeferNanos, (long) (averageInterArrivalNanos * (targetBundleSize - 1)));
+        }
+
+        int deferMillis = (int) TimeUnit.NANOSECONDS.toMillis(deferNanos);
+        if (deferMillis <= 0) {
+            return 0;
+        }
+
+        currentBundleAndDefer = bundleAndDefer;
+        queuedDuringCurrentBundleAndDefer = 0;
+        bundles++;
+        return deferMillis;
+    }
+
+    /**
+     * Signal that an element was queued for sending.
+     */
+    synchronized void onElementQueued() {
+        final long now = clock.nanoTime();
+        if (lastQueuedNanos >= 0) {
+            addInterArrivalSample(now - lastQueuedNanos);
+        }
+        lastQueuedNanos = now;
+
+        if (currentBundleAndDefer != null && ++queuedDuringCurrentBundleAndDefer >= targetBundleSize - 1) {
+            // The bundle is complete, there is no need to wait any longer.
+            currentBundleAndDefer.stopCurrentBundleAndDefer();
+            currentBundleAndDefer = null;
+            bundlesStoppedEarly++;
+        }
+    }
+
+    /**
+     * Signal that elements were written to the socket.
+     *
+     * @param bytes the number of written bytes.
+     * @param elements the number of completely written elements.
+     * @param blocked <code>true</code> if the socket was not ready to accept all the data.
+     */
+    synchronized void onWrite(long bytes, int elements, boolean blocked) {
+        if (elements > 0) {
+            double elementBytes = (double) bytes / elements;
+            if (averageElementBytes < 0) {
+                averageElementBytes = elementBytes;
+            } else {
+                averageElementBytes = SAMPLE_WEIGHT * elementBytes + (1 - SAMPLE_WEIGHT) * averageElementBytes;
+            }
+        }
+        writeBlockedRatio = SAMPLE_WEIGHT * (blocked ? 1 : 0) + (1 - SAMPLE_WEIGHT) * writeBlockedRatio;
+        // A write ends the current bundle.
+        currentBundleAndDefer = null;
+    }
+
+    /**
+     * Signal that the writer was flushed.
+     *
+     * @param flushNanos the time the flush took in nanoseconds.
+     */
+    void onFlush(long flushNanos) {
+        onWrite(0, 0, flushNanos > BLOCKED_FLUSH_NANOS);
+    }
+
+    /**
+     * Check if the writer should be flushed even though further elements are queued, because the oldest unflushed
+     * element already waits longer than the latency cap.
+     *
+     * @param unflushedSinceNanos the {@link System#nanoTime()} when the oldest unflushed element was written.
+     * @return <code>true</code> if the writer should be flushed.
+     */
+    boolean shouldFlush(long unflushedSinceNanos) {
+        return clock.nanoTime() - unflushedSinceNanos >= maxDeferNanos;
+    }
+
+    /**
+     * Get the number of bytes up to which outgoing data, of which more is already available, should be coalesced
+     * before it is written to the socket.
+     *
+     * @return the coalesce threshold in bytes.
+     */
+    synchronized int getCoalesceThresholdBytes() {
+        if (writeBlockedRatio > 0.5) {
+            return MAX_COALESCE_THRESHOLD_BYTES;
+        }
+        if (averageElementBytes < 0) {
+            return DEFAULT_COALESCE_THRESHOLD_BYTES;
+        }
+        long threshold = (long) (averageElementBytes * targetBundleSize);
+        return (int) Math.max(MIN_COALESCE_THRESHOLD_BYTES, Math.min(MAX_COALESCE_THRESHOLD_BYTES, threshold));
+    }
+
+    public Stats getStats() {
+        return new Stats(this);
+    }
+
+    private void addInterArrivalSample(long interArrivalNanos) {
+        if (averageInterArrivalNanos < 0) {
+            averageInterArrivalNanos = interArrivalNanos;
+        } else {
+            averageInterArrivalNanos = SAMPLE_WEIGHT * interArrivalNanos
+                            + (1 - SAMPLE_WEIGHT) * averageInterArrivalNanos;
+        }
+    }
+
+    /**
+     * The source of the monotonic time used by the callback. Tests replace it in order to control the time.
+     */
+    interface NanoClock {
+        long nanoTime();
+    }
+
+    private static final NanoClock SYSTEM_CLOCK = new NanoClock() {
+        @Override
+        public long nanoTime() {
+            return System.nanoTime();
+        }
+    };
+
+    public static final class Stats {
+        public final long bundles;
+        public final long bundlesStoppedEarly;
+        public final double averageInterArrivalMillis;
+        public final double averageElementBytes;
+        public final double writeBlockedRatio;
+        public final int coalesceThresholdBytes;
+
+        private Stats(AdaptiveBundleAndDeferCallback callback) {
+            synchronized (callback) {
+                bundles = callback.bundles;
+                bundlesStoppedEarly = callback.bundlesStoppedEarly;
+                averageInterArrivalMillis = callback.averageInterArrivalNanos < 0 ? -1
+                                : callback.averageInterArrivalNanos / TimeUnit.MILLISECONDS.toNanos(1);
+                averageElementBytes = callback.averageElementBytes;
+                writeBlockedRatio = callback.writeBlockedRatio;
+                coalesceThresholdBytes = callback.getCoalesceThresholdBytes();
+            }
+        }
+
+        private transient String toStringCache;
+
+        @Override
+        public String toString() {
+            if (toStringCache != null) {
+                return toStringCache;
+            }
+
+            toStringCache =
+                      "bundles: " + bundles + '\n'
+                    + "bundles-stopped-early: " + bundlesStoppedEarly + '\n'
+                    + "average-inter-arrival-ms: " + averageInterArrivalMillis + '\n'
+                    + "average-element-bytes: " + averageElementBytes + '\n'
+                    + "write-blocked-ratio: " + writeBlockedRatio + '\n'
+                    + "coalesce-threshold-bytes: " + coalesceThresholdBytes
+                    ;
+
+            return toStringCache;
+        }
+    }
+}
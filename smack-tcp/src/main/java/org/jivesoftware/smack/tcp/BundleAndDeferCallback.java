@@ -35,6 +35,10 @@ package org.jivesoftware.smack.tcp;
  * stanzas will send immediately. You can also prematurely abort the bundling of stanzas by calling
  * {@link BundleAndDefer#stopCurrentBundleAndDefer()}.
  * </p>
+ * <p>
+ * If you want to reduce the number of flushes under load, instead of saving energy, then consider
+ * {@link AdaptiveBundleAndDeferCallback}, which derives the period from the observed outgoing traffic.
+ * </p>
  */
 public interface BundleAndDeferCallback {
 
@@ -16,6 +16,7 @@
  */
 package org.jivesoftware.smack.tcp;
 
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
@@ -40,8 +41,6 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.Semaphore;
@@ -98,6 +97,7 @@ import org.jivesoftware.smack.sm.StreamManagementException;
 import org.jivesoftware.smack.sm.StreamManagementException.StreamIdDoesNotMatchException;
 import org.jivesoftware.smack.sm.StreamManagementException.StreamManagementCounterError;
 import org.jivesoftware.smack.sm.StreamManagementException.StreamManagementNotEnabledException;
+import org.jivesoftware.smack.sm.UnacknowledgedStanzaBuffer;
 import org.jivesoftware.smack.sm.packet.StreamManagement;
 import org.jivesoftware.smack.sm.packet.StreamManagement.AckAnswer;
 import org.jivesoftware.smack.sm.packet.StreamManagement.AckRequest;
@@ -191,6 +191,12 @@ public class XMPPTCPConnection extends AbstractXMPPConnection {
      */
     private BundleAndDeferCallback bundleAndDeferCallback = defaultBundleAndDeferCallback;
 
+    /**
+     * The buffered output stream of the socket, which the writer thread uses instead of {@link #writer} to write UTF-8
+     * directly. Is <code>null</code> if a debugger is used, since the debugger observes the writer.
+     */
+    private OutputStream outputStream;
+
     private static boolean useSmDefault = true;
 
     private static boolean useSmResumptionDefault = true;
@@ -241,7 +247,14 @@ public class XMPPTCPConnection extends AbstractXMPPConnection {
      */
     private long clientHandledStanzasCount = 0;
 
-    private BlockingQueue<Stanza> unacknowledgedStanzas;
+    private UnacknowledgedStanzaBuffer unacknowledgedStanzas;
+
+    private static int smAckRequestThresholdDefault = UnacknowledgedStanzaBuffer.DEFAULT_ACK_REQUEST_THRESHOLD;
+
+    /**
+     * The number of unacknowledged stanzas after which the writer requests an acknowledgement from the server.
+     */
+    private int smAckRequestThreshold = smAckRequestThresholdDefault;
 
     /**
      * Set to true if Stream Management was at least once enabled for this connection.
@@ -392,7 +405,7 @@ public class XMPPTCPConnection extends AbstractXMPPConnection {
         if (unacknowledgedStanzas != null) {
             // There was a previous connection with SM enabled but that was either not resumable or
             // failed to resume. Make sure that we (re-)send the unacknowledged stanzas.
-            unacknowledgedStanzas.drainTo(previouslyUnackedStanzas);
+            previouslyUnackedStanzas.addAll(unacknowledgedStanzas.drain());
             // Reset unacknowledged stanzas to 'null' to signal that we never send 'enable' in this
             // XMPP session (There maybe was an enabled in a previous XMPP session of this
             // connection instance though). This is used in writePackets to decide if stanzas should
@@ -498,6 +511,7 @@ public class XMPPTCPConnection extends AbstractXMPPConnection {
         secureSocket = null;
         reader = null;
         writer = null;
+        outputStream = null;
 
         maybeCompressFeaturesReceived.init();
         compressSyncPoint.init();
@@ -635,6 +649,12 @@ public class XMPPTCPConnection extends AbstractXMPPConnection {
 
         // If debugging is enabled, we open a window and write out all network traffic.
         initDebugger();
+
+        if (debugger == null) {
+            outputStream = new BufferedOutputStream(os);
+        } else {
+            outputStream = null;
+        }
     }
 
     /**
@@ -781,6 +801,7 @@ public class XMPPTCPConnection extends AbstractXMPPConnection {
      */
     protected void setWriter(Writer writer) {
         this.writer = writer;
+        this.outputStream = null;
     }
 
     @Override
@@ -1002,8 +1023,7 @@ public class XMPPTCPConnection extends AbstractXMPPConnection {
                             // First, drop the stanzas already handled by the server
                             processHandledCount(resumed.getHandledCount());
                             // Then re-send what is left in the unacknowledged queue
-                            List<Stanza> stanzasToResend = new ArrayList<>(unacknowledgedStanzas.size());
-                            unacknowledgedStanzas.drainTo(stanzasToResend);
+                            List<Stanza> stanzasToResend = unacknowledgedStanzas.drain();
                             for (Stanza stanza : stanzasToResend) {
                                 sendStanzaInternal(stanza);
                             }
@@ -1182,6 +1202,11 @@ public class XMPPTCPConnection extends AbstractXMPPConnection {
                 // If the method above did not throw, then the sending thread was interrupted
                 throw e;
             }
+
+            final BundleAndDeferCallback localBundleAndDeferCallback = bundleAndDeferCallback;
+            if (localBundleAndDeferCallback instanceof AdaptiveBundleAndDeferCallback) {
+                ((AdaptiveBundleAndDeferCallback) localBundleAndDeferCallback).onElementQueued();
+            }
         }
 
         /**
@@ -1229,6 +1254,8 @@ public class XMPPTCPConnection extends AbstractXMPPConnection {
 
         private void writePackets() {
             Exception writerException = null;
+            // The System.nanoTime() when the oldest element, which was not yet flushed, was written.
+            long unflushedSince = -1;
             try {
                 openStream();
                 initialOpenStreamSend.reportSuccess();
@@ -1273,20 +1300,37 @@ public class XMPPTCPConnection extends AbstractXMPPConnection {
                         // The client needs to add messages to the unacknowledged stanzas queue
                         // right after it sent 'enabled'. Stanza will be added once
                         // unacknowledgedStanzas is not null.
-                        unacknowledgedStanzas = new ArrayBlockingQueue<>(QUEUE_SIZE);
+                        unacknowledgedStanzas = new UnacknowledgedStanzaBuffer(smAckRequestThreshold);
+                    }
+                    else if (element instanceof AckRequest && unacknowledgedStanzas != null) {
+                        unacknowledgedStanzas.ackRequestSent();
                     }
                     maybeAddToUnacknowledgedStanzas(packet);
 
-                    CharSequence elementXml = element.toXML(StreamOpen.CLIENT_NAMESPACE);
-                    if (elementXml instanceof XmlStringBuilder) {
-                        ((XmlStringBuilder) elementXml).write(writer, StreamOpen.CLIENT_NAMESPACE);
+                    writeElement(element);
+
+                    if (unflushedSince < 0) {
+                        unflushedSince = System.nanoTime();
                     }
-                    else {
-                        writer.write(elementXml.toString());
+
+                    final AdaptiveBundleAndDeferCallback adaptiveBundleAndDeferCallback;
+                    if (localBundleAndDeferCallback instanceof AdaptiveBundleAndDeferCallback) {
+                        adaptiveBundleAndDeferCallback = (AdaptiveBundleAndDeferCallback) localBundleAndDeferCallback;
+                    } else {
+                        adaptiveBundleAndDeferCallback = null;
                     }
 
-                    if (queue.isEmpty()) {
-                        writer.flush();
+                    // Coalesce the elements into a single flush as long as there are more elements queued. But if the
+                    // adaptive callback is used, then do not delay the oldest unflushed element longer than its
+                    // latency cap.
+                    if (queue.isEmpty() || (adaptiveBundleAndDeferCallback != null
+                                    && adaptiveBundleAndDeferCallback.shouldFlush(unflushedSince))) {
+                        final long flushStart = System.nanoTime();
+                        flush();
+                        unflushedSince = -1;
+                        if (adaptiveBundleAndDeferCallback != null) {
+                            adaptiveBundleAndDeferCallback.onFlush(System.nanoTime() - flushStart);
+                        }
                     }
                     if (packet != null) {
                         firePacketSendingListeners(packet);
@@ -1301,9 +1345,9 @@ public class XMPPTCPConnection extends AbstractXMPPConnection {
                                 Stanza stanza = (Stanza) packet;
                                 maybeAddToUnacknowledgedStanzas(stanza);
                             }
-                            writer.write(packet.toXML().toString());
+                            writeElement(packet);
                         }
-                        writer.flush();
+                        flush();
                     }
                     catch (Exception e) {
                         LOGGER.log(Level.WARNING,
@@ -1313,8 +1357,8 @@ public class XMPPTCPConnection extends AbstractXMPPConnection {
 
                     // Close the stream.
                     try {
-                        writer.write("</stream:stream>");
-                        writer.flush();
+                        writeString("</stream:stream>");
+                        flush();
                     }
                     catch (Exception e) {
                         LOGGER.log(Level.WARNING, "Exception writing closing stream element", e);
@@ -1350,19 +1394,51 @@ public class XMPPTCPConnection extends AbstractXMPPConnection {
             }
         }
 
+        /**
+         * Write the given element. XmlStringBuilders are written part by part, escaping the text while writing it,
+         * instead of materializing the whole element as String first. Without a debugger, the element is encoded to
+         * UTF-8 straight into the socket's output stream. Otherwise it is written to the writer, since the debugger
+         * observes the writer.
+         */
+        private void writeElement(Element element) throws IOException {
+            CharSequence elementXml = element.toXML(StreamOpen.CLIENT_NAMESPACE);
+            if (!(elementXml instanceof XmlStringBuilder)) {
+                writeString(elementXml.toString());
+                return;
+            }
+
+            XmlStringBuilder xml = (XmlStringBuilder) elementXml;
+            OutputStream outputStream = XMPPTCPConnection.this.outputStream;
+            if (outputStream != null) {
+                xml.write(outputStream, StreamOpen.CLIENT_NAMESPACE);
+            } else {
+                xml.write(writer, StreamOpen.CLIENT_NAMESPACE);
+            }
+        }
+
+        private void writeString(String string) throws IOException {
+            OutputStream outputStream = XMPPTCPConnection.this.outputStream;
+            if (outputStream != null) {
+                outputStream.write(StringUtils.toUtf8Bytes(string));
+            } else {
+                writer.write(string);
+            }
+        }
+
+        private void flush() throws IOException {
+            OutputStream outputStream = XMPPTCPConnection.this.outputStream;
+            if (outputStream != null) {
+                outputStream.flush();
+            } else {
+                writer.flush();
+            }
+        }
+
         private void drainWriterQueueToUnacknowledgedStanzas() {
             List<Element> elements = new ArrayList<>(queue.size());
             queue.drainTo(elements);
-            for (int i = 0; i < elements.size(); i++) {
-                Element element = elements.get(i);
-                // If the unacknowledgedStanza queue is full, then bail out with a warning message. See SMACK-844.
-                if (unacknowledgedStanzas.remainingCapacity() == 0) {
-                    StreamManagementException.UnacknowledgedQueueFullException exception = StreamManagementException.UnacknowledgedQueueFullException
-                            .newWith(i, elements, unacknowledgedStanzas);
-                    LOGGER.log(Level.WARNING,
-                            "Some stanzas may be lost as not all could be drained to the unacknowledged stanzas queue", exception);
-                    return;
-                }
+            // The unacknowledged stanzas buffer is unbounded, hence all stanzas can be drained into it (see SMACK-844).
+            for (Element element : elements) {
                 if (element instanceof Stanza) {
                     unacknowledgedStanzas.add((Stanza) element);
                 }
@@ -1375,20 +1451,16 @@ public class XMPPTCPConnection extends AbstractXMPPConnection {
             // packet order is not stable at this point (sendStanzaInternal() can be
             // called concurrently).
             if (unacknowledgedStanzas != null && stanza != null) {
-                // If the unacknowledgedStanza queue is nearly full, request an new ack
-                // from the server in order to drain it
-                if (unacknowledgedStanzas.size() == 0.8 * XMPPTCPConnection.QUEUE_SIZE) {
-                    writer.write(AckRequest.INSTANCE.toXML().toString());
-                    writer.flush();
-                }
-                try {
-                    // It is important the we put the stanza in the unacknowledged stanza
-                    // queue before we put it on the wire
-                    unacknowledgedStanzas.put(stanza);
-                }
-                catch (InterruptedException e) {
-                    throw new IllegalStateException(e);
+                // If there are many unacknowledged stanzas, request an new ack from the server in order to release
+                // them. The buffer makes sure that we do not request acks faster than the server answers them.
+                if (unacknowledgedStanzas.shouldRequestAck()) {
+                    writeString(AckRequest.INSTANCE.toXML().toString());
+                    flush();
+                    unacknowledgedStanzas.ackRequestSent();
                 }
+                // It is important the we put the stanza in the unacknowledged stanza
+                // queue before we put it on the wire
+                unacknowledgedStanzas.add(stanza);
             }
         }
     }
@@ -1426,6 +1498,49 @@ public class XMPPTCPConnection extends AbstractXMPPConnection {
         XMPPTCPConnection.useSmResumptionDefault = useSmResumptionDefault;
     }
 
+    /**
+     * Set the default number of unacknowledged stanzas after which an Stream Management acknowledgement is requested
+     * from the server, used for new connections.
+     *
+     * @param smAckRequestThresholdDefault the default number of unacknowledged stanzas after which an ack is requested.
+     * @since 4.4
+     */
+    public static void setSmAckRequestThresholdDefault(int smAckRequestThresholdDefault) {
+        if (smAckRequestThresholdDefault < 1) {
+            throw new IllegalArgumentException("smAckRequestThresholdDefault must be positive");
+        }
+        XMPPTCPConnection.smAckRequestThresholdDefault = smAckRequestThresholdDefault;
+    }
+
+    /**
+     * Set the number of unacknowledged stanzas after which an Stream Management acknowledgement is requested from the
+     * server. Takes effect once Stream Management is enabled the next time.
+     *
+     * @param smAckRequestThreshold the number of unacknowledged stanzas after which an ack is requested.
+     * @since 4.4
+     */
+    public void setSmAckRequestThreshold(int smAckRequestThreshold) {
+        if (smAckRequestThreshold < 1) {
+            throw new IllegalArgumentException("smAckRequestThreshold must be positive");
+        }
+        this.smAckRequestThreshold = smAckRequestThreshold;
+    }
+
+    /**
+     * Get statistics about the stanzas which were sent but not yet acknowledged via Stream Management, like their
+     * number and the acknowledgement latency.
+     *
+     * @return the statistics or <code>null</code> if Stream Management was never enabled.
+     * @since 4.4
+     */
+    public UnacknowledgedStanzaBuffer.Stats getUnacknowledgedStanzasStats() {
+        UnacknowledgedStanzaBuffer unacknowledgedStanzas = this.unacknowledgedStanzas;
+        if (unacknowledgedStanzas == null) {
+            return null;
+        }
+        return unacknowledgedStanzas.getStats();
+    }
+
     /**
      * Set if Stream Management should be used if supported by the server.
      *
@@ -1706,20 +1821,26 @@ public class XMPPTCPConnection extends AbstractXMPPConnection {
 
     private void processHandledCount(long handledCount) throws StreamManagementCounterError {
         long ackedStanzasCount = SMUtils.calculateDelta(handledCount, serverHandledStanzasCount);
-        final List<Stanza> ackedStanzas = new ArrayList<>(
-                        ackedStanzasCount <= Integer.MAX_VALUE ? (int) ackedStanzasCount
-                                        : Integer.MAX_VALUE);
-        for (long i = 0; i < ackedStanzasCount; i++) {
-            Stanza ackedStanza = unacknowledgedStanzas.poll();
+        // Note that the writer thread only ever adds to the unacknowledged stanzas, hence they can not shrink
+        // concurrently.
+        final int unacknowledgedStanzasCount = unacknowledgedStanzas.size();
+        if (ackedStanzasCount > unacknowledgedStanzasCount) {
             // If the server ack'ed a stanza, then it must be in the
             // unacknowledged stanza queue. There can be no exception.
-            if (ackedStanza == null) {
-                throw new StreamManagementCounterError(handledCount, serverHandledStanzasCount,
-                                ackedStanzasCount, ackedStanzas);
-            }
-            ackedStanzas.add(ackedStanza);
+            List<Stanza> ackedStanzas = unacknowledgedStanzas.removeAcknowledged(unacknowledgedStanzasCount);
+            throw new StreamManagementCounterError(handledCount, serverHandledStanzasCount,
+                            ackedStanzasCount, ackedStanzas);
         }
 
+        if (stanzaAcknowledgedListeners.isEmpty() && stanzaIdAcknowledgedListeners.isEmpty()) {
+            // There is no listener which could be interested in the acked stanzas, simply release them in bulk.
+            unacknowledgedStanzas.discardAcknowledged((int) ackedStanzasCount);
+            serverHandledStanzasCount = handledCount;
+            return;
+        }
+
+        final List<Stanza> ackedStanzas = unacknowledgedStanzas.removeAcknowledged((int) ackedStanzasCount);
+
         boolean atLeastOneStanzaAcknowledgedListener = false;
         if (!stanzaAcknowledgedListeners.isEmpty()) {
             // If stanzaAcknowledgedListeners is not empty, the we have at least one
@@ -1738,7 +1859,7 @@ public class XMPPTCPConnection extends AbstractXMPPConnection {
 
         // Only spawn a new thread if there is a chance that some listener is invoked
         if (atLeastOneStanzaAcknowledgedListener) {
-            asyncGo(new Runnable() {
+            asyncGoOrFailConnection(new Runnable() {
                 @Override
                 public void run() {
                     for (Stanza ackedStanza : ackedStanzas) {
@@ -32,6 +32,7 @@ import java.security.NoSuchProviderException;
 import java.security.UnrecoverableKeyException;
 import java.security.cert.CertificateException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
@@ -42,6 +43,8 @@ import java.util.ListIterator;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantLock;
@@ -85,10 +88,12 @@ import org.jivesoftware.smack.packet.TopLevelStreamElement;
 import org.jivesoftware.smack.sasl.SASLErrorException;
 import org.jivesoftware.smack.util.ArrayBlockingQueueWithShutdown;
 import org.jivesoftware.smack.util.Async;
+import org.jivesoftware.smack.util.ByteBufferPool;
 import org.jivesoftware.smack.util.CollectionUtil;
+import org.jivesoftware.smack.util.MultiCharSequenceReader;
 import org.jivesoftware.smack.util.PacketParserUtils;
 import org.jivesoftware.smack.util.StringUtils;
-import org.jivesoftware.smack.util.UTF8;
+import org.jivesoftware.smack.util.Utf8ByteBufferEncoder;
 import org.jivesoftware.smack.util.XmlStringBuilder;
 import org.jivesoftware.smack.util.dns.HostAddress;
 
@@ -168,6 +173,19 @@ public class XmppNioTcpConnection extends AbstractXmppNioConnection {
         private String streamOpen;
         private String streamClose;
 
+        /**
+         * The reader used to feed the complete elements, wrapped by the stream open and close, into the
+         * {@link #incomingElementParser} without concatenating them into a new String first.
+         */
+        private final MultiCharSequenceReader incomingElementReader = new MultiCharSequenceReader();
+
+        /**
+         * The long-lived parser used for every incoming top level element. It is re-used by setting new input, which
+         * avoids constructing a new parser for every element. Note that the element callback is always invoked while
+         * holding the channelSelectedCallbackLock, hence no further synchronization is required.
+         */
+        private XmlPullParser incomingElementParser;
+
         @Override
         public void onCompleteElement(String completeElement) {
             assert streamOpen != null;
@@ -177,11 +195,17 @@ public class XmppNioTcpConnection extends AbstractXmppNioConnection {
                 debugger.onIncomingElementCompleted();
             }
 
-            String wrappedCompleteElement = streamOpen + completeElement + streamClose;
+            incomingElementReader.reset(streamOpen, completeElement, streamClose);
             try {
-                parseAndProcessElement(wrappedCompleteElement);
+                if (incomingElementParser == null) {
+                    incomingElementParser = PacketParserUtils.newXmppParser();
+                }
+                PacketParserUtils.resetParserFor(incomingElementParser, incomingElementReader);
+                parseAndProcessElement(incomingElementParser);
             } catch (Exception e) {
                 notifyConnectionError(e);
+            } finally {
+                incomingElementReader.close();
             }
         }
 
@@ -276,16 +300,43 @@ public class XmppNioTcpConnection extends AbstractXmppNioConnection {
     private final List<TopLevelStreamElement> currentlyOutgoingElements = new ArrayList<>();
     private final Map<ByteBuffer, List<TopLevelStreamElement>> bufferToElementMap = new IdentityHashMap<>();
 
+    private final Utf8ByteBufferEncoder outgoingUtf8Encoder = new Utf8ByteBufferEncoder();
+    private final OutgoingBufferChunks outgoingBufferChunks = new OutgoingBufferChunks(getByteBufferPool());
+
     private ByteBuffer outgoingBuffer;
     private ByteBuffer filteredOutgoingBuffer;
     private final List<ByteBuffer> networkOutgoingBuffers = new ArrayList<>();
     private long networkOutgoingBuffersBytes;
+    private ByteBuffer[] networkOutgoingBuffersArray = new ByteBuffer[16];
+
+    /**
+     * Decides, based on the observed outgoing traffic, how much outgoing data is coalesced before it is written to
+     * the socket.
+     */
+    private final AdaptiveBundleAndDeferCallback outgoingCoalescingPolicy = new AdaptiveBundleAndDeferCallback();
 
     // TODO: Make the size of the incomingBuffer configurable.
-    private final ByteBuffer incomingBuffer = ByteBuffer.allocateDirect(2 * 4096);
+    private static final int INCOMING_BUFFER_SIZE = 2 * 4096;
+
+    /**
+     * The buffer used to read from the socket channel. It is leased from the shared buffer pool while the channel
+     * selected callback runs and released afterwards, so that idle connections do not hold it.
+     */
+    private ByteBuffer incomingBuffer;
 
     private final ReentrantLock channelSelectedCallbackLock = new ReentrantLock();
 
+    /**
+     * Set once the socket channel was closed and all buffers should be released, see
+     * {@link #releaseAllBuffersIfRequested()}.
+     */
+    private volatile boolean releaseAllBuffersRequested;
+
+    /**
+     * The TLS state which was dropped, but whose buffers were not yet released.
+     */
+    private volatile TlsState droppedTlsState;
+
     private long totalBytesRead;
     private long totalBytesWritten;
     private long totalBytesReadAfterFilter;
@@ -364,30 +415,46 @@ public class XmppNioTcpConnection extends AbstractXmppNioConnection {
             boolean isLastPartOfElement = false;
             TopLevelStreamElement currentlyOutgonigTopLevelStreamElement = null;
             StringBuilder outgoingStreamForDebugger = null;
+            // Set if the network outgoing buffers should not yet be written, because more output is gathered first.
+            boolean gatherMoreOutput = false;
 
             writeLoop: while (true) {
                 final boolean moreDataAvailable = !isLastPartOfElement || !outgoingElementsQueue.isEmpty();
 
-                if (filteredOutgoingBuffer != null || !networkOutgoingBuffers.isEmpty()) {
+                if (filteredOutgoingBuffer != null || (!networkOutgoingBuffers.isEmpty() && !gatherMoreOutput)) {
                     if (filteredOutgoingBuffer != null) {
                         networkOutgoingBuffers.add(filteredOutgoingBuffer);
                         networkOutgoingBuffersBytes += filteredOutgoingBuffer.remaining();
 
                         filteredOutgoingBuffer = null;
-                        if (moreDataAvailable && networkOutgoingBuffersBytes < 8096) {
+                        // Gather the output of further elements so that it is written with a single syscall. But only
+                        // if there are no filters, as a filter may re-use its output buffer once it is invoked again.
+                        // Filters like TLS coalesce their input on their own.
+                        if (moreDataAvailable && !getXmppInputOutputFilterBeginIterator().hasNext()
+                                        && networkOutgoingBuffersBytes < outgoingCoalescingPolicy.getCoalesceThresholdBytes()) {
+                            gatherMoreOutput = true;
                             continue;
                         }
                     }
+                    gatherMoreOutput = false;
 
-                    ByteBuffer[] output = networkOutgoingBuffers.toArray(new ByteBuffer[networkOutgoingBuffers.size()]);
+                    final int networkOutgoingBuffersCount = networkOutgoingBuffers.size();
+                    if (networkOutgoingBuffersArray.length < networkOutgoingBuffersCount) {
+                        networkOutgoingBuffersArray = new ByteBuffer[2 * networkOutgoingBuffersCount];
+                    }
+                    ByteBuffer[] output = networkOutgoingBuffers.toArray(networkOutgoingBuffersArray);
+                    final long bytesToWrite = networkOutgoingBuffersBytes;
                     long bytesWritten;
                     try {
-                        bytesWritten = selectedSocketChannel.write(output);
+                        bytesWritten = selectedSocketChannel.write(output, 0, networkOutgoingBuffersCount);
                     } catch (IOException e) {
                         // We have seen here so far
                         // - IOException "Broken pipe"
                         handleReadWriteIoException(e);
                         break;
+                    } finally {
+                        // Do not keep references to the buffers, networkOutgoingBuffers is the authoritative list.
+                        Arrays.fill(output, 0, networkOutgoingBuffersCount, null);
                     }
 
                     if (bytesWritten == 0) {
@@ -401,16 +468,21 @@ public class XmppNioTcpConnection extends AbstractXmppNioConnection {
 
                     List<? extends Buffer> prunedBuffers = pruneBufferList(networkOutgoingBuffers);
 
+                    int elementsWritten = 0;
                     for (Buffer prunedBuffer : prunedBuffers) {
                         List<TopLevelStreamElement> sendElements = bufferToElementMap.remove(prunedBuffer);
                         if (sendElements == null) {
                             continue;
                         }
+                        elementsWritten += sendElements.size();
                         for (TopLevelStreamElement elementJustSend : sendElements) {
                             firePacketSendingListeners(elementJustSend);
                         }
                     }
 
+                    // A partial write means that the socket's send buffer is full.
+                    outgoingCoalescingPolicy.onWrite(bytesWritten, elementsWritten, bytesWritten < bytesToWrite);
+
                     // Prevent one callback from dominating the reactor thread. Break out of the write-loop if we have
                     // written a certain amount.
                     if (callbackBytesWritten > CALLBACK_MAX_BYTES_WRITEN) {
@@ -472,32 +544,45 @@ public class XmppNioTcpConnection extends AbstractXmppNioConnection {
                     if (destinationAddressChanged) {
                         destinationAddressChanged = false;
                     }
-                } else if (outgoingCharSequenceIterator != null) {
-                    CharSequence nextCharSequence = outgoingCharSequenceIterator.next();
-                    outgoingBuffer = UTF8.encode(nextCharSequence);
-                    if (!outgoingCharSequenceIterator.hasNext()) {
-                        outgoingCharSequenceIterator = null;
-                        isLastPartOfElement = true;
-                    } else {
-                        isLastPartOfElement = false;
-                    }
-
-                    if (debugger != null) {
-                        if (outgoingStreamForDebugger == null) {
-                            outgoingStreamForDebugger = new StringBuilder();
+                } else if (outgoingCharSequenceIterator != null || outgoingUtf8Encoder.hasPendingInput()) {
+                    // Encode as many parts of the current element as fit into the next slice of the outgoing buffer
+                    // chunk. This avoids creating a String and a ByteBuffer for every part.
+                    ByteBuffer encodeBuffer = outgoingBufferChunks.nextSlice();
+                    while (outgoingCharSequenceIterator != null || outgoingUtf8Encoder.hasPendingInput()) {
+                        if (outgoingUtf8Encoder.needsInput()) {
+                            CharSequence nextCharSequence = outgoingCharSequenceIterator.next();
+                            final boolean lastCharSequence = !outgoingCharSequenceIterator.hasNext();
+                            if (lastCharSequence) {
+                                outgoingCharSequenceIterator = null;
+                            }
+                            outgoingUtf8Encoder.setInput(nextCharSequence, lastCharSequence);
+
+                            if (debugger != null) {
+                                if (outgoingStreamForDebugger == null) {
+                                    outgoingStreamForDebugger = new StringBuilder();
+                                }
+                                outgoingStreamForDebugger.append(nextCharSequence);
+
+                                if (lastCharSequence) {
+                                    try {
+                                        outputDebugSplitter.append(outgoingStreamForDebugger);
+                                    } catch (IOException e) {
+                                        throw new AssertionError(e);
+                                    }
+                                    debugger.onOutgoingElementCompleted();
+                                    outgoingStreamForDebugger = null;
+                                }
+                            }
                         }
-                        outgoingStreamForDebugger.append(nextCharSequence);
 
-                        if (isLastPartOfElement) {
-                            try {
-                                outputDebugSplitter.append(outgoingStreamForDebugger);
-                            } catch (IOException e) {
-                                throw new AssertionError(e);
-                            }
-                            debugger.onOutgoingElementCompleted();
-                            outgoingStreamForDebugger = null;
+                        if (!outgoingUtf8Encoder.encode(encodeBuffer)) {
+                            // The slice is full.
+                            break;
                         }
                     }
+                    isLastPartOfElement = outgoingCharSequenceIterator == null && !outgoingUtf8Encoder.hasPendingInput();
+                    outgoingBufferChunks.commitSlice(encodeBuffer);
+                    outgoingBuffer = encodeBuffer;
                 } else if (!outgoingElementsQueue.isEmpty()) {
                     currentlyOutgonigTopLevelStreamElement = outgoingElementsQueue.poll();
                     if (currentlyOutgonigTopLevelStreamElement instanceof Stanza) {
@@ -507,15 +592,23 @@ public class XmppNioTcpConnection extends AbstractXmppNioConnection {
                         lastDestinationAddress = currentDestinationAddress;
                     }
                     CharSequence nextCharSequence = currentlyOutgonigTopLevelStreamElement.toXML(StreamOpen.CLIENT_NAMESPACE);
+                    outgoingUtf8Encoder.reset();
                     if (nextCharSequence instanceof XmlStringBuilder) {
                         XmlStringBuilder xmlStringBuilder = (XmlStringBuilder) nextCharSequence;
-                        outgoingCharSequenceIterator = xmlStringBuilder.getCharSequenceIterator();
+                        outgoingCharSequenceIterator = xmlStringBuilder.getCharSequenceIterator(StreamOpen.CLIENT_NAMESPACE);
                     } else {
                         outgoingCharSequenceIterator = Collections.singletonList(nextCharSequence).iterator();
                     }
                     assert (outgoingCharSequenceIterator != null);
+                } else if (gatherMoreOutput) {
+                    // There was no more output to gather after all, write what has been gathered so far.
+                    gatherMoreOutput = false;
                 } else {
-                    // There is nothing more to write.
+                    // There is nothing more to write. If the output filters also do not have pending data, then no one
+                    // holds a reference to the outgoing buffer chunks anymore and they can be re-used.
+                    if (!newPendingOutputFilterData) {
+                        outgoingBufferChunks.releaseAll();
+                    }
                     break;
                 }
             }
@@ -534,6 +627,9 @@ public class XmppNioTcpConnection extends AbstractXmppNioConnection {
                 }
 
                 int bytesRead;
+                if (incomingBuffer == null) {
+                    incomingBuffer = getByteBufferPool().acquire(INCOMING_BUFFER_SIZE);
+                }
                 incomingBuffer.clear();
                 try {
                     bytesRead = selectedSocketChannel.read(incomingBuffer);
@@ -609,9 +705,14 @@ public class XmppNioTcpConnection extends AbstractXmppNioConnection {
             totalBytesWritten += callbackBytesWritten;
             totalBytesRead += callbackBytesRead;
 
+            releaseIdleBuffers();
+
             channelSelectedCallbackLock.unlock();
         }
 
+        // The connection may have been closed while this callback was running.
+        releaseAllBuffersIfRequested();
+
         // Indicate that there is no reactor thread racing towards handling this selection key.
         final SelectionKeyAttachment selectionKeyAttachment = this.selectionKeyAttachment;
         if (selectionKeyAttachment != null) {
@@ -628,6 +729,70 @@ public class XmppNioTcpConnection extends AbstractXmppNioConnection {
         setInterestOps(selectionKey, newInterestedOps);
     };
 
+    /**
+     * Hand back the buffers, which are only required while performing I/O, to the shared pool. Must be called while
+     * holding the channel selected callback lock.
+     */
+    private void releaseIdleBuffers() {
+        // The data read into the incoming buffer is always completely processed by the filters and the splitter.
+        getByteBufferPool().release(incomingBuffer);
+        incomingBuffer = null;
+
+        // The buffers returned by the output filters may still be referenced by the list of buffers to write.
+        if (filteredOutgoingBuffer != null || !networkOutgoingBuffers.isEmpty()) {
+            return;
+        }
+        for (ListIterator<XmppInputOutputFilter> it = getXmppInputOutputFilterBeginIterator(); it.hasNext();) {
+            it.next().releaseIdleBuffers();
+        }
+    }
+
+    /**
+     * Hand back all buffers to the shared pool, including the ones holding data which was not yet written or processed,
+     * if this was requested because the socket channel was closed. If the channel selected callback is running, then
+     * it releases the buffers once it is done.
+     */
+    private void releaseAllBuffersIfRequested() {
+        if (!releaseAllBuffersRequested) {
+            return;
+        }
+        if (!channelSelectedCallbackLock.tryLock()) {
+            // The holder of the lock calls this method again after releasing the lock.
+            return;
+        }
+        try {
+            if (!releaseAllBuffersRequested) {
+                return;
+            }
+            releaseAllBuffersRequested = false;
+
+            getByteBufferPool().release(incomingBuffer);
+            incomingBuffer = null;
+
+            // The outgoing buffers are slices of the outgoing buffer chunks.
+            outgoingCharSequenceIterator = null;
+            outgoingBuffer = null;
+            filteredOutgoingBuffer = null;
+            networkOutgoingBuffers.clear();
+            networkOutgoingBuffersBytes = 0;
+            bufferToElementMap.clear();
+            currentlyOutgoingElements.clear();
+            outgoingBufferChunks.releaseAll();
+
+            final TlsState droppedTlsState = this.droppedTlsState;
+            if (droppedTlsState != null) {
+                droppedTlsState.releaseAllBuffers();
+                this.droppedTlsState = null;
+            }
+            final TlsState tlsState = this.tlsState;
+            if (tlsState != null) {
+                tlsState.releaseAllBuffers();
+            }
+        } finally {
+            channelSelectedCallbackLock.unlock();
+        }
+    }
+
     private void handleReadWriteIoException(IOException e) {
         if (e instanceof ClosedChannelException && !isConnected()) {
             // The connection is already closed.
@@ -637,6 +802,21 @@ public class XmppNioTcpConnection extends AbstractXmppNioConnection {
         notifyConnectionError(e);
     }
 
+    /**
+     * Run the given runnable asynchronously. If the executor rejects it, then it is run by the reactor, as the
+     * runnables passed to this method are required for the connection to make progress.
+     *
+     * @param runnable the runnable to run.
+     */
+    private static void asyncGoOrSchedule(Runnable runnable) {
+        try {
+            asyncGo(runnable);
+        } catch (RejectedExecutionException e) {
+            LOGGER.log(Level.FINE, "Executor rejected task, scheduling it in the reactor", e);
+            schedule(runnable, 0, TimeUnit.MILLISECONDS);
+        }
+    }
+
     private void callChannelSelectedCallback(boolean setPendingInputFilterData, boolean setPendingOutputFilterData) {
         final SocketChannel channel = socketChannel;
         final SelectionKey key = selectionKey;
@@ -1051,7 +1231,14 @@ public class XmppNioTcpConnection extends AbstractXmppNioConnection {
 
         @Override
         protected void resetState() {
+            // Its buffers are released once the socket channel is closed, see cleanUpSelectionKeyAndSocketChannel().
+            droppedTlsState = tlsState;
             tlsState = null;
+            if (socketChannel == null) {
+                // The socket channel was already closed.
+                releaseAllBuffersRequested = true;
+                releaseAllBuffersIfRequested();
+            }
         }
     }
 
@@ -1082,19 +1269,28 @@ public class XmppNioTcpConnection extends AbstractXmppNioConnection {
 
     private final class TlsState implements XmppInputOutputFilter {
 
-        private static final int MAX_PENDING_OUTPUT_BYTES = 8096;
-
         private final SmackTlsContext smackTlsContext;
         private final SSLEngine engine;
 
         private TlsHandshakeStatus handshakeStatus = TlsHandshakeStatus.initial;
         private SSLException handshakeException;
 
+        private final int packetBufferSize;
+        private final int applicationBufferSize;
+
+        /**
+         * The buffers used for wrap() and unwrap(). They are leased from the shared buffer pool when required and
+         * released once the connection is idle, see {@link #releaseIdleBuffers()}.
+         */
         private ByteBuffer myNetData;
         private ByteBuffer peerAppData;
 
         private final List<ByteBuffer> pendingOutputData = new ArrayList<>();
         private int pendingOutputBytes;
+
+        /**
+         * Partial TLS records which could not yet be unwrapped, leased from the shared buffer pool.
+         */
         private ByteBuffer pendingInputData;
 
         private final AtomicInteger pendingDelegatedTasks = new AtomicInteger();
@@ -1121,11 +1317,8 @@ public class XmppNioTcpConnection extends AbstractXmppNioConnection {
             engine.setUseClientMode(true);
 
             SSLSession session = engine.getSession();
-            int applicationBufferSize = session.getApplicationBufferSize();
-            int packetBufferSize = session.getPacketBufferSize();
-
-            myNetData = ByteBuffer.allocateDirect(packetBufferSize);
-            peerAppData = ByteBuffer.allocate(applicationBufferSize);
+            applicationBufferSize = session.getApplicationBufferSize();
+            packetBufferSize = session.getPacketBufferSize();
         }
 
         @Override
@@ -1134,13 +1327,21 @@ public class XmppNioTcpConnection extends AbstractXmppNioConnection {
             if (outputData != null) {
                 pendingOutputData.add(outputData);
                 pendingOutputBytes += outputData.remaining();
-                if (moreDataAvailable && pendingOutputBytes < MAX_PENDING_OUTPUT_BYTES) {
+                // Coalesce the output into as few TLS records as possible, but not more than what fits into a
+                // single record.
+                int maxPendingOutputBytes = Math.min(outgoingCoalescingPolicy.getCoalesceThresholdBytes(),
+                                applicationBufferSize);
+                if (moreDataAvailable && pendingOutputBytes < maxPendingOutputBytes) {
                     return OutputResult.NO_OUTPUT;
                 }
             }
 
             ByteBuffer[] outputDataArray = pendingOutputData.toArray(new ByteBuffer[pendingOutputData.size()]);
 
+            // Note that output() is only invoked once the previously returned data was written.
+            if (myNetData == null) {
+                myNetData = getByteBufferPool().acquire(packetBufferSize);
+            }
             myNetData.clear();
 
             while (true) {
@@ -1197,9 +1398,10 @@ public class XmppNioTcpConnection extends AbstractXmppNioConnection {
                     if (newCapacity <= myNetData.capacity()) {
                         newCapacity = 2 * myNetData.capacity();
                     }
-                    ByteBuffer newMyNetData = ByteBuffer.allocateDirect(newCapacity);
+                    ByteBuffer newMyNetData = getByteBufferPool().acquire(newCapacity);
                     myNetData.flip();
                     newMyNetData.put(myNetData);
+                    getByteBufferPool().release(myNetData);
                     myNetData = newMyNetData;
                     continue;
                 case BUFFER_UNDERFLOW:
@@ -1215,14 +1417,24 @@ public class XmppNioTcpConnection extends AbstractXmppNioConnection {
             if (pendingInputData == null) {
                 accumulatedData = inputData;
             } else {
+                // Append the new input data to the pending input data, growing the buffer if necessary.
                 int accumulatedDataBytes = pendingInputData.remaining() + inputData.remaining();
-                accumulatedData = ByteBuffer.allocate(accumulatedDataBytes);
-                accumulatedData.put(pendingInputData)
-                               .put(inputData)
-                               .flip();
-                pendingInputData = null;
+                if (pendingInputData.capacity() < accumulatedDataBytes) {
+                    ByteBuffer newPendingInputData = getByteBufferPool().acquire(accumulatedDataBytes);
+                    newPendingInputData.put(pendingInputData);
+                    getByteBufferPool().release(pendingInputData);
+                    pendingInputData = newPendingInputData;
+                } else {
+                    pendingInputData.compact();
+                }
+                pendingInputData.put(inputData)
+                                .flip();
+                accumulatedData = pendingInputData;
             }
 
+            if (peerAppData == null) {
+                peerAppData = getByteBufferPool().acquire(applicationBufferSize);
+            }
             peerAppData.clear();
 
             while (true) {
@@ -1248,14 +1460,14 @@ public class XmppNioTcpConnection extends AbstractXmppNioConnection {
                         // A delegated task is asynchronously running. Signal that there is pending input data and
                         // cycle again through the smack reactor.
                         addAsPendingInputData(accumulatedData);
-                        break;
+                        return peerAppData;
                     case NEED_UNWRAP:
                         continue;
                     case NEED_WRAP:
                         // NEED_WRAP means that the SSLEngine needs to send data, probably without consuming data.
                         // We exploit here the fact that the channelSelectedCallback is single threaded and that the
                         // input processing is after the output processing.
-                        asyncGo(() -> callChannelSelectedCallback(false, true));
+                        asyncGoOrSchedule(() -> callChannelSelectedCallback(false, true));
                         break;
                     default:
                         break;
@@ -1269,8 +1481,12 @@ public class XmppNioTcpConnection extends AbstractXmppNioConnection {
                     if (accumulatedData.hasRemaining()) {
                         continue;
                     }
+                    if (accumulatedData == pendingInputData) {
+                        releasePendingInputData();
+                    }
                     return peerAppData;
                 case CLOSED:
+                    releasePendingInputData();
                     return null;
                 case BUFFER_UNDERFLOW:
                     // There were not enough source bytes available to make a complete packet. Let it in
@@ -1281,17 +1497,49 @@ public class XmppNioTcpConnection extends AbstractXmppNioConnection {
                 case BUFFER_OVERFLOW:
                     int applicationBufferSize = engine.getSession().getApplicationBufferSize();
                     assert (peerAppData.remaining() < applicationBufferSize);
-                    peerAppData = ByteBuffer.allocate(applicationBufferSize);
+                    getByteBufferPool().release(peerAppData);
+                    peerAppData = getByteBufferPool().acquire(applicationBufferSize);
                     continue;
                 }
             }
         }
 
         private void addAsPendingInputData(ByteBuffer byteBuffer) {
-            pendingInputData = ByteBuffer.allocate(byteBuffer.remaining());
+            if (byteBuffer == pendingInputData) {
+                // The remaining bytes are already in pendingInputData.
+                return;
+            }
+            assert pendingInputData == null;
+            pendingInputData = getByteBufferPool().acquire(byteBuffer.remaining());
             pendingInputData.put(byteBuffer).flip();
         }
 
+        private void releasePendingInputData() {
+            getByteBufferPool().release(pendingInputData);
+            pendingInputData = null;
+        }
+
+        @Override
+        public void releaseIdleBuffers() {
+            getByteBufferPool().release(myNetData);
+            myNetData = null;
+            getByteBufferPool().release(peerAppData);
+            peerAppData = null;
+        }
+
+        /**
+         * Release all buffers, including the ones holding pending data. Must only be called once the socket channel
+         * was closed.
+         */
+        private void releaseAllBuffers() {
+            releaseIdleBuffers();
+            if (pendingInputData != null) {
+                releasePendingInputData();
+            }
+            pendingOutputData.clear();
+            pendingOutputBytes = 0;
+        }
+
         private SSLEngineResult.HandshakeStatus handleHandshakeStatus(SSLEngineResult sslEngineResult) {
             SSLEngineResult.HandshakeStatus handshakeStatus = sslEngineResult.getHandshakeStatus();
             switch (handshakeStatus) {
@@ -1314,7 +1562,7 @@ public class XmppNioTcpConnection extends AbstractXmppNioConnection {
                             callChannelSelectedCallback(true, true);
                         }
                     };
-                    asyncGo(wrappedDelegatedTask);
+                    asyncGoOrSchedule(wrappedDelegatedTask);
                 }
                 break;
             case FINISHED:
@@ -1675,6 +1923,7 @@ public class XmppNioTcpConnection extends AbstractXmppNioConnection {
     private void sendTopLevelStreamElement(TopLevelStreamElement topLevelStreamElement)
                     throws InterruptedException {
         outgoingElementsQueue.put(topLevelStreamElement);
+        outgoingCoalescingPolicy.onElementQueued();
         afterOutgoingElementsQueueModified();
     }
 
@@ -1765,6 +2014,9 @@ public class XmppNioTcpConnection extends AbstractXmppNioConnection {
 
         selectionKeyAttachment = null;
         remoteAddress = null;
+
+        releaseAllBuffersRequested = true;
+        releaseAllBuffersIfRequested();
     }
 
     public boolean isSmResumptionPossible() {
@@ -1794,6 +2046,8 @@ public class XmppNioTcpConnection extends AbstractXmppNioConnection {
         public final long callbackPreemtBecauseBytesRead;
         public final int sslEngineDelegatedTasks;
         public final int maxPendingSslEngineDelegatedTasks;
+        public final ByteBufferPool.Stats byteBufferPoolStats;
+        public final AdaptiveBundleAndDeferCallback.Stats outgoingCoalescingStats;
         public final List<Object> filterStats;
 
         private Stats(XmppNioTcpConnection connection) {
@@ -1820,6 +2074,10 @@ public class XmppNioTcpConnection extends AbstractXmppNioConnection {
             sslEngineDelegatedTasks = connection.sslEngineDelegatedTasks;
             maxPendingSslEngineDelegatedTasks = connection.maxPendingSslEngineDelegatedTasks;
 
+            byteBufferPoolStats = connection.getByteBufferPool().getStats();
+
+            outgoingCoalescingStats = connection.outgoingCoalescingPolicy.getStats();
+
             filterStats = connection.getFilterStats();
         }
 
@@ -1850,6 +2108,10 @@ public class XmppNioTcpConnection extends AbstractXmppNioConnection {
             + "callback-preemt-because-bytes-written: " + callbackPreemtBecauseBytesWritten + '\n'
             + "ssl-engine-delegated-tasks: " + sslEngineDelegatedTasks + '\n'
             + "max-pending-ssl-engine-delegated-tasks: " + maxPendingSslEngineDelegatedTasks + '\n'
+            + "Shared Buffer Pool\n"
+            + byteBufferPoolStats + '\n'
+            + "Outgoing Coalescing\n"
+            + outgoingCoalescingStats + '\n'
             );
 
             if (!filterStats.isEmpty()) {
@@ -1865,6 +2127,49 @@ public class XmppNioTcpConnection extends AbstractXmppNioConnection {
         }
     }
 
+    /**
+     * Direct buffer chunks into which the outgoing elements are encoded. Every element is encoded into its own slice of
+     * the current chunk, since the buffers are used to look up the elements once their data was written. The chunks are
+     * leased from the shared buffer pool and only released once all outgoing data was written and the output filters
+     * do not have pending data, as filters, like the TLS filter, may hold on to the buffers.
+     */
+    private static final class OutgoingBufferChunks {
+        private static final int CHUNK_SIZE = 16 * 1024;
+        private static final int MIN_SLICE_SIZE = 1024;
+
+        private final ByteBufferPool byteBufferPool;
+        private final List<ByteBuffer> usedChunks = new ArrayList<>();
+        private ByteBuffer currentChunk;
+
+        private OutgoingBufferChunks(ByteBufferPool byteBufferPool) {
+            this.byteBufferPool = byteBufferPool;
+        }
+
+        private ByteBuffer nextSlice() {
+            if (currentChunk == null || currentChunk.remaining() < MIN_SLICE_SIZE) {
+                if (currentChunk != null) {
+                    usedChunks.add(currentChunk);
+                }
+                currentChunk = byteBufferPool.acquire(CHUNK_SIZE);
+            }
+            return currentChunk.slice();
+        }
+
+        private void commitSlice(ByteBuffer slice) {
+            currentChunk.position(currentChunk.position() + slice.position());
+            slice.flip();
+        }
+
+        private void releaseAll() {
+            for (ByteBuffer chunk : usedChunks) {
+                byteBufferPool.release(chunk);
+            }
+            usedChunks.clear();
+            byteBufferPool.release(currentChunk);
+            currentChunk = null;
+        }
+    }
+
     private static List<? extends Buffer> pruneBufferList(Collection<? extends Buffer> buffers) {
         return CollectionUtil.removeUntil(buffers, b -> b.hasRemaining());
     }
@@ -0,0 +1,123 @@
+/**
+ *
+ * Copyright 2019 Florian Schmaus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.smack.sm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.jivesoftware.smack.packet.Message;
+import org.jivesoftware.smack.packet.Stanza;
+
+import org.junit.Test;
+
+public class UnacknowledgedStanzaBufferTest {
+
+    @Test
+    public void acknowledgedStanzasAreReleasedInOrderTest() {
+        UnacknowledgedStanzaBuffer buffer = new UnacknowledgedStanzaBuffer();
+        List<Stanza> stanzas = createStanzas(200);
+        // Wrap around the end of the ring a few times, while the buffer also has to grow.
+        int added = 0;
+        int released = 0;
+        while (added < stanzas.size()) {
+            int toAdd = Math.min(37, stanzas.size() - added);
+            buffer.addAll(stanzas.subList(added, added + toAdd));
+            added += toAdd;
+
+            int toRelease = Math.min(23, added - released);
+            List<Stanza> acknowledged = buffer.removeAcknowledged(toRelease);
+            assertEquals(toRelease, acknowledged.size());
+            for (Stanza stanza : acknowledged) {
+                assertSame(stanzas.get(released++), stanza);
+            }
+        }
+
+        assertEquals(added - released, buffer.size());
+        List<Stanza> remaining = buffer.drain();
+        for (Stanza stanza : remaining) {
+            assertSame(stanzas.get(released++), stanza);
+        }
+        assertEquals(stanzas.size(), released);
+        assertTrue(buffer.isEmpty());
+    }
+
+    @Test
+    public void discardAcknowledgedTest() {
+        UnacknowledgedStanzaBuffer buffer = new UnacknowledgedStanzaBuffer();
+        List<Stanza> stanzas = createStanzas(100);
+        buffer.addAll(stanzas);
+
+        buffer.discardAcknowledged(99);
+        assertEquals(1, buffer.size());
+        assertSame(stanzas.get(99), buffer.drain().get(0));
+
+        UnacknowledgedStanzaBuffer.Stats stats = buffer.getStats();
+        assertEquals(0, stats.inFlight);
+        assertEquals(100, stats.maxInFlight);
+        assertEquals(99, stats.acknowledgedStanzas);
+        assertTrue(stats.lastAckLatencyMillis >= 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void acknowledgingMoreThanUnacknowledgedTest() {
+        UnacknowledgedStanzaBuffer buffer = new UnacknowledgedStanzaBuffer();
+        buffer.addAll(createStanzas(3));
+        buffer.discardAcknowledged(4);
+    }
+
+    @Test
+    public void ackRequestsFollowAcknowledgementsTest() {
+        UnacknowledgedStanzaBuffer buffer = new UnacknowledgedStanzaBuffer(10);
+        List<Stanza> stanzas = createStanzas(30);
+
+        buffer.addAll(stanzas.subList(0, 9));
+        assertFalse(buffer.shouldRequestAck());
+
+        buffer.add(stanzas.get(9));
+        assertTrue(buffer.shouldRequestAck());
+        buffer.ackRequestSent();
+
+        // The request is still outstanding, hence no further request is sent.
+        buffer.addAll(stanzas.subList(10, 30));
+        assertFalse(buffer.shouldRequestAck());
+
+        // Once the server answered, another request may be sent.
+        buffer.discardAcknowledged(5);
+        assertTrue(buffer.shouldRequestAck());
+
+        // But not if there are not enough unacknowledged stanzas.
+        buffer.discardAcknowledged(20);
+        assertFalse(buffer.shouldRequestAck());
+
+        assertEquals(1, buffer.getStats().ackRequestsSent);
+    }
+
+    private static List<Stanza> createStanzas(int count) {
+        List<Stanza> stanzas = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            Message message = new Message();
+            message.setStanzaId("id-" + i);
+            stanzas.add(message);
+        }
+        return stanzas;
+    }
+}
@@ -0,0 +1,117 @@
+/**
+ *
+ * Copyright 2019 Florian Schmaus
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.smack.tcp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+public class AdaptiveBundleAndDeferCallbackTest {
+
+    @Test
+    public void sporadicTrafficIsNotDeferredTest() {
+        ManualClock clock = new ManualClock();
+        AdaptiveBundleAndDeferCallback callback = new AdaptiveBundleAndDeferCallback(20, 16, clock);
+
+        // Without any knowledge about the traffic, elements are sent immediately.
+        assertEquals(0, callback.getBundleAndDeferMillis(new BundleAndDefer(new AtomicBoolean())));
+
+        callback.onElementQueued();
+        clock.advanceMillis(50);
+        callback.onElementQueued();
+
+        // The next element is not expected within the latency cap.
+        assertEquals(0, callback.getBundleAndDeferMillis(new BundleAndDefer(new AtomicBoolean())));
+    }
+
+    @Test
+    public void burstyTrafficIsDeferredAndStoppedOnceBundleIsCompleteTest() {
+        ManualClock clock = new ManualClock();
+        AdaptiveBundleAndDeferCallback callback = new AdaptiveBundleAndDeferCallback(20, 4, clock);
+
+        for (int i = 0; i < 10; i++) {
+            callback.onElementQueued();
+            clock.advanceMillis(2);
+        }
+
+        AtomicBoolean stopped = new AtomicBoolean();
+        // Three further elements are expected within 6 ms.
+        assertEquals(6, callback.getBundleAndDeferMillis(new BundleAndDefer(stopped)));
+
+        // Three further elements complete the bundle of four elements.
+        callback.onElementQueued();
+        callback.onElementQueued();
+        assertFalse(stopped.get());
+        callback.onElementQueued();
+        assertTrue(stopped.get());
+
+        AdaptiveBundleAndDeferCallback.Stats stats = callback.getStats();
+        assertEquals(1, stats.bundles);
+        assertEquals(1, stats.bundlesStoppedEarly);
+    }
+
+    @Test
+    public void coalesceThresholdFollowsElementSizeTest() {
+        AdaptiveBundleAndDeferCallback callback = new AdaptiveBundleAndDeferCallback(20, 16);
+        assertEquals(AdaptiveBundleAndDeferCallback.DEFAULT_COALESCE_THRESHOLD_BYTES,
+                        callback.getCoalesceThresholdBytes());
+
+        // Small elements, the threshold is raised to the minimum.
+        callback.onWrite(10 * 20, 10, false);
+        assertEquals(AdaptiveBundleAndDeferCallback.MIN_COALESCE_THRESHOLD_BYTES, callback.getCoalesceThresholdBytes());
+
+        callback = new AdaptiveBundleAndDeferCallback(20, 16);
+        callback.onWrite(2 * 1000, 2, false);
+        assertEquals(16 * 1000, callback.getCoalesceThresholdBytes());
+
+        // Once most writes are blocked, as much as possible is coalesced.
+        for (int i = 0; i < 20; i++) {
+            callback.onWrite(1000, 1, true);
+        }
+        assertEquals(AdaptiveBundleAndDeferCallback.MAX_COALESCE_THRESHOLD_BYTES, callback.getCoalesceThresholdBytes());
+    }
+
+    @Test
+    public void flushIsForcedAfterLatencyCapTest() {
+        ManualClock clock = new ManualClock();
+        AdaptiveBundleAndDeferCallback callback = new AdaptiveBundleAndDeferCallback(5, 16, clock);
+        long unflushedSince = clock.nanoTime();
+        assertFalse(callback.shouldFlush(unflushedSince));
+        clock.advanceMillis(4);
+        assertFalse(callback.shouldFlush(unflushedSince));
+        clock.advanceMillis(1);
+        assertTrue(callback.shouldFlush(unflushedSince));
+    }
+
+    private static final class ManualClock implements AdaptiveBundleAndDeferCallback.NanoClock {
+        private long nanos = 42;
+
+        @Override
+        public long nanoTime() {
+            return nanos;
+        }
+
+        private void advanceMillis(long millis) {
+            nanos += TimeUnit.MILLISECONDS.toNanos(millis);
+        }
+    }
+}